@@ -8,14 +8,28 @@ package io.zeropass.trid;
 
 import io.zeropass.trid.com.NfcProvider;
 import io.zeropass.trid.crypto.CryptoUtils;
-import io.zeropass.trid.crypto.RSA_ISO9796_2_DSS1_SHA1;
+import io.zeropass.trid.crypto.CryptoWarmup;
+import io.zeropass.trid.crypto.ECDSAPlainVerifier;
+import io.zeropass.trid.crypto.EphemeralKeyPool;
+import io.zeropass.trid.crypto.RSA_ISO9796_2_DSS1;
+import io.zeropass.trid.passport.BacKeyMaterial;
 import io.zeropass.trid.passport.EPassport;
 import io.zeropass.trid.passport.PassportError;
+import io.zeropass.trid.passport.lds.ActiveAuthenticationInfo;
+import io.zeropass.trid.passport.lds.DG1File;
 import io.zeropass.trid.tlv.TLVUtils;
 
+import java.io.File;
 import java.io.IOException;
+import java.security.GeneralSecurityException;
 import java.security.PublicKey;
+import java.security.interfaces.ECPublicKey;
 import java.security.interfaces.RSAPublicKey;
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.logging.Logger;
 
 import android.app.AlertDialog;
@@ -31,6 +45,8 @@ import android.nfc.Tag;
 import android.nfc.tech.IsoDep;
 import android.os.Build;
 import android.provider.Settings;
+import android.text.Editable;
+import android.text.TextWatcher;
 import android.support.v7.app.AppCompatActivity;
 import android.os.Bundle;
 import android.view.View;
@@ -56,6 +72,7 @@ public class MainActivity extends AppCompatActivity {
     private EditText mEditTextDoe;
 
     private byte[] mDataToSign;
+    private byte[] mHashOfDataToSign; // SHA-1 of mDataToSign, computed once
     private String mPassportNumber;
     private String mDateOfBirth;
     private String mDateOfExpiry;
@@ -67,6 +84,10 @@ public class MainActivity extends AppCompatActivity {
 
     ProgressDialog mProgressDialog;
 
+    // BAC key material is prepared in background as soon as MRZ data is complete
+    private final ExecutorService mBacWorker = Executors.newSingleThreadExecutor();
+    private volatile Future<BacKeyMaterial> mBacKeyMaterial = null;
+
 
     // Nfc
     private NfcAdapter mNfcAdapter = null;
@@ -92,6 +113,40 @@ public class MainActivity extends AppCompatActivity {
 
         mProgressDialog = new ProgressDialog(this);
 
+        // Prepare BAC key material when MRZ data changes
+        TextWatcher mrzWatcher = new TextWatcher() {
+            @Override
+            public void beforeTextChanged(CharSequence s, int start, int count, int after) {}
+
+            @Override
+            public void onTextChanged(CharSequence s, int start, int before, int count) {}
+
+            @Override
+            public void afterTextChanged(Editable s) {
+                updateData();
+                prepareBacKeyMaterial();
+            }
+        };
+
+        mEditTextPassNum.addTextChangedListener(mrzWatcher);
+        mEditTextDob.addTextChangedListener(mrzWatcher);
+        mEditTextDoe.addTextChangedListener(mrzWatcher);
+
+        // Warm up crypto in background: select fastest JCA providers (benchmarked on first start),
+        // seed nonce pool and run BAC/SM and AA operations, so the first scan is not slower than later ones
+        CryptoWarmup.start(new File(getFilesDir(), "providers.properties"), new CryptoWarmup.Listener() {
+            @Override
+            public void onWarmupFinished(boolean success, long elapsedMs) {
+                if(!success) {
+                    Journal.severe("Crypto self-test failed!");
+                    showToast("Crypto self-test failed!");
+                }
+            }
+        });
+
+        // Pre-generate ephemeral keys for Chip Authentication
+        EphemeralKeyPool.getDefault().prefillCommonDomainParameters();
+
         // Nfc Adapter init
         mNfcAdapter = NfcAdapter.getDefaultAdapter(this);
         mPendingIntent = PendingIntent.getActivity(this, 0, new Intent(this, this.getClass()).addFlags(Intent.FLAG_ACTIVITY_SINGLE_TOP), 0);
@@ -119,7 +174,7 @@ public class MainActivity extends AppCompatActivity {
 //        byte[] signature = Utils.strToHex("22BF2420BE8A18114CA8E3D3AADC44EC0BEC50E42C640882DBFEED068F0AAB75BE69B65130B037F1EBC75EE1448FA3B60B1E70DD9C821D58BDE234B45BDC3F848FF8DD6BB4BB6854E13A940EA038F1FDE7B67C72360AAFB9FED3A4D991973AC9440DB1D7DD6A86B72554A703B47FDDDAA495F514E80549D667E4595DB11801E6");
 //
 //        mDataToSign = message;
-//        setOutput(pubKey, signature);
+//        setOutput(pubKey, signature, "SHA-1");
     }
 
     void setOutputVisible(boolean visible) {
@@ -136,7 +191,11 @@ public class MainActivity extends AppCompatActivity {
     }
 
     boolean updateData() {
-        mDataToSign = mEditTextDataToSign.getText().toString().getBytes();
+        byte[] dataToSign = mEditTextDataToSign.getText().toString().getBytes();
+        if(!Arrays.equals(dataToSign, mDataToSign)) {
+            mDataToSign = dataToSign;
+            mHashOfDataToSign = null;
+        }
         mPassportNumber = mEditTextPassNum.getText().toString();
         mDateOfBirth  = mEditTextDob.getText().toString();
         mDateOfExpiry = mEditTextDoe.getText().toString();
@@ -144,16 +203,64 @@ public class MainActivity extends AppCompatActivity {
         return true;
     }
 
-    void setOutput(PublicKey iccPublicKey, byte[] iccSignature) {
+    /* Schedules preparation of BAC key material for current MRZ data */
+    void prepareBacKeyMaterial() {
+        final String passportNumber = mPassportNumber;
+        final String dateOfBirth = mDateOfBirth;
+        final String dateOfExpiry = mDateOfExpiry;
+
+        if(!BacKeyMaterial.isComplete(passportNumber, dateOfBirth, dateOfExpiry)) {
+            mBacKeyMaterial = null;
+            return;
+        }
+
+        mBacKeyMaterial = mBacWorker.submit(new Callable<BacKeyMaterial>() {
+            @Override
+            public BacKeyMaterial call() throws Exception {
+                return new BacKeyMaterial(passportNumber, dateOfBirth, dateOfExpiry);
+            }
+        });
+    }
+
+    /* Returns prepared BAC key material or computes new one if it doesn't match MRZ data */
+    BacKeyMaterial getBacKeyMaterial(Future<BacKeyMaterial> prepared, String passportNumber, String dateOfBirth, String dateOfExpiry) throws GeneralSecurityException {
+        BacKeyMaterial keyMaterial = null;
+        if(prepared != null) {
+            try {
+                keyMaterial = prepared.get();
+            } catch (Exception e) {
+                Journal.warning("Failed to prepare BAC key material: " + e.getMessage());
+            }
+        }
+
+        if(keyMaterial == null || keyMaterial.isUsed() || !keyMaterial.matches(passportNumber, dateOfBirth, dateOfExpiry)) {
+            keyMaterial = new BacKeyMaterial(passportNumber, dateOfBirth, dateOfExpiry);
+        }
+
+        return keyMaterial;
+    }
+
+    void setOutput(PublicKey iccPublicKey, byte[] iccSignature, String aaDigestAlgorithm) {
         String output = "";
-        if(verifySignature(iccPublicKey, iccSignature)) {
-            /* Format: DataToSign, Sha1(DataToSign), iccPublicKey, iccSignature, iccPubKeyExp */
-            output = String.format("Signed data: %s\n\nData SHA-1: %s\n\nePassport public key:\n    modulo=%s\n    e=%s\n\nSignature: %s",
-                    Utils.hexToStr(mDataToSign),
-                    Utils.hexToStr(getHashOfDataToSign()),
-                    Utils.hexToStr(((RSAPublicKey)iccPublicKey).getModulus().toByteArray()),
-                    Utils.hexToStr(((RSAPublicKey)iccPublicKey).getPublicExponent().toByteArray()),
-                    Utils.hexToStr(iccSignature));
+        if(verifySignature(iccPublicKey, iccSignature, aaDigestAlgorithm)) {
+            if(iccPublicKey instanceof RSAPublicKey) {
+                /* Format: DataToSign, Sha1(DataToSign), iccPublicKey, iccSignature, iccPubKeyExp */
+                output = String.format("Signed data: %s\n\nData SHA-1: %s\n\nePassport public key:\n    modulo=%s\n    e=%s\n\nSignature: %s",
+                        Utils.hexToStr(mDataToSign),
+                        Utils.hexToStr(getHashOfDataToSign()),
+                        Utils.hexToStr(((RSAPublicKey) iccPublicKey).getModulus().toByteArray()),
+                        Utils.hexToStr(((RSAPublicKey) iccPublicKey).getPublicExponent().toByteArray()),
+                        Utils.hexToStr(iccSignature));
+            }
+            else {
+                /* Format: DataToSign, Sha1(DataToSign), iccPublicKey, AA digest algorithm, iccSignature */
+                output = String.format("Signed data: %s\n\nData SHA-1: %s\n\nePassport public key:\n    W=%s\n\nSignature (ECDSA with %s): %s",
+                        Utils.hexToStr(mDataToSign),
+                        Utils.hexToStr(getHashOfDataToSign()),
+                        Utils.hexToStr(CryptoUtils.getPublicKeyData(iccPublicKey)),
+                        aaDigestAlgorithm,
+                        Utils.hexToStr(iccSignature));
+            }
         }
         else { // Signature verification failed
             AlertDialog.Builder alert = new AlertDialog.Builder(this);
@@ -181,23 +288,27 @@ public class MainActivity extends AppCompatActivity {
     }
 
     private byte[] getHashOfDataToSign() {
-        return CryptoUtils.sha1(mDataToSign);
+        if(mHashOfDataToSign == null) {
+            mHashOfDataToSign = CryptoUtils.sha1(mDataToSign);
+        }
+        return mHashOfDataToSign;
     }
 
     private byte[] getHashChunkOfDataToSign() {
         return Utils.copyOut(getHashOfDataToSign(), 0, 8);
     }
 
-    private boolean verifySignature(PublicKey iccPublicKey, byte[] iccSignature) {
+    private boolean verifySignature(PublicKey iccPublicKey, byte[] iccSignature, String aaDigestAlgorithm) {
         String pubKeyAlgorithm = iccPublicKey.getAlgorithm();
         boolean isValid = false;
         if("EC".equals(pubKeyAlgorithm) || "ECDSA".equals(pubKeyAlgorithm)) {
-            // TODO: verify ECDSA signature
-            Journal.warning("Cannot verify ECDSA signature!");
+            isValid = ECDSAPlainVerifier.verifySignature((ECPublicKey) iccPublicKey, aaDigestAlgorithm, getHashChunkOfDataToSign(), iccSignature);
+            if(!isValid) {
+                Journal.warning("ECDSA signature verification failed!");
+            }
         }
         else if("RSA".equals(pubKeyAlgorithm)) {
-            byte[] dataToSign = getHashOfDataToSign();
-            isValid = RSA_ISO9796_2_DSS1_SHA1.verifySignature((RSAPublicKey) iccPublicKey, getHashChunkOfDataToSign(), iccSignature);
+            isValid = RSA_ISO9796_2_DSS1.verifySignature((RSAPublicKey) iccPublicKey, getHashChunkOfDataToSign(), iccSignature);
             if(!isValid) {
                 Journal.warning("RSA signature verification failed!");
             }
@@ -339,6 +450,13 @@ public class MainActivity extends AppCompatActivity {
             return;
         }
 
+        // Take prepared BAC key material and start preparing a fresh one for the next scan
+        final Future<BacKeyMaterial> bacKeyMaterial = mBacKeyMaterial;
+        final String passportNumber = mPassportNumber;
+        final String dateOfBirth = mDateOfBirth;
+        final String dateOfExpiry = mDateOfExpiry;
+        prepareBacKeyMaterial();
+
         showProgressBar("Signing data...");
         final Tag nfcTag = intent.getParcelableExtra(NfcAdapter.EXTRA_TAG);
         if (nfcTag != null) {
@@ -347,6 +465,7 @@ public class MainActivity extends AppCompatActivity {
                 private boolean mFinish = false;
                 PublicKey iccPubKey = null;
                 byte[] iccSignature = null;
+                String aaDigestAlgorithm = ActiveAuthenticationInfo.DEFAULT_DIGEST_ALGORITHM;
 
                 @Override
                 protected void onPreExecute() {
@@ -365,13 +484,40 @@ public class MainActivity extends AppCompatActivity {
 
                     try {
                         mException = false;
+                        BacKeyMaterial keyMaterial = getBacKeyMaterial(bacKeyMaterial, passportNumber, dateOfBirth, dateOfExpiry);
+
                         EPassport passport = new EPassport(new NfcProvider(isoDep));
                         passport.selectEMRTD();
 
-                        if(passport.doBAC(mPassportNumber, mDateOfBirth, mDateOfExpiry)) {
+                        if(passport.doBAC(keyMaterial)) {
+                           /* Protocols preferred by documents of this kind */
+                           DG1File dg1 = passport.readDG1();
+                           if(dg1 != null) {
+                               passport.getProtocolProfile(dg1.getField(DG1File.ISSUING_STATE), dg1.getField(DG1File.DOCUMENT_CODE));
+                           }
+
+                           if(!passport.doChipAuthentication()) {
+                               Journal.info("Chip Authentication not done, continuing with BAC session");
+                           }
+
                            iccPubKey = passport.readPublicKey();
                            iccSignature =  passport.internalAuthenticate(getHashChunkOfDataToSign());
 
+                           /* Digest algorithm for ECDSA signature is defined in DG14 */
+                           if(iccPubKey instanceof ECPublicKey) {
+                               aaDigestAlgorithm = passport.getActiveAuthenticationDigestAlgorithm();
+                           }
+
+                           /* Data groups read so far were hashed while being read.
+                              No CSCA trust store is configured, so only integrity of EF.SOD and DGs is checked
+                              and Passive Authentication is not reported as done. */
+                           if(!passport.verifySODIntegrity()) {
+                               Journal.warning("EF.SOD integrity check failed!");
+                           }
+                           else {
+                               Journal.info("EF.SOD integrity verified, Passive Authentication not done (no CSCA trust store)");
+                           }
+
                            Journal.info("ICC Public key: " + Utils.hexToStr(iccPubKey.getEncoded()));
                            Journal.info("ICC Signature: " + Utils.hexToStr(iccSignature));
                            if(iccPubKey != null && iccSignature != null) {
@@ -384,7 +530,7 @@ public class MainActivity extends AppCompatActivity {
                             showToast("ePassport auth failed. Check input data!");
                         }
                     }
-                    catch (PassportError | IOException e) {
+                    catch (PassportError | IOException | GeneralSecurityException e) {
                         showToast("Signing data via ePassport failed!");
                         Journal.severe("An Exception was thrown while trying to read ePassport: " + e.getMessage());
                         mException = true;
@@ -395,7 +541,7 @@ public class MainActivity extends AppCompatActivity {
                 @Override
                 protected void onPostExecute(final Object result) {
                     if(iccPubKey != null && iccSignature != null) {
-                        setOutput(iccPubKey, iccSignature);
+                        setOutput(iccPubKey, iccSignature, aaDigestAlgorithm);
                     } else {
                         setOutputVisible(false);
                     }
@@ -6,6 +6,7 @@
 
 package io.zeropass.trid.com;
 
+import java.util.Arrays;
 
 /*
 *  ApduCmd is application protocol data unit (APDU) structure.
@@ -156,6 +157,27 @@ public class ApduCmd {
         return null;
     }
 
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof ApduCmd)) {
+            return false;
+        }
+
+        ApduCmd other = (ApduCmd) o;
+        return mCla == other.mCla && mIns == other.mIns && mP1 == other.mP1 && mP2 == other.mP2 &&
+               mNe == other.mNe && Arrays.equals(mData, other.mData);
+    }
+
+    @Override
+    public int hashCode() {
+        int h = (mCla << 24) ^ (mIns << 16) ^ (mP1 << 8) ^ mP2;
+        h = 31 * h + mNe;
+        return 31 * h + Arrays.hashCode(mData);
+    }
+
     /* Serialize APDU to bytes */
     public byte[] toBytes() {
         if(this == null) {
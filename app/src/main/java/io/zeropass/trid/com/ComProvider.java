@@ -27,15 +27,29 @@ public abstract class ComProvider {
 
     protected abstract byte[] transceive(final byte[] data) throws IOException;
 
+    /** Sets new session cipher, the previous session is closed */
     public void setSession(SessionCipher s) {
+        if(mSession != null && mSession != s) {
+            mSession.close();
+        }
         mSession = s;
     }
 
     public ApduResult transceive(ApduCmd cmd) throws IOException {
+        return transceive(cmd, null);
+    }
+
+    /**
+     * Sends command to ICC and returns its response.
+     * @param next predicted next command or null. When secure messaging is established
+     *             the predicted command is wrapped while the current command is being processed by ICC.
+     */
+    public ApduResult transceive(ApduCmd cmd, ApduCmd next) throws IOException {
 
         byte[] cmdBytes = null;
         if(mSession != null) {
             cmdBytes = mSession.encrypt(cmd).toBytes();
+            mSession.prewrap(next);
         }
         else {
             cmdBytes = cmd.toBytes();
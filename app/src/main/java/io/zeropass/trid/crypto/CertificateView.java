@@ -0,0 +1,245 @@
+/*
+* Copyright (c) 2018 ZeroPass
+* Distributed under the MIT software license, see the accompanying
+* file LICENSE or https://opensource.org/licenses/MIT.
+*/
+
+package io.zeropass.trid.crypto;
+
+import java.io.IOException;
+import java.math.BigInteger;
+import java.util.Arrays;
+
+import io.zeropass.trid.tlv.ASN1Util;
+import io.zeropass.trid.tlv.TlvCursor;
+
+/**
+ * Read-only view of DER encoded X.509 certificate.
+ * Certificate is not decoded up front, offsets of TBSCertificate fields are recorded on first access
+ * and field values are decoded only when requested.
+ *
+ * Certificate ::= SEQUENCE { tbsCertificate TBSCertificate, signatureAlgorithm AlgorithmIdentifier, signature BIT STRING }
+ * see RFC 5280 section 4.1
+ */
+public final class CertificateView {
+    private static final byte[] OID_SUBJECT_KEY_IDENTIFIER   = ASN1Util.encodeOid("2.5.29.14");
+    private static final byte[] OID_AUTHORITY_KEY_IDENTIFIER = ASN1Util.encodeOid("2.5.29.35");
+
+    private final byte[] mEncoded;
+    private boolean mIndexed = false;
+
+    /* Offsets of TLVs (header offset and encoded length) of TBSCertificate fields */
+    private int mTbsOffs, mTbsLen;
+    private int mSerialOffs, mSerialLen;
+    private int mIssuerOffs, mIssuerLen;
+    private int mSubjectOffs, mSubjectLen;
+    private int mSpkiOffs, mSpkiLen;
+    private int mExtsOffs = -1, mExtsLen;
+    private long mNotBefore, mNotAfter;
+
+    public CertificateView(byte[] encoded) {
+        mEncoded = encoded;
+    }
+
+    public byte[] getEncoded() {
+        return mEncoded;
+    }
+
+    /** Returns copy of DER encoded TBSCertificate */
+    public byte[] getTbsCertificate() throws IOException {
+        index();
+        return copy(mTbsOffs, mTbsLen);
+    }
+
+    public BigInteger getSerialNumber() throws IOException {
+        index();
+        return new BigInteger(copy(mSerialOffs, mSerialLen));
+    }
+
+    /** Returns DER encoded issuer Name */
+    public byte[] getIssuer() throws IOException {
+        index();
+        return copy(mIssuerOffs, mIssuerLen);
+    }
+
+    /** Returns DER encoded subject Name */
+    public byte[] getSubject() throws IOException {
+        index();
+        return copy(mSubjectOffs, mSubjectLen);
+    }
+
+    /** Returns DER encoded SubjectPublicKeyInfo, see PublicKeyDecoder */
+    public byte[] getSubjectPublicKeyInfo() throws IOException {
+        index();
+        return copy(mSpkiOffs, mSpkiLen);
+    }
+
+    /** Returns start of validity period in milliseconds since epoch */
+    public long getNotBefore() throws IOException {
+        index();
+        return mNotBefore;
+    }
+
+    /** Returns end of validity period in milliseconds since epoch */
+    public long getNotAfter() throws IOException {
+        index();
+        return mNotAfter;
+    }
+
+    public boolean isValidAt(long time) throws IOException {
+        index();
+        return time >= mNotBefore && time <= mNotAfter;
+    }
+
+    /** Returns key identifier of SubjectKeyIdentifier extension or null if extension is not present */
+    public byte[] getSubjectKeyIdentifier() throws IOException {
+        TlvCursor c = extensionCursor(OID_SUBJECT_KEY_IDENTIFIER);
+        if(c == null) {
+            return null;
+        }
+
+        /* SubjectKeyIdentifier ::= OCTET STRING */
+        if(!c.next() || c.tag() != 0x04) {
+            throw new IOException("CertificateView: invalid SubjectKeyIdentifier");
+        }
+        return c.getValue();
+    }
+
+    /**
+     * Returns keyIdentifier of AuthorityKeyIdentifier extension
+     * or null if extension or keyIdentifier is not present.
+     */
+    public byte[] getAuthorityKeyIdentifier() throws IOException {
+        TlvCursor c = extensionCursor(OID_AUTHORITY_KEY_IDENTIFIER);
+        if(c == null) {
+            return null;
+        }
+
+        /* AuthorityKeyIdentifier ::= SEQUENCE { keyIdentifier [0] KeyIdentifier OPTIONAL, ... } */
+        if(!c.next() || c.tag() != 0x30) {
+            throw new IOException("CertificateView: invalid AuthorityKeyIdentifier");
+        }
+        c.enter();
+        return c.find(0x80) ? c.getValue() : null;
+    }
+
+    /**
+     * Returns extension value (content of extnValue OCTET STRING) of extension with given OID
+     * as raw DER or null if extension is not present.
+     * @param oid OID value bytes, see ASN1Util.encodeOid
+     */
+    public byte[] getExtensionValue(byte[] oid) throws IOException {
+        int[] range = findExtension(oid);
+        return range != null ? copy(range[0], range[1]) : null;
+    }
+
+    private TlvCursor extensionCursor(byte[] oid) throws IOException {
+        int[] range = findExtension(oid);
+        return range != null ? new TlvCursor().reset(mEncoded, range[0], range[1]) : null;
+    }
+
+    /* Returns offset and length of content of extnValue or null if extension is not present */
+    private int[] findExtension(byte[] oid) throws IOException {
+        index();
+        if(mExtsOffs < 0) {
+            return null;
+        }
+
+        /* [3] EXPLICIT Extensions ::= SEQUENCE OF Extension { extnID OID, critical BOOLEAN DEFAULT FALSE, extnValue OCTET STRING } */
+        TlvCursor c = new TlvCursor().reset(mEncoded, mExtsOffs, mExtsLen);
+        expect(c, 0xA3);
+        c.enter();
+        expect(c, 0x30);
+        c.enter();
+        while (c.next()) {
+            c.enter();
+            expect(c, 0x06);
+            if(!c.valueEquals(oid)) {
+                c.exit();
+                continue;
+            }
+
+            if(!c.next()) {
+                throw new IOException("CertificateView: invalid extension");
+            }
+            if(c.tag() == 0x01) {
+                expect(c, 0x04);
+            }
+            else if(c.tag() != 0x04) {
+                throw new IOException("CertificateView: invalid extension");
+            }
+            return new int[]{ c.valueOffset(), c.length() };
+        }
+        return null;
+    }
+
+    /* Records offsets of TBSCertificate fields */
+    private synchronized void index() throws IOException {
+        if(mIndexed) {
+            return;
+        }
+
+        TlvCursor c = new TlvCursor(mEncoded);
+        expect(c, 0x30);
+        c.enter();
+        expect(c, 0x30);
+        mTbsOffs = c.headerOffset();
+        mTbsLen  = c.encodedLength();
+        c.enter();
+
+        /* version [0] EXPLICIT is optional */
+        if(!c.next()) {
+            throw new IOException("CertificateView: invalid TBSCertificate");
+        }
+        if(c.tag() == 0xA0) {
+            expect(c, 0x02);
+        }
+        else if(c.tag() != 0x02) {
+            throw new IOException("CertificateView: invalid serial number");
+        }
+        mSerialOffs = c.valueOffset();
+        mSerialLen  = c.length();
+
+        expect(c, 0x30); // signature
+        expect(c, 0x30);
+        mIssuerOffs = c.headerOffset();
+        mIssuerLen  = c.encodedLength();
+
+        expect(c, 0x30);
+        c.enter();
+        mNotBefore = readTime(c);
+        mNotAfter  = readTime(c);
+        c.exit();
+
+        expect(c, 0x30);
+        mSubjectOffs = c.headerOffset();
+        mSubjectLen  = c.encodedLength();
+
+        expect(c, 0x30);
+        mSpkiOffs = c.headerOffset();
+        mSpkiLen  = c.encodedLength();
+
+        if(c.find(0xA3)) {
+            mExtsOffs = c.headerOffset();
+            mExtsLen  = c.encodedLength();
+        }
+        mIndexed = true;
+    }
+
+    private long readTime(TlvCursor c) throws IOException {
+        if(!c.next()) {
+            throw new IOException("CertificateView: invalid validity");
+        }
+        return ASN1Util.parseTime(c.tag(), mEncoded, c.valueOffset(), c.length());
+    }
+
+    private static void expect(TlvCursor c, int tag) throws IOException {
+        if(!c.next() || c.tag() != tag) {
+            throw new IOException("CertificateView: expected tag 0x" + Integer.toHexString(tag));
+        }
+    }
+
+    private byte[] copy(int offs, int len) {
+        return Arrays.copyOfRange(mEncoded, offs, offs + len);
+    }
+}
@@ -6,91 +6,209 @@
 
 package io.zeropass.trid.crypto;
 
-import java.security.KeyFactory;
-import java.security.MessageDigest;
+import java.math.BigInteger;
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
 import java.security.NoSuchAlgorithmException;
+import java.security.PrivateKey;
+import java.security.Provider;
 import java.security.PublicKey;
-import java.security.SecureRandom;
-import java.security.spec.InvalidKeySpecException;
-import java.security.spec.X509EncodedKeySpec;
-import java.util.Random;
+import java.security.interfaces.ECPublicKey;
+import java.security.spec.AlgorithmParameterSpec;
+import java.security.spec.ECFieldFp;
+import java.security.spec.ECParameterSpec;
+import java.security.spec.ECPoint;
 import java.util.logging.Logger;
 
 import javax.crypto.Cipher;
+import javax.crypto.KeyAgreement;
 import javax.crypto.Mac;
 import javax.crypto.NoSuchPaddingException;
+import javax.crypto.interfaces.DHPublicKey;
+import javax.crypto.spec.DHParameterSpec;
 
 public class CryptoUtils {
     private static final Logger Journal = Logger.getLogger("io.trid.crypto.utils");
 
-    private static final Random mRng = new SecureRandom();
-    public static byte[] getRandomBytes(int len) {
-        byte[] rnd = new byte[len];
-        mRng.nextBytes(rnd);
-        return rnd;
-    }
-
-    public static MessageDigest getSha1() {
-        try {
-            return MessageDigest.getInstance("SHA-1");
-        }
-        catch (NoSuchAlgorithmException e){return null;}
-    }
+    private static Provider mSpongyProvider = null;
 
-    public static MessageDigest getSha256() {
-        try {
-            return MessageDigest.getInstance("SHA-256");
+    public static synchronized Provider getSpongyCastleProvider() {
+        if(mSpongyProvider == null) {
+            mSpongyProvider = new org.spongycastle.jce.provider.BouncyCastleProvider();
         }
-        catch (NoSuchAlgorithmException e){return null;}
+        return mSpongyProvider;
     }
 
-    public static MessageDigest getSha3_256() {
-        try {
-            return MessageDigest.getInstance("SHA3-256");
-        }
-        catch (NoSuchAlgorithmException e){return null;}
+    /** Returns random bytes from the shared nonce pool, see NoncePool */
+    public static byte[] getRandomBytes(int len) {
+        return NoncePool.getDefault().getBytes(len);
     }
 
+    /** Returns Mac of provider selected by ProviderSelector, SpongyCastle by default */
     public static Mac getMac(final String algo) throws NoSuchAlgorithmException {
-        return Mac.getInstance(algo, new org.spongycastle.jce.provider.BouncyCastleProvider());
+        return Mac.getInstance(algo, ProviderSelector.getDefault().getProvider(ProviderSelector.MAC, algo, getSpongyCastleProvider()));
     }
 
+    /** Returns Cipher of provider selected by ProviderSelector, platform provider by default */
     public static Cipher getCipher(final String algo) throws NoSuchAlgorithmException, NoSuchPaddingException {
+        Provider provider = ProviderSelector.getDefault().getProvider(ProviderSelector.CIPHER, algo);
+        if(provider != null) {
+            return Cipher.getInstance(algo, provider);
+        }
         return Cipher.getInstance(algo);
     }
 
     public static byte[] sha1(byte[] data) {
-        MessageDigest sha1 = getSha1();
-        return sha1.digest(data);
+        return digest(HashService.SHA1, data);
     }
 
     public static byte[] sha256(byte[] data) {
-        MessageDigest sha1 = getSha256();
-        return sha1.digest(data);
+        return digest(HashService.SHA256, data);
     }
 
     public static byte[] sha3_256(byte[] data) {
-        MessageDigest sha1 = getSha3_256();
-        return sha1.digest(data);
+        return digest(HashService.SHA3_256, data);
     }
 
+    private static byte[] digest(String algorithm, byte[] data) {
+        try {
+            return HashService.digest(algorithm, data);
+        }
+        catch (NoSuchAlgorithmException e) {
+            Journal.severe("digest: unsupported digest algorithm " + algorithm);
+            return null;
+        }
+    }
+
+    /**
+     * Decodes ASN.1 DER encoded SubjectPublicKeyInfo of RSA, EC or DH key.
+     * Key algorithm is determined from AlgorithmIdentifier, see PublicKeyDecoder.
+     */
     public static PublicKey getPublicKeyFromBytes(byte[] keyBytes)  {
-        X509EncodedKeySpec pubKeySpec = new X509EncodedKeySpec(keyBytes);
-
-        String[] algorithms = { "RSA", "EC" };
-        for (String algorithm: algorithms) {
-            try {
-                KeyFactory keyFactory = KeyFactory.getInstance(algorithm);
-                PublicKey publicKey = keyFactory.generatePublic(pubKeySpec);
-                return publicKey;
-            } catch (InvalidKeySpecException ikse) {
-				/* NOTE: Ignore, try next algorithm. */
-            } catch (NoSuchAlgorithmException e) {
-                Journal.severe("getPublicKeyFromBytes: No such algorithm exception was thrown e=" + e.getMessage());
-                return null;
+        return PublicKeyDecoder.decode(keyBytes);
+    }
+
+    /**
+     * Decodes ASN.1 DER encoded SubjectPublicKeyInfo with known key algorithm (e.g. "DH" or "EC").
+     * Explicit domain parameters (as used in DG14) are supported.
+     */
+    public static PublicKey getPublicKey(String algorithm, byte[] keyBytes) {
+        return PublicKeyDecoder.decode(algorithm, keyBytes);
+    }
+
+    /**
+     * Returns domain parameters of EC or DH public key
+     */
+    public static AlgorithmParameterSpec getDomainParameters(PublicKey key) {
+        if(key instanceof ECPublicKey) {
+            return ((ECPublicKey) key).getParams();
+        }
+        else if(key instanceof DHPublicKey) {
+            return ((DHPublicKey) key).getParams();
+        }
+
+        return null;
+    }
+
+    /**
+     * Returns identifier of EC or DH domain parameters which is independent of
+     * named or explicit encoding of parameters.
+     */
+    public static String getDomainParametersId(AlgorithmParameterSpec params) {
+        if(params instanceof ECParameterSpec) {
+            ECParameterSpec ec = (ECParameterSpec) params;
+            StringBuilder sb = new StringBuilder("EC:");
+            if(ec.getCurve().getField() instanceof ECFieldFp) {
+                sb.append(((ECFieldFp) ec.getCurve().getField()).getP().toString(16));
             }
+            else {
+                sb.append(ec.getCurve().getField().getFieldSize());
+            }
+
+            sb.append(':').append(ec.getCurve().getA().toString(16))
+              .append(':').append(ec.getCurve().getB().toString(16))
+              .append(':').append(ec.getGenerator().getAffineX().toString(16))
+              .append(':').append(ec.getGenerator().getAffineY().toString(16))
+              .append(':').append(ec.getOrder().toString(16))
+              .append(':').append(ec.getCofactor());
+            return sb.toString();
+        }
+        else if(params instanceof DHParameterSpec) {
+            DHParameterSpec dh = (DHParameterSpec) params;
+            return "DH:" + dh.getP().toString(16) + ":" + dh.getG().toString(16);
+        }
+
+        throw new IllegalArgumentException("Unsupported domain parameters: " + params);
+    }
+
+    /**
+     * Generates new EC or DH key pair on given domain parameters
+     */
+    public static KeyPair generateKeyPair(AlgorithmParameterSpec params) throws GeneralSecurityException {
+        String algorithm = params instanceof DHParameterSpec ? "DH" : "EC";
+        KeyPairGenerator kpg = KeyPairGenerator.getInstance(algorithm, getSpongyCastleProvider());
+        kpg.initialize(params, NoncePool.getDefault().asSecureRandom());
+        return kpg.generateKeyPair();
+    }
+
+    /**
+     * Computes shared secret with ECDH or DH key agreement.
+     * For ECDH the shared secret is x coordinate of the shared point.
+     * see: BSI TR-03111 section 4.3.1
+     */
+    public static byte[] computeSharedSecret(PrivateKey privateKey, PublicKey publicKey) throws GeneralSecurityException {
+        String algorithm = publicKey instanceof DHPublicKey ? "DH" : "ECDH";
+        KeyAgreement ka = KeyAgreement.getInstance(algorithm, getSpongyCastleProvider());
+        ka.init(privateKey);
+        ka.doPhase(publicKey, true);
+        return ka.generateSecret();
+    }
+
+    /**
+     * Returns public key data as sent to ICC in key agreement protocols.
+     * EC public key is encoded as uncompressed point and DH public key as unsigned integer.
+     * see: BSI TR-03111 section 3.2.1 and ICAO 9303-11 section 9.4
+     */
+    public static byte[] getPublicKeyData(PublicKey key) {
+        if(key instanceof ECPublicKey) {
+            ECPublicKey ecKey = (ECPublicKey) key;
+            return encodeECPoint(ecKey.getW(), ecKey.getParams());
+        }
+        else if(key instanceof DHPublicKey) {
+            DHPublicKey dhKey = (DHPublicKey) key;
+            int len = (dhKey.getParams().getP().bitLength() + 7) / 8;
+            return toUnsignedBytes(dhKey.getY(), len);
         }
 
         return null;
     }
+
+    public static byte[] encodeECPoint(ECPoint point, ECParameterSpec params) {
+        int len = (params.getCurve().getField().getFieldSize() + 7) / 8;
+        byte[] x = toUnsignedBytes(point.getAffineX(), len);
+        byte[] y = toUnsignedBytes(point.getAffineY(), len);
+
+        byte[] encoded = new byte[1 + 2 * len];
+        encoded[0] = 0x04; // uncompressed point
+        System.arraycopy(x, 0, encoded, 1, len);
+        System.arraycopy(y, 0, encoded, 1 + len, len);
+        return encoded;
+    }
+
+    /**
+     * Converts positive big integer to big-endian byte array of fixed length
+     */
+    public static byte[] toUnsignedBytes(BigInteger n, int len) {
+        byte[] bytes = n.toByteArray();
+        if(bytes.length == len) {
+            return bytes;
+        }
+
+        byte[] out = new byte[len];
+        int srcOff = Math.max(0, bytes.length - len);
+        int count  = bytes.length - srcOff;
+        System.arraycopy(bytes, srcOff, out, len - count, count);
+        return out;
+    }
 }
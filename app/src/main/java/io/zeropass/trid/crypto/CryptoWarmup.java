@@ -0,0 +1,210 @@
+/*
+* Copyright (c) 2018 ZeroPass
+* Distributed under the MIT software license, see the accompanying
+* file LICENSE or https://opensource.org/licenses/MIT.
+*/
+
+package io.zeropass.trid.crypto;
+
+import java.io.File;
+import java.security.GeneralSecurityException;
+import java.security.PublicKey;
+import java.security.interfaces.RSAPublicKey;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+import javax.crypto.SecretKey;
+
+import io.zeropass.trid.Utils;
+import io.zeropass.trid.com.ApduCmd;
+import io.zeropass.trid.com.ApduResult;
+import io.zeropass.trid.passport.BacKeyMaterial;
+import io.zeropass.trid.passport.PassportTools;
+import io.zeropass.trid.tlv.TLVUtils;
+
+/**
+ * Warm-up of crypto code paths used while reading passport.
+ * Loads SpongyCastle provider and selects JCA providers, seeds SecureRandom (nonce pool),
+ * and runs BAC key derivation, 3DES and AES secure messaging and ISO 9796-2 verification
+ * with ICAO 9303-11 test vectors, so classes are loaded, JIT compiled and caches are primed
+ * before the first passport is presented.
+ *
+ * Since test vectors are verified, warm-up also serves as a self-test of the crypto primitives.
+ */
+public final class CryptoWarmup {
+    private static final Logger Journal = Logger.getLogger("io.trid.crypto.warmup");
+
+    public interface Listener {
+        /**
+         * Called on warm-up thread when warm-up finishes.
+         * @param success false if any of the operations failed or returned wrong result
+         * @param elapsedMs duration of warm-up
+         */
+        void onWarmupFinished(boolean success, long elapsedMs);
+    }
+
+    /* Number of repetitions of hot path operations to trigger JIT compilation */
+    private static final int ROUNDS = 20;
+
+    /* ICAO 9303-11 appendix D.2 MRZ data */
+    private static final String DOC_NUMBER = "L898902C<";
+    private static final String DOB = "690806";
+    private static final String DOE = "940623";
+
+    /* ICAO 9303-11 appendix D.4 session keys and secure messaging */
+    private static final byte[] RND_IC  = Utils.strToHex("4608F91988702212");
+    private static final byte[] RND_IFD = Utils.strToHex("781723860C06C226");
+    private static final byte[] K_IFD   = Utils.strToHex("0B795240CB7049B01C19B33E32804F0B");
+    private static final byte[] K_IC    = Utils.strToHex("0B4F80323EB3191CB04970CB4052790B");
+    private static final byte[] SELECT_CMD  = Utils.strToHex("0CA4020C158709016375432908C044F68E08BF8B92D635FF24F800");
+    private static final byte[] SELECT_RESP = Utils.strToHex("990290008E08FA855A5D4C50A8ED9000");
+    private static final byte[] READ_CMD    = Utils.strToHex("0CB000000D9701048E08ED6705417E96BA5500");
+    private static final byte[] READ_RESP   = Utils.strToHex("8709019FF0EC34F9922651990290008E08AD55CC17140B2DED9000");
+    private static final byte[] READ_DATA   = Utils.strToHex("60145F01");
+
+    /* ICAO 9303-11 appendix G.1 shared secret of chip authentication */
+    private static final byte[] CA_SECRET = Utils.strToHex("28768D20701247DAE81804C9E780EDE582A9996DB4A315020B2733197DB84925");
+
+    /* DG15 RSA public key and ISO 9796-2 signature of the first 8 bytes of SHA-1("AABBCCAABBCC") */
+    private static final byte[] DG15 = Utils.strToHex("6F81A230819F300D06092A864886F70D010101050003818D0030818902818100A13F98038CC80DE9BE94A917B5CFCE74CC4BB1337222E82D83C3FC2CBF5E81F80CBC4475CE2FCB08DBB2CEDAB4B3264DC12961B8166B32D238E5A52B02A271F46165B5EF03AC24C76B85D4B4E5A872925D692E8159B1B2BCFB5D6A2E086A88A78853363BC2A52E9725C668416243C45E921DED173FF970B4D0C5F277D034CCFD0203010001");
+    private static final byte[] AA_MESSAGE   = Utils.strToHex("AABBCCAABBCC");
+    private static final byte[] AA_SIGNATURE = Utils.strToHex("22BF2420BE8A18114CA8E3D3AADC44EC0BEC50E42C640882DBFEED068F0AAB75BE69B65130B037F1EBC75EE1448FA3B60B1E70DD9C821D58BDE234B45BDC3F848FF8DD6BB4BB6854E13A940EA038F1FDE7B67C72360AAFB9FED3A4D991973AC9440DB1D7DD6A86B72554A703B47FDDDAA495F514E80549D667E4595DB11801E6");
+
+    private static final CountDownLatch mFinished = new CountDownLatch(1);
+    private static volatile boolean mStarted = false;
+    private static volatile boolean mSuccess = false;
+
+    private CryptoWarmup() {}
+
+    /**
+     * Starts warm-up on background thread. Only the first call starts warm-up.
+     * @param providersFile file with provider selection (see ProviderSelector) or null to skip provider selection
+     * @param listener completion listener or null
+     */
+    public static synchronized void start(final File providersFile, final Listener listener) {
+        if(mStarted) {
+            return;
+        }
+        mStarted = true;
+
+        Thread t = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                long start = System.currentTimeMillis();
+                mSuccess = CryptoWarmup.run(providersFile);
+                mFinished.countDown();
+
+                long elapsed = System.currentTimeMillis() - start;
+                Journal.info("Crypto warm-up finished in " + elapsed + " ms" + (mSuccess ? "" : " with errors"));
+                if(listener != null) {
+                    listener.onWarmupFinished(mSuccess, elapsed);
+                }
+            }
+        }, "crypto-warmup");
+        t.setDaemon(true);
+        t.start();
+    }
+
+    public static boolean isFinished() {
+        return mFinished.getCount() == 0;
+    }
+
+    /** Returns true if warm-up finished and all operations returned expected results */
+    public static boolean isSuccessful() {
+        return isFinished() && mSuccess;
+    }
+
+    /**
+     * Waits for warm-up to finish.
+     * @returns false if warm-up didn't finish in time
+     */
+    public static boolean await(long timeout, TimeUnit unit) throws InterruptedException {
+        return mFinished.await(timeout, unit);
+    }
+
+    /**
+     * Runs warm-up on caller's thread.
+     * @returns true if all operations returned expected results
+     */
+    public static boolean run(File providersFile) {
+        try {
+            /* Providers */
+            CryptoUtils.getSpongyCastleProvider();
+            if(providersFile != null) {
+                ProviderSelector.getDefault().init(providersFile);
+            }
+
+            /* SecureRandom seeding and BAC key material */
+            NoncePool.getDefault().getBytes(PassportTools.RND_IFD_LEN);
+            new BacKeyMaterial(DOC_NUMBER, DOB, DOE);
+
+            boolean ok = true;
+            for (int i = 0; i < ROUNDS && ok; i++) {
+                ok = secureMessaging() && aesSecureMessaging() && activeAuthentication();
+            }
+
+            if(!ok) {
+                Journal.severe("Crypto warm-up: wrong result of crypto operation!");
+            }
+            return ok;
+        }
+        catch (GeneralSecurityException | RuntimeException e) {
+            Journal.severe("Crypto warm-up: An exception was thrown e=" + e);
+            return false;
+        }
+    }
+
+    /* 3DES secure messaging wrap and unwrap, ICAO 9303-11 appendix D.4 */
+    private static boolean secureMessaging() {
+        PassportSessionKey ks = PassportTools.calculateSessionKey(RND_IC, RND_IFD, K_IFD, K_IC);
+        PassportSessionCipher sc = new PassportSessionCipher(ks);
+        try {
+            ApduCmd cmd = sc.encrypt(new ApduCmd(0x00, 0xA4, 0x02, 0x0C, new byte[]{ 0x01, 0x1E }));
+            if(cmd == null || !Arrays.equals(SELECT_CMD, cmd.toBytes()) || sc.decrypt(new ApduResult(SELECT_RESP)) == null) {
+                return false;
+            }
+
+            cmd = sc.encrypt(new ApduCmd(0x00, 0xB0, 0x00, 0x00, 4));
+            if(cmd == null || !Arrays.equals(READ_CMD, cmd.toBytes())) {
+                return false;
+            }
+
+            ApduResult res = sc.decrypt(new ApduResult(READ_RESP));
+            return res != null && Arrays.equals(READ_DATA, res.data());
+        }
+        finally {
+            sc.close();
+        }
+    }
+
+    /* AES key derivation and secure messaging wrap */
+    private static boolean aesSecureMessaging() {
+        SecretKey ksEnc = PassportTools.deriveKey(CA_SECRET, "AES", 16, PassportTools.ENC_MODE);
+        SecretKey ksMac = PassportTools.deriveKey(CA_SECRET, "AES", 16, PassportTools.MAC_MODE);
+        if(ksEnc == null || ksMac == null) {
+            return false;
+        }
+
+        PassportSessionCipher sc = new PassportAESSessionCipher(new PassportSessionKey(ksEnc, ksMac, 0));
+        try {
+            return sc.encrypt(new ApduCmd(0x00, 0xB0, 0x00, 0x00, 0xDF)) != null
+                && sc.encrypt(new ApduCmd(0x00, 0xA4, 0x02, 0x0C, new byte[]{ 0x01, 0x1E })) != null;
+        }
+        finally {
+            sc.close();
+        }
+    }
+
+    /* DG15 public key decoding and ISO 9796-2 signature verification */
+    private static boolean activeAuthentication() {
+        PublicKey key = CryptoUtils.getPublicKeyFromBytes(TLVUtils.getValue(DG15));
+        if(!(key instanceof RSAPublicKey)) {
+            return false;
+        }
+
+        byte[] message = Utils.copyOut(CryptoUtils.sha1(AA_MESSAGE), 0, 8);
+        return RSA_ISO9796_2_DSS1.verifySignature((RSAPublicKey) key, message, AA_SIGNATURE);
+    }
+}
@@ -0,0 +1,366 @@
+/*
+* Copyright (c) 2018 ZeroPass
+* Distributed under the MIT software license, see the accompanying
+* file LICENSE or https://opensource.org/licenses/MIT.
+*/
+
+package io.zeropass.trid.crypto;
+
+import org.spongycastle.asn1.x500.X500Name;
+import org.spongycastle.asn1.x509.AuthorityKeyIdentifier;
+import org.spongycastle.asn1.x509.Extension;
+import org.spongycastle.asn1.x509.GeneralName;
+import org.spongycastle.asn1.x509.GeneralNames;
+import org.spongycastle.asn1.x509.SubjectKeyIdentifier;
+import org.spongycastle.cert.CertException;
+import org.spongycastle.cert.X509CRLHolder;
+import org.spongycastle.cert.X509CertificateHolder;
+import org.spongycastle.operator.OperatorCreationException;
+import org.spongycastle.operator.jcajce.JcaContentVerifierProviderBuilder;
+
+import java.io.File;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.cert.CRLException;
+import java.security.cert.CertificateEncodingException;
+import java.security.cert.CertificateExpiredException;
+import java.security.cert.CertificateNotYetValidException;
+import java.security.cert.X509CRL;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.logging.Logger;
+
+/**
+ * Trust store of Country Signing CA (CSCA) and CSCA link certificates.
+ * Certificates are indexed by SubjectKeyIdentifier, issuer/serial number and subject
+ * so the issuer of Document Signer certificate is found by its AuthorityKeyIdentifier in constant time.
+ * Document Signer certificates that were successfully validated are memoized by SHA-256 fingerprint,
+ * so the certificate signature is verified only once. Revoked DS certificates are looked up in RevocationIndex.
+ * see ICAO 9303-12
+ */
+public class CscaTrustStore {
+    private static final Logger Journal = Logger.getLogger("io.trid.crypto.csca");
+
+    private final ConcurrentMap<ByteBuffer, List<X509Certificate>> mBySKI     = new ConcurrentHashMap<>();
+    private final ConcurrentMap<IssuerSerial, X509Certificate> mByIssuerSerial = new ConcurrentHashMap<>();
+    private final ConcurrentMap<X500Name, List<X509Certificate>> mBySubject   = new ConcurrentHashMap<>();
+    private final ConcurrentMap<ByteBuffer, X509Certificate> mValidatedDS     = new ConcurrentHashMap<>();
+    private final List<X509Certificate> mCerts = new CopyOnWriteArrayList<>();
+    private final List<MasterListFile> mMasterLists = new CopyOnWriteArrayList<>();
+    private volatile RevocationIndex mRevocationIndex = null;
+
+    /**
+     * Adds CSCA or link certificate to trust store
+     */
+    public void add(X509Certificate cert) throws CertificateEncodingException {
+        X509CertificateHolder holder = toHolder(cert);
+        if(mByIssuerSerial.putIfAbsent(new IssuerSerial(holder.getIssuer(), holder.getSerialNumber()), cert) != null) {
+            return; // already in store
+        }
+
+        mCerts.add(cert);
+        getList(mBySubject, holder.getSubject()).add(cert);
+
+        byte[] ski = getSubjectKeyIdentifier(holder);
+        if(ski != null) {
+            getList(mBySKI, ByteBuffer.wrap(ski)).add(cert);
+        }
+    }
+
+    public void addAll(Collection<X509Certificate> certs) throws CertificateEncodingException {
+        for (X509Certificate cert : certs) {
+            add(cert);
+        }
+    }
+
+    /**
+     * Adds memory mapped master list as a source of CSCA certificates.
+     * Certificates from master list are looked up by key identifier only and are
+     * added to the store on first use.
+     * Note: masterList must be created by MasterListFile.importMasterList which verifies master list signature.
+     */
+    public void addMasterList(MasterListFile masterList) {
+        mMasterLists.add(masterList);
+    }
+
+    /**
+     * Imports ICAO CSCA master list to file and adds it as a source of CSCA certificates.
+     * ML signer certificate must be issued by CSCA already in this store.
+     * @throws GeneralSecurityException if master list signature is invalid or ML signer is not trusted
+     */
+    public MasterListFile addMasterList(byte[] masterList, File file) throws IOException, GeneralSecurityException {
+        MasterListFile.importMasterList(masterList, this, file);
+        MasterListFile ml = MasterListFile.open(file);
+        addMasterList(ml);
+        return ml;
+    }
+
+    /**
+     * Sets index of revoked Document Signer certificates.
+     * Revocation is checked on every call to isTrusted, also for memoized certificates.
+     */
+    public void setRevocationIndex(RevocationIndex index) {
+        mRevocationIndex = index;
+    }
+
+    public RevocationIndex getRevocationIndex() {
+        return mRevocationIndex;
+    }
+
+    /**
+     * Verifies CRL signature with CSCA certificate from trust store and updates revocation index.
+     * @returns true if revocation index was updated
+     */
+    public boolean addCRL(X509CRL crl) throws CRLException {
+        X509CRLHolder holder;
+        try {
+            holder = new X509CRLHolder(crl.getEncoded());
+        } catch (IOException e) {
+            throw new CRLException("Failed to decode CRL: " + e.getMessage());
+        }
+
+        List<X509Certificate> issuers;
+        Extension ext = holder.getExtension(Extension.authorityKeyIdentifier);
+        byte[] keyId = ext != null ? AuthorityKeyIdentifier.getInstance(ext.getParsedValue()).getKeyIdentifier() : null;
+        if(keyId != null) {
+            issuers = findBySubjectKeyIdentifier(keyId);
+        } else {
+            issuers = mBySubject.get(holder.getIssuer());
+        }
+
+        if(issuers != null) {
+            for (X509Certificate issuer : issuers) {
+                try {
+                    if(holder.isSignatureValid(new JcaContentVerifierProviderBuilder()
+                            .setProvider(CryptoUtils.getSpongyCastleProvider())
+                            .build(issuer.getPublicKey()))) {
+                        synchronized (this) {
+                            if(mRevocationIndex == null) {
+                                mRevocationIndex = new RevocationIndex();
+                            }
+                        }
+                        return mRevocationIndex.update(crl);
+                    }
+                } catch (CertException | OperatorCreationException e) {
+                    Journal.warning("addCRL: failed to verify CRL signature e=" + e.getMessage());
+                }
+            }
+        }
+
+        Journal.warning("addCRL: CRL of " + holder.getIssuer() + " is not signed by trusted CSCA");
+        return false;
+    }
+
+    public int size() {
+        return mCerts.size();
+    }
+
+    public List<X509Certificate> getCertificates() {
+        return Collections.unmodifiableList(mCerts);
+    }
+
+    /** Returns certificates with SubjectKeyIdentifier equal to keyId */
+    public List<X509Certificate> findBySubjectKeyIdentifier(byte[] keyId) {
+        List<X509Certificate> certs = mBySKI.get(ByteBuffer.wrap(keyId));
+        if(certs == null && !mMasterLists.isEmpty()) {
+            certs = loadFromMasterLists(keyId);
+        }
+        return certs != null ? Collections.unmodifiableList(certs) : Collections.<X509Certificate>emptyList();
+    }
+
+    /* Certificates without SKI are keyed by hash of public key in master list, so found certificates are returned directly */
+    private List<X509Certificate> loadFromMasterLists(byte[] keyId) {
+        List<X509Certificate> certs = new ArrayList<>(1);
+        for (MasterListFile ml : mMasterLists) {
+            try {
+                for (X509Certificate cert : ml.find(keyId)) {
+                    add(cert);
+                    certs.add(cert);
+                }
+            } catch (IOException e) {
+                Journal.warning("loadFromMasterLists: failed to read master list e=" + e.getMessage());
+            } catch (CertificateEncodingException e) {
+                Journal.warning("loadFromMasterLists: failed to add certificate e=" + e.getMessage());
+            }
+        }
+        return certs.isEmpty() ? null : certs;
+    }
+
+    /** Returns certificate with given issuer and serial number or null if not found */
+    public X509Certificate findByIssuerAndSerial(X500Name issuer, BigInteger serial) {
+        return mByIssuerSerial.get(new IssuerSerial(issuer, serial));
+    }
+
+    /**
+     * Returns candidate issuer certificates of cert. Issuers are looked up by
+     * AuthorityKeyIdentifier of cert and if it's not present or no issuer is found
+     * (e.g. CSCA without SubjectKeyIdentifier) by issuer name.
+     */
+    public List<X509Certificate> findIssuers(X509Certificate cert) throws CertificateEncodingException {
+        /* Common case: AKI keyIdentifier is read directly from DER without decoding the certificate */
+        boolean keyIdRead = false;
+        try {
+            byte[] keyId = new CertificateView(cert.getEncoded()).getAuthorityKeyIdentifier();
+            keyIdRead = true;
+            if(keyId != null) {
+                List<X509Certificate> certs = findBySubjectKeyIdentifier(keyId);
+                if(!certs.isEmpty()) {
+                    return certs;
+                }
+            }
+        } catch (IOException e) {
+            Journal.warning("findIssuers: failed to read AuthorityKeyIdentifier e=" + e.getMessage());
+        }
+
+        X509CertificateHolder holder = toHolder(cert);
+        Extension ext = holder.getExtension(Extension.authorityKeyIdentifier);
+        if(ext != null) {
+            AuthorityKeyIdentifier aki = AuthorityKeyIdentifier.getInstance(ext.getParsedValue());
+            if(aki.getKeyIdentifier() != null && !keyIdRead) {
+                List<X509Certificate> certs = findBySubjectKeyIdentifier(aki.getKeyIdentifier());
+                if(!certs.isEmpty()) {
+                    return certs;
+                }
+            }
+
+            GeneralNames issuerNames = aki.getAuthorityCertIssuer();
+            if(aki.getKeyIdentifier() == null && issuerNames != null && aki.getAuthorityCertSerialNumber() != null) {
+                List<X509Certificate> certs = new ArrayList<>(1);
+                for (GeneralName gn : issuerNames.getNames()) {
+                    if(gn.getTagNo() == GeneralName.directoryName) {
+                        X509Certificate c = findByIssuerAndSerial(X500Name.getInstance(gn.getName()), aki.getAuthorityCertSerialNumber());
+                        if(c != null) {
+                            certs.add(c);
+                        }
+                    }
+                }
+                return certs;
+            }
+        }
+
+        List<X509Certificate> certs = mBySubject.get(holder.getIssuer());
+        return certs != null ? Collections.unmodifiableList(certs) : Collections.<X509Certificate>emptyList();
+    }
+
+    /**
+     * Validates Document Signer certificate.
+     * DS certificate is valid if it's signed by one of the certificates in trust store
+     * and both certificates are valid at current time.
+     * Result of signature verification is memoized by DS certificate fingerprint.
+     */
+    public boolean isTrusted(X509Certificate dsCert) {
+        return isTrusted(dsCert, new Date());
+    }
+
+    public boolean isTrusted(X509Certificate dsCert, Date date) {
+        try {
+            dsCert.checkValidity(date);
+
+            RevocationIndex revocationIndex = mRevocationIndex;
+            if(revocationIndex != null && revocationIndex.isRevoked(dsCert)) {
+                Journal.warning("isTrusted: certificate is revoked " + dsCert.getSubjectX500Principal());
+                return false;
+            }
+
+            ByteBuffer fp = ByteBuffer.wrap(CryptoUtils.sha256(dsCert.getEncoded()));
+            X509Certificate issuer = mValidatedDS.get(fp);
+            if(issuer == null) {
+                issuer = findSigner(dsCert);
+                if(issuer == null) {
+                    Journal.warning("isTrusted: no trusted issuer found for " + dsCert.getSubjectX500Principal());
+                    return false;
+                }
+                mValidatedDS.putIfAbsent(fp, issuer);
+            }
+
+            issuer.checkValidity(date);
+            return true;
+
+        } catch (CertificateExpiredException | CertificateNotYetValidException e) {
+            Journal.warning("isTrusted: certificate is not valid at " + date + " e=" + e.getMessage());
+        } catch (CertificateEncodingException e) {
+            Journal.warning("isTrusted: failed to encode certificate e=" + e.getMessage());
+        }
+
+        return false;
+    }
+
+    /** Returns trusted certificate which signed cert or null */
+    private X509Certificate findSigner(X509Certificate cert) throws CertificateEncodingException {
+        X509CertificateHolder holder = toHolder(cert);
+        for (X509Certificate issuer : findIssuers(cert)) {
+            try {
+                if(holder.isSignatureValid(new JcaContentVerifierProviderBuilder()
+                        .setProvider(CryptoUtils.getSpongyCastleProvider())
+                        .build(issuer.getPublicKey()))) {
+                    return issuer;
+                }
+            } catch (CertException | OperatorCreationException e) {
+                Journal.warning("findSigner: failed to verify signature e=" + e.getMessage());
+            }
+        }
+        return null;
+    }
+
+    private static <K> List<X509Certificate> getList(ConcurrentMap<K, List<X509Certificate>> map, K key) {
+        List<X509Certificate> list = map.get(key);
+        if(list == null) {
+            List<X509Certificate> newList = new CopyOnWriteArrayList<>();
+            list = map.putIfAbsent(key, newList);
+            if(list == null) {
+                list = newList;
+            }
+        }
+        return list;
+    }
+
+    /* Key of issuer/serial index. X500Name compares names in normalized form */
+    private static final class IssuerSerial {
+        private final X500Name mIssuer;
+        private final BigInteger mSerial;
+
+        IssuerSerial(X500Name issuer, BigInteger serial) {
+            mIssuer = issuer;
+            mSerial = serial;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if(!(o instanceof IssuerSerial)) {
+                return false;
+            }
+            IssuerSerial other = (IssuerSerial) o;
+            return mSerial.equals(other.mSerial) && mIssuer.equals(other.mIssuer);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * mIssuer.hashCode() + mSerial.hashCode();
+        }
+    }
+
+    private static byte[] getSubjectKeyIdentifier(X509CertificateHolder holder) {
+        Extension ext = holder.getExtension(Extension.subjectKeyIdentifier);
+        if(ext == null) {
+            return null;
+        }
+        return SubjectKeyIdentifier.getInstance(ext.getParsedValue()).getKeyIdentifier();
+    }
+
+    private static X509CertificateHolder toHolder(X509Certificate cert) throws CertificateEncodingException {
+        try {
+            return new X509CertificateHolder(cert.getEncoded());
+        } catch (IOException e) {
+            throw new CertificateEncodingException("Failed to decode certificate: " + e.getMessage());
+        }
+    }
+}
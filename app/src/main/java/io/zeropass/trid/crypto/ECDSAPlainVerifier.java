@@ -0,0 +1,115 @@
+/*
+* Copyright (c) 2018 ZeroPass
+* Distributed under the MIT software license, see the accompanying
+* file LICENSE or https://opensource.org/licenses/MIT.
+*/
+
+package io.zeropass.trid.crypto;
+
+import java.math.BigInteger;
+import java.security.NoSuchAlgorithmException;
+import java.security.interfaces.ECPublicKey;
+import java.security.spec.ECParameterSpec;
+import java.util.Collections;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.logging.Logger;
+
+import org.spongycastle.crypto.params.ECDomainParameters;
+import org.spongycastle.crypto.params.ECPublicKeyParameters;
+import org.spongycastle.crypto.signers.ECDSASigner;
+import org.spongycastle.jcajce.provider.asymmetric.util.EC5Util;
+import org.spongycastle.math.ec.ECCurve;
+import org.spongycastle.math.ec.ECPoint;
+import org.spongycastle.math.ec.WNafUtil;
+
+import io.zeropass.trid.Utils;
+
+/**
+ * Verification of ECDSA signatures in plain format (r | s) as returned by ICC in Active Authentication.
+ * see BSI TR-03111 section 5.2.1 and ICAO 9303-11 section 6.1
+ *
+ * Parsed domain parameters are cached per curve together with precomputed multiples of
+ * the base point, so only the first verification on a curve pays for the precomputation.
+ * Cached parameters are also mapped by ECParameterSpec instance, so curve id is built
+ * only the first time a parameter spec is seen.
+ */
+public class ECDSAPlainVerifier {
+    private static final Logger Journal = Logger.getLogger("io.trid.crypto.ecdsa");
+
+    private static final ConcurrentMap<String, ECDomainParameters> mCurveCache = new ConcurrentHashMap<>();
+
+    /* ECParameterSpec doesn't override equals, so specs are compared by identity */
+    private static final Map<ECParameterSpec, ECDomainParameters> mSpecCache =
+            Collections.synchronizedMap(new WeakHashMap<ECParameterSpec, ECDomainParameters>());
+
+    /**
+     * Verifies plain ECDSA signature
+     *
+     * @param pk ICC's public key
+     * @param digestAlgorithm name of message digest algorithm (e.g. "SHA-256")
+     * @param message signed message
+     * @param signature plain signature r | s
+     */
+    public static boolean verifySignature(ECPublicKey pk, String digestAlgorithm, byte[] message, byte[] signature) {
+        try {
+            return verifyDigest(pk, HashService.digest(digestAlgorithm, message), signature);
+        } catch (NoSuchAlgorithmException e) {
+            Journal.severe("verifySignature: unsupported digest algorithm " + digestAlgorithm);
+        } catch (IllegalArgumentException e) {
+            Journal.warning("verifySignature: invalid public key or signature e=" + e.getMessage());
+        }
+
+        return false;
+    }
+
+    /**
+     * Verifies plain ECDSA signature of message digest
+     */
+    public static boolean verifyDigest(ECPublicKey pk, byte[] digest, byte[] signature) {
+        ECDomainParameters domain = getDomainParameters(pk.getParams());
+
+        /* Split signature into r and s, both are of the size of the order */
+        int len = (domain.getN().bitLength() + 7) / 8;
+        if(signature == null || signature.length != 2 * len) {
+            Journal.warning("verifyDigest: invalid signature length");
+            return false;
+        }
+
+        BigInteger r = new BigInteger(1, Utils.copyOut(signature, 0, len));
+        BigInteger s = new BigInteger(1, Utils.copyOut(signature, len, len));
+
+        ECPoint q = domain.getCurve().createPoint(pk.getW().getAffineX(), pk.getW().getAffineY());
+        ECDSASigner signer = new ECDSASigner();
+        signer.init(false, new ECPublicKeyParameters(q, domain));
+        return signer.verifySignature(digest, r, s);
+    }
+
+    /**
+     * Returns cached domain parameters for the curve. On first use the parameters are
+     * converted and multiples of base point are precomputed.
+     */
+    static ECDomainParameters getDomainParameters(ECParameterSpec params) {
+        ECDomainParameters domain = mSpecCache.get(params);
+        if(domain != null) {
+            return domain;
+        }
+
+        String id = CryptoUtils.getDomainParametersId(params);
+        domain = mCurveCache.get(id);
+        if(domain == null) {
+            org.spongycastle.jce.spec.ECParameterSpec spec = EC5Util.convertSpec(params, false);
+            ECCurve curve = spec.getCurve();
+            ECPoint g = spec.getG().normalize();
+            WNafUtil.precompute(g, WNafUtil.getWindowSize(spec.getN().bitLength()), true);
+
+            mCurveCache.putIfAbsent(id, new ECDomainParameters(curve, g, spec.getN(), spec.getH()));
+            domain = mCurveCache.get(id);
+        }
+
+        mSpecCache.put(params, domain);
+        return domain;
+    }
+}
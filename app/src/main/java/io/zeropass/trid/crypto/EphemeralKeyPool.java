@@ -0,0 +1,148 @@
+/*
+* Copyright (c) 2018 ZeroPass
+* Distributed under the MIT software license, see the accompanying
+* file LICENSE or https://opensource.org/licenses/MIT.
+*/
+
+package io.zeropass.trid.crypto;
+
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.PublicKey;
+import java.security.spec.AlgorithmParameterSpec;
+import java.security.spec.ECGenParameterSpec;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.logging.Logger;
+
+/**
+ * Small pool of pre-generated ephemeral key pairs used in key agreement protocols (Chip Authentication).
+ * Key pairs are generated on a background thread so no key generation is done while ICC is in the field.
+ * Each key pair is handed out only once.
+ */
+public class EphemeralKeyPool {
+    private static final Logger Journal = Logger.getLogger("io.trid.crypto.ekpool");
+
+    /** Domain parameters most commonly found in DG14 */
+    public static final String[] COMMON_CURVES = { "brainpoolP256r1", "secp256r1", "brainpoolP384r1" };
+
+    private static final int DEFAULT_POOL_SIZE = 2;
+    private static EphemeralKeyPool mDefault = null;
+
+    private final int mPoolSize;
+    private final ConcurrentMap<String, Queue<KeyPair>> mPools = new ConcurrentHashMap<>();
+    private final ExecutorService mExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "ephemeral-key-pool");
+            t.setDaemon(true);
+            t.setPriority(Thread.MIN_PRIORITY);
+            return t;
+        }
+    });
+
+    public EphemeralKeyPool(int poolSize) {
+        if(poolSize < 1) {
+            throw new IllegalArgumentException("poolSize < 1");
+        }
+        mPoolSize = poolSize;
+    }
+
+    public static synchronized EphemeralKeyPool getDefault() {
+        if(mDefault == null) {
+            mDefault = new EphemeralKeyPool(DEFAULT_POOL_SIZE);
+        }
+        return mDefault;
+    }
+
+    /**
+     * Schedules pre-generation of key pairs for common EC domain parameters.
+     */
+    public void prefillCommonDomainParameters() {
+        for (final String curve : COMMON_CURVES) {
+            mExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        KeyPair kp = CryptoUtils.generateKeyPair(new ECGenParameterSpec(curve));
+                        AlgorithmParameterSpec params = CryptoUtils.getDomainParameters(kp.getPublic());
+                        getPool(params).offer(kp);
+                        refill(params);
+                    } catch (GeneralSecurityException e) {
+                        Journal.warning("prefillCommonDomainParameters: failed to generate key pair for curve " + curve + " e=" + e.getMessage());
+                    }
+                }
+            });
+        }
+    }
+
+    /**
+     * Schedules pre-generation of key pairs on given domain parameters.
+     */
+    public void prefill(AlgorithmParameterSpec params) {
+        getPool(params);
+        scheduleRefill(params);
+    }
+
+    /**
+     * Returns ephemeral key pair on the same domain parameters as peer's public key.
+     * If pool is empty key pair is generated on caller's thread.
+     */
+    public KeyPair take(PublicKey peerKey) throws GeneralSecurityException {
+        AlgorithmParameterSpec params = CryptoUtils.getDomainParameters(peerKey);
+        if(params == null) {
+            throw new GeneralSecurityException("Unsupported public key type: " + peerKey.getAlgorithm());
+        }
+
+        KeyPair kp = getPool(params).poll();
+        scheduleRefill(params);
+
+        if(kp == null) {
+            Journal.info("take: pool is empty, generating ephemeral key pair");
+            kp = CryptoUtils.generateKeyPair(params);
+        }
+
+        return kp;
+    }
+
+    /* Returns number of pooled key pairs on given domain parameters */
+    public int size(AlgorithmParameterSpec params) {
+        Queue<KeyPair> pool = mPools.get(CryptoUtils.getDomainParametersId(params));
+        return pool == null ? 0 : pool.size();
+    }
+
+    private Queue<KeyPair> getPool(AlgorithmParameterSpec params) {
+        String id = CryptoUtils.getDomainParametersId(params);
+        Queue<KeyPair> pool = mPools.get(id);
+        if(pool == null) {
+            mPools.putIfAbsent(id, new ConcurrentLinkedQueue<KeyPair>());
+            pool = mPools.get(id);
+        }
+        return pool;
+    }
+
+    private void scheduleRefill(final AlgorithmParameterSpec params) {
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                refill(params);
+            }
+        });
+    }
+
+    private void refill(AlgorithmParameterSpec params) {
+        Queue<KeyPair> pool = getPool(params);
+        try {
+            while (pool.size() < mPoolSize) {
+                pool.offer(CryptoUtils.generateKeyPair(params));
+            }
+        } catch (GeneralSecurityException e) {
+            Journal.warning("refill: failed to generate key pair e=" + e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,141 @@
+/*
+* Copyright (c) 2018 ZeroPass
+* Distributed under the MIT software license, see the accompanying
+* file LICENSE or https://opensource.org/licenses/MIT.
+*/
+
+package io.zeropass.trid.crypto;
+
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.Provider;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Hashing service with per-thread MessageDigest instances.
+ * Digest instances are created once per thread and algorithm and reset before each use,
+ * so no provider lookup is done on the hot path.
+ * Several digests can be computed over the same data in one pass (see digestAll),
+ * data is processed in cache sized chunks which are fed to all digests before moving on.
+ *
+ * Note: instance returned by get() is shared by all callers on the same thread.
+ *       It must not be passed to other threads and must be finished before get() is
+ *       called again for the same algorithm on the same thread.
+ */
+public final class HashService {
+
+    public static final String SHA1     = "SHA-1";
+    public static final String SHA224   = "SHA-224";
+    public static final String SHA256   = "SHA-256";
+    public static final String SHA384   = "SHA-384";
+    public static final String SHA512   = "SHA-512";
+    public static final String SHA3_256 = "SHA3-256";
+
+    /* Size of data chunk fed to each digest in one pass */
+    private static final int CHUNK_SIZE = 16 * 1024;
+
+    private static final ThreadLocal<Map<String, MessageDigest>> mDigests = new ThreadLocal<Map<String, MessageDigest>>() {
+        @Override
+        protected Map<String, MessageDigest> initialValue() {
+            return new HashMap<>();
+        }
+    };
+
+    private HashService() {}
+
+    /**
+     * Returns reset digest instance of the current thread
+     */
+    public static MessageDigest get(String algorithm) throws NoSuchAlgorithmException {
+        Map<String, MessageDigest> digests = mDigests.get();
+        MessageDigest md = digests.get(algorithm);
+        if(md == null) {
+            md = newDigest(algorithm);
+            digests.put(algorithm, md);
+        }
+        else {
+            md.reset();
+        }
+        return md;
+    }
+
+    public static byte[] digest(String algorithm, byte[] data) throws NoSuchAlgorithmException {
+        return get(algorithm).digest(data);
+    }
+
+    public static byte[] digest(String algorithm, byte[] data, int offs, int len) throws NoSuchAlgorithmException {
+        MessageDigest md = get(algorithm);
+        md.update(data, offs, len);
+        return md.digest();
+    }
+
+    /**
+     * Computes digest of remaining bytes in data. Position of data is not changed.
+     * Direct and memory mapped buffers are hashed without copying to heap.
+     */
+    public static byte[] digest(String algorithm, ByteBuffer data) throws NoSuchAlgorithmException {
+        MessageDigest md = get(algorithm);
+        md.update(data.duplicate());
+        return md.digest();
+    }
+
+    /**
+     * Computes digests of data with all algorithms in one pass over data.
+     * @returns digests in the same order as algorithms
+     */
+    public static byte[][] digestAll(String[] algorithms, byte[] data) throws NoSuchAlgorithmException {
+        return digestAll(algorithms, ByteBuffer.wrap(data));
+    }
+
+    /**
+     * Computes digests of remaining bytes in data with all algorithms in one pass over data.
+     * Position of data is not changed.
+     * @returns digests in the same order as algorithms
+     */
+    public static byte[][] digestAll(String[] algorithms, ByteBuffer data) throws NoSuchAlgorithmException {
+        MessageDigest[] mds = new MessageDigest[algorithms.length];
+        for (int i = 0; i < algorithms.length; i++) {
+            mds[i] = get(algorithms[i]);
+            for (int j = 0; j < i; j++) {
+                if(mds[j] == mds[i]) {
+                    throw new IllegalArgumentException("digestAll: duplicated algorithm " + algorithms[i]);
+                }
+            }
+        }
+
+        ByteBuffer chunk = data.duplicate();
+        int end = chunk.limit();
+        while (chunk.position() < end) {
+            int start = chunk.position();
+            int chunkEnd = Math.min(end, start + CHUNK_SIZE);
+            for (MessageDigest md : mds) {
+                chunk.limit(chunkEnd);
+                chunk.position(start);
+                md.update(chunk);
+            }
+        }
+
+        byte[][] digests = new byte[mds.length][];
+        for (int i = 0; i < mds.length; i++) {
+            digests[i] = mds[i].digest();
+        }
+        return digests;
+    }
+
+    private static MessageDigest newDigest(String algorithm) throws NoSuchAlgorithmException {
+        Provider provider = ProviderSelector.getDefault().getProvider(ProviderSelector.DIGEST, algorithm);
+        if(provider != null) {
+            return MessageDigest.getInstance(algorithm, provider);
+        }
+
+        try {
+            return MessageDigest.getInstance(algorithm);
+        }
+        catch (NoSuchAlgorithmException e) {
+            /* e.g. SHA-224 and SHA3 are not available on all platforms */
+            return MessageDigest.getInstance(algorithm, CryptoUtils.getSpongyCastleProvider());
+        }
+    }
+}
@@ -0,0 +1,363 @@
+/*
+* Copyright (c) 2018 ZeroPass
+* Distributed under the MIT software license, see the accompanying
+* file LICENSE or https://opensource.org/licenses/MIT.
+*/
+
+package io.zeropass.trid.crypto;
+
+import org.spongycastle.asn1.ASN1ObjectIdentifier;
+import org.spongycastle.asn1.ASN1Primitive;
+import org.spongycastle.asn1.cms.ContentInfo;
+import org.spongycastle.asn1.icao.CscaMasterList;
+import org.spongycastle.asn1.x509.Certificate;
+import org.spongycastle.asn1.x509.Extension;
+import org.spongycastle.asn1.x509.Extensions;
+import org.spongycastle.asn1.x509.SubjectKeyIdentifier;
+import org.spongycastle.cert.X509CertificateHolder;
+import org.spongycastle.cert.jcajce.JcaX509CertificateConverter;
+import org.spongycastle.cms.CMSException;
+import org.spongycastle.cms.CMSSignedData;
+import org.spongycastle.cms.SignerInformation;
+import org.spongycastle.cms.jcajce.JcaSimpleSignerInfoVerifierBuilder;
+import org.spongycastle.operator.OperatorCreationException;
+
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.GeneralSecurityException;
+import java.security.SignatureException;
+import java.security.cert.CertificateException;
+import java.security.cert.CertificateFactory;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.logging.Logger;
+
+/**
+ * Compact binary file of CSCA certificates with sorted key identifier index.
+ * The file is created from ICAO CSCA master list with importMasterList and at runtime
+ * it's memory mapped, so opening the file takes constant time. Certificates are decoded
+ * lazily on first lookup.
+ *
+ * File format (big-endian):
+ *  header:  magic 'TRML' | version (2 bytes) | number of entries N (4 bytes)
+ *  index:   N entries sorted by key id, ENTRY_SIZE bytes each:
+ *           key id length (1 byte) | key id padded with zeros to MAX_KEY_ID_LEN | cert offset (4 bytes) | cert length (4 bytes)
+ *  data:    DER encoded certificates
+ *
+ * Key id is SubjectKeyIdentifier of certificate or, if certificate has no SKI,
+ * SHA-1 hash of subject public key (RFC 5280 section 4.2.1.2 method 1).
+ */
+public class MasterListFile implements Closeable {
+    private static final Logger Journal = Logger.getLogger("io.trid.crypto.masterlist");
+
+    /** id-icao-cscaMasterList */
+    private static final ASN1ObjectIdentifier CSCA_MASTER_LIST_OID = new ASN1ObjectIdentifier("2.23.136.1.1.2");
+
+    private static final int MAGIC          = 0x54524D4C; // 'TRML'
+    private static final int VERSION        = 1;
+    private static final int HEADER_SIZE    = 10;
+    private static final int MAX_KEY_ID_LEN = 32;
+    private static final int ENTRY_SIZE     = 1 + MAX_KEY_ID_LEN + 4 + 4;
+
+    private final RandomAccessFile mFile;
+    private final MappedByteBuffer mBuffer;
+    private final int mCount;
+    private final AtomicReferenceArray<X509Certificate> mCerts;
+
+    private MasterListFile(RandomAccessFile file, MappedByteBuffer buffer) throws IOException {
+        mFile = file;
+        mBuffer = buffer;
+
+        if(buffer.capacity() < HEADER_SIZE || buffer.getInt(0) != MAGIC) {
+            throw new IOException("MasterListFile: invalid file");
+        }
+        if((buffer.getShort(4) & 0xFFFF) != VERSION) {
+            throw new IOException("MasterListFile: unsupported version " + (buffer.getShort(4) & 0xFFFF));
+        }
+
+        mCount = buffer.getInt(6);
+        if(mCount < 0 || HEADER_SIZE + (long)mCount * ENTRY_SIZE > buffer.capacity()) {
+            throw new IOException("MasterListFile: invalid index size");
+        }
+        mCerts = new AtomicReferenceArray<>(mCount);
+    }
+
+    /**
+     * Opens master list file. The file is memory mapped and no certificate is decoded.
+     */
+    public static MasterListFile open(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            MappedByteBuffer buffer = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+            return new MasterListFile(raf, buffer);
+        } catch (IOException e) {
+            raf.close();
+            throw e;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        mFile.close();
+    }
+
+    /** Returns number of certificates in file */
+    public int size() {
+        return mCount;
+    }
+
+    /**
+     * Returns certificates with key identifier equal to keyId.
+     * Lookup is binary search over the mapped index.
+     * @throws IOException if index entry of found certificate is corrupted
+     */
+    public List<X509Certificate> find(byte[] keyId) throws IOException {
+        if(keyId.length > MAX_KEY_ID_LEN) {
+            return Collections.emptyList();
+        }
+
+        /* Find first matching entry */
+        int lo = 0;
+        int hi = mCount;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if(compareEntry(mid, keyId) < 0) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+
+        List<X509Certificate> certs = new ArrayList<>(1);
+        for (int i = lo; i < mCount && compareEntry(i, keyId) == 0; i++) {
+            certs.add(getCertificate(i));
+        }
+        return certs;
+    }
+
+    /**
+     * Returns i-th certificate in index order. Certificate is decoded on first access.
+     * @throws IOException if certificate location in index is out of data section or certificate can't be decoded
+     */
+    public X509Certificate getCertificate(int i) throws IOException {
+        X509Certificate cert = mCerts.get(i);
+        if(cert == null) {
+            int entry = HEADER_SIZE + i * ENTRY_SIZE + 1 + MAX_KEY_ID_LEN;
+            int offs = mBuffer.getInt(entry);
+            int len  = mBuffer.getInt(entry + 4);
+            if(offs < HEADER_SIZE + mCount * ENTRY_SIZE || len <= 0 || (long)offs + len > mBuffer.capacity()) {
+                throw new IOException("MasterListFile: invalid location of certificate at index " + i);
+            }
+
+            byte[] der = new byte[len];
+            ByteBuffer b = mBuffer.duplicate();
+            b.position(offs);
+            b.get(der);
+
+            try {
+                cert = (X509Certificate) getCertificateFactory().generateCertificate(new ByteArrayInputStream(der));
+                if(!mCerts.compareAndSet(i, null, cert)) {
+                    cert = mCerts.get(i);
+                }
+            } catch (CertificateException e) {
+                throw new IOException("MasterListFile: failed to decode certificate at index " + i + " e=" + e.getMessage());
+            }
+        }
+        return cert;
+    }
+
+    /* Compares key id of index entry to keyId. Shorter key ids are ordered first. */
+    private int compareEntry(int i, byte[] keyId) {
+        int entry = HEADER_SIZE + i * ENTRY_SIZE;
+        int len = mBuffer.get(entry) & 0xFF;
+        if(len != keyId.length) {
+            return len - keyId.length;
+        }
+
+        for (int j = 0; j < len; j++) {
+            int d = (mBuffer.get(entry + 1 + j) & 0xFF) - (keyId[j] & 0xFF);
+            if(d != 0) {
+                return d;
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Imports ICAO CSCA master list (CMS SignedData with CscaMasterList content) to file.
+     * Master list signature is verified with ML signer certificate from SignedData and
+     * ML signer certificate must be issued by CSCA in anchors.
+     *
+     * @param anchors trust store with CSCA which issued ML signer certificate
+     * @returns number of certificates written to file
+     * @throws GeneralSecurityException if signature is invalid or ML signer is not trusted
+     */
+    public static int importMasterList(byte[] masterList, CscaTrustStore anchors, File out) throws IOException, GeneralSecurityException {
+        List<Certificate> certs = parseMasterList(masterList, anchors);
+        OutputStream os = new FileOutputStream(out);
+        try {
+            return write(certs, os);
+        } finally {
+            os.close();
+        }
+    }
+
+    /**
+     * Writes certificates to output stream in master list file format.
+     * Duplicated certificates are written only once.
+     *
+     * @returns number of certificates written
+     */
+    public static int write(List<Certificate> certs, OutputStream out) throws IOException {
+        final List<byte[]> keyIds = new ArrayList<>(certs.size());
+        final List<byte[]> ders   = new ArrayList<>(certs.size());
+        Set<ByteBuffer> seen = new HashSet<>();
+        for (Certificate c : certs) {
+            byte[] der = c.getEncoded("DER");
+            if(!seen.add(ByteBuffer.wrap(der))) {
+                continue;
+            }
+
+            byte[] keyId = getKeyIdentifier(c);
+            if(keyId.length > MAX_KEY_ID_LEN) {
+                Journal.warning("write: key identifier too long, skipping certificate " + c.getSubject());
+                continue;
+            }
+            keyIds.add(keyId);
+            ders.add(der);
+        }
+
+        /* Sort entries by key id */
+        Integer[] order = new Integer[ders.size()];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b) {
+                return compareKeyIds(keyIds.get(a), keyIds.get(b));
+            }
+        });
+
+        DataOutputStream dos = new DataOutputStream(out);
+        dos.writeInt(MAGIC);
+        dos.writeShort(VERSION);
+        dos.writeInt(order.length);
+
+        int offs = HEADER_SIZE + order.length * ENTRY_SIZE;
+        for (Integer i : order) {
+            byte[] keyId = keyIds.get(i);
+            dos.writeByte(keyId.length);
+            dos.write(keyId);
+            dos.write(new byte[MAX_KEY_ID_LEN - keyId.length]);
+            dos.writeInt(offs);
+            dos.writeInt(ders.get(i).length);
+            offs += ders.get(i).length;
+        }
+
+        for (Integer i : order) {
+            dos.write(ders.get(i));
+        }
+        dos.flush();
+
+        return order.length;
+    }
+
+    /** Returns SubjectKeyIdentifier of certificate or SHA-1 of subject public key if SKI is not present */
+    static byte[] getKeyIdentifier(Certificate cert) {
+        Extensions exts = cert.getTBSCertificate().getExtensions();
+        if(exts != null) {
+            Extension ski = exts.getExtension(Extension.subjectKeyIdentifier);
+            if(ski != null) {
+                return SubjectKeyIdentifier.getInstance(ski.getParsedValue()).getKeyIdentifier();
+            }
+        }
+        return CryptoUtils.sha1(cert.getSubjectPublicKeyInfo().getPublicKeyData().getBytes());
+    }
+
+    private static int compareKeyIds(byte[] a, byte[] b) {
+        if(a.length != b.length) {
+            return a.length - b.length;
+        }
+        for (int i = 0; i < a.length; i++) {
+            int d = (a[i] & 0xFF) - (b[i] & 0xFF);
+            if(d != 0) {
+                return d;
+            }
+        }
+        return 0;
+    }
+
+    private static List<Certificate> parseMasterList(byte[] masterList, CscaTrustStore anchors) throws IOException, GeneralSecurityException {
+        try {
+            CMSSignedData signedData = new CMSSignedData(ContentInfo.getInstance(ASN1Primitive.fromByteArray(masterList)));
+            if(!CSCA_MASTER_LIST_OID.equals(signedData.getSignedContent().getContentType())) {
+                throw new IOException("MasterListFile: content is not CSCA master list");
+            }
+            verifySignature(signedData, anchors);
+
+            byte[] content = (byte[]) signedData.getSignedContent().getContent();
+            CscaMasterList ml = CscaMasterList.getInstance(ASN1Primitive.fromByteArray(content));
+
+            List<Certificate> certs = new ArrayList<>();
+            Collections.addAll(certs, ml.getCertStructs());
+            return certs;
+
+        } catch (CMSException | IllegalArgumentException | ClassCastException e) {
+            throw new IOException("MasterListFile: failed to parse master list e=" + e.getMessage());
+        }
+    }
+
+    /* Verifies master list signature and ML signer certificate */
+    private static void verifySignature(CMSSignedData signedData, CscaTrustStore anchors) throws GeneralSecurityException {
+        Collection<SignerInformation> signers = signedData.getSignerInfos().getSigners();
+        if(signers.size() != 1) {
+            throw new SignatureException("MasterListFile: expected exactly one signer, found " + signers.size());
+        }
+        SignerInformation signer = signers.iterator().next();
+
+        @SuppressWarnings("unchecked")
+        Collection<X509CertificateHolder> matches = signedData.getCertificates().getMatches(signer.getSID());
+        if(matches.isEmpty()) {
+            throw new CertificateException("MasterListFile: ML signer certificate is not present");
+        }
+        X509Certificate signerCert = new JcaX509CertificateConverter()
+                .setProvider(CryptoUtils.getSpongyCastleProvider())
+                .getCertificate(matches.iterator().next());
+
+        try {
+            if(!signer.verify(new JcaSimpleSignerInfoVerifierBuilder()
+                    .setProvider(CryptoUtils.getSpongyCastleProvider())
+                    .build(signerCert))) {
+                throw new SignatureException("MasterListFile: invalid master list signature");
+            }
+        } catch (CMSException | OperatorCreationException e) {
+            throw new SignatureException("MasterListFile: failed to verify master list signature e=" + e.getMessage());
+        }
+
+        if(!anchors.isTrusted(signerCert)) {
+            throw new CertificateException("MasterListFile: ML signer " + signerCert.getSubjectX500Principal() + " is not trusted");
+        }
+    }
+
+    private static CertificateFactory getCertificateFactory() throws CertificateException {
+        return CertificateFactory.getInstance("X.509", CryptoUtils.getSpongyCastleProvider());
+    }
+}
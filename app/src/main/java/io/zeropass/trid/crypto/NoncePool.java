@@ -0,0 +1,192 @@
+/*
+* Copyright (c) 2018 ZeroPass
+* Distributed under the MIT software license, see the accompanying
+* file LICENSE or https://opensource.org/licenses/MIT.
+*/
+
+package io.zeropass.trid.crypto;
+
+import java.security.SecureRandom;
+import java.security.SecureRandomSpi;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * Pool of pre-generated random bytes for protocol nonces (RND.IFD, K.IFD, AA challenge, ephemeral keys).
+ * Random bytes are generated by SecureRandom on a background thread and stored in fixed-size slots.
+ * Consumers take whole slots without locking, consumed slot is zeroized and refilled asynchronously.
+ * If pool is drained, bytes are generated synchronously so caller never gets less than requested.
+ *
+ * Slot states: EMPTY -> (refill thread) -> FILLED -> (consumer CAS) -> TAKEN -> (consumer) -> EMPTY
+ */
+public final class NoncePool {
+
+    public static final int SLOT_SIZE  = 32;
+    public static final int SLOT_COUNT = 64;
+
+    private static final int EMPTY  = 0;
+    private static final int FILLED = 1;
+    private static final int TAKEN  = 2;
+
+    private static final ExecutorService mRefillExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "nonce-pool");
+            t.setDaemon(true);
+            return t;
+        }
+    });
+
+    private static volatile NoncePool mDefault;
+
+    private final SecureRandom mRng;
+    private final int mSlotSize;
+    private final int mSlotCount;
+    private final byte[] mPool;
+    private final AtomicIntegerArray mState;
+    private final AtomicInteger mCursor = new AtomicInteger();
+    private final AtomicBoolean mRefillPending = new AtomicBoolean();
+    private final Runnable mRefillTask = new Runnable() {
+        @Override
+        public void run() {
+            mRefillPending.set(false);
+            refill();
+        }
+    };
+
+    public NoncePool(SecureRandom rng, int slotSize, int slotCount) {
+        if(slotSize <= 0 || slotCount <= 0) {
+            throw new IllegalArgumentException("NoncePool: invalid pool size");
+        }
+        mRng       = rng;
+        mSlotSize  = slotSize;
+        mSlotCount = slotCount;
+        mPool      = new byte[slotSize * slotCount];
+        mState     = new AtomicIntegerArray(slotCount);
+        scheduleRefill();
+    }
+
+    /**
+     * Returns shared pool. First call starts filling the pool in background.
+     */
+    public static NoncePool getDefault() {
+        NoncePool pool = mDefault;
+        if(pool == null) {
+            synchronized (NoncePool.class) {
+                pool = mDefault;
+                if(pool == null) {
+                    pool = new NoncePool(new SecureRandom(), SLOT_SIZE, SLOT_COUNT);
+                    mDefault = pool;
+                }
+            }
+        }
+        return pool;
+    }
+
+    /** Returns new array of len random bytes */
+    public byte[] getBytes(int len) {
+        byte[] rnd = new byte[len];
+        nextBytes(rnd, 0, len);
+        return rnd;
+    }
+
+    /** Fills len bytes of out starting at offs with random bytes */
+    public void nextBytes(byte[] out, int offs, int len) {
+        while (len > 0) {
+            int n = Math.min(len, mSlotSize);
+            if(!take(out, offs, n)) {
+                /* Pool is drained, generate the rest synchronously */
+                byte[] rnd = new byte[len];
+                mRng.nextBytes(rnd);
+                System.arraycopy(rnd, 0, out, offs, len);
+                Arrays.fill(rnd, (byte) 0);
+                break;
+            }
+            offs += n;
+            len  -= n;
+        }
+        scheduleRefill();
+    }
+
+    /** Returns number of filled slots */
+    public int available() {
+        int n = 0;
+        for (int i = 0; i < mSlotCount; i++) {
+            if(mState.get(i) == FILLED) {
+                n++;
+            }
+        }
+        return n;
+    }
+
+    /**
+     * Returns SecureRandom which draws its output from this pool,
+     * e.g. for generating ephemeral key pairs.
+     */
+    public SecureRandom asSecureRandom() {
+        return new PooledSecureRandom(this);
+    }
+
+    /* Copies first len bytes of a filled slot to out, the whole slot is zeroized */
+    private boolean take(byte[] out, int offs, int len) {
+        int start = mCursor.getAndIncrement();
+        for (int i = 0; i < mSlotCount; i++) {
+            int slot = ((start + i) & 0x7FFFFFFF) % mSlotCount;
+            if(mState.compareAndSet(slot, FILLED, TAKEN)) {
+                int pos = slot * mSlotSize;
+                System.arraycopy(mPool, pos, out, offs, len);
+                Arrays.fill(mPool, pos, pos + mSlotSize, (byte) 0);
+                mState.set(slot, EMPTY);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void scheduleRefill() {
+        if(mRefillPending.compareAndSet(false, true)) {
+            mRefillExecutor.execute(mRefillTask);
+        }
+    }
+
+    /* Runs only on refill thread */
+    private void refill() {
+        byte[] rnd = new byte[mSlotSize];
+        for (int slot = 0; slot < mSlotCount; slot++) {
+            if(mState.get(slot) == EMPTY) {
+                mRng.nextBytes(rnd);
+                System.arraycopy(rnd, 0, mPool, slot * mSlotSize, mSlotSize);
+                mState.set(slot, FILLED);
+            }
+        }
+        Arrays.fill(rnd, (byte) 0);
+    }
+
+    /* Never serialized: the SPI draws from the pool of this process, which is not serializable */
+    @SuppressWarnings("serial")
+    private static final class PooledSecureRandom extends SecureRandom {
+        PooledSecureRandom(final NoncePool pool) {
+            super(new SecureRandomSpi() {
+                @Override
+                protected void engineSetSeed(byte[] seed) {
+                    pool.mRng.setSeed(seed);
+                }
+
+                @Override
+                protected void engineNextBytes(byte[] bytes) {
+                    pool.nextBytes(bytes, 0, bytes.length);
+                }
+
+                @Override
+                protected byte[] engineGenerateSeed(int numBytes) {
+                    return pool.mRng.generateSeed(numBytes);
+                }
+            }, null);
+        }
+    }
+}
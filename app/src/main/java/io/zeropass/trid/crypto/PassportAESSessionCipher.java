@@ -0,0 +1,57 @@
+/*
+* Copyright (c) 2018 ZeroPass
+* Distributed under the MIT software license, see the accompanying
+* file LICENSE or https://opensource.org/licenses/MIT.
+*/
+
+package io.zeropass.trid.crypto;
+
+import java.security.GeneralSecurityException;
+
+import javax.crypto.spec.IvParameterSpec;
+
+/**
+ * Secure messaging with AES session keys established by Chip Authentication or PACE.
+ * Data is encrypted with AES in CBC mode and authenticated with AES-CMAC truncated to 8 bytes.
+ * see ICAO 9303-11 section 9.8.6
+ */
+public class PassportAESSessionCipher extends PassportSessionCipher {
+
+    public static final int BLOCK_SIZE = 16;
+    public static final int MAC_LEN = 8;
+
+    public PassportAESSessionCipher(PassportSessionKey key) {
+        super(key);
+        if(!key.isAES()) {
+            throw new IllegalArgumentException("PassportAESSessionCipher: session key is not AES key");
+        }
+    }
+
+    @Override
+    protected int getBlockSize() {
+        return BLOCK_SIZE;
+    }
+
+    @Override
+    protected byte[] encryptData(byte[] data, long ssc) throws GeneralSecurityException {
+        return mKS.encrypt(data, getIV(ssc));
+    }
+
+    @Override
+    protected byte[] decryptData(byte[] ciphertext, long ssc) throws GeneralSecurityException {
+        return mKS.decrypt(ciphertext, getIV(ssc));
+    }
+
+    @Override
+    protected byte[] computeMac(byte[] data) throws GeneralSecurityException {
+        byte[] cc = mKS.mac(data);
+        byte[] truncated = new byte[MAC_LEN];
+        System.arraycopy(cc, 0, truncated, 0, MAC_LEN);
+        return truncated;
+    }
+
+    /* IV is SSC encrypted with K.enc, see ICAO 9303-11 section 9.8.6.1 */
+    private IvParameterSpec getIV(long ssc) throws GeneralSecurityException {
+        return new IvParameterSpec(mKS.encryptBlock(getSSCBytes(ssc)));
+    }
+}
@@ -9,17 +9,20 @@ package io.zeropass.trid.crypto;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.DataInputStream;
-import java.io.DataOutputStream;
 import java.io.IOException;
 import java.security.GeneralSecurityException;
-import java.security.InvalidKeyException;
-import java.security.NoSuchAlgorithmException;
 import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 import java.util.logging.Logger;
 
 import io.zeropass.trid.passport.PassportTools;
 import io.zeropass.trid.smartcard.ISO7816;
-import io.zeropass.trid.tlv.TLVUtils;
+import io.zeropass.trid.tlv.TlvWriter;
 import io.zeropass.trid.com.ApduCmd;
 import io.zeropass.trid.com.ApduResult;
 
@@ -30,12 +33,63 @@ import io.zeropass.trid.com.ApduResult;
 public class PassportSessionCipher extends SessionCipher {
 
     private static final Logger Journal = Logger.getLogger("io.trid.crypto.psc");
-    PassportSessionKey mKS;
+    protected PassportSessionKey mKS;
+
+    /* Worker thread on which predicted commands are wrapped */
+    private static final ExecutorService mPrewrapExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "sm-prewrap");
+            t.setDaemon(true);
+            return t;
+        }
+    });
+
+    /* Per-thread encoder of protected command, commands are wrapped on caller's and worker thread */
+    private static final ThreadLocal<TlvWriter> mWriter = new ThreadLocal<TlvWriter>() {
+        @Override
+        protected TlvWriter initialValue() {
+            return new TlvWriter();
+        }
+    };
+
+    private ApduCmd mPrewrapCmd = null;
+    private long mPrewrapSSC;
+    private Future<ApduCmd> mPrewrapped = null;
+
+    /* Number of correctly and wrongly predicted commands */
+    private int mPrewrapHits   = 0;
+    private int mPrewrapMisses = 0;
 
     public PassportSessionCipher(PassportSessionKey key) {
         mKS = key;
     }
 
+    /**
+     * Wraps predicted next command on worker thread.
+     * Must be called after the current command has been encrypted and before its response is decrypted.
+     * SSC of the next command is then current SSC + 2 (response of current command + next command).
+     * If the next command passed to encrypt doesn't match the prediction, the pre-wrapped command is discarded.
+     */
+    @Override
+    public void prewrap(final ApduCmd next) {
+        if(next == null) {
+            return;
+        }
+
+        final long ssc = mKS.getSSC() + 2;
+        discardPrewrapped();
+
+        mPrewrapCmd  = next;
+        mPrewrapSSC  = ssc;
+        mPrewrapped  = mPrewrapExecutor.submit(new Callable<ApduCmd>() {
+            @Override
+            public ApduCmd call() throws Exception {
+                return encryptCommand(next, ssc);
+            }
+        });
+    }
+
     /**
      * Encrypts APDU data
      *
@@ -43,95 +97,123 @@ public class PassportSessionCipher extends SessionCipher {
      */
     public ApduCmd encrypt(ApduCmd cmd) {
         try {
-            return encryptCommand(cmd);
+            ApduCmd wrapped = takePrewrapped(cmd);
+            if(wrapped == null) {
+                wrapped = encryptCommand(cmd, mKS.getSSC() + 1);
+            }
+
+            /* Increment SSC. The counter is input to MAC and to IV of AES encryption */
+            mKS.incrementSSC();
+            return wrapped;
         } catch (IOException e) {
             Journal.severe("PassportSessionCipher: An IO exception was thrown while encrypting APDU data! e=" + e.getMessage());
-        } catch (NoSuchAlgorithmException e) {
+        } catch (GeneralSecurityException e) {
             Journal.severe("PassportSessionCipher: An exception was thrown while encrypting APDU data! e=" + e.getMessage());
-        } catch (InvalidKeyException e) {
-            Journal.severe("PassportSessionCipher: An IO exception was thrown while encrypting APDU data! e=" + e.getMessage());
         }
 
         return null;
     }
 
-    private ApduCmd encryptCommand(ApduCmd cmd) throws IOException, NoSuchAlgorithmException, InvalidKeyException {
+    /* Returns pre-wrapped command if it was predicted correctly, otherwise null */
+    private ApduCmd takePrewrapped(ApduCmd cmd) {
+        Future<ApduCmd> prewrapped = mPrewrapped;
+        if(prewrapped == null) {
+            return null;
+        }
 
-        ByteArrayOutputStream bOut = new ByteArrayOutputStream();
+        boolean hit = mPrewrapSSC == mKS.getSSC() + 1 && mPrewrapCmd.equals(cmd);
+        if(!hit) {
+            Journal.fine("Discarding pre-wrapped command, prediction didn't match");
+            mPrewrapMisses++;
+            discardPrewrapped();
+            return null;
+        }
 
-        byte[] maskedHeader = new byte[] { (byte)(cmd.cla() | (byte)0x0C), (byte)cmd.ins(), (byte)cmd.p1(), (byte)cmd.p2() };
-        byte[] paddedMaskedHeader = PassportTools.pad(maskedHeader);
+        mPrewrapHits++;
+        mPrewrapped = null;
+        mPrewrapCmd = null;
+        try {
+            return prewrapped.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            Journal.warning("Failed to pre-wrap command e=" + e.getCause());
+        }
+        return null;
+    }
 
-        boolean hasDO85 = ((byte)cmd.ins() == ISO7816.INS_READ_BINARY2);
+    /** Returns number of commands which were taken from pre-wrapped prediction */
+    public int getPrewrapHits() {
+        return mPrewrapHits;
+    }
 
-        byte[] do8587 = new byte[0];
-        byte[] do97 = new byte[0];
+    /** Returns number of pre-wrapped commands discarded because the prediction didn't match */
+    public int getPrewrapMisses() {
+        return mPrewrapMisses;
+    }
 
-        /* Encode Le field */
-        int le = cmd.ne();
-        if (le > 0) {
-            bOut.reset();
-            bOut.write((byte)0x97);
-            bOut.write((byte)0x01);
-            bOut.write((byte)le);
-            do97 = bOut.toByteArray();
+    /**
+     * Discards pre-wrapped command and wipes session keys
+     */
+    @Override
+    public void close() {
+        discardPrewrapped();
+        mKS.close();
+    }
+
+    private void discardPrewrapped() {
+        if(mPrewrapped != null) {
+            mPrewrapped.cancel(false);
         }
+        mPrewrapped = null;
+        mPrewrapCmd = null;
+    }
 
-        /* Encrypt command data */
-        if (cmd.data() != null && cmd.data().length > 0) {
-            byte[] data = PassportTools.pad(cmd.data());
-            byte[] ciphertext = PassportTools.encrypt(mKS.getKSenc(), data);
+    /**
+     * Wraps command with given send sequence counter.
+     * The method doesn't change session state so it can be called from worker thread.
+     */
+    private ApduCmd encryptCommand(ApduCmd cmd, long ssc) throws IOException, GeneralSecurityException {
+        byte[] maskedHeader = new byte[] { (byte)(cmd.cla() | (byte)0x0C), (byte)cmd.ins(), (byte)cmd.p1(), (byte)cmd.p2() };
+        boolean hasDO85 = ((byte)cmd.ins() == ISO7816.INS_READ_BINARY2);
 
-            bOut.reset();
-            bOut.write(hasDO85 ? (byte)0x85 : (byte)0x87);
-            bOut.write(TLVUtils.getLengthAsBytes(ciphertext.length + (hasDO85 ? 0 : 1)));
+        /* N = SSC | pad(masked header) | DO85/87 | DO97, protected data is written after N */
+        TlvWriter w = mWriter.get().reset();
+        w.writeBytes(getSSCBytes(ssc));
+        w.writeBytes(pad(maskedHeader));
+        int doOffs = w.size();
 
-            if(!hasDO85) {
-                bOut.write(0x01);
+        /* Encrypt command data */
+        if (cmd.data() != null && cmd.data().length > 0) {
+            byte[] ciphertext = encryptData(pad(cmd.data()), ssc);
+            if(hasDO85) {
+                w.write(0x85, ciphertext);
+            }
+            else {
+                w.writeTag(0x87);
+                w.writeLength(ciphertext.length + 1);
+                w.writeByte(0x01);
+                w.writeBytes(ciphertext);
             }
-
-            bOut.write(ciphertext, 0, ciphertext.length);
-            do8587 = bOut.toByteArray();
         }
 
-        /* Construct data M */
-        bOut.reset();
-        bOut.write(paddedMaskedHeader, 0, paddedMaskedHeader.length);
-        bOut.write(do8587, 0, do8587.length);
-        bOut.write(do97, 0, do97.length);
-        byte[] m = bOut.toByteArray();
-
-        /* Construct data N to be used in mac operation (pad(SSC | M)) */
-        bOut.reset();
-        DataOutputStream dataOut = new DataOutputStream(bOut);
-
-        mKS.incrementSSC();
-        dataOut.writeLong(mKS.getSSC());
-        dataOut.write(m, 0, m.length);
-        dataOut.flush();
-        byte[] n = PassportTools.pad(bOut.toByteArray());
+        /* Encode Le field */
+        int le = cmd.ne();
+        if (le > 0) {
+            w.writeByteValue(0x97, le);
+        }
 
-		/* Compute mac checksum */
-        byte[] cc = PassportTools.macNoPadding(mKS.getKSmac(), n);
+        /* Compute mac checksum of pad(N) */
+        byte[] cc = computeMac(PassportTools.pad(w.buffer(), 0, w.size(), getBlockSize() * 8));
         int ccLength = cc.length;
         if (ccLength != 8) {
             Journal.warning("Found mac length of " + ccLength + ", only using first 8 bytes");
             ccLength = 8;
         }
 
-        /* Construct DO.8E*/
-        bOut.reset();
-        bOut.write((byte) 0x8E);
-        bOut.write(ccLength);
-        bOut.write(cc, 0, ccLength);
-        byte[] do8E = bOut.toByteArray();
-
-		/* Construct protected apdu */
-        bOut.reset();
-        bOut.write(do8587);
-        bOut.write(do97);
-        bOut.write(do8E);
-        byte[] protectedData = bOut.toByteArray();
+        /* Construct DO.8E */
+        w.write(0x8E, cc, 0, ccLength);
+        byte[] protectedData = w.toByteArray(doOffs);
 
         return new ApduCmd(maskedHeader[0], maskedHeader[1], maskedHeader[2], maskedHeader[3], protectedData, 256);
     }
@@ -158,67 +240,72 @@ public class PassportSessionCipher extends SessionCipher {
 
 
     private ApduResult decryptCommand(ApduResult result) throws GeneralSecurityException, IOException {
-        long oldssc = mKS.getSSC();
-        byte[] rapdu = result.raw();
-        try {
-            if (result == null || rapdu.length < 2) {
-                throw new IllegalArgumentException("Invalid response APDU");
-            }
+        if (result == null) {
+            throw new IllegalArgumentException("Invalid response APDU");
+        }
 
-            DataInputStream inputStream = new DataInputStream(new ByteArrayInputStream(rapdu));
-            byte[] data = new byte[0];
-            short sw = 0;
-            boolean finished = false;
-            byte[] cc = null;
-
-            while (!finished) {
-                int tag = inputStream.readByte();
-                switch (tag) {
-                    case (byte) 0x87:
-                        data = readDO87(inputStream, false);
-                        break;
-                    case (byte) 0x85:
-                        data = readDO87(inputStream, true);
-                        break;
-                    case (byte) 0x99:
-                        sw = readDO99(inputStream);
-                        break;
-                    case (byte) 0x8E:
-                        cc = readDO8E(inputStream);
-                        finished = true;
-                        break;
-                }
-            }
+        /*
+         * Increment SSC before unwrapping, so even if we fail to unwrap
+         * we have the same counter as the ICC and can continue to communicate
+         * using secure messaging...
+         */
+        mKS.incrementSSC();
 
-            if (!checkMac(rapdu, cc)) {
-                throw new IllegalStateException("Invalid MAC");
-            }
+        byte[] rapdu = result.raw();
+        if (rapdu.length < 2) {
+            throw new IllegalArgumentException("Invalid response APDU");
+        }
 
-            ByteArrayOutputStream bOut = new ByteArrayOutputStream();
-            bOut.write(data, 0, data.length);
-            bOut.write((sw & 0xFF00) >> 8);
-            bOut.write(sw & 0x00FF);
+        DataInputStream inputStream = new DataInputStream(new ByteArrayInputStream(rapdu));
+        byte[] ciphertext = null;
+        short sw = 0;
+        boolean finished = false;
+        byte[] cc = null;
+
+        while (!finished) {
+            int tag = inputStream.readByte();
+            switch (tag) {
+                case (byte) 0x87:
+                    ciphertext = readDO87(inputStream, false);
+                    break;
+                case (byte) 0x85:
+                    ciphertext = readDO87(inputStream, true);
+                    break;
+                case (byte) 0x99:
+                    sw = readDO99(inputStream);
+                    break;
+                case (byte) 0x8E:
+                    cc = readDO8E(inputStream);
+                    finished = true;
+                    break;
+            }
+        }
 
-            return new ApduResult(bOut.toByteArray());
+        if (!checkMac(rapdu, cc)) {
+            throw new IllegalStateException("Invalid MAC");
         }
-        finally {
-			/*
-			 * If we fail to unwrap, at least make sure we have the same counter
-			 * as the ICC, so that we can continue to communicate using secure
-			 * messaging...
-			 */
-            if (mKS.getSSC() == oldssc) {
-                mKS.incrementSSC();
-            }
+
+        /* Decrypt and unpad data */
+        byte[] data = new byte[0];
+        if (ciphertext != null) {
+            data = PassportTools.unpad(decryptData(ciphertext, mKS.getSSC()));
         }
+
+        ByteArrayOutputStream bOut = new ByteArrayOutputStream();
+        bOut.write(data, 0, data.length);
+        bOut.write((sw & 0xFF00) >> 8);
+        bOut.write(sw & 0x00FF);
+
+        return new ApduResult(bOut.toByteArray());
     }
 
     /**
      * The <code>0x87</code> tag has already been read.
      *
      * @param inputStream inputstream to read from
+     * @returns encrypted data
      */
-    private byte[] readDO87(DataInputStream inputStream, boolean do85) throws IOException, GeneralSecurityException {
+    private byte[] readDO87(DataInputStream inputStream, boolean do85) throws IOException {
 		/* Read length... */
         int length = 0;
 
@@ -256,11 +343,7 @@ public class PassportSessionCipher extends SessionCipher {
 		/* Read data */
         byte[] ciphertext = new byte[length];
         inputStream.readFully(ciphertext);
-
-        /* Decrypt and unpad data */
-        byte[] paddedData = PassportTools.decrypt(mKS.getKSenc(), ciphertext);
-        byte[] data = PassportTools.unpad(paddedData);
-        return data;
+        return ciphertext;
     }
 
     private short readDO99(DataInputStream inputStream) throws IOException {
@@ -288,18 +371,13 @@ public class PassportSessionCipher extends SessionCipher {
     private boolean checkMac(byte[] rapdu, byte[] cc1) throws GeneralSecurityException {
         try {
             ByteArrayOutputStream bOut = new ByteArrayOutputStream();
-            DataOutputStream dataOut = new DataOutputStream(bOut);
 
-            /* Increment and add ssc */
-            mKS.incrementSSC();
-            dataOut.writeLong(mKS.getSSC());
-
-            byte[] paddedData = PassportTools.pad(rapdu, 0, rapdu.length - 2 - 8 - 2);
-            dataOut.write(paddedData, 0, paddedData.length);
-            dataOut.flush();
-            dataOut.close();
+            /* Add ssc */
+            bOut.write(getSSCBytes(mKS.getSSC()));
+            bOut.write(rapdu, 0, rapdu.length - 2 - 8 - 2);
+            byte[] n = pad(bOut.toByteArray());
 
-            byte[] cc2 = PassportTools.macNoPadding(mKS.getKSmac(), bOut.toByteArray());
+            byte[] cc2 = computeMac(n);
             if (cc2.length > 8 && cc1.length == 8) {
                 byte[] newCC2 = new byte[8];
                 System.arraycopy(cc2, 0, newCC2, 0, newCC2.length);
@@ -311,4 +389,40 @@ public class PassportSessionCipher extends SessionCipher {
             return false;
         }
     }
+
+    /**
+     * Returns block size of the session cipher in bytes
+     */
+    protected int getBlockSize() {
+        return 8;
+    }
+
+    /**
+     * Returns send sequence counter serialized to the size of one block
+     */
+    protected byte[] getSSCBytes(long v) {
+        byte[] ssc = new byte[getBlockSize()];
+        for (int i = ssc.length - 1; i >= ssc.length - 8; i--) {
+            ssc[i] = (byte) v;
+            v >>>= 8;
+        }
+
+        return ssc;
+    }
+
+    protected byte[] pad(byte[] data) {
+        return PassportTools.pad(data, 0, data.length, getBlockSize() * 8);
+    }
+
+    protected byte[] encryptData(byte[] data, long ssc) throws GeneralSecurityException {
+        return mKS.encrypt(data, null);
+    }
+
+    protected byte[] decryptData(byte[] ciphertext, long ssc) throws GeneralSecurityException {
+        return mKS.decrypt(ciphertext, null);
+    }
+
+    protected byte[] computeMac(byte[] data) throws GeneralSecurityException {
+        return mKS.mac(data);
+    }
 }
@@ -6,27 +6,88 @@
 
 package io.zeropass.trid.crypto;
 
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.NotSerializableException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.security.GeneralSecurityException;
+import java.security.InvalidKeyException;
 import java.security.InvalidParameterException;
+import java.util.Arrays;
+
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
 import javax.crypto.SecretKey;
+import javax.crypto.spec.IvParameterSpec;
+import javax.security.auth.DestroyFailedException;
+
 import io.zeropass.trid.passport.PassportTools;
 
-public class PassportSessionKey {
-    private SecretKey mKSenc;
-    private SecretKey mKSmac;
+/**
+ * Secure messaging session keys and send sequence counter.
+ * Raw key bytes are copied once into arrays owned by this object and are wiped on close.
+ * For 3DES the encryption key is stored in its 24-byte form (K1|K2|K1), which contains the raw 16-byte key as prefix.
+ * Cipher and MAC engines are initialized with the keys on first use and reused for all following operations,
+ * so no key copies or key schedules are made per APDU.
+ *
+ * Engine operations may be called from SM pre-wrap worker thread concurrently with the session thread,
+ * each engine is therefore locked for the duration of one operation.
+ */
+public class PassportSessionKey implements Closeable {
+    private static final String DESEDE = "DESede";
+    private static final String AES    = "AES";
+
+    private final boolean mIsAES;
+    private final byte[] mKSencBytes;
+    private final byte[] mKSmacBytes;
+    private final RawKey mKSenc;
+    private final RawKey mKSmac;
+    private final RawKey mCipherKey; // 24-byte 3DES form of K.enc or AES K.enc
     private long mSSC;
 
+    /* Engines initialized with session keys, created on first use */
+    private Cipher mEncCipher;
+    private Cipher mDecCipher;
+    private Cipher mBlockCipher; // AES/ECB for computing IV
+    private Mac mMac;
+    private volatile boolean mClosed = false;
+
     public PassportSessionKey(SecretKey ksEnc, SecretKey ksMac, long ssc) {
-        if(ksEnc.getEncoded().length != PassportTools.KEY_LEN) {
-            throw  new InvalidParameterException("ksEnc len != 16");
-        }
+        mIsAES = AES.equals(ksEnc.getAlgorithm());
 
-        if(ksMac.getEncoded().length != PassportTools.KEY_LEN) {
-            throw  new InvalidParameterException("ksMac len != 16");
-        }
+        byte[] enc = ksEnc.getEncoded();
+        byte[] mac = ksMac.getEncoded();
+        try {
+            if(!isValidKeyLength(enc.length)) {
+                throw new InvalidParameterException("Invalid ksEnc len");
+            }
+
+            if(!isValidKeyLength(mac.length)) {
+                throw new InvalidParameterException("Invalid ksMac len");
+            }
 
-        mKSenc = ksEnc;
-        mKSmac = ksMac;
-        mSSC = ssc;
+            if(mIsAES) {
+                mKSencBytes = enc.clone();
+                mKSenc      = new RawKey(mKSencBytes, enc.length, AES);
+                mCipherKey  = mKSenc;
+            }
+            else {
+                mKSencBytes = new byte[24];
+                System.arraycopy(enc, 0, mKSencBytes, 0, enc.length);
+                System.arraycopy(enc, 0, mKSencBytes, enc.length, mKSencBytes.length - enc.length);
+                mKSenc      = new RawKey(mKSencBytes, enc.length, ksEnc.getAlgorithm());
+                mCipherKey  = new RawKey(mKSencBytes, mKSencBytes.length, DESEDE);
+            }
+
+            mKSmacBytes = mac.clone();
+            mKSmac      = new RawKey(mKSmacBytes, mac.length, ksMac.getAlgorithm());
+            mSSC = ssc;
+        }
+        finally {
+            Arrays.fill(enc, (byte) 0);
+            Arrays.fill(mac, (byte) 0);
+        }
     }
 
     public SecretKey getKSenc() {
@@ -44,4 +105,200 @@ public class PassportSessionKey {
     public void incrementSSC() {
         mSSC++;
     }
+
+    /* Returns true if session keys are AES keys (established by Chip Authentication or PACE) */
+    public boolean isAES() {
+        return mIsAES;
+    }
+
+    public boolean isClosed() {
+        return mClosed;
+    }
+
+    /**
+     * Encrypts data in CBC mode with K.enc.
+     * @param iv initial vector or null for zero IV
+     */
+    byte[] encrypt(byte[] data, IvParameterSpec iv) throws GeneralSecurityException {
+        Cipher cipher = getEncCipher();
+        synchronized (cipher) {
+            if(iv != null) {
+                cipher.init(Cipher.ENCRYPT_MODE, mCipherKey, iv);
+            }
+            return cipher.doFinal(data);
+        }
+    }
+
+    /**
+     * Decrypts data in CBC mode with K.enc.
+     * @param iv initial vector or null for zero IV
+     */
+    byte[] decrypt(byte[] data, IvParameterSpec iv) throws GeneralSecurityException {
+        Cipher cipher = getDecCipher();
+        synchronized (cipher) {
+            if(iv != null) {
+                cipher.init(Cipher.DECRYPT_MODE, mCipherKey, iv);
+            }
+            return cipher.doFinal(data);
+        }
+    }
+
+    /** Encrypts data in ECB mode with K.enc (AES only) */
+    byte[] encryptBlock(byte[] data) throws GeneralSecurityException {
+        Cipher cipher = getBlockCipher();
+        synchronized (cipher) {
+            return cipher.doFinal(data);
+        }
+    }
+
+    /** Computes MAC of padded data with K.mac (ISO 9797-1 MAC algorithm 3 or AES-CMAC) */
+    byte[] mac(byte[] data) throws GeneralSecurityException {
+        Mac mac = getMac();
+        synchronized (mac) {
+            return mac.doFinal(data);
+        }
+    }
+
+    /**
+     * Wipes key bytes and releases engines.
+     * Any subsequent operation fails with InvalidKeyException.
+     */
+    @Override
+    public synchronized void close() {
+        if(mClosed) {
+            return;
+        }
+
+        mClosed = true;
+        Arrays.fill(mKSencBytes, (byte) 0);
+        Arrays.fill(mKSmacBytes, (byte) 0);
+        mEncCipher   = null;
+        mDecCipher   = null;
+        mBlockCipher = null;
+        mMac         = null;
+    }
+
+    private synchronized Cipher getEncCipher() throws GeneralSecurityException {
+        checkNotClosed();
+        if(mEncCipher == null) {
+            mEncCipher = newCipher(Cipher.ENCRYPT_MODE);
+        }
+        return mEncCipher;
+    }
+
+    private synchronized Cipher getDecCipher() throws GeneralSecurityException {
+        checkNotClosed();
+        if(mDecCipher == null) {
+            mDecCipher = newCipher(Cipher.DECRYPT_MODE);
+        }
+        return mDecCipher;
+    }
+
+    private synchronized Cipher getBlockCipher() throws GeneralSecurityException {
+        checkNotClosed();
+        if(mBlockCipher == null) {
+            if(!mIsAES) {
+                throw new InvalidKeyException("PassportSessionKey: ECB encryption is used only with AES keys");
+            }
+            Cipher cipher = CryptoUtils.getCipher("AES/ECB/NoPadding");
+            cipher.init(Cipher.ENCRYPT_MODE, mCipherKey);
+            mBlockCipher = cipher;
+        }
+        return mBlockCipher;
+    }
+
+    private synchronized Mac getMac() throws GeneralSecurityException {
+        checkNotClosed();
+        if(mMac == null) {
+            Mac mac = mIsAES ? CryptoUtils.getMac("AESCMAC") : PassportTools.getMacNoPadding();
+            if(mac == null) {
+                throw new GeneralSecurityException("PassportSessionKey: MAC engine not available");
+            }
+            mac.init(mKSmac);
+            mMac = mac;
+        }
+        return mMac;
+    }
+
+    /* 3DES cipher is initialized with zero IV once, doFinal resets it back to the initial state */
+    private Cipher newCipher(int mode) throws GeneralSecurityException {
+        if(mIsAES) {
+            return CryptoUtils.getCipher("AES/CBC/NoPadding");
+        }
+
+        Cipher cipher = CryptoUtils.getCipher("DESede/CBC/NoPadding");
+        cipher.init(mode, mCipherKey, PassportTools.ZERO_IV);
+        return cipher;
+    }
+
+    private void checkNotClosed() throws InvalidKeyException {
+        if(mClosed) {
+            throw new InvalidKeyException("PassportSessionKey: session key was closed");
+        }
+    }
+
+    private boolean isValidKeyLength(int len) {
+        if(mIsAES) {
+            return len == 16 || len == 24 || len == 32;
+        }
+
+        return len == PassportTools.KEY_LEN;
+    }
+
+    /**
+     * SecretKey view of the first len bytes of key buffer.
+     * Providers copy key bytes when engine is initialized, the view itself holds no copy.
+     * The key is not serializable, so session key bytes can't leak through serialization.
+     */
+    @SuppressWarnings("serial")
+    private static final class RawKey implements SecretKey {
+        private final byte[] mKey;
+        private final int mLen;
+        private final String mAlgorithm;
+
+        RawKey(byte[] key, int len, String algorithm) {
+            mKey = key;
+            mLen = len;
+            mAlgorithm = algorithm;
+        }
+
+        @Override
+        public String getAlgorithm() {
+            return mAlgorithm;
+        }
+
+        @Override
+        public String getFormat() {
+            return "RAW";
+        }
+
+        @Override
+        public byte[] getEncoded() {
+            return Arrays.copyOf(mKey, mLen);
+        }
+
+        /* Key buffer is shared with the session, it's wiped only by PassportSessionKey.close() */
+        @Override
+        public void destroy() throws DestroyFailedException {
+            throw new DestroyFailedException("PassportSessionKey.RawKey: key is wiped when session key is closed");
+        }
+
+        @Override
+        public boolean isDestroyed() {
+            for (int i = 0; i < mLen; i++) {
+                if(mKey[i] != 0) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private void writeObject(ObjectOutputStream out) throws IOException {
+            throw new NotSerializableException("PassportSessionKey.RawKey");
+        }
+
+        private void readObject(ObjectInputStream in) throws IOException {
+            throw new NotSerializableException("PassportSessionKey.RawKey");
+        }
+    }
 }
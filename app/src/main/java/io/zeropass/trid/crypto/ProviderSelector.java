@@ -0,0 +1,314 @@
+/*
+* Copyright (c) 2018 ZeroPass
+* Distributed under the MIT software license, see the accompanying
+* file LICENSE or https://opensource.org/licenses/MIT.
+*/
+
+package io.zeropass.trid.crypto;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.MessageDigest;
+import java.security.Provider;
+import java.security.Security;
+import java.security.spec.RSAKeyGenParameterSpec;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Logger;
+
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Selects the fastest JCA provider for primitives used on the hot path (secure messaging, hashing, RSA verification).
+ * On first start benchmark() runs a short microbenchmark of every provider implementing each primitive
+ * and stores the winners to a properties file. Later starts load the selection from the file.
+ * The file is re-created when platform (VM or OS version) changes.
+ *
+ * Until primitives are benchmarked or loaded, getProvider returns null and callers use their default provider.
+ */
+public final class ProviderSelector {
+    private static final Logger Journal = Logger.getLogger("io.trid.crypto.providers");
+
+    public static final String CIPHER = "Cipher";
+    public static final String MAC    = "Mac";
+    public static final String DIGEST = "MessageDigest";
+
+    public static final String DES3_CBC   = "DESede/CBC/NoPadding";
+    public static final String AES_CBC    = "AES/CBC/NoPadding";
+    public static final String AES_ECB    = "AES/ECB/NoPadding";
+    public static final String RSA_RAW    = "RSA/NONE/NoPadding";
+    public static final String RETAIL_MAC = "ISO9797Alg3Mac";
+    public static final String AES_CMAC   = "AESCMAC";
+
+    /** Benchmarked primitives: { type, algorithm } */
+    public static final String[][] PRIMITIVES = {
+        { CIPHER, DES3_CBC },
+        { CIPHER, AES_CBC },
+        { CIPHER, AES_ECB },
+        { CIPHER, RSA_RAW },
+        { MAC,    RETAIL_MAC },
+        { MAC,    AES_CMAC },
+        { DIGEST, HashService.SHA1 },
+        { DIGEST, HashService.SHA256 }
+    };
+
+    private static final String PLATFORM_KEY = "platform";
+
+    /* Benchmark parameters */
+    private static final int DATA_LEN      = 256;
+    private static final int WARMUP_ROUNDS = 32;
+    private static final int ROUNDS        = 128;
+    private static final int RSA_ROUNDS    = 16;
+
+    private static ProviderSelector mDefault = null;
+
+    private final Map<String, Provider> mSelected = new ConcurrentHashMap<>();
+
+    public static synchronized ProviderSelector getDefault() {
+        if(mDefault == null) {
+            mDefault = new ProviderSelector();
+        }
+        return mDefault;
+    }
+
+    /**
+     * Returns selected provider for primitive or null if primitive wasn't benchmarked.
+     */
+    public Provider getProvider(String type, String algorithm) {
+        return mSelected.get(key(type, algorithm));
+    }
+
+    /**
+     * Returns selected provider for primitive or defaultProvider if primitive wasn't benchmarked.
+     */
+    public Provider getProvider(String type, String algorithm, Provider defaultProvider) {
+        Provider p = getProvider(type, algorithm);
+        return p != null ? p : defaultProvider;
+    }
+
+    /** Returns true if selection was loaded or benchmarked */
+    public boolean isInitialized() {
+        return !mSelected.isEmpty();
+    }
+
+    /**
+     * Loads provider selection from file or, if file doesn't exist or was created on another platform,
+     * benchmarks all primitives and saves the result to file.
+     * Should be called on background thread, benchmark takes up to a few hundred milliseconds.
+     */
+    public synchronized void init(File file) {
+        if(file.exists()) {
+            try {
+                if(load(file)) {
+                    return;
+                }
+            } catch (IOException e) {
+                Journal.warning("init: failed to load provider selection e=" + e.getMessage());
+            }
+        }
+
+        benchmark();
+        try {
+            save(file);
+        } catch (IOException e) {
+            Journal.warning("init: failed to save provider selection e=" + e.getMessage());
+        }
+    }
+
+    /**
+     * Benchmarks candidate providers of all primitives and selects the fastest one.
+     */
+    public synchronized void benchmark() {
+        KeyPair rsaKey = null;
+        for (String[] p : PRIMITIVES) {
+            Provider best = null;
+            long bestTime = Long.MAX_VALUE;
+            for (Provider candidate : getCandidates(p[0], p[1])) {
+                try {
+                    if(RSA_RAW.equals(p[1]) && rsaKey == null) {
+                        rsaKey = generateRSAKey();
+                    }
+                    long time = run(p[0], p[1], candidate, rsaKey);
+                    Journal.fine("benchmark: " + p[1] + " " + candidate.getName() + " " + time + "ns");
+                    if(time < bestTime) {
+                        bestTime = time;
+                        best = candidate;
+                    }
+                } catch (GeneralSecurityException | RuntimeException e) {
+                    /* Provider advertises the primitive but doesn't support our usage, skip it */
+                    Journal.fine("benchmark: " + p[1] + " " + candidate.getName() + " failed e=" + e);
+                }
+            }
+
+            if(best != null) {
+                mSelected.put(key(p[0], p[1]), best);
+                Journal.info("Selected provider " + best.getName() + " for " + p[1]);
+            }
+        }
+    }
+
+    /**
+     * Loads provider selection from file.
+     * @returns false if file was created on another platform or selected provider is no longer available
+     */
+    public synchronized boolean load(File file) throws IOException {
+        Properties props = new Properties();
+        InputStream is = new FileInputStream(file);
+        try {
+            props.load(is);
+        } finally {
+            is.close();
+        }
+
+        if(!getPlatformId().equals(props.getProperty(PLATFORM_KEY))) {
+            return false;
+        }
+
+        Map<String, Provider> selected = new ConcurrentHashMap<>();
+        for (String[] p : PRIMITIVES) {
+            String name = props.getProperty(key(p[0], p[1]));
+            if(name == null) {
+                continue;
+            }
+
+            Provider provider = getProviderByName(name);
+            if(provider == null) {
+                return false;
+            }
+            selected.put(key(p[0], p[1]), provider);
+        }
+
+        mSelected.clear();
+        mSelected.putAll(selected);
+        return true;
+    }
+
+    public synchronized void save(File file) throws IOException {
+        Properties props = new Properties();
+        props.setProperty(PLATFORM_KEY, getPlatformId());
+        for (Map.Entry<String, Provider> e : mSelected.entrySet()) {
+            props.setProperty(e.getKey(), e.getValue().getName());
+        }
+
+        OutputStream os = new FileOutputStream(file);
+        try {
+            props.store(os, "Selected JCA providers");
+        } finally {
+            os.close();
+        }
+    }
+
+    /** Clears selection, callers fall back to their default providers */
+    public void reset() {
+        mSelected.clear();
+    }
+
+    private static String key(String type, String algorithm) {
+        return type + "." + algorithm;
+    }
+
+    private static String getPlatformId() {
+        return System.getProperty("java.vm.version") + "/" + System.getProperty("os.version");
+    }
+
+    /* Installed providers and SpongyCastle provider which is not installed */
+    private static Provider getProviderByName(String name) {
+        Provider spongy = CryptoUtils.getSpongyCastleProvider();
+        if(spongy.getName().equals(name)) {
+            return spongy;
+        }
+        return Security.getProvider(name);
+    }
+
+    private static List<Provider> getCandidates(String type, String algorithm) {
+        /* Provider services are registered under algorithm name without mode and padding */
+        String alg = algorithm.split("/")[0];
+
+        List<Provider> candidates = new ArrayList<>();
+        for (Provider p : Security.getProviders()) {
+            if(p.getService(type, alg) != null) {
+                candidates.add(p);
+            }
+        }
+
+        Provider spongy = CryptoUtils.getSpongyCastleProvider();
+        if(!candidates.contains(spongy) && spongy.getService(type, alg) != null) {
+            candidates.add(spongy);
+        }
+        return candidates;
+    }
+
+    /* Returns best time in nanoseconds of one operation */
+    private static long run(String type, String algorithm, Provider provider, KeyPair rsaKey) throws GeneralSecurityException {
+        byte[] data = new byte[DATA_LEN];
+        if(CIPHER.equals(type)) {
+            Cipher cipher = Cipher.getInstance(algorithm, provider);
+            if(algorithm.equals(RSA_RAW)) {
+                cipher.init(Cipher.ENCRYPT_MODE, rsaKey.getPublic());
+                byte[] block = new byte[255];
+                block[0] = 0x6A;
+                return time(cipher, null, null, block, RSA_ROUNDS);
+            }
+
+            boolean des = algorithm.startsWith("DESede");
+            SecretKeySpec key = new SecretKeySpec(new byte[des ? 24 : 16], des ? "DESede" : "AES");
+            if(algorithm.contains("/CBC/")) {
+                cipher.init(Cipher.ENCRYPT_MODE, key, new IvParameterSpec(new byte[des ? 8 : 16]));
+            }
+            else {
+                cipher.init(Cipher.ENCRYPT_MODE, key);
+            }
+            return time(cipher, null, null, data, ROUNDS);
+        }
+        else if(MAC.equals(type)) {
+            Mac mac = Mac.getInstance(algorithm, provider);
+            mac.init(new SecretKeySpec(new byte[16], algorithm.equals(AES_CMAC) ? "AES" : "DESede"));
+            return time(null, mac, null, data, ROUNDS);
+        }
+        else {
+            MessageDigest md = MessageDigest.getInstance(algorithm, provider);
+            return time(null, null, md, data, ROUNDS);
+        }
+    }
+
+    private static KeyPair generateRSAKey() throws GeneralSecurityException {
+        KeyPairGenerator kpg = KeyPairGenerator.getInstance("RSA", CryptoUtils.getSpongyCastleProvider());
+        kpg.initialize(new RSAKeyGenParameterSpec(2048, RSAKeyGenParameterSpec.F4));
+        return kpg.generateKeyPair();
+    }
+
+    private static long time(Cipher cipher, Mac mac, MessageDigest md, byte[] data, int rounds) throws GeneralSecurityException {
+        long best = Long.MAX_VALUE;
+        for (int i = 0; i < WARMUP_ROUNDS + rounds; i++) {
+            long start = System.nanoTime();
+            if(cipher != null) {
+                cipher.doFinal(data);
+            }
+            else if(mac != null) {
+                mac.doFinal(data);
+            }
+            else {
+                md.digest(data);
+            }
+
+            long t = System.nanoTime() - start;
+            if(i >= WARMUP_ROUNDS && t < best) {
+                best = t;
+            }
+        }
+        return best;
+    }
+}
@@ -0,0 +1,197 @@
+/*
+* Copyright (c) 2018 ZeroPass
+* Distributed under the MIT software license, see the accompanying
+* file LICENSE or https://opensource.org/licenses/MIT.
+*/
+
+package io.zeropass.trid.crypto;
+
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.KeyFactory;
+import java.security.PublicKey;
+import java.security.spec.X509EncodedKeySpec;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.logging.Logger;
+
+/**
+ * Decoder of DER encoded SubjectPublicKeyInfo.
+ * Key algorithm is determined from AlgorithmIdentifier OID, so the key is parsed only once
+ * by the matching KeyFactory. KeyFactory instances are cached per thread and decoded keys
+ * are memoized by encoded content in a bounded LRU cache (public keys are immutable).
+ */
+public final class PublicKeyDecoder {
+    private static final Logger Journal = Logger.getLogger("io.trid.crypto.pkdecoder");
+
+    public static final int MAX_CACHED_KEYS = 128;
+
+    /* DER encoded OID values (without tag and length) */
+    private static final byte[] OID_RSA_ENCRYPTION = { 0x2A, (byte)0x86, 0x48, (byte)0x86, (byte)0xF7, 0x0D, 0x01, 0x01, 0x01 }; // 1.2.840.113549.1.1.1
+    private static final byte[] OID_RSASSA_PSS     = { 0x2A, (byte)0x86, 0x48, (byte)0x86, (byte)0xF7, 0x0D, 0x01, 0x01, 0x0A }; // 1.2.840.113549.1.1.10
+    private static final byte[] OID_EC_PUBLIC_KEY  = { 0x2A, (byte)0x86, 0x48, (byte)0xCE, 0x3D, 0x02, 0x01 };                   // 1.2.840.10045.2.1
+    private static final byte[] OID_DH_PUBLIC_NUM  = { 0x2A, (byte)0x86, 0x48, (byte)0xCE, 0x3E, 0x02, 0x01 };                   // 1.2.840.10046.2.1
+    private static final byte[] OID_DH_KEY_AGREE   = { 0x2A, (byte)0x86, 0x48, (byte)0x86, (byte)0xF7, 0x0D, 0x01, 0x03, 0x01 }; // 1.2.840.113549.1.3.1
+
+    private static final ThreadLocal<Map<String, KeyFactory>> mFactories = new ThreadLocal<Map<String, KeyFactory>>() {
+        @Override
+        protected Map<String, KeyFactory> initialValue() {
+            return new HashMap<>();
+        }
+    };
+
+    private static final Map<ByteBuffer, PublicKey> mCache = new LinkedHashMap<ByteBuffer, PublicKey>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<ByteBuffer, PublicKey> eldest) {
+            return size() > MAX_CACHED_KEYS;
+        }
+    };
+
+    private PublicKeyDecoder() {}
+
+    /**
+     * Decodes public key from SubjectPublicKeyInfo.
+     * @returns public key or null if key algorithm is not supported or encoding is invalid
+     */
+    public static PublicKey decode(byte[] spki) {
+        return decode(null, spki);
+    }
+
+    /**
+     * Decodes public key from SubjectPublicKeyInfo with known key algorithm (e.g. "DH" or "EC").
+     * If algorithm is null it's determined from AlgorithmIdentifier of spki.
+     * @returns public key or null if encoding is invalid
+     */
+    public static PublicKey decode(String algorithm, byte[] spki) {
+        if(spki == null) {
+            return null;
+        }
+
+        ByteBuffer cacheKey = ByteBuffer.wrap(spki);
+        synchronized (mCache) {
+            PublicKey key = mCache.get(cacheKey);
+            if(key != null) {
+                return key;
+            }
+        }
+
+        if(algorithm == null) {
+            algorithm = getKeyAlgorithm(spki);
+            if(algorithm == null) {
+                Journal.warning("decode: Unsupported or invalid public key algorithm identifier");
+                return null;
+            }
+        }
+
+        PublicKey key;
+        try {
+            key = getKeyFactory(algorithm).generatePublic(new X509EncodedKeySpec(spki));
+        } catch (GeneralSecurityException e) {
+            Journal.severe("decode: Failed to decode " + algorithm + " public key e=" + e.getMessage());
+            return null;
+        }
+
+        synchronized (mCache) {
+            mCache.put(ByteBuffer.wrap(spki.clone()), key);
+        }
+        return key;
+    }
+
+    /**
+     * Returns JCA key algorithm name ("RSA", "EC" or "DH") of SubjectPublicKeyInfo
+     * or null if algorithm is not known or encoding is invalid.
+     *
+     * SubjectPublicKeyInfo ::= SEQUENCE { algorithm SEQUENCE { algorithm OBJECT IDENTIFIER, ... }, subjectPublicKey BIT STRING }
+     */
+    public static String getKeyAlgorithm(byte[] spki) {
+        /* Enter outer and AlgorithmIdentifier SEQUENCE */
+        int offs = enter(spki, 0, 0x30);
+        offs = enter(spki, offs, 0x30);
+        if(offs < 0 || offs + 2 > spki.length || spki[offs] != 0x06) {
+            return null;
+        }
+
+        int len = spki[offs + 1] & 0xFF;
+        offs += 2;
+        if(len > 0x7F || offs + len > spki.length) {
+            return null;
+        }
+
+        if(oidEquals(OID_RSA_ENCRYPTION, spki, offs, len) || oidEquals(OID_RSASSA_PSS, spki, offs, len)) {
+            return "RSA";
+        }
+        else if(oidEquals(OID_EC_PUBLIC_KEY, spki, offs, len)) {
+            return "EC";
+        }
+        else if(oidEquals(OID_DH_PUBLIC_NUM, spki, offs, len) || oidEquals(OID_DH_KEY_AGREE, spki, offs, len)) {
+            return "DH";
+        }
+        return null;
+    }
+
+    /** Clears decoded keys cache */
+    public static void clearCache() {
+        synchronized (mCache) {
+            mCache.clear();
+        }
+    }
+
+    /** Returns number of cached keys */
+    public static int cacheSize() {
+        synchronized (mCache) {
+            return mCache.size();
+        }
+    }
+
+    private static KeyFactory getKeyFactory(String algorithm) throws GeneralSecurityException {
+        Map<String, KeyFactory> factories = mFactories.get();
+        KeyFactory kf = factories.get(algorithm);
+        if(kf == null) {
+            kf = KeyFactory.getInstance(algorithm, CryptoUtils.getSpongyCastleProvider());
+            factories.put(algorithm, kf);
+        }
+        return kf;
+    }
+
+    /**
+     * Returns offset of value of constructed DER object with expected tag at offs
+     * or -1 if object at offs doesn't have expected tag or its length is invalid.
+     */
+    private static int enter(byte[] data, int offs, int tag) {
+        if(offs < 0 || offs + 2 > data.length || (data[offs] & 0xFF) != tag) {
+            return -1;
+        }
+
+        int len = data[offs + 1] & 0xFF;
+        offs += 2;
+        if(len > 0x80) {
+            int n = len & 0x7F;
+            if(n > 3 || offs + n > data.length) {
+                return -1;
+            }
+
+            len = 0;
+            for (int i = 0; i < n; i++) {
+                len = (len << 8) | (data[offs++] & 0xFF);
+            }
+        }
+        else if(len == 0x80) {
+            return -1; // indefinite length is not allowed in DER
+        }
+
+        return offs + len <= data.length ? offs : -1;
+    }
+
+    private static boolean oidEquals(byte[] oid, byte[] data, int offs, int len) {
+        if(oid.length != len) {
+            return false;
+        }
+        for (int i = 0; i < len; i++) {
+            if(oid[i] != data[offs + i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,192 @@
+/*
+* Copyright (c) 2018 ZeroPass
+* Distributed under the MIT software license, see the accompanying
+* file LICENSE or https://opensource.org/licenses/MIT.
+*/
+
+package io.zeropass.trid.crypto;
+
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.Provider;
+import java.security.interfaces.RSAPublicKey;
+import java.util.logging.Logger;
+
+import javax.crypto.Cipher;
+
+/**
+ * Implementation of ISO/IEC 9796-2 Digital signature scheme 1 (verification only).
+ * Message hashing function is selected by the trailer field:
+ *  implicit trailer 0xBC        - SHA-1
+ *  trailer 0x33CC               - SHA-1
+ *  trailer 0x34CC               - SHA-256
+ *  trailer 0x35CC               - SHA-512
+ *  trailer 0x36CC               - SHA-384
+ *  trailer 0x38CC               - SHA-224
+ * see ISO/IEC 9796-2 and ICAO 9303-11 section 6.1
+ *
+ * The verifier is thread-safe. Each thread uses its own cipher and digest instances (see HashService).
+ */
+public class RSA_ISO9796_2_DSS1 {
+    private static final Logger Journal = Logger.getLogger("io.trid.crypto.iso9796");
+
+    private static final ThreadLocal<Cipher> mCipher = new ThreadLocal<>();
+
+    /* Returns cipher of the current thread, re-created if ProviderSelector selected another provider */
+    private static Cipher getCipher() throws GeneralSecurityException {
+        Provider provider = ProviderSelector.getDefault().getProvider(ProviderSelector.CIPHER, ProviderSelector.RSA_RAW,
+                CryptoUtils.getSpongyCastleProvider());
+
+        Cipher cipher = mCipher.get();
+        if(cipher == null || cipher.getProvider() != provider) {
+            cipher = Cipher.getInstance(ProviderSelector.RSA_RAW, provider);
+            mCipher.set(cipher);
+        }
+        return cipher;
+    }
+
+    public static boolean verifySignature(RSAPublicKey pk, byte[] message, byte[] signature) {
+        try {
+            Cipher cipher = getCipher();
+
+            /* Decrypt signature */
+            cipher.init(Cipher.DECRYPT_MODE, pk);
+            byte[] f = cipher.doFinal(signature);
+
+            return verifyF(f, message);
+
+        } catch (GeneralSecurityException e) {
+            Journal.warning("verifySignature: An exception was thrown e=" + e.getMessage());
+        }
+
+        return false;
+    }
+
+    /**
+     * Returns name of hash function for ISO/IEC 10118-3 hash identifier
+     * or null if hash function is not supported.
+     */
+    public static String getDigestAlgorithm(byte hashId) {
+        switch (hashId) {
+            case 0x33: return "SHA-1";
+            case 0x34: return "SHA-256";
+            case 0x35: return "SHA-512";
+            case 0x36: return "SHA-384";
+            case 0x38: return "SHA-224";
+            default:   return null;
+        }
+    }
+
+    /**
+     * Verifies recovered message representative F in a single pass.
+     * Header, padding and trailer are checked in place, recovered message M1
+     * and digest are not copied out of F.
+     */
+    private static boolean verifyF(byte[] f, byte[] message) {
+        if(f == null || f.length < 2) {
+            return false;
+        }
+
+        int k = f.length;
+
+        /* Check trailer ends with nibble == 0xC and get digest identifier (last 1 or 2 bytes) */
+        int t;
+        String digestAlgorithm;
+        if (f[k - 1] == (byte) 0xBC) {
+            t = 1;
+            digestAlgorithm = "SHA-1";
+        }
+        else if (f[k - 1] == (byte) 0xCC) {
+            t = 2;
+            digestAlgorithm = getDigestAlgorithm(f[k - 2]);
+            if(digestAlgorithm == null) {
+                return false;
+            }
+        }
+        else {
+            return false;
+        }
+
+        /* Left most two bits must equal to '01' */
+        if((f[0] & 0xC0) != 0x40) {
+            return false;
+        }
+
+        final boolean partialRecovery = (f[0] & 0x20) != 0;
+
+        /* If padding is present the right most bit of the left most nibble is 0.
+         * Padding consists of nibbles 0xB terminated by nibble 0xA */
+        int padNibbles = 0;
+        if((f[0] & 0x10) == 0) {
+            int n;
+            do {
+                padNibbles++;
+                if(padNibbles >= k * 2) {
+                    return false;
+                }
+                n = getNibble(f, padNibbles);
+            } while (n == 0xB);
+
+            if(n != 0xA) {
+                return false;
+            }
+        }
+
+        if(partialRecovery && padNibbles * 4 >= 9) {
+            return false;
+        }
+
+        MessageDigest md = getDigest(digestAlgorithm);
+        if(md == null) {
+            return false;
+        }
+
+        /* Locate M1 and message digest in F (header nibble + padding nibbles) */
+        int m1Offs = (padNibbles + 1) / 2;
+        int dOffs  = k - t - md.getDigestLength();
+        int m1Len  = dOffs - m1Offs;
+        if(m1Len < 0) {
+            return false;
+        }
+
+        /* Calculate digest of M = M1 | M2 */
+        md.update(f, m1Offs, m1Len);
+        if(partialRecovery) {
+            md.update(message);
+        }
+        else if(!regionEquals(message, 0, f, m1Offs, m1Len) || message.length != m1Len) {
+            return false;
+        }
+
+        /* Verify that calculated digest matches digest in F */
+        byte[] h = md.digest();
+        return regionEquals(h, 0, f, dOffs, h.length);
+    }
+
+    private static int getNibble(byte[] f, int i) {
+        byte b = f[i / 2];
+        return (i % 2 == 0) ? (b >> 4) & 0x0F : b & 0x0F;
+    }
+
+    private static boolean regionEquals(byte[] a, int aOffs, byte[] b, int bOffs, int len) {
+        if(aOffs + len > a.length || bOffs + len > b.length) {
+            return false;
+        }
+
+        int diff = 0;
+        for (int i = 0; i < len; i++) {
+            diff |= a[aOffs + i] ^ b[bOffs + i];
+        }
+        return diff == 0;
+    }
+
+    private static MessageDigest getDigest(String algorithm) {
+        try {
+            return HashService.get(algorithm);
+        } catch (NoSuchAlgorithmException e) {
+            Journal.severe("getDigest: unsupported digest algorithm " + algorithm);
+            return null;
+        }
+    }
+}
@@ -0,0 +1,457 @@
+/*
+* Copyright (c) 2018 ZeroPass
+* Distributed under the MIT software license, see the accompanying
+* file LICENSE or https://opensource.org/licenses/MIT.
+*/
+
+package io.zeropass.trid.crypto;
+
+import org.spongycastle.asn1.ASN1Enumerated;
+import org.spongycastle.asn1.ASN1ObjectIdentifier;
+import org.spongycastle.asn1.ASN1Integer;
+import org.spongycastle.asn1.x500.X500Name;
+import org.spongycastle.asn1.x509.CRLReason;
+import org.spongycastle.asn1.x509.Extension;
+import org.spongycastle.cert.X509CRLEntryHolder;
+import org.spongycastle.cert.X509CRLHolder;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.LongBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.cert.CRLException;
+import java.security.cert.X509CRL;
+import java.security.cert.X509Certificate;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.logging.Logger;
+
+/**
+ * Index of revoked certificate serial numbers per CRL issuer.
+ *
+ * Serial numbers are stored as sorted array of fixed-size keys (KEY_LONGS longs per serial)
+ * and looked up with binary search. A Bloom filter in front of the array answers
+ * most lookups of certificates which are not revoked without touching the array.
+ * Index is updated incrementally with full and delta CRLs and can be saved to a file
+ * which is memory mapped when loaded.
+ *
+ * File format (big-endian):
+ *  header:  magic 'TRRI' | version (2 bytes) | number of issuers (4 bytes)
+ *  issuer:  issuer DER length (4 bytes) | issuer DER | CRL number length (4 bytes) | CRL number |
+ *           number of serials N (4 bytes) | Bloom filter length M in longs (4 bytes) |
+ *           padding to 8 byte boundary | N * KEY_LONGS serial longs | M Bloom filter longs
+ */
+public class RevocationIndex {
+    private static final Logger Journal = Logger.getLogger("io.trid.crypto.revocation");
+
+    private static final int MAGIC   = 0x54525249; // 'TRRI'
+    private static final int VERSION = 1;
+
+    /* Serial number is encoded as 24 byte two's complement big-endian number. RFC 5280 limits serial to 20 bytes */
+    private static final int KEY_LONGS      = 3;
+    private static final int MAX_SERIAL_LEN = KEY_LONGS * 8;
+
+    private static final int BLOOM_BITS_PER_SERIAL = 10;
+    private static final int BLOOM_HASH_COUNT      = 7;
+
+    private final ConcurrentMap<X500Name, Entry> mEntries = new ConcurrentHashMap<>();
+
+    /** Revoked serials of one issuer. Entry is immutable, updates replace the entry. */
+    private static final class Entry {
+        final BigInteger crlNumber; // null if unknown
+        final LongBuffer serials;
+        final int count;
+        final LongBuffer bloom;
+
+        Entry(BigInteger crlNumber, LongBuffer serials, LongBuffer bloom) {
+            this.crlNumber = crlNumber;
+            this.serials = serials;
+            this.count = serials.capacity() / KEY_LONGS;
+            this.bloom = bloom;
+        }
+
+        boolean contains(long k0, long k1, long k2) {
+            if(!bloomContains(bloom, k0, k1, k2)) {
+                return false;
+            }
+
+            int lo = 0;
+            int hi = count - 1;
+            while (lo <= hi) {
+                int mid = (lo + hi) >>> 1;
+                int c = compareKey(serials, mid * KEY_LONGS, k0, k1, k2);
+                if(c < 0) {
+                    lo = mid + 1;
+                } else if(c > 0) {
+                    hi = mid - 1;
+                } else {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    /**
+     * Returns true if certificate with serial number issued by issuer is revoked
+     */
+    public boolean isRevoked(X500Name issuer, BigInteger serial) {
+        Entry e = mEntries.get(issuer);
+        if(e == null) {
+            return false;
+        }
+
+        byte[] b = serial.toByteArray();
+        if(b.length > MAX_SERIAL_LEN) {
+            Journal.warning("isRevoked: serial number too long " + serial.toString(16));
+            return false;
+        }
+
+        long k0 = getKeyLong(b, 0);
+        long k1 = getKeyLong(b, 1);
+        long k2 = getKeyLong(b, 2);
+        return e.contains(k0, k1, k2);
+    }
+
+    public boolean isRevoked(X509Certificate cert) {
+        return isRevoked(X500Name.getInstance(cert.getIssuerX500Principal().getEncoded()), cert.getSerialNumber());
+    }
+
+    /** Returns true if index contains CRL of issuer */
+    public boolean hasIssuer(X500Name issuer) {
+        return mEntries.containsKey(issuer);
+    }
+
+    /** Returns number of revoked serials of issuer */
+    public int getRevokedCount(X500Name issuer) {
+        Entry e = mEntries.get(issuer);
+        return e != null ? e.count : 0;
+    }
+
+    /**
+     * Updates index with CRL. CRL signature must be verified by the caller.
+     * Full CRL replaces the revoked serials of issuer, delta CRL is merged into them.
+     * CRLs older than the one already in the index are ignored.
+     *
+     * @returns true if index was updated
+     */
+    public synchronized boolean update(X509CRL crl) throws CRLException {
+        X509CRLHolder holder;
+        try {
+            holder = new X509CRLHolder(crl.getEncoded());
+        } catch (IOException e) {
+            throw new CRLException("Failed to decode CRL: " + e.getMessage());
+        }
+
+        X500Name issuer = holder.getIssuer();
+        BigInteger crlNumber = getIntegerExtension(holder, Extension.cRLNumber);
+        BigInteger baseCrlNumber = getIntegerExtension(holder, Extension.deltaCRLIndicator);
+        Entry current = mEntries.get(issuer);
+
+        if(current != null && current.crlNumber != null && crlNumber != null && crlNumber.compareTo(current.crlNumber) <= 0) {
+            Journal.info("update: ignoring CRL number " + crlNumber + " of " + issuer + ", already have " + current.crlNumber);
+            return false;
+        }
+
+        /* Collect serials added and removed by CRL */
+        int n = holder.getRevokedCertificates().size();
+        long[] added = new long[n * KEY_LONGS];
+        long[] removed = new long[n * KEY_LONGS];
+        int addedCount = 0;
+        int removedCount = 0;
+        for (Object o : holder.getRevokedCertificates()) {
+            X509CRLEntryHolder entry = (X509CRLEntryHolder) o;
+            byte[] b = entry.getSerialNumber().toByteArray();
+            if(b.length > MAX_SERIAL_LEN) {
+                Journal.warning("update: skipping too long serial number " + entry.getSerialNumber().toString(16));
+                continue;
+            }
+
+            if(isRemoveFromCRL(entry)) {
+                putKey(removed, removedCount++, b);
+            } else {
+                putKey(added, addedCount++, b);
+            }
+        }
+
+        long[] serials = sortKeys(added, addedCount);
+        if(baseCrlNumber != null) {
+            /* Delta CRL */
+            if(current == null || current.crlNumber == null || current.crlNumber.compareTo(baseCrlNumber) < 0) {
+                Journal.warning("update: base CRL " + baseCrlNumber + " of delta CRL is not in index, issuer=" + issuer);
+                return false;
+            }
+
+            serials = mergeKeys(current.serials, serials);
+            serials = subtractKeys(serials, sortKeys(removed, removedCount));
+        }
+
+        mEntries.put(issuer, new Entry(crlNumber, LongBuffer.wrap(serials), LongBuffer.wrap(buildBloom(serials))));
+        return true;
+    }
+
+    /**
+     * Saves index to file
+     */
+    public synchronized void save(File file) throws IOException {
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+        try {
+            out.writeInt(MAGIC);
+            out.writeShort(VERSION);
+            out.writeInt(mEntries.size());
+
+            for (Map.Entry<X500Name, Entry> me : mEntries.entrySet()) {
+                Entry e = me.getValue();
+                byte[] issuer = me.getKey().getEncoded("DER");
+                byte[] crlNumber = e.crlNumber != null ? e.crlNumber.toByteArray() : new byte[0];
+
+                out.writeInt(issuer.length);
+                out.write(issuer);
+                out.writeInt(crlNumber.length);
+                out.write(crlNumber);
+                out.writeInt(e.count);
+                out.writeInt(e.bloom.capacity());
+
+                int pad = (8 - out.size() % 8) % 8;
+                out.write(new byte[pad]);
+
+                for (int i = 0; i < e.serials.capacity(); i++) {
+                    out.writeLong(e.serials.get(i));
+                }
+                for (int i = 0; i < e.bloom.capacity(); i++) {
+                    out.writeLong(e.bloom.get(i));
+                }
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Loads index from file. File is memory mapped and serials are looked up directly in mapped memory.
+     */
+    public static RevocationIndex load(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            MappedByteBuffer buf = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+            if(buf.getInt() != MAGIC || (buf.getShort() & 0xFFFF) != VERSION) {
+                throw new IOException("RevocationIndex: invalid file");
+            }
+
+            RevocationIndex index = new RevocationIndex();
+            int issuers = buf.getInt();
+            for (int i = 0; i < issuers; i++) {
+                byte[] issuer = new byte[buf.getInt()];
+                buf.get(issuer);
+                byte[] crlNumber = new byte[buf.getInt()];
+                buf.get(crlNumber);
+                int count = buf.getInt();
+                int bloomLen = buf.getInt();
+                buf.position(buf.position() + (8 - buf.position() % 8) % 8);
+
+                LongBuffer serials = sliceLongs(buf, count * KEY_LONGS);
+                LongBuffer bloom = sliceLongs(buf, bloomLen);
+                index.mEntries.put(X500Name.getInstance(issuer),
+                        new Entry(crlNumber.length > 0 ? new BigInteger(crlNumber) : null, serials, bloom));
+            }
+            return index;
+
+        } catch (RuntimeException e) {
+            throw new IOException("RevocationIndex: failed to load file e=" + e.getMessage());
+        } finally {
+            /* Mapping stays valid after the file is closed */
+            raf.close();
+        }
+    }
+
+    private static LongBuffer sliceLongs(ByteBuffer buf, int count) {
+        ByteBuffer slice = buf.slice();
+        slice.limit(count * 8);
+        buf.position(buf.position() + count * 8);
+        return slice.asLongBuffer();
+    }
+
+    private static BigInteger getIntegerExtension(X509CRLHolder holder, ASN1ObjectIdentifier oid) {
+        Extension ext = holder.getExtension(oid);
+        return ext != null ? ASN1Integer.getInstance(ext.getParsedValue()).getValue() : null;
+    }
+
+    private static boolean isRemoveFromCRL(X509CRLEntryHolder entry) {
+        Extension ext = entry.getExtension(Extension.reasonCode);
+        if(ext == null) {
+            return false;
+        }
+        return ASN1Enumerated.getInstance(ext.getParsedValue()).getValue().intValue() == CRLReason.removeFromCRL;
+    }
+
+    /* Returns i-th long of serial number encoded as KEY_LONGS big-endian longs (sign extended) */
+    private static long getKeyLong(byte[] serial, int i) {
+        long sign = (serial.length > 0 && serial[0] < 0) ? 0xFF : 0x00;
+        long v = 0;
+        int pad = MAX_SERIAL_LEN - serial.length;
+        for (int j = i * 8; j < i * 8 + 8; j++) {
+            v = (v << 8) | (j < pad ? sign : serial[j - pad] & 0xFF);
+        }
+        return v;
+    }
+
+    private static void putKey(long[] keys, int i, byte[] serial) {
+        for (int j = 0; j < KEY_LONGS; j++) {
+            keys[i * KEY_LONGS + j] = getKeyLong(serial, j);
+        }
+    }
+
+    private static int compareKey(LongBuffer keys, int offs, long k0, long k1, long k2) {
+        int c = compareUnsigned(keys.get(offs), k0);
+        if(c != 0) {
+            return c;
+        }
+        c = compareUnsigned(keys.get(offs + 1), k1);
+        if(c != 0) {
+            return c;
+        }
+        return compareUnsigned(keys.get(offs + 2), k2);
+    }
+
+    private static int compareKey(long[] a, int ai, long[] b, int bi) {
+        for (int j = 0; j < KEY_LONGS; j++) {
+            int c = compareUnsigned(a[ai * KEY_LONGS + j], b[bi * KEY_LONGS + j]);
+            if(c != 0) {
+                return c;
+            }
+        }
+        return 0;
+    }
+
+    private static int compareUnsigned(long a, long b) {
+        a += Long.MIN_VALUE;
+        b += Long.MIN_VALUE;
+        return a < b ? -1 : (a == b ? 0 : 1);
+    }
+
+    /* Sorts count keys and removes duplicates */
+    private static long[] sortKeys(long[] keys, int count) {
+        Integer[] order = new Integer[count];
+        for (int i = 0; i < count; i++) {
+            order[i] = i;
+        }
+
+        final long[] k = keys;
+        Arrays.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b) {
+                return compareKey(k, a, k, b);
+            }
+        });
+
+        long[] sorted = new long[count * KEY_LONGS];
+        int n = 0;
+        for (int i = 0; i < count; i++) {
+            if(n > 0 && compareKey(keys, order[i], sorted, n - 1) == 0) {
+                continue;
+            }
+            System.arraycopy(keys, order[i] * KEY_LONGS, sorted, n * KEY_LONGS, KEY_LONGS);
+            n++;
+        }
+        return Arrays.copyOf(sorted, n * KEY_LONGS);
+    }
+
+    /* Merges sorted keys a and b */
+    private static long[] mergeKeys(LongBuffer a, long[] b) {
+        long[] ak = new long[a.capacity()];
+        for (int i = 0; i < ak.length; i++) {
+            ak[i] = a.get(i);
+        }
+
+        int an = ak.length / KEY_LONGS;
+        int bn = b.length / KEY_LONGS;
+        long[] out = new long[ak.length + b.length];
+        int i = 0, j = 0, n = 0;
+        while (i < an || j < bn) {
+            int c = (i == an) ? 1 : (j == bn) ? -1 : compareKey(ak, i, b, j);
+            if(c <= 0) {
+                System.arraycopy(ak, i * KEY_LONGS, out, n * KEY_LONGS, KEY_LONGS);
+                i++;
+                if(c == 0) {
+                    j++;
+                }
+            } else {
+                System.arraycopy(b, j * KEY_LONGS, out, n * KEY_LONGS, KEY_LONGS);
+                j++;
+            }
+            n++;
+        }
+        return Arrays.copyOf(out, n * KEY_LONGS);
+    }
+
+    /* Returns sorted keys a without sorted keys b */
+    private static long[] subtractKeys(long[] a, long[] b) {
+        int an = a.length / KEY_LONGS;
+        int bn = b.length / KEY_LONGS;
+        long[] out = new long[a.length];
+        int j = 0, n = 0;
+        for (int i = 0; i < an; i++) {
+            while (j < bn && compareKey(b, j, a, i) < 0) {
+                j++;
+            }
+            if(j < bn && compareKey(b, j, a, i) == 0) {
+                continue;
+            }
+            System.arraycopy(a, i * KEY_LONGS, out, n * KEY_LONGS, KEY_LONGS);
+            n++;
+        }
+        return Arrays.copyOf(out, n * KEY_LONGS);
+    }
+
+    private static long[] buildBloom(long[] keys) {
+        int count = keys.length / KEY_LONGS;
+        long[] bloom = new long[Math.max(1, (count * BLOOM_BITS_PER_SERIAL + 63) / 64)];
+        for (int i = 0; i < count; i++) {
+            long h1 = hash(keys[i * KEY_LONGS], keys[i * KEY_LONGS + 1], keys[i * KEY_LONGS + 2]);
+            long h2 = mix64(h1 ^ 0x9E3779B97F4A7C15L) | 1;
+            long m = bloom.length * 64L;
+            for (int k = 0; k < BLOOM_HASH_COUNT; k++) {
+                long bit = ((h1 + k * h2) & Long.MAX_VALUE) % m;
+                bloom[(int) (bit >>> 6)] |= 1L << (bit & 63);
+            }
+        }
+        return bloom;
+    }
+
+    private static boolean bloomContains(LongBuffer bloom, long k0, long k1, long k2) {
+        long h1 = hash(k0, k1, k2);
+        long h2 = mix64(h1 ^ 0x9E3779B97F4A7C15L) | 1;
+        long m = bloom.capacity() * 64L;
+        for (int k = 0; k < BLOOM_HASH_COUNT; k++) {
+            long bit = ((h1 + k * h2) & Long.MAX_VALUE) % m;
+            if((bloom.get((int) (bit >>> 6)) & (1L << (bit & 63))) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static long hash(long k0, long k1, long k2) {
+        return mix64(k0 ^ mix64(k1 ^ mix64(k2)));
+    }
+
+    /* MurmurHash3 finalizer */
+    private static long mix64(long h) {
+        h ^= h >>> 33;
+        h *= 0xFF51AFD7ED558CCDL;
+        h ^= h >>> 33;
+        h *= 0xC4CEB9FE1A85EC53L;
+        h ^= h >>> 33;
+        return h;
+    }
+}
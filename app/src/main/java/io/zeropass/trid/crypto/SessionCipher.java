@@ -31,4 +31,16 @@ public abstract class SessionCipher {
      */
     public abstract ApduResult decrypt(ApduResult result);
 
+    /**
+     * Prepares encryption of predicted next command ahead of time.
+     * Default implementation does nothing.
+     */
+    public void prewrap(ApduCmd next) {}
+
+    /**
+     * Releases session resources and wipes key material.
+     * Default implementation does nothing.
+     */
+    public void close() {}
+
 }
@@ -0,0 +1,184 @@
+/*
+* Copyright (c) 2018 ZeroPass
+* Distributed under the MIT software license, see the accompanying
+* file LICENSE or https://opensource.org/licenses/MIT.
+*/
+
+package io.zeropass.trid.passport;
+
+import android.support.annotation.VisibleForTesting;
+
+import java.security.GeneralSecurityException;
+import java.security.InvalidParameterException;
+import java.util.Arrays;
+
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.SecretKey;
+
+import io.zeropass.trid.Utils;
+import io.zeropass.trid.crypto.CryptoUtils;
+import io.zeropass.trid.crypto.PassportSessionKey;
+
+/**
+ * Basic Access Control key material prepared ahead of time (e.g. as soon as MRZ data is entered).
+ * Key seed, K.enc and K.mac are derived, RND.IFD and K.IFD are drawn, cipher and MAC engines are keyed
+ * and the first block of E.IFD is encrypted in advance. While ICC is in the field only the rest of E.IFD,
+ * M.IFD and verification of ICC's response are computed.
+ *
+ * Note: RND.IFD and K.IFD are drawn once, so an instance can be used for one BAC only.
+ * see ICAO 9303-11 appendix D.3
+ */
+public class BacKeyMaterial {
+
+    private final String mDocumentNumber;
+    private final String mDateOfBirth;
+    private final String mDateOfExpiry;
+
+    private final SecretKey mEncKey;
+    private final SecretKey mMacKey;
+    private final Cipher mEncCipher;
+    private final Cipher mDecCipher;
+    private final Mac mMac;
+
+    private final byte[] mRndIFD;
+    private final byte[] mKIFD;
+    private final byte[] mEIFDHead; // E.IFD of first block (RND.IFD)
+    private boolean mUsed = false;
+
+    public BacKeyMaterial(String documentNumber, String dateOfBirth, String dateOfExpiry) throws GeneralSecurityException, InvalidParameterException {
+        this(documentNumber, dateOfBirth, dateOfExpiry,
+             CryptoUtils.getRandomBytes(PassportTools.RND_IFD_LEN),
+             CryptoUtils.getRandomBytes(PassportTools.KIFD_LEN));
+    }
+
+    @VisibleForTesting
+    BacKeyMaterial(String documentNumber, String dateOfBirth, String dateOfExpiry, byte[] rndIFD, byte[] kIFD) throws GeneralSecurityException, InvalidParameterException {
+        if(rndIFD.length != PassportTools.RND_IFD_LEN || kIFD.length != PassportTools.KIFD_LEN) {
+            throw new InvalidParameterException("BacKeyMaterial: RND.IFD or K.IFD invalid len");
+        }
+
+        mDocumentNumber = PassportTools.formatDocumentNumber(documentNumber);
+        mDateOfBirth = dateOfBirth;
+        mDateOfExpiry = dateOfExpiry;
+
+        byte[] keySeed = PassportTools.computeBAC_KeySeed(mDocumentNumber, dateOfBirth, dateOfExpiry);
+        mEncKey = PassportTools.deriveKey(keySeed, PassportTools.ENC_MODE);
+        mMacKey = PassportTools.deriveKey(keySeed, PassportTools.MAC_MODE);
+        mRndIFD = rndIFD;
+        mKIFD = kIFD;
+
+        /* Key cipher and mac engines */
+        SecretKey desKey = PassportTools.expandDesKey(mEncKey);
+        mEncCipher = PassportTools.getCipher();
+        mDecCipher = PassportTools.getCipher();
+        mMac = PassportTools.getMac();
+        if(mEncCipher == null || mDecCipher == null || mMac == null) {
+            throw new GeneralSecurityException("BacKeyMaterial: cipher or mac engine not available");
+        }
+
+        mEncCipher.init(Cipher.ENCRYPT_MODE, desKey, PassportTools.ZERO_IV);
+        mDecCipher.init(Cipher.DECRYPT_MODE, desKey, PassportTools.ZERO_IV);
+        mMac.init(mMacKey);
+
+        /* S = RND.IFD | RND.IC | K.IFD; first CBC block doesn't depend on RND.IC */
+        mEIFDHead = mEncCipher.update(mRndIFD);
+    }
+
+    /* Returns true if all MRZ fields needed for BAC are complete */
+    public static boolean isComplete(String documentNumber, String dateOfBirth, String dateOfExpiry) {
+        return documentNumber != null && !documentNumber.isEmpty() && documentNumber.length() <= 9
+                && isDate(dateOfBirth) && isDate(dateOfExpiry);
+    }
+
+    private static boolean isDate(String date) {
+        if(date == null || date.length() != 6) {
+            return false;
+        }
+
+        for (int i = 0; i < date.length(); i++) {
+            if(!Character.isDigit(date.charAt(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /* Returns true if key material was prepared from given MRZ data */
+    public boolean matches(String documentNumber, String dateOfBirth, String dateOfExpiry) {
+        try {
+            return mDocumentNumber.equals(PassportTools.formatDocumentNumber(documentNumber))
+                    && mDateOfBirth.equals(dateOfBirth) && mDateOfExpiry.equals(dateOfExpiry);
+        } catch (InvalidParameterException e) {
+            return false;
+        }
+    }
+
+    public synchronized boolean isUsed() {
+        return mUsed;
+    }
+
+    public SecretKey getEncKey() {
+        return mEncKey;
+    }
+
+    public SecretKey getMacKey() {
+        return mMacKey;
+    }
+
+    public byte[] getRndIFD() {
+        return mRndIFD;
+    }
+
+    public byte[] getKIFD() {
+        return mKIFD;
+    }
+
+    /**
+     * Calculate E.IFD and M.IFD from RND.IC
+     * Can be called only once per instance.
+     */
+    public synchronized ApduEAData generateApduEAData(byte[] rndIC) throws GeneralSecurityException {
+        if(mUsed) {
+            throw new IllegalStateException("BacKeyMaterial was already used");
+        }
+        mUsed = true;
+
+        if(rndIC == null || rndIC.length != PassportTools.RND_IC_LEN) {
+            throw new InvalidParameterException("RND.IC invalid len");
+        }
+
+        byte[] tail = new byte[PassportTools.RND_IC_LEN + PassportTools.KIFD_LEN];
+        System.arraycopy(rndIC, 0, tail, 0, rndIC.length);
+        System.arraycopy(mKIFD, 0, tail, rndIC.length, mKIFD.length);
+
+        byte[] eIFD = mEIFDHead == null ? mEncCipher.doFinal(tail) : Utils.join(mEIFDHead, mEncCipher.doFinal(tail));
+        if(eIFD.length != ApduEAData.E_LEN) {
+            throw new GeneralSecurityException("Invalid E.IFD len");
+        }
+
+        return new ApduEAData(eIFD, mMac.doFinal(eIFD));
+    }
+
+    /* Verify M.IC of External Authenticate response */
+    public synchronized boolean verify(ApduEAData result) {
+        return Arrays.equals(mMac.doFinal(result.E), result.M);
+    }
+
+    /**
+     * Decrypt E.IC, verify RND.IFD and calculate session key
+     *
+     * @returns session key or null if E.IC is invalid
+     */
+    public synchronized PassportSessionKey calculateSessionKey(byte[] rndIC, ApduEAData result) throws GeneralSecurityException {
+        byte[] r = mDecCipher.doFinal(result.E);
+
+        /* R = RND.IC | RND.IFD | K.IC, verify received RND.IFD */
+        if(!Utils.memcmp(mRndIFD, r, PassportTools.RND_IC_LEN)) {
+            return null;
+        }
+
+        byte[] kIC = Utils.copyOut(r, PassportTools.RND_IC_LEN + PassportTools.RND_IFD_LEN, PassportTools.KEY_LEN);
+        return PassportTools.calculateSessionKey(rndIC, mRndIFD, mKIFD, kIC);
+    }
+}
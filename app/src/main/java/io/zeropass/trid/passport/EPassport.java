@@ -9,23 +9,44 @@ package io.zeropass.trid.passport;
 import java.io.ByteArrayInputStream;
 import java.io.DataInputStream;
 import java.io.IOException;
+import java.security.GeneralSecurityException;
 import java.security.InvalidParameterException;
+import java.security.KeyPair;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.text.SimpleDateFormat;
 import java.security.PublicKey;
+import java.security.cert.X509Certificate;
 import javax.crypto.SecretKey;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.logging.Logger;
 
 import io.zeropass.trid.Utils;
+import io.zeropass.trid.com.ApduResult;
 import io.zeropass.trid.com.ComProvider;
 import io.zeropass.trid.crypto.CryptoUtils;
+import io.zeropass.trid.crypto.CscaTrustStore;
+import io.zeropass.trid.crypto.EphemeralKeyPool;
+import io.zeropass.trid.crypto.HashService;
 import io.zeropass.trid.crypto.PassportSessionKey;
+import io.zeropass.trid.passport.lds.ChipAuthenticationInfo;
+import io.zeropass.trid.passport.lds.ChipAuthenticationPublicKeyInfo;
+import io.zeropass.trid.passport.lds.ActiveAuthenticationInfo;
+import io.zeropass.trid.passport.lds.COMFile;
+import io.zeropass.trid.passport.lds.DG1File;
+import io.zeropass.trid.passport.lds.DataGroups;
 import io.zeropass.trid.passport.lds.LDSFile;
+import io.zeropass.trid.passport.lds.SODFile;
+import io.zeropass.trid.passport.lds.SecurityInfos;
+import io.zeropass.trid.smartcard.ISO7816;
 import io.zeropass.trid.smartcard.SmartCardError;
 import io.zeropass.trid.tlv.TLVUtils;
 
 
 /*/
-* Interface for reading files from ePassport and using BAC and AA protocols.
+* Interface for reading files from ePassport and using BAC, CA and AA protocols.
 *
 * Refs:
 * https://www.icao.int/publications/pages/publication.aspx?docnum=9303
@@ -42,8 +63,21 @@ public class EPassport extends PassportApdu {
 
 
     private PublicKey mPublicKey; // ePassport's public key
+    private SecurityInfos mSecurityInfos = null; // SecurityInfos from DG14
+    private SODFile mSOD = null; // Document Security Object
+    private boolean mSODFailed = false; // EF.SOD could not be read or parsed
+    private COMFile mCOM = null; // EF.COM
+    private SecurityInfos mCardAccess = null; // SecurityInfos from EF.CardAccess
+    private boolean mCardAccessRead = false; // EF.CardAccess was already read or is not present
+    private boolean mSecureMessaging = false; // secure messaging session is established
+    private ProtocolProfile mProfile = null; // protocol profile of this document kind
+    private String mIssuingState = null;
+    private String mDocumentCode = null;
+    private final Map<Integer, Boolean> mDGHashMatches = new HashMap<>(); // results of DG hash comparison with SOD
 
 
+    private static final byte[] MF_FID = { 0x3F, 0x00 };
+
     private static final SimpleDateFormat mSdf = new SimpleDateFormat("yyMMdd");
 
     private static final Logger Journal = Logger.getLogger("io.trid.passport");
@@ -64,8 +98,10 @@ public class EPassport extends PassportApdu {
 
         PublicKey pk = null;
         try {
-            selectFile(LDSFile.EF_COM_FID);
-            selectFile(LDSFile.EF_SOD_FID);
+            if(!isDataGroupPresent(DataGroups.DG15)) {
+                Journal.info("readPublicKey: DG15 is not present");
+                return null;
+            }
 
             // TODO: try reading by SFI
             byte[] dg15File = readFile(LDSFile.EF_DG15_FID);
@@ -89,6 +125,324 @@ public class EPassport extends PassportApdu {
         return pk;
     }
 
+    /*
+    *  Returns SecurityInfos stored in DG14 or null if DG14 is not present.
+    *  DG14 is read from ICC only once.
+    */
+    public SecurityInfos readSecurityInfos() throws IOException {
+        if(mSecurityInfos != null) {
+            return mSecurityInfos;
+        }
+
+        if(!isDataGroupPresent(DataGroups.DG14)) {
+            Journal.info("readSecurityInfos: DG14 is not present");
+            return null;
+        }
+
+        byte[] dg14File;
+        try {
+            dg14File = readFile(LDSFile.EF_DG14_FID);
+        } catch (SmartCardError e) {
+            Journal.warning("readSecurityInfos: DG14 could not be read e=" + e.getMessage());
+            return null;
+        }
+
+        try {
+            mSecurityInfos = SecurityInfos.fromDG14(dg14File);
+        } catch (IOException e) {
+            Journal.warning("readSecurityInfos: failed to parse DG14 e=" + e.getMessage());
+            return null;
+        }
+
+        return mSecurityInfos;
+    }
+
+    /*
+    *  Returns SecurityInfos stored in EF.CardAccess or null if EF.CardAccess is not present.
+    *  EF.CardAccess is read from master file in plain, eMRTD application is selected again afterwards.
+    *  EF.CardAccess is read from ICC only once and only before access control (see doBAC).
+    *  @throws IOException if eMRTD application could not be selected again
+    */
+    public SecurityInfos readCardAccess() throws IOException {
+        if(mCardAccessRead) {
+            return mCardAccess;
+        }
+
+        if(mSecureMessaging) {
+            Journal.warning("readCardAccess: EF.CardAccess can be read only before access control");
+            return null;
+        }
+
+        mCardAccessRead = true;
+        byte[] cardAccess = null;
+        ApduResult res = select(0x00, 0x0C, MF_FID);
+        if(res != null && res.statusCode() == ISO7816.SW_NO_ERROR) {
+            try {
+                cardAccess = super.readFile(LDSFile.EF_CARD_ACCESS_FID, null);
+            } catch (SmartCardError e) {
+                Journal.info("readCardAccess: EF.CardAccess could not be read e=" + e.getMessage());
+            }
+        }
+        else {
+            Journal.info("readCardAccess: master file could not be selected");
+        }
+
+        if(!selectEMRTD()) {
+            throw new IOException("readCardAccess: failed to select eMRTD application");
+        }
+
+        if(cardAccess == null) {
+            return null;
+        }
+
+        try {
+            mCardAccess = SecurityInfos.fromBytes(cardAccess);
+        } catch (IOException e) {
+            Journal.warning("readCardAccess: failed to parse EF.CardAccess e=" + e.getMessage());
+            return null;
+        }
+
+        return mCardAccess;
+    }
+
+    /*
+    *  Returns protocol profile for documents of given issuing state and document code.
+    *  Cached profile is returned if there is one, otherwise profile is created from
+    *  EF.CardAccess and DG14 and cached for the next document of the same kind.
+    *  Profile is then used by doChipAuthentication and getActiveAuthenticationDigestAlgorithm.
+    *  Note: DG14 can be read only after access control (BAC) was done.
+    */
+    public ProtocolProfile getProtocolProfile(String issuingState, String documentCode) throws IOException {
+        mIssuingState = issuingState;
+        mDocumentCode = documentCode;
+        ProtocolProfile profile = ProtocolProfile.lookup(issuingState, documentCode);
+        if(profile != null) {
+            mProfile = profile;
+            return profile;
+        }
+
+        SecurityInfos dg14 = readSecurityInfos();
+        profile = ProtocolProfile.from(readCardAccess(), dg14);
+        Journal.info("getProtocolProfile: " + issuingState + "/" + documentCode + " " + profile);
+
+        /* Profile without DG14 is cached only if DG14 is known to be absent */
+        if(dg14 != null || (readCOM() != null && !isDataGroupPresent(DataGroups.DG14))) {
+            ProtocolProfile.remember(issuingState, documentCode, profile);
+        }
+        mProfile = profile;
+        return profile;
+    }
+
+    /*
+    *  Returns digest algorithm of Active Authentication signature.
+    *  Algorithm is taken from protocol profile if there is one, otherwise from DG14.
+    *  If ActiveAuthenticationInfo is not present default algorithm is returned.
+    */
+    public String getActiveAuthenticationDigestAlgorithm() throws IOException {
+        if(mProfile != null) {
+            return mProfile.supportsActiveAuthentication() ?
+                    mProfile.getActiveAuthenticationDigestAlgorithm() : ActiveAuthenticationInfo.DEFAULT_DIGEST_ALGORITHM;
+        }
+
+        SecurityInfos securityInfos = readSecurityInfos();
+        if(securityInfos != null && securityInfos.getActiveAuthenticationInfo() != null) {
+            return securityInfos.getActiveAuthenticationInfo().getDigestAlgorithm();
+        }
+        return ActiveAuthenticationInfo.DEFAULT_DIGEST_ALGORITHM;
+    }
+
+    /*
+    *  Returns DG1 or null if DG1 could not be read.
+    */
+    public DG1File readDG1() throws IOException {
+        try {
+            return DG1File.fromBytes(readFile(LDSFile.EF_DG1_FID, null));
+        } catch (SmartCardError e) {
+            Journal.warning("readDG1: DG1 could not be read e=" + e.getMessage());
+            return null;
+        }
+    }
+
+    /*
+    *  Returns EF.COM or null if EF.COM could not be read.
+    *  EF.COM is read from ICC only once.
+    */
+    public COMFile readCOM() throws IOException {
+        if(mCOM != null) {
+            return mCOM;
+        }
+
+        try {
+            mCOM = COMFile.fromBytes(super.readFile(LDSFile.EF_COM_FID, null));
+        } catch (SmartCardError e) {
+            Journal.warning("readCOM: EF.COM could not be read e=" + e.getMessage());
+            return null;
+        } catch (IOException e) {
+            Journal.warning("readCOM: failed to parse EF.COM e=" + e.getMessage());
+            return null;
+        }
+
+        return mCOM;
+    }
+
+    /*
+    *  Returns false if data group is not listed in EF.COM.
+    *  If EF.COM could not be read data group is assumed to be present.
+    */
+    public boolean isDataGroupPresent(int dgNumber) throws IOException {
+        COMFile com = readCOM();
+        return com == null || com.isPresent(dgNumber);
+    }
+
+    /*
+    *  Returns Document Security Object or null if EF.SOD could not be read.
+    *  EF.SOD is read from ICC only once.
+    */
+    public SODFile readSOD() throws IOException {
+        if(mSOD != null || mSODFailed) {
+            return mSOD;
+        }
+
+        try {
+            mSOD = SODFile.fromBytes(super.readFile(LDSFile.EF_SOD_FID, null));
+        } catch (SmartCardError e) {
+            Journal.warning("readSOD: EF.SOD could not be read e=" + e.getMessage());
+            mSODFailed = true;
+            return null;
+        } catch (IOException e) {
+            Journal.warning("readSOD: failed to parse EF.SOD e=" + e.getMessage());
+            mSODFailed = true;
+            return null;
+        }
+
+        return mSOD;
+    }
+
+    /*
+    *  Reads file from ICC. Data groups are hashed while being read
+    *  and compared to the hash values stored in EF.SOD.
+    *  Data group which can't be checked against EF.SOD (no EF.SOD, no hash in EF.SOD,
+    *  unsupported digest algorithm or digest given by caller) is recorded as hash mismatch.
+    */
+    @Override
+    public byte[] readFile(short fileId, MessageDigest digest) throws IOException, SmartCardError {
+        int dgNumber = getDataGroupNumber(fileId);
+        if(dgNumber == 0) {
+            return super.readFile(fileId, digest);
+        }
+        if(digest != null) {
+            Journal.warning("readFile: DG" + dgNumber + " is hashed by caller and can't be checked against EF.SOD");
+            return recordUnchecked(dgNumber, super.readFile(fileId, digest));
+        }
+
+        SODFile sod = readSOD();
+        byte[] dgHash = sod != null ? sod.getDataGroupHash(dgNumber) : null;
+        if(dgHash == null) {
+            Journal.warning("readFile: no hash of DG" + dgNumber + " in EF.SOD");
+            return recordUnchecked(dgNumber, super.readFile(fileId, null));
+        }
+
+        try {
+            digest = HashService.get(sod.getDigestAlgorithm());
+        } catch (NoSuchAlgorithmException e) {
+            Journal.warning("readFile: unsupported SOD digest algorithm " + sod.getDigestAlgorithm());
+            return recordUnchecked(dgNumber, super.readFile(fileId, null));
+        }
+
+        byte[] file = super.readFile(fileId, digest);
+        if(file != null) {
+            boolean match = MessageDigest.isEqual(digest.digest(), dgHash);
+            if(!match) {
+                Journal.warning("readFile: hash of DG" + dgNumber + " doesn't match hash in EF.SOD");
+            }
+            mDGHashMatches.put(dgNumber, match);
+        }
+
+        return file;
+    }
+
+    private byte[] recordUnchecked(int dgNumber, byte[] file) {
+        if(file != null) {
+            mDGHashMatches.put(dgNumber, false);
+        }
+        return file;
+    }
+
+    /*
+    *  Verifies integrity of EF.SOD and data groups read so far: Document Signer signature
+    *  of EF.SOD must be valid and every data group read must be covered by EF.SOD and match its hash.
+    *  Note: this is not Passive Authentication, Document Signer certificate is not verified
+    *        against CSCA so a forged EF.SOD with self-made DS certificate passes this check.
+    */
+    public boolean verifySODIntegrity() throws IOException {
+        return checkSOD() != null;
+    }
+
+    /*
+    *  Does Passive Authentication as specified in ICAO 9303-11 section 5.1.
+    *  Document Signer signature of EF.SOD is verified, DS certificate must chain to
+    *  CSCA certificate in trustStore and every data group read so far must be covered
+    *  by EF.SOD and match its hash. At least one data group must be read.
+    */
+    public boolean doPassiveAuthentication(CscaTrustStore trustStore) throws IOException {
+        if(trustStore == null) {
+            throw new InvalidParameterException("doPassiveAuthentication: trustStore is null");
+        }
+
+        X509Certificate dsCert = checkSOD();
+        if(dsCert == null) {
+            return false;
+        }
+
+        if(!trustStore.isTrusted(dsCert)) {
+            Journal.warning("Passive Authentication failed: DS certificate is not trusted");
+            return false;
+        }
+
+        return true;
+    }
+
+    /* Verifies EF.SOD signature and DG hashes, returns DS certificate or null if check failed */
+    private X509Certificate checkSOD() throws IOException {
+        SODFile sod = readSOD();
+        if(sod == null) {
+            Journal.warning("Passive Authentication failed: EF.SOD could not be read");
+            return null;
+        }
+
+        X509Certificate dsCert;
+        try {
+            dsCert = sod.getDocumentSignerCertificate();
+        } catch (GeneralSecurityException e) {
+            Journal.warning("Passive Authentication failed: invalid DS certificate e=" + e.getMessage());
+            return null;
+        }
+
+        if(dsCert == null || !sod.verifySignature(dsCert)) {
+            Journal.warning("Passive Authentication failed: invalid EF.SOD signature");
+            return null;
+        }
+
+        if(mDGHashMatches.isEmpty()) {
+            Journal.warning("Passive Authentication failed: no data group was read");
+            return null;
+        }
+
+        for (Map.Entry<Integer, Boolean> e : mDGHashMatches.entrySet()) {
+            if(!e.getValue()) {
+                Journal.warning("Passive Authentication failed: DG" + e.getKey() + " is not covered by EF.SOD or hash doesn't match");
+                return null;
+            }
+        }
+
+        return dsCert;
+    }
+
+    /* Returns data group number for file id or 0 if file is not data group */
+    private static int getDataGroupNumber(short fileId) {
+        return DataGroups.dataGroupOfFid(fileId);
+    }
+
     int readLength(byte[] data ) {
         int length = 0;
         try {
@@ -120,67 +474,41 @@ public class EPassport extends PassportApdu {
 
         return length;
     }
-    /*
-    *  Function generate answer to getChallange response and
-    *  calculates session key from response.
-    *  specified in document ICAO 9303-11 appendix d.3
-    *
-    *  @returns kIC
-    */
-    private PassportSessionKey generateSessionKey(SecretKey encKey, SecretKey macKey, byte[] rndIC, byte[] rndIFD, byte[] kIFD) throws IOException {
-        Utils.printDebug(Journal.getName(), String.format("generateSessionKey: generating E.IFD and M.IFD from:\nRND.IC=%s\nRND.IFD=%s\nK.IFD=%s\nK.ENC=%s\nK.MAC=%s",
-                Utils.hexToStr(rndIC), Utils.hexToStr(rndIFD), Utils.hexToStr(kIFD), Utils.hexToStr(encKey.getEncoded()), Utils.hexToStr(macKey.getEncoded())));
-
-        ApduEAData eaData = PassportTools.generateApduEAData(encKey, macKey, rndIC, rndIFD, kIFD);
-        if(eaData == null) {
-            Journal.warning("generateSessionKey: Failed to generate EA data");
-            return null;
-        }
-
-        /* Authenticate data and retrieve K.IC */
-        ApduEAData result = externalAuthenticate(eaData);
-        if(result == null) {
-            return  null;
-        }
-
-        /* Verify result */
-        if(!result.verify(macKey)) {
-            Journal.warning("generateSessionKey: Received EA data checksum mismatch!");
-            return null;
-        }
-
-        /* Extract K.IC from E.IC */
-        byte[] kIC = PassportTools.extractKicFromEic(encKey, result, rndIFD);
-        return PassportTools.calculateSessionKey(rndIC, rndIFD, kIFD, kIC);
-    }
-
     /*
     *  Function does Basic Access Control (BAC) as specified in document ICAO 9303-11
     *  Note: BAC might become deprecated in the future. Instead PACE should be used
     *        to establish session. see: section 4.1 ++https://www.icao.int/publications/Documents/9303_p11_cons_en.pdf
     */
     public  boolean doBAC(String documentNumber, String dateOfBirth, String dateOfExpiry) throws IOException, InvalidParameterException {
-        documentNumber = PassportTools.formatDocumentNumber(documentNumber);
         //TODO verifySignature dates
 //        dateOfBirth = mSdf.format(dateOfBirth);
 //        dateOfExpiry = mSdf.format(dateOfExpiry);
         Utils.printDebug(Journal.getName(), "Executing BAC with: passportNumber:" + documentNumber +
                 " dateOfBirth:" + dateOfBirth + " dateOfExpiry:" + dateOfExpiry);
 
-        byte[] keySeed = PassportTools.computeBAC_KeySeed(documentNumber, dateOfBirth, dateOfExpiry);
-        SecretKey encKey = PassportTools.deriveKey(keySeed, PassportTools.ENC_MODE);
-        SecretKey macKey = PassportTools.deriveKey(keySeed, PassportTools.MAC_MODE);
-
-        Utils.printDebug(Journal.getName(), "Calculated BA key: "+ Utils.hexToStr(encKey.getEncoded()));
-        Utils.printDebug(Journal.getName(), "Calculated BA mac key: "+ Utils.hexToStr(macKey.getEncoded()));
+        BacKeyMaterial keyMaterial;
+        try {
+            keyMaterial = new BacKeyMaterial(documentNumber, dateOfBirth, dateOfExpiry);
+        } catch (GeneralSecurityException e) {
+            Journal.severe("doBAC: failed to prepare BAC key material e=" + e.getMessage());
+            return false;
+        }
 
-        return doBAC(encKey, macKey);
+        return doBAC(keyMaterial);
     }
 
    /*
+   *  Does BAC with key material prepared in advance. Only GET CHALLENGE, E.IFD/M.IFD,
+   *  EXTERNAL AUTHENTICATE and verification of ICC's response are done here.
    *  See appendix D.3 of ICAO 9303-11
    */
-    private boolean doBAC(SecretKey encKey, SecretKey macKey) throws IOException {
+    public boolean doBAC(BacKeyMaterial keyMaterial) throws IOException {
+        /* EF.CardAccess is not accessible in plain after secure messaging is established */
+        readCardAccess();
+
+        Utils.printDebug(Journal.getName(), "Calculated BA key: "+ Utils.hexToStr(keyMaterial.getEncKey().getEncoded()));
+        Utils.printDebug(Journal.getName(), "Calculated BA mac key: "+ Utils.hexToStr(keyMaterial.getMacKey().getEncoded()));
+
         Utils.printDebug(Journal.getName(), "Requesting challenge from IC");
         byte[] rndIC = getChallenge();
         if(rndIC == null) {
@@ -190,12 +518,8 @@ public class EPassport extends PassportApdu {
 
         Utils.printDebug(Journal.getName(), "Received challenge from IC: RND.IC=" + Utils.hexToStr(rndIC));
 
-        /* Generate random num and key */
-        byte[] rndIFD = CryptoUtils.getRandomBytes(PassportTools.RND_IFD_LEN);
-        byte[] kIFD   = CryptoUtils.getRandomBytes(PassportTools.KIFD_LEN);
-
         /* Generate session key with IC */
-        PassportSessionKey ks = generateSessionKey(encKey, macKey, rndIC, rndIFD, kIFD);
+        PassportSessionKey ks = generateSessionKey(keyMaterial, rndIC);
         if(ks == null) {
             Journal.warning("BAC failed.");
             return false;
@@ -209,4 +533,149 @@ public class EPassport extends PassportApdu {
         setSessionKey(ks);
         return true;
     }
+
+    /*
+    *  Function generate answer to getChallange response and
+    *  calculates session key from response.
+    *  specified in document ICAO 9303-11 appendix d.3
+    *
+    *  @returns session key
+    */
+    private PassportSessionKey generateSessionKey(BacKeyMaterial keyMaterial, byte[] rndIC) throws IOException {
+        Utils.printDebug(Journal.getName(), String.format("generateSessionKey: generating E.IFD and M.IFD from:\nRND.IC=%s\nRND.IFD=%s\nK.IFD=%s",
+                Utils.hexToStr(rndIC), Utils.hexToStr(keyMaterial.getRndIFD()), Utils.hexToStr(keyMaterial.getKIFD())));
+
+        try {
+            ApduEAData eaData = keyMaterial.generateApduEAData(rndIC);
+
+            /* Authenticate data and retrieve K.IC */
+            ApduEAData result = externalAuthenticate(eaData);
+            if(result == null) {
+                return  null;
+            }
+
+            /* Verify result */
+            if(!keyMaterial.verify(result)) {
+                Journal.warning("generateSessionKey: Received EA data checksum mismatch!");
+                return null;
+            }
+
+            /* Extract K.IC from E.IC and calculate session key */
+            PassportSessionKey ks = keyMaterial.calculateSessionKey(rndIC, result);
+            if(ks == null) {
+                Journal.warning("generateSessionKey: decrypted RND.IFD mismatch");
+            }
+            return ks;
+        }
+        catch (GeneralSecurityException e) {
+            Journal.warning("generateSessionKey: Failed to generate EA data e=" + e.getMessage());
+            return null;
+        }
+    }
+
+    /*
+    *  Function does Chip Authentication (CA) as specified in document ICAO 9303-11 section 6.2
+    *  ICC's static key agreement key is read from DG14 and after successful key agreement
+    *  secure messaging is restarted with new session keys (AES if ICC supports it).
+    *  Note: BAC session has to be established before calling this function.
+    */
+    public boolean doChipAuthentication() throws IOException {
+        Journal.info("Executing Chip Authentication");
+
+        if(mProfile != null && !mProfile.supportsChipAuthentication()) {
+            Journal.info("doChipAuthentication: Chip Authentication is not supported by ICC");
+            return false;
+        }
+
+        SecurityInfos securityInfos = readSecurityInfos();
+        if(securityInfos == null) {
+            return false;
+        }
+
+        /* Select chip authentication key, use protocol from profile if there is one otherwise prefer key which can be used with AES */
+        ChipAuthenticationPublicKeyInfo pkInfo = null;
+        ChipAuthenticationInfo caInfo = null;
+        byte[] caProtocol = mProfile != null ? mProfile.getChipAuthenticationProtocol() : null;
+        if(caProtocol != null) {
+            for (ChipAuthenticationPublicKeyInfo pki : securityInfos.getChipAuthenticationPublicKeyInfos()) {
+                ChipAuthenticationInfo cai = securityInfos.getChipAuthenticationInfo(pki.getKeyId());
+                if(cai != null && Arrays.equals(caProtocol, cai.getProtocol())) {
+                    pkInfo = pki;
+                    caInfo = cai;
+                    break;
+                }
+            }
+
+            if(pkInfo == null) {
+                Journal.info("doChipAuthentication: protocol from profile not found in DG14");
+                forgetProfile();
+            }
+        }
+
+        if(pkInfo == null) {
+            for (ChipAuthenticationPublicKeyInfo pki : securityInfos.getChipAuthenticationPublicKeyInfos()) {
+                ChipAuthenticationInfo cai = securityInfos.getChipAuthenticationInfo(pki.getKeyId());
+                if(pkInfo == null || (cai != null && "AES".equals(cai.getCipherAlgorithm()))) {
+                    pkInfo = pki;
+                    caInfo = cai;
+                }
+            }
+        }
+
+        if(pkInfo == null || pkInfo.getPublicKey() == null) {
+            Journal.warning("doChipAuthentication: no valid ChipAuthenticationPublicKeyInfo found in DG14");
+            return false;
+        }
+
+        /* If there is no ChipAuthenticationInfo, ICC supports only CA with 3DES */
+        String cipherAlg = caInfo != null ? caInfo.getCipherAlgorithm() : "DESede";
+        int keyLen = caInfo != null ? caInfo.getKeyLength() : PassportTools.KEY_LEN;
+
+        try {
+            PublicKey iccKey = pkInfo.getPublicKey();
+            KeyPair kp = EphemeralKeyPool.getDefault().take(iccKey);
+            byte[] keyData = CryptoUtils.getPublicKeyData(kp.getPublic());
+
+            /* Send ephemeral public key to ICC */
+            if("AES".equals(cipherAlg)) {
+                if(!mseSetAT(caInfo.getProtocol(), pkInfo.getKeyId()) || generalAuthenticateKeyAgreement(keyData) == null) {
+                    Journal.warning("Chip Authentication failed.");
+                    forgetProfile();
+                    return false;
+                }
+            }
+            else if(!mseSetKAT(keyData, pkInfo.getKeyId())) {
+                Journal.warning("Chip Authentication failed.");
+                forgetProfile();
+                return false;
+            }
+
+            /* Derive new session keys from shared secret */
+            byte[] secret = CryptoUtils.computeSharedSecret(kp.getPrivate(), iccKey);
+            SecretKey ksEnc = PassportTools.deriveKey(secret, cipherAlg, keyLen, PassportTools.ENC_MODE);
+            SecretKey ksMac = PassportTools.deriveKey(secret, cipherAlg, keyLen, PassportTools.MAC_MODE);
+
+            Journal.info("Chip Authentication succeeded. Restarting secure messaging with " + cipherAlg + " session keys.");
+            setSessionKey(new PassportSessionKey(ksEnc, ksMac, 0));
+            return true;
+        }
+        catch (GeneralSecurityException e) {
+            Journal.severe("doChipAuthentication: An exception was thrown e=" + e.getMessage());
+            return false;
+        }
+    }
+
+    @Override
+    protected void setSessionKey(PassportSessionKey key) {
+        super.setSessionKey(key);
+        mSecureMessaging = true;
+    }
+
+    /* Removes cached protocol profile of this document kind, e.g. when preferred protocol failed */
+    private void forgetProfile() {
+        if(mProfile != null) {
+            ProtocolProfile.forget(mIssuingState, mDocumentCode);
+            mProfile = null;
+        }
+    }
 }
@@ -8,9 +8,12 @@ package io.zeropass.trid.passport;
 
 
 import java.io.IOException;
+import java.io.InputStream;
 import java.security.InvalidParameterException;
+import java.security.MessageDigest;
 import java.util.logging.Logger;
 
+import io.zeropass.trid.crypto.PassportAESSessionCipher;
 import io.zeropass.trid.crypto.PassportSessionCipher;
 import io.zeropass.trid.crypto.PassportSessionKey;
 import io.zeropass.trid.passport.lds.LDSFile;
@@ -21,25 +24,41 @@ import io.zeropass.trid.com.ComProvider;
 import io.zeropass.trid.smartcard.SmartCard;
 import io.zeropass.trid.smartcard.SmartCardError;
 import io.zeropass.trid.tlv.TLVUtils;
+import io.zeropass.trid.tlv.TlvWriter;
 
 public class PassportApdu extends SmartCard{
     private static final Logger Journal = Logger.getLogger("io.trid.passport.apdu");
     private static int DEFAULT_READ_LEN = 8;
 
+    /* Max number of bytes read with one READ BINARY command, so protected response fits in a short APDU */
+    private static final int MAX_READ_LEN = 0xDF;
+
+    /*
+    *  Max number of bytes read with one READ BINARY with odd INS (offsets above SmartCard.MAX_SHORT_OFFSET).
+    *  Response data is encapsulated in DO53 (3 bytes header), with AES secure messaging
+    *  208 + 3 bytes are padded to 224 bytes of cryptogram, so DO87 | DO99 | DO8E is 242 bytes.
+    */
+    private static final int MAX_ODD_READ_LEN = 0xD0;
+
 
     public PassportApdu(ComProvider provider) throws IOException, PassportError {
         super(provider);
     }
 
     protected void setSessionKey(PassportSessionKey key) {
-        setSession(new PassportSessionCipher(key));
+        if(key.isAES()) {
+            setSession(new PassportAESSessionCipher(key));
+        }
+        else {
+            setSession(new PassportSessionCipher(key));
+        }
     }
 
     /* Selects eMRTD Application
     * see ICAO 9303-10 */
     public boolean selectEMRTD() throws IOException {
         ApduResult res = select(0x04, 0x0c, LDSFile.EMRTD_AID);
-        return res.statusCode() == ISO7816.SW_NO_ERROR;
+        return res != null && res.statusCode() == ISO7816.SW_NO_ERROR;
     }
 
 
@@ -56,54 +75,106 @@ public class PassportApdu extends SmartCard{
     }
 
     public byte[] readFile(short fileId) throws IOException, SmartCardError {
+        return readFile(fileId, null);
+    }
+
+    /**
+     * Reads file and updates digest with file content as chunks are received from ICC.
+     * @param digest digest to update or null
+     */
+    public byte[] readFile(short fileId, MessageDigest digest) throws IOException, SmartCardError {
         selectFile(fileId);
+        return readSelectedFile("FID=" + fileId, digest);
+    }
 
-        int le = DEFAULT_READ_LEN;
-        ApduResult result = readBinary(0, le);
-        if (result == null) {
-            Journal.warning("Failed to read file, FID=" + fileId);
-            return null;
-        }
 
-        checkFileOperationResult(result);
-        le = TLVUtils.getRawDataLengthFromFragment(result.data()) - le;
+    /**
+     * Selects file and returns stream of its content.
+     * File is read from ICC in chunks as the stream is consumed, so content can be parsed
+     * (see TlvPullParser) while the rest of file is still being transferred.
+     * No other command may be sent to ICC until the stream is consumed or closed.
+     * @param digest digest to update with file content or null
+     */
+    public InputStream openFile(short fileId, MessageDigest digest) throws IOException, SmartCardError {
+        selectFile(fileId);
 
-        byte[] frag = result.data();
-        result = readBinary(DEFAULT_READ_LEN, le);
+        String fileRef = "FID=" + fileId;
+        ApduResult result = readBinary(0, DEFAULT_READ_LEN);
         if (result == null) {
-            Journal.warning("Failed to read file, FID=" + fileId);
+            Journal.warning("Failed to read file, " + fileRef);
             return null;
         }
 
         checkFileOperationResult(result);
-        return Utils.join(frag, result.data());
+        byte[] frag = result.data();
+        return new FileStream(fileRef, frag, TLVUtils.getRawDataLengthFromFragment(frag), digest);
     }
 
-
     public byte[] readFileBySFI(byte sfi) throws IOException, SmartCardError {
         if((sfi >> 7 & 0x1) != 1) {
             throw new InvalidParameterException("readFileBySFI: Invalid SFI!");
         }
 
+        return readSelectedFile("SFI=" + sfi, null);
+    }
+
+    /**
+     * Reads file in chunks of at most MAX_READ_LEN bytes (MAX_ODD_READ_LEN above offset 0x7FFF).
+     * Each READ BINARY command hints the next chunk so the next command
+     * can be wrapped while ICC is processing the current one.
+     * If digest is not null it's updated with each chunk.
+     */
+    private byte[] readSelectedFile(String fileRef, MessageDigest digest) throws IOException, SmartCardError {
         int le = DEFAULT_READ_LEN;
         ApduResult result = readBinary(0, le);
         if (result == null) {
-            Journal.warning("Failed to read file, SFI=" + sfi);
+            Journal.warning("Failed to read file, " + fileRef);
             return null;
         }
 
         checkFileOperationResult(result);
-        le = TLVUtils.getRawDataLengthFromFragment(result.data()) - le;
-
         byte[] frag = result.data();
-        result = readBinary(DEFAULT_READ_LEN, le);
-        if (result == null) {
-            Journal.warning("Failed to read file, SFI=" + sfi);
-            return null;
+        int fileLen = TLVUtils.getRawDataLengthFromFragment(frag);
+        if(fileLen <= frag.length) {
+            if(digest != null) {
+                digest.update(frag, 0, fileLen);
+            }
+            return Utils.copyOut(frag, 0, fileLen);
         }
 
-        checkFileOperationResult(result);
-        return Utils.join(frag, result.data());
+        if(digest != null) {
+            digest.update(frag);
+        }
+
+        byte[] file = new byte[fileLen];
+        System.arraycopy(frag, 0, file, 0, frag.length);
+
+        int offset = frag.length;
+        le = readLen(offset, fileLen - offset);
+        while (offset < fileLen) {
+            int nextLe = readLen(offset + le, fileLen - offset - le);
+            result = readBinaryChunk(offset, le, nextLe);
+            if (result == null) {
+                Journal.warning("Failed to read file, " + fileRef);
+                return null;
+            }
+
+            checkFileOperationResult(result);
+            byte[] chunk = result.data();
+            if(chunk == null || chunk.length == 0) {
+                throw new SmartCardError("Unexpected end of file", result.statusCode());
+            }
+
+            int len = Math.min(chunk.length, fileLen - offset);
+            System.arraycopy(chunk, 0, file, offset, len);
+            if(digest != null) {
+                digest.update(chunk, 0, len);
+            }
+            offset += len;
+            le = (len == le) ? nextLe : readLen(offset, fileLen - offset);
+        }
+
+        return file;
     }
 
 
@@ -165,6 +236,192 @@ public class PassportApdu extends SmartCard{
         }
     }
 
+    /*
+    *  Sends MSE:Set KAT command to ICC (Chip Authentication with 3DES)
+    *  see ICAO 9303-11 section 6.2.4.1
+    *
+    *  @param keyData ephemeral public key data
+    *  @param keyId key reference of ICC's chip authentication key or null
+    */
+    protected boolean mseSetKAT(byte[] keyData, byte[] keyId) throws IOException {
+        TlvWriter w = new TlvWriter(keyData.length + 16);
+        w.write(0x91, keyData);
+        if(keyId != null) {
+            w.write(0x84, keyId);
+        }
+
+        ApduResult result = manageSecurityEnvironment(0x41, 0xA6, w.toByteArray());
+        if(result == null || result.statusCode() != ISO7816.SW_NO_ERROR) {
+            Journal.warning("mseSetKAT: ICC returned status code: " + (result == null ? "none" : result.statusCode()));
+            return false;
+        }
+        return true;
+    }
+
+    /*
+    *  Sends MSE:Set AT command to ICC (Chip Authentication with AES)
+    *  see ICAO 9303-11 section 6.2.4.2
+    *
+    *  @param protocol OID of chip authentication protocol
+    *  @param keyId key reference of ICC's chip authentication key or null
+    */
+    protected boolean mseSetAT(byte[] protocol, byte[] keyId) throws IOException {
+        TlvWriter w = new TlvWriter();
+        w.write(0x80, protocol);
+        if(keyId != null) {
+            w.write(0x84, keyId);
+        }
+
+        ApduResult result = manageSecurityEnvironment(0x41, 0xA4, w.toByteArray());
+        if(result == null || result.statusCode() != ISO7816.SW_NO_ERROR) {
+            Journal.warning("mseSetAT: ICC returned status code: " + (result == null ? "none" : result.statusCode()));
+            return false;
+        }
+        return true;
+    }
+
+    /*
+    *  Sends GENERAL AUTHENTICATE command with ephemeral public key to ICC
+    *  see ICAO 9303-11 section 6.2.4.2
+    *
+    *  @returns dynamic authentication data (tag 0x7C) returned by ICC or null on error
+    */
+    protected byte[] generalAuthenticateKeyAgreement(byte[] keyData) throws IOException {
+        TlvWriter w = new TlvWriter(keyData.length + 8);
+        w.startConstructed(0x7C);
+        w.write(0x80, keyData);
+        w.end();
+
+        ApduResult result = generalAuthenticate(w.toByteArray(), 256);
+        if(result == null || result.statusCode() != ISO7816.SW_NO_ERROR) {
+            Journal.warning("generalAuthenticate: ICC returned status code: " + (result == null ? "none" : result.statusCode()));
+            return null;
+        }
+
+        return result.data() == null ? new byte[0] : result.data();
+    }
+
+    /**
+     * Stream of selected file which reads the next chunk from ICC when the previous one is consumed.
+     * Skipped content is not read from ICC unless digest is updated.
+     */
+    private class FileStream extends InputStream {
+        private final String mFileRef;
+        private final int mFileLen;
+        private final MessageDigest mDigest;
+
+        /* Offset of the first byte after current chunk */
+        private int mOffset;
+        private byte[] mChunk;
+        private int mChunkPos = 0;
+        private int mChunkLen;
+
+        FileStream(String fileRef, byte[] frag, int fileLen, MessageDigest digest) {
+            mFileRef  = fileRef;
+            mFileLen  = fileLen;
+            mDigest   = digest;
+            mChunk    = frag;
+            mChunkLen = Math.min(frag.length, fileLen);
+            mOffset   = mChunkLen;
+            if(digest != null) {
+                digest.update(frag, 0, mChunkLen);
+            }
+        }
+
+        @Override
+        public int read() throws IOException {
+            if(mChunkPos == mChunkLen && !fill()) {
+                return -1;
+            }
+            return mChunk[mChunkPos++] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if(len == 0) {
+                return 0;
+            }
+            if(mChunkPos == mChunkLen && !fill()) {
+                return -1;
+            }
+
+            int n = Math.min(len, mChunkLen - mChunkPos);
+            System.arraycopy(mChunk, mChunkPos, b, off, n);
+            mChunkPos += n;
+            return n;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            if(n <= 0) {
+                return 0;
+            }
+
+            long skipped = Math.min(n, mChunkLen - mChunkPos);
+            mChunkPos += skipped;
+            if(skipped < n && mDigest == null) {
+                /* Move file offset, skipped content is never read from ICC */
+                int s = (int) Math.min(n - skipped, mFileLen - mOffset);
+                mOffset += s;
+                skipped += s;
+            }
+            else if(skipped == 0 && fill()) {
+                return skip(n);
+            }
+            return skipped;
+        }
+
+        @Override
+        public int available() {
+            return mChunkLen - mChunkPos;
+        }
+
+        @Override
+        public void close() {
+            mOffset   = mFileLen;
+            mChunkPos = mChunkLen;
+        }
+
+        /* Reads next chunk from ICC, returns false at the end of file */
+        private boolean fill() throws IOException {
+            if(mOffset >= mFileLen) {
+                return false;
+            }
+
+            int le = readLen(mOffset, mFileLen - mOffset);
+            int nextLe = readLen(mOffset + le, mFileLen - mOffset - le);
+            ApduResult result = readBinaryChunk(mOffset, le, nextLe);
+            if (result == null) {
+                throw new IOException("Failed to read file, " + mFileRef);
+            }
+
+            try {
+                checkFileOperationResult(result);
+            } catch (SmartCardError e) {
+                throw new IOException("Failed to read file, " + mFileRef + " sw=" + e.getSW(), e);
+            }
+
+            byte[] chunk = result.data();
+            if(chunk == null || chunk.length == 0) {
+                throw new IOException("Unexpected end of file, " + mFileRef);
+            }
+
+            mChunk    = chunk;
+            mChunkPos = 0;
+            mChunkLen = Math.min(chunk.length, mFileLen - mOffset);
+            mOffset  += mChunkLen;
+            if(mDigest != null) {
+                mDigest.update(chunk, 0, mChunkLen);
+            }
+            return true;
+        }
+    }
+
+    /* Returns length of READ BINARY chunk at offset, remaining is number of unread bytes of file */
+    private static int readLen(int offset, int remaining) {
+        return Math.min(offset > MAX_SHORT_OFFSET ? MAX_ODD_READ_LEN : MAX_READ_LEN, remaining);
+    }
+
     private static void checkFileOperationResult(ApduResult result) throws SmartCardError {
         short sw = result.statusCode();
         switch (sw) {
@@ -6,13 +6,14 @@
 
 package io.zeropass.trid.passport;
 
-import java.io.ByteArrayOutputStream;
 import java.io.UnsupportedEncodingException;
+import java.nio.charset.Charset;
 import java.security.InvalidAlgorithmParameterException;
 import java.security.InvalidKeyException;
 import java.security.InvalidParameterException;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
 import java.util.logging.Logger;
 
 import javax.crypto.BadPaddingException;
@@ -26,6 +27,7 @@ import javax.crypto.spec.SecretKeySpec;
 
 import io.zeropass.trid.Utils;
 import io.zeropass.trid.crypto.CryptoUtils;
+import io.zeropass.trid.crypto.HashService;
 import io.zeropass.trid.crypto.PassportSessionKey;
 
 public class PassportTools {
@@ -65,16 +67,18 @@ public class PassportTools {
         catch (NoSuchPaddingException e) { return null; }
     }
 
-    private static SecretKey expandDesKey(SecretKey key) {
-        if(key.getEncoded().length != 24) {
-            byte[] key1 = key.getEncoded();
+    static SecretKey expandDesKey(SecretKey key) {
+        byte[] key1 = key.getEncoded();
+        if(key1.length != 24) {
             byte[] key2 = new byte[24];
 
             System.arraycopy(key1, 0, key2, 0, key1.length);
             System.arraycopy(key1, 0, key2, key1.length, key2.length - key1.length);
             key = new SecretKeySpec(key2, "DESede");
+            Arrays.fill(key2, (byte) 0);
         }
 
+        Arrays.fill(key1, (byte) 0);
         return key;
     }
 
@@ -195,32 +199,39 @@ public class PassportTools {
      * https://www.icao.int/publications/Documents/9303_p3_cons_en.pdf
      */
     public static char calculateMrzCheckDigit(String str) {
-
+        byte[] chars = str == null ? new byte[]{ } : str.getBytes(Charset.forName("UTF-8"));
         try {
-            byte[] chars = str == null ? new byte[]{ } : str.getBytes("UTF-8");
-            int[] weights = { 7, 3, 1 };
-            int result = 0;
-            for (int i = 0; i < chars.length; i++) {
-                result = (result + weights[i % 3] * decodeMRZDigit(chars[i])) % 10;
-            }
-            String checkDigitString = Integer.toString(result);
-            if (checkDigitString.length() != 1) {  // Sanity check
-                throw new IllegalStateException("Failed to compute check digit.");
-            }
-
-            char checkDigit = (char)checkDigitString.getBytes("UTF-8")[0];
-            return checkDigit;
+            return (char) ('0' + calculateMrzCheckDigit(chars, 0, chars.length));
         }
         catch (NumberFormatException nfe) {
             Journal.severe("Exception: " + nfe.getMessage());
             throw new IllegalStateException("Error in computing check digit.");
         }
-        catch (Exception e) {
-            Journal.severe("Exception: " + e.getMessage());
-            throw new IllegalArgumentException(e.toString());
+    }
+
+    /**
+     * Calculates check digit over MRZ characters data[offs, offs + len) without decoding them to string.
+     * @returns value of check digit 0 - 9
+     * @throws NumberFormatException if data contains character which is not valid MRZ character
+     */
+    public static int calculateMrzCheckDigit(byte[] data, int offs, int len) throws NumberFormatException {
+        return calculateMrzWeightedSum(data, offs, len, 0) % 10;
+    }
+
+    /**
+     * Returns weighted sum of MRZ characters data[offs, offs + len) which start at given position of checked sequence.
+     * Check digit of sequence split in several ranges is sum of all ranges modulo 10.
+     */
+    public static int calculateMrzWeightedSum(byte[] data, int offs, int len, int position) throws NumberFormatException {
+        int result = 0;
+        for (int i = 0; i < len; i++) {
+            result += MRZ_WEIGHTS[(position + i) % 3] * decodeMRZDigit(data[offs + i]);
         }
+        return result;
     }
 
+    private static final int[] MRZ_WEIGHTS = { 7, 3, 1 };
+
     /**
      * Decodes char to numeric representation of MRZ character.
      * Needed for calculating MRZ check digit.
@@ -277,7 +288,7 @@ public class PassportTools {
     * */
     public static byte[] computeKeySeed(String documentNumber, char dnCheckDigit, String dateOfBirth, char dobCheckDigit, String dateOfExpiry, char doeCheckDigit, boolean truncated) {
         try {
-            MessageDigest sha1 = CryptoUtils.getSha1();
+            MessageDigest sha1 = HashService.get(HashService.SHA1);
             sha1.update(documentNumber.getBytes("UTF-8"));
             sha1.update(new byte[]{(byte)dnCheckDigit});
             sha1.update(dateOfBirth.getBytes("UTF-8"));
@@ -296,6 +307,7 @@ public class PassportTools {
             }
         }
         catch (UnsupportedEncodingException e){ return null;}
+        catch (NoSuchAlgorithmException e){ return null;}
     }
 
 
@@ -327,8 +339,7 @@ public class PassportTools {
      */
     public static SecretKey deriveKey(byte[] keySeed, int mode) {
         try {
-            MessageDigest sha1 = MessageDigest.getInstance("SHA-1");
-            sha1.reset();
+            MessageDigest sha1 = HashService.get(HashService.SHA1);
             sha1.update(keySeed);
             sha1.update(new byte[] { 0x00, 0x00, 0x00, (byte)mode });
 
@@ -341,6 +352,29 @@ public class PassportTools {
         catch (NoSuchAlgorithmException e) {return null;}
     }
 
+    /**
+     *  KDF function to derive session keys from shared secret established by Chip Authentication
+     *  as specified in ICAO 9303-11 section 9.7.1
+     *
+     *  @param cipherAlg "DESede" or "AES"
+     *  @param keyLen key length in bytes (16 for 3DES, 16, 24 or 32 for AES)
+     */
+    public static SecretKey deriveKey(byte[] keySeed, String cipherAlg, int keyLen, int mode) {
+        if("DESede".equals(cipherAlg)) {
+            return deriveKey(keySeed, mode);
+        }
+
+        try {
+            MessageDigest md = HashService.get(keyLen == 16 ? HashService.SHA1 : HashService.SHA256);
+            md.update(keySeed);
+            md.update(new byte[] { 0x00, 0x00, 0x00, (byte)mode });
+
+            byte[] keyBytes = Utils.copyOut(md.digest(), 0, keyLen);
+            return new SecretKeySpec(keyBytes, cipherAlg);
+        }
+        catch (NoSuchAlgorithmException e) {return null;}
+    }
+
     /** Computes send sequence counter (SCC)
      * see: ICAO 9303-11 section 9.8.2 */
     public static long calculateSCC(byte[] rndIC, byte[] rndIFD) {
@@ -465,15 +499,10 @@ public class PassportTools {
     /** Copied from https://github.com/E3V3A/JMRTD/blob/master/jmrtd/src/org/jmrtd/Util.java**/
     public static byte[] pad(/*@ non_null */ byte[] in, int offset, int length, int blockSize) {
         int blockSizeInBytes = blockSize / 8;
-        ByteArrayOutputStream out = new ByteArrayOutputStream();
-        out.write(in, offset, length);
-        out.write((byte)0x80);
-
-        while (out.size() % blockSizeInBytes != 0) {
-            out.write((byte)0x00);
-        }
-
-        return out.toByteArray();
+        byte[] out = new byte[(length / blockSizeInBytes + 1) * blockSizeInBytes];
+        System.arraycopy(in, offset, out, 0, length);
+        out[length] = (byte)0x80;
+        return out;
     }
 
     public static byte[] pad(/*@ non_null */ byte[] in) {
@@ -0,0 +1,217 @@
+/*
+* Copyright (c) 2018 ZeroPass
+* Distributed under the MIT software license, see the accompanying
+* file LICENSE or https://opensource.org/licenses/MIT.
+*/
+
+package io.zeropass.trid.passport;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.logging.Logger;
+
+import io.zeropass.trid.Utils;
+import io.zeropass.trid.passport.lds.ActiveAuthenticationInfo;
+import io.zeropass.trid.passport.lds.ChipAuthenticationInfo;
+import io.zeropass.trid.passport.lds.PACEInfo;
+import io.zeropass.trid.passport.lds.SecurityInfos;
+
+/**
+ * Protocols supported by ICC and the preferred variant of each, derived from
+ * SecurityInfos in EF.CardAccess and DG14.
+ * Profiles are cached per issuing state and document code, so the next document
+ * of the same kind can use the preferred protocols before its SecurityInfos are read.
+ *
+ * Example:
+ * <pre>
+ *     DG1File dg1 = passport.readDG1();
+ *     passport.getProtocolProfile(dg1.getField(DG1File.ISSUING_STATE), dg1.getField(DG1File.DOCUMENT_CODE));
+ *     passport.doChipAuthentication(); // uses preferred CA protocol, DG14 isn't read if CA is not supported
+ * </pre>
+ */
+public final class ProtocolProfile {
+    private static final Logger Journal = Logger.getLogger("io.trid.passport.profile");
+
+    private static final int MAX_CACHED_PROFILES = 64;
+
+    private static final Map<String, ProtocolProfile> mCache = new LinkedHashMap<String, ProtocolProfile>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, ProtocolProfile> eldest) {
+            return size() > MAX_CACHED_PROFILES;
+        }
+    };
+
+    private final byte[] mPaceProtocol;   // OID content bytes or null
+    private final int mPaceParameterId;
+    private final boolean mChipAuthentication;
+    private final byte[] mCaProtocol;     // OID content bytes or null for CA with 3DES
+    private final String mAaDigestAlgorithm;
+    private final boolean mTerminalAuthentication;
+
+    private ProtocolProfile(byte[] paceProtocol, int paceParameterId, boolean ca, byte[] caProtocol,
+                            String aaDigestAlgorithm, boolean ta) {
+        mPaceProtocol           = paceProtocol;
+        mPaceParameterId        = paceParameterId;
+        mChipAuthentication     = ca;
+        mCaProtocol             = caProtocol;
+        mAaDigestAlgorithm      = aaDigestAlgorithm;
+        mTerminalAuthentication = ta;
+    }
+
+    /**
+     * Creates profile from SecurityInfos.
+     * @param cardAccess SecurityInfos from EF.CardAccess or null
+     * @param dg14 SecurityInfos from DG14 or null
+     */
+    public static ProtocolProfile from(SecurityInfos cardAccess, SecurityInfos dg14) {
+        PACEInfo pace = null;
+        if(cardAccess != null) {
+            for (PACEInfo pi : cardAccess.getPACEInfos()) {
+                if(pace == null || paceRank(pi) > paceRank(pace)) {
+                    pace = pi;
+                }
+            }
+        }
+
+        boolean ca = false;
+        ChipAuthenticationInfo cai = null;
+        ActiveAuthenticationInfo aai = null;
+        boolean ta = false;
+        if(dg14 != null) {
+            ca = !dg14.getChipAuthenticationPublicKeyInfos().isEmpty();
+            for (ChipAuthenticationInfo i : dg14.getChipAuthenticationInfos()) {
+                if(cai == null || caRank(i) > caRank(cai)) {
+                    cai = i;
+                }
+            }
+            aai = dg14.getActiveAuthenticationInfo();
+            ta  = dg14.getTerminalAuthenticationInfo() != null;
+        }
+
+        return new ProtocolProfile(
+            pace != null ? pace.getProtocol() : null,
+            pace != null ? pace.getParameterId() : -1,
+            ca,
+            ca && cai != null ? cai.getProtocol() : null,
+            aai != null ? aai.getDigestAlgorithm() : null,
+            ta
+        );
+    }
+
+    /** Returns cached profile for documents of given kind or null if there is none */
+    public static ProtocolProfile lookup(String issuingState, String documentCode) {
+        synchronized (mCache) {
+            return mCache.get(cacheKey(issuingState, documentCode));
+        }
+    }
+
+    /** Caches profile for documents of given kind */
+    public static void remember(String issuingState, String documentCode, ProtocolProfile profile) {
+        synchronized (mCache) {
+            ProtocolProfile old = mCache.put(cacheKey(issuingState, documentCode), profile);
+            if(old != null && !old.equals(profile)) {
+                Journal.info("remember: protocol profile of " + issuingState + "/" + documentCode + " has changed");
+            }
+        }
+    }
+
+    /** Removes cached profile, e.g. when preferred protocol failed */
+    public static void forget(String issuingState, String documentCode) {
+        synchronized (mCache) {
+            mCache.remove(cacheKey(issuingState, documentCode));
+        }
+    }
+
+    public static void clearCache() {
+        synchronized (mCache) {
+            mCache.clear();
+        }
+    }
+
+    public boolean supportsPACE() {
+        return mPaceProtocol != null;
+    }
+
+    /** Returns OID content bytes of preferred PACE protocol or null if PACE is not supported */
+    public byte[] getPaceProtocol() {
+        return mPaceProtocol;
+    }
+
+    /** Returns standardized domain parameter id of preferred PACE protocol or -1 */
+    public int getPaceParameterId() {
+        return mPaceParameterId;
+    }
+
+    public boolean supportsChipAuthentication() {
+        return mChipAuthentication;
+    }
+
+    /**
+     * Returns OID content bytes of preferred Chip Authentication protocol
+     * or null if CA is not supported or ICC supports only CA with 3DES.
+     */
+    public byte[] getChipAuthenticationProtocol() {
+        return mCaProtocol;
+    }
+
+    public boolean supportsActiveAuthentication() {
+        return mAaDigestAlgorithm != null;
+    }
+
+    /** Returns digest algorithm of Active Authentication signature or null if ActiveAuthenticationInfo isn't present */
+    public String getActiveAuthenticationDigestAlgorithm() {
+        return mAaDigestAlgorithm;
+    }
+
+    public boolean supportsTerminalAuthentication() {
+        return mTerminalAuthentication;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if(!(o instanceof ProtocolProfile)) {
+            return false;
+        }
+
+        ProtocolProfile p = (ProtocolProfile) o;
+        return Arrays.equals(mPaceProtocol, p.mPaceProtocol) && mPaceParameterId == p.mPaceParameterId
+            && mChipAuthentication == p.mChipAuthentication && Arrays.equals(mCaProtocol, p.mCaProtocol)
+            && (mAaDigestAlgorithm == null ? p.mAaDigestAlgorithm == null : mAaDigestAlgorithm.equals(p.mAaDigestAlgorithm))
+            && mTerminalAuthentication == p.mTerminalAuthentication;
+    }
+
+    @Override
+    public int hashCode() {
+        return (mPaceProtocol != null ? mPaceProtocol[mPaceProtocol.length - 1] : 0) * 31 + mPaceParameterId;
+    }
+
+    @Override
+    public String toString() {
+        return "ProtocolProfile(pace=" + (mPaceProtocol != null ? Utils.hexToStr(mPaceProtocol) : "none")
+            + ", ca=" + (mChipAuthentication ? (mCaProtocol != null ? Utils.hexToStr(mCaProtocol) : "3DES") : "none")
+            + ", aa=" + (mAaDigestAlgorithm != null ? mAaDigestAlgorithm : "none")
+            + ", ta=" + mTerminalAuthentication + ")";
+    }
+
+    /* Chip authentication mapping is preferred as it replaces CA, then generic mapping which is the most widely supported */
+    private static int paceRank(PACEInfo pi) {
+        int mapping;
+        switch (pi.getMapping()) {
+            case PACEInfo.MAPPING_CAM: mapping = 3; break;
+            case PACEInfo.MAPPING_GM:  mapping = 2; break;
+            case PACEInfo.MAPPING_IM:  mapping = 1; break;
+            default: return 0;
+        }
+        return mapping * 1000 + (pi.isECDH() ? 100 : 0) + pi.getKeyLength();
+    }
+
+    /* AES session is preferred over 3DES, ECDH over DH */
+    private static int caRank(ChipAuthenticationInfo cai) {
+        return ("AES".equals(cai.getCipherAlgorithm()) ? 1000 : 0) + (cai.isECDH() ? 100 : 0) + cai.getKeyLength();
+    }
+
+    private static String cacheKey(String issuingState, String documentCode) {
+        return issuingState + "/" + documentCode;
+    }
+}
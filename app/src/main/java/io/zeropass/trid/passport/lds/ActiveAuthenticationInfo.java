@@ -0,0 +1,81 @@
+/*
+* Copyright (c) 2018 ZeroPass
+* Distributed under the MIT software license, see the accompanying
+* file LICENSE or https://opensource.org/licenses/MIT.
+*/
+
+package io.zeropass.trid.passport.lds;
+
+import io.zeropass.trid.Utils;
+
+/**
+ * ActiveAuthenticationInfo ::= SEQUENCE {
+ *    protocol           id-AA,
+ *    version            INTEGER, -- MUST be 1
+ *    signatureAlgorithm OBJECT IDENTIFIER
+ * }
+ * see ICAO 9303-11 section 9.2.7
+ */
+public class ActiveAuthenticationInfo extends SecurityInfo {
+
+    /* Default digest algorithm, if signature algorithm is unknown */
+    public static final String DEFAULT_DIGEST_ALGORITHM = "SHA-1";
+
+    private final int mVersion;
+    private final byte[] mSignatureAlgorithm;
+
+    ActiveAuthenticationInfo(SecurityInfo si) {
+        super(si);
+        if(getOptionalData() == null || getOptionalData()[0] != 0x06) {
+            throw new IllegalArgumentException("ActiveAuthenticationInfo: missing signatureAlgorithm");
+        }
+
+        mVersion = SecurityInfos.decodeInteger(getRequiredData());
+        mSignatureAlgorithm = SecurityInfos.getValue(getOptionalData());
+    }
+
+    public int getVersion() {
+        return mVersion;
+    }
+
+    /* Returns signature algorithm OID content bytes */
+    public byte[] getSignatureAlgorithm() {
+        return mSignatureAlgorithm;
+    }
+
+    /**
+     * Returns name of digest algorithm used by ICC to create ECDSA signature
+     * (e.g. "SHA-256"). For unknown signature algorithm SHA-1 is returned.
+     */
+    public String getDigestAlgorithm() {
+        byte[] sa = mSignatureAlgorithm;
+        byte last = sa[sa.length - 1];
+
+        if(isOID(SecurityInfoOID.ECDSA_PLAIN_SIGNATURES)) {
+            switch (last) {
+                case 0x01: return "SHA-1";
+                case 0x02: return "SHA-224";
+                case 0x03: return "SHA-256";
+                case 0x04: return "SHA-384";
+                case 0x05: return "SHA-512";
+            }
+        }
+        else if(isOID(SecurityInfoOID.ECDSA_WITH_SHA2)) {
+            switch (last) {
+                case 0x01: return "SHA-224";
+                case 0x02: return "SHA-256";
+                case 0x03: return "SHA-384";
+                case 0x04: return "SHA-512";
+            }
+        }
+        else if(sa.length == SecurityInfoOID.ECDSA_WITH_SHA1.length && Utils.memcmp(SecurityInfoOID.ECDSA_WITH_SHA1, sa)) {
+            return "SHA-1";
+        }
+
+        return DEFAULT_DIGEST_ALGORITHM;
+    }
+
+    private boolean isOID(byte[] prefix) {
+        return mSignatureAlgorithm.length == prefix.length + 1 && Utils.memcmp(prefix, mSignatureAlgorithm);
+    }
+}
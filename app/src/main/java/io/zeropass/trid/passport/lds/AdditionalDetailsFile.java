@@ -0,0 +1,187 @@
+/*
+* Copyright (c) 2018 ZeroPass
+* Distributed under the MIT software license, see the accompanying
+* file LICENSE or https://opensource.org/licenses/MIT.
+*/
+
+package io.zeropass.trid.passport.lds;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+
+import io.zeropass.trid.tlv.TlvIndex;
+
+/**
+ * Base of data groups with tag list (DG11, DG12).
+ * Only the tag list is decoded when file is parsed. Data elements are located through TlvIndex
+ * on first access and decoded only when requested, binary elements are returned as views of the file.
+ *
+ * DG ::= [APPLICATION n] { 5C tag list, data elements ... }
+ * see ICAO 9303-10 section 4.7.11
+ */
+public abstract class AdditionalDetailsFile {
+
+    public static final int TAG_LIST_TAG = 0x5C;
+    public static final int COUNT_TAG    = 0x02;
+    public static final int CONTENT_TAG  = 0xA0;
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private final TlvIndex mIndex;
+    private final int mRoot;
+    private final int[] mTags;
+
+    /**
+     * @param data DG file, data is not copied and must not be modified while file is used
+     * @param dgTag tag of data group
+     * @throws IOException if file or tag list is malformed
+     */
+    AdditionalDetailsFile(byte[] data, int dgTag) throws IOException {
+        if(data == null) {
+            throw new IOException(getClass().getSimpleName() + ": no data");
+        }
+
+        mIndex = new TlvIndex(data);
+        if(mIndex.childCount(TlvIndex.ROOT) != 1 || mIndex.tag(mIndex.child(TlvIndex.ROOT, 0)) != dgTag) {
+            throw new IOException(getClass().getSimpleName() + ": invalid data group tag");
+        }
+
+        mRoot = mIndex.child(TlvIndex.ROOT, 0);
+        int list = mIndex.findChild(mRoot, TAG_LIST_TAG);
+        if(list < 0) {
+            throw new IOException(getClass().getSimpleName() + ": missing tag list");
+        }
+        mTags = parseTagList(data, mIndex.valueOffset(list), mIndex.length(list));
+    }
+
+    /** Returns tags listed in tag list */
+    public int[] getTagList() {
+        return mTags.clone();
+    }
+
+    /** Returns true if tag is listed in tag list */
+    public boolean isListed(int tag) {
+        for (int t : mTags) {
+            if(t == tag) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /** Returns true if data element with tag is present */
+    public boolean hasField(int tag) throws IOException {
+        return mIndex.findChild(mRoot, tag) >= 0;
+    }
+
+    /** Returns offset of value of data element in file or -1 if element is not present */
+    public int fieldOffset(int tag) throws IOException {
+        int node = mIndex.findChild(mRoot, tag);
+        return node >= 0 ? mIndex.valueOffset(node) : -1;
+    }
+
+    /** Returns length of value of data element or -1 if element is not present */
+    public int fieldLength(int tag) throws IOException {
+        int node = mIndex.findChild(mRoot, tag);
+        return node >= 0 ? mIndex.length(node) : -1;
+    }
+
+    /** Returns read-only view of value of data element or null if element is not present */
+    public ByteBuffer getFieldBuffer(int tag) throws IOException {
+        int node = mIndex.findChild(mRoot, tag);
+        if(node < 0) {
+            return null;
+        }
+        return ByteBuffer.wrap(mIndex.data(), mIndex.valueOffset(node), mIndex.length(node)).slice().asReadOnlyBuffer();
+    }
+
+    /** Returns stream of value of data element or null if element is not present */
+    public InputStream openField(int tag) throws IOException {
+        int node = mIndex.findChild(mRoot, tag);
+        if(node < 0) {
+            return null;
+        }
+        return new ByteArrayInputStream(mIndex.data(), mIndex.valueOffset(node), mIndex.length(node));
+    }
+
+    /** Returns value of data element decoded as UTF-8 or null if element is not present */
+    public String getString(int tag) throws IOException {
+        return decode(mIndex.findChild(mRoot, tag));
+    }
+
+    /**
+     * Returns values of repeated data element decoded as UTF-8.
+     * Elements are stored in content template A0 with count, elements directly
+     * in data group are also accepted.
+     */
+    protected List<String> getStrings(int tag) throws IOException {
+        int parent = mIndex.findChild(mRoot, CONTENT_TAG);
+        if(parent < 0) {
+            parent = mRoot;
+        }
+
+        List<String> values = new ArrayList<>();
+        int node;
+        while ((node = mIndex.findChild(parent, tag, values.size())) >= 0) {
+            values.add(decode(node));
+        }
+        return values;
+    }
+
+    /**
+     * Returns numeric value (e.g. date yyyymmdd) of data element or null.
+     * Value is encoded as ASCII digits or, by some issuers, as BCD of digits / 2 bytes.
+     */
+    protected String getDigits(int tag, int digits) throws IOException {
+        int node = mIndex.findChild(mRoot, tag);
+        if(node < 0 || mIndex.length(node) * 2 != digits) {
+            return decode(node);
+        }
+
+        byte[] data = mIndex.data();
+        int offs = mIndex.valueOffset(node);
+        char[] chars = new char[digits];
+        for (int i = 0; i < digits / 2; i++) {
+            chars[2 * i]     = Character.forDigit((data[offs + i] >> 4) & 0x0F, 16);
+            chars[2 * i + 1] = Character.forDigit(data[offs + i] & 0x0F, 16);
+        }
+        return new String(chars);
+    }
+
+    private String decode(int node) {
+        if(node < 0) {
+            return null;
+        }
+        return new String(mIndex.data(), mIndex.valueOffset(node), mIndex.length(node), UTF8);
+    }
+
+    private static int[] parseTagList(byte[] data, int offs, int len) throws IOException {
+        int[] tags = new int[len];
+        int n = 0;
+        int end = offs + len;
+        while (offs < end) {
+            int b = data[offs++] & 0xFF;
+            int tag = b;
+            if((b & 0x1F) == 0x1F) {
+                int count = 1;
+                do {
+                    if(offs == end || ++count > 4) {
+                        throw new IOException("AdditionalDetailsFile: invalid tag in tag list");
+                    }
+                    b = data[offs++] & 0xFF;
+                    tag = (tag << 8) | b;
+                } while ((b & 0x80) != 0);
+            }
+            tags[n++] = tag;
+        }
+
+        int[] result = new int[n];
+        System.arraycopy(tags, 0, result, 0, n);
+        return result;
+    }
+}
@@ -0,0 +1,134 @@
+/*
+* Copyright (c) 2018 ZeroPass
+* Distributed under the MIT software license, see the accompanying
+* file LICENSE or https://opensource.org/licenses/MIT.
+*/
+
+package io.zeropass.trid.passport.lds;
+
+import java.io.IOException;
+
+import io.zeropass.trid.tlv.TlvCursor;
+
+/**
+ * EF.COM, LDS version information and list of present data groups.
+ * Tag list is decoded to bitmask of present data groups, see DataGroups.mask.
+ *
+ * EF.COM ::= [APPLICATION 0] { 5F01 LDS version, 5F36 Unicode version, 5C tag list }
+ * see ICAO 9303-10 section 4.6.1
+ */
+public final class COMFile {
+
+    public static final int LDS_VERSION_TAG     = 0x5F01;
+    public static final int UNICODE_VERSION_TAG = 0x5F36;
+    public static final int TAG_LIST_TAG        = 0x5C;
+
+    private final int mPresent;
+    private final int mLdsVersion;      // aabb, e.g. 0x0107 for LDS 1.7
+    private final int mUnicodeVersion;  // aabbcc, e.g. 0x040000 for Unicode 4.0.0
+
+    private COMFile(int present, int ldsVersion, int unicodeVersion) {
+        mPresent        = present;
+        mLdsVersion     = ldsVersion;
+        mUnicodeVersion = unicodeVersion;
+    }
+
+    /**
+     * Parses EF.COM. Unknown tags in tag list are ignored.
+     * @throws IOException if EF.COM is malformed
+     */
+    public static COMFile fromBytes(byte[] com) throws IOException {
+        if(com == null) {
+            throw new IOException("COMFile: no data");
+        }
+
+        TlvCursor c = new TlvCursor(com);
+        if(!c.next() || c.tag() != LDSFile.EF_COM_TAG) {
+            throw new IOException("COMFile: invalid EF.COM tag");
+        }
+
+        c.enter();
+        int lds = -1;
+        int unicode = -1;
+        int present = -1;
+        while (c.next()) {
+            switch (c.tag()) {
+                case LDS_VERSION_TAG:
+                    lds = parseVersion(com, c.valueOffset(), c.length(), 2);
+                    break;
+                case UNICODE_VERSION_TAG:
+                    unicode = parseVersion(com, c.valueOffset(), c.length(), 3);
+                    break;
+                case TAG_LIST_TAG:
+                    present = 0;
+                    for (int i = 0; i < c.length(); i++) {
+                        int n = DataGroups.numberOfTag(c.valueByte(i));
+                        if(n >= DataGroups.DG1 && n <= DataGroups.DG16) {
+                            present |= DataGroups.mask(n);
+                        }
+                    }
+                    break;
+                default:
+                    break;
+            }
+        }
+
+        if(lds < 0 || unicode < 0 || present < 0) {
+            throw new IOException("COMFile: missing data element");
+        }
+        return new COMFile(present, lds, unicode);
+    }
+
+    /** Returns bitmask of present data groups, see DataGroups.mask */
+    public int getDataGroupMask() {
+        return mPresent;
+    }
+
+    /** Returns true if data group with number dg is listed in EF.COM */
+    public boolean isPresent(int dg) {
+        return dg >= DataGroups.DG1 && dg <= DataGroups.DG16 && (mPresent & DataGroups.mask(dg)) != 0;
+    }
+
+    /** Returns numbers of present data groups in ascending order */
+    public int[] getDataGroupNumbers() {
+        return DataGroups.numbers(mPresent);
+    }
+
+    /** Returns LDS version as aabb, e.g. 0x0107 */
+    public int getLdsVersionCode() {
+        return mLdsVersion;
+    }
+
+    /** Returns LDS version, e.g. "1.7" */
+    public String getLdsVersion() {
+        return (mLdsVersion >> 8) + "." + (mLdsVersion & 0xFF);
+    }
+
+    /** Returns Unicode version as aabbcc, e.g. 0x040000 */
+    public int getUnicodeVersionCode() {
+        return mUnicodeVersion;
+    }
+
+    /** Returns Unicode version, e.g. "4.0.0" */
+    public String getUnicodeVersion() {
+        return (mUnicodeVersion >> 16) + "." + ((mUnicodeVersion >> 8) & 0xFF) + "." + (mUnicodeVersion & 0xFF);
+    }
+
+    /* Parses version of n 2 digit components, e.g. "0107", into aabb */
+    private static int parseVersion(byte[] data, int offs, int len, int n) throws IOException {
+        if(len != 2 * n) {
+            throw new IOException("COMFile: invalid version length " + len);
+        }
+
+        int v = 0;
+        for (int i = offs; i < offs + len; i += 2) {
+            int d1 = data[i] - '0';
+            int d2 = data[i + 1] - '0';
+            if(d1 < 0 || d1 > 9 || d2 < 0 || d2 > 9) {
+                throw new IOException("COMFile: invalid version");
+            }
+            v = (v << 8) | (d1 * 10 + d2);
+        }
+        return v;
+    }
+}
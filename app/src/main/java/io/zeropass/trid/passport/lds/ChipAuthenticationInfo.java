@@ -0,0 +1,60 @@
+/*
+* Copyright (c) 2018 ZeroPass
+* Distributed under the MIT software license, see the accompanying
+* file LICENSE or https://opensource.org/licenses/MIT.
+*/
+
+package io.zeropass.trid.passport.lds;
+
+/**
+ * ChipAuthenticationInfo ::= SEQUENCE {
+ *    protocol OBJECT IDENTIFIER( id-CA-DH-3DES-CBC-CBC | id-CA-DH-AES-CBC-CMAC-128 | ... | id-CA-ECDH-AES-CBC-CMAC-256),
+ *    version  INTEGER, -- MUST be 1
+ *    keyId    INTEGER OPTIONAL
+ * }
+ * see ICAO 9303-11 section 9.2.5
+ */
+public class ChipAuthenticationInfo extends SecurityInfo {
+    private final int mVersion;
+
+    ChipAuthenticationInfo(SecurityInfo si) {
+        super(si);
+        if(getProtocol().length != SecurityInfoOID.ID_CA.length + 2) {
+            throw new IllegalArgumentException("ChipAuthenticationInfo: invalid protocol");
+        }
+
+        mVersion = SecurityInfos.decodeInteger(getRequiredData());
+    }
+
+    public int getVersion() {
+        return mVersion;
+    }
+
+    /* Returns keyId as INTEGER content bytes or null if not present */
+    public byte[] getKeyId() {
+        return getOptionalData() == null ? null : SecurityInfos.getValue(getOptionalData());
+    }
+
+    /* Returns true if key agreement algorithm is ECDH */
+    public boolean isECDH() {
+        return isProtocol(SecurityInfoOID.ID_CA_ECDH);
+    }
+
+    /* Returns session cipher algorithm name, "DESede" or "AES" */
+    public String getCipherAlgorithm() {
+        return getCipherId() == SecurityInfoOID.CA_3DES_CBC_CBC ? "DESede" : "AES";
+    }
+
+    /* Returns session key length in bytes */
+    public int getKeyLength() {
+        switch (getCipherId()) {
+            case SecurityInfoOID.CA_AES_CBC_CMAC_192: return 24;
+            case SecurityInfoOID.CA_AES_CBC_CMAC_256: return 32;
+            default: return 16;
+        }
+    }
+
+    private byte getCipherId() {
+        return getProtocol()[getProtocol().length - 1];
+    }
+}
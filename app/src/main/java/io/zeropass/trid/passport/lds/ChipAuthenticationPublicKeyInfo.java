@@ -0,0 +1,45 @@
+/*
+* Copyright (c) 2018 ZeroPass
+* Distributed under the MIT software license, see the accompanying
+* file LICENSE or https://opensource.org/licenses/MIT.
+*/
+
+package io.zeropass.trid.passport.lds;
+
+import java.security.PublicKey;
+
+import io.zeropass.trid.crypto.CryptoUtils;
+
+/**
+ * ChipAuthenticationPublicKeyInfo ::= SEQUENCE {
+ *    protocol                   OBJECT IDENTIFIER(id-PK-DH | id-PK-ECDH),
+ *    chipAuthenticationPublicKey SubjectPublicKeyInfo,
+ *    keyId                      INTEGER OPTIONAL
+ * }
+ * see ICAO 9303-11 section 9.2.6
+ */
+public class ChipAuthenticationPublicKeyInfo extends SecurityInfo {
+    private PublicKey mPublicKey = null;
+
+    ChipAuthenticationPublicKeyInfo(SecurityInfo si) {
+        super(si);
+    }
+
+    /* Returns true if key agreement algorithm is ECDH */
+    public boolean isECDH() {
+        return isProtocol(SecurityInfoOID.ID_PK_ECDH);
+    }
+
+    /* Returns ICC's static public key for Chip Authentication */
+    public synchronized PublicKey getPublicKey() {
+        if(mPublicKey == null) {
+            mPublicKey = CryptoUtils.getPublicKey(isECDH() ? "EC" : "DH", getRequiredData());
+        }
+        return mPublicKey;
+    }
+
+    /* Returns keyId as INTEGER content bytes or null if not present */
+    public byte[] getKeyId() {
+        return getOptionalData() == null ? null : SecurityInfos.getValue(getOptionalData());
+    }
+}
@@ -0,0 +1,102 @@
+/*
+* Copyright (c) 2018 ZeroPass
+* Distributed under the MIT software license, see the accompanying
+* file LICENSE or https://opensource.org/licenses/MIT.
+*/
+
+package io.zeropass.trid.passport.lds;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.List;
+
+/**
+ * Data group 11, additional personal details.
+ * Fields are decoded on access, see AdditionalDetailsFile.
+ * see ICAO 9303-10 section 4.7.11
+ */
+public final class DG11File extends AdditionalDetailsFile {
+
+    public static final int FULL_NAME_TAG            = 0x5F0E;
+    public static final int OTHER_NAME_TAG           = 0x5F0F;
+    public static final int PERSONAL_NUMBER_TAG      = 0x5F10;
+    public static final int FULL_DATE_OF_BIRTH_TAG   = 0x5F2B;
+    public static final int PLACE_OF_BIRTH_TAG       = 0x5F11;
+    public static final int PERMANENT_ADDRESS_TAG    = 0x5F42;
+    public static final int TELEPHONE_TAG            = 0x5F12;
+    public static final int PROFESSION_TAG           = 0x5F13;
+    public static final int TITLE_TAG                = 0x5F14;
+    public static final int PERSONAL_SUMMARY_TAG     = 0x5F15;
+    public static final int PROOF_OF_CITIZENSHIP_TAG = 0x5F16;
+    public static final int OTHER_TD_NUMBERS_TAG     = 0x5F17;
+    public static final int CUSTODY_INFORMATION_TAG  = 0x5F18;
+
+    private DG11File(byte[] dg11) throws IOException {
+        super(dg11, LDSFile.EF_DG11_TAG);
+    }
+
+    /**
+     * Parses DG11 file, only tag list is decoded.
+     * DG11 isn't copied, data must not be modified while DG11File is used.
+     * @throws IOException if DG11 or its tag list is malformed
+     */
+    public static DG11File fromBytes(byte[] dg11) throws IOException {
+        return new DG11File(dg11);
+    }
+
+    /** Returns full name of holder in MRZ notation (primary and secondary identifier separated by "<<") or null */
+    public String getFullName() throws IOException {
+        return getString(FULL_NAME_TAG);
+    }
+
+    /** Returns other names of holder */
+    public List<String> getOtherNames() throws IOException {
+        return getStrings(OTHER_NAME_TAG);
+    }
+
+    public String getPersonalNumber() throws IOException {
+        return getString(PERSONAL_NUMBER_TAG);
+    }
+
+    /** Returns full date of birth yyyymmdd or null */
+    public String getFullDateOfBirth() throws IOException {
+        return getDigits(FULL_DATE_OF_BIRTH_TAG, 8);
+    }
+
+    public String getPlaceOfBirth() throws IOException {
+        return getString(PLACE_OF_BIRTH_TAG);
+    }
+
+    public String getPermanentAddress() throws IOException {
+        return getString(PERMANENT_ADDRESS_TAG);
+    }
+
+    public String getTelephone() throws IOException {
+        return getString(TELEPHONE_TAG);
+    }
+
+    public String getProfession() throws IOException {
+        return getString(PROFESSION_TAG);
+    }
+
+    public String getTitle() throws IOException {
+        return getString(TITLE_TAG);
+    }
+
+    public String getPersonalSummary() throws IOException {
+        return getString(PERSONAL_SUMMARY_TAG);
+    }
+
+    /** Returns stream of proof of citizenship image or null, image is not copied */
+    public InputStream openProofOfCitizenship() throws IOException {
+        return openField(PROOF_OF_CITIZENSHIP_TAG);
+    }
+
+    public String getOtherValidTDNumbers() throws IOException {
+        return getString(OTHER_TD_NUMBERS_TAG);
+    }
+
+    public String getCustodyInformation() throws IOException {
+        return getString(CUSTODY_INFORMATION_TAG);
+    }
+}
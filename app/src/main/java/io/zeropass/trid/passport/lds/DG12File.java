@@ -0,0 +1,84 @@
+/*
+* Copyright (c) 2018 ZeroPass
+* Distributed under the MIT software license, see the accompanying
+* file LICENSE or https://opensource.org/licenses/MIT.
+*/
+
+package io.zeropass.trid.passport.lds;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.List;
+
+/**
+ * Data group 12, additional document details.
+ * Fields are decoded on access and document images are returned as views of DG12, see AdditionalDetailsFile.
+ * see ICAO 9303-10 section 4.7.12
+ */
+public final class DG12File extends AdditionalDetailsFile {
+
+    public static final int ISSUING_AUTHORITY_TAG        = 0x5F19;
+    public static final int DATE_OF_ISSUE_TAG            = 0x5F26;
+    public static final int OTHER_PERSON_TAG             = 0x5F1A;
+    public static final int ENDORSEMENTS_TAG             = 0x5F1B;
+    public static final int TAX_EXIT_REQUIREMENTS_TAG    = 0x5F1C;
+    public static final int IMAGE_OF_FRONT_TAG           = 0x5F1D;
+    public static final int IMAGE_OF_REAR_TAG            = 0x5F1E;
+    public static final int PERSONALIZATION_TIME_TAG     = 0x5F55;
+    public static final int PERSONALIZATION_SERIAL_TAG   = 0x5F56;
+
+    private DG12File(byte[] dg12) throws IOException {
+        super(dg12, LDSFile.EF_DG12_TAG);
+    }
+
+    /**
+     * Parses DG12 file, only tag list is decoded.
+     * DG12 isn't copied, data must not be modified while DG12File is used.
+     * @throws IOException if DG12 or its tag list is malformed
+     */
+    public static DG12File fromBytes(byte[] dg12) throws IOException {
+        return new DG12File(dg12);
+    }
+
+    public String getIssuingAuthority() throws IOException {
+        return getString(ISSUING_AUTHORITY_TAG);
+    }
+
+    /** Returns date of issue yyyymmdd or null */
+    public String getDateOfIssue() throws IOException {
+        return getDigits(DATE_OF_ISSUE_TAG, 8);
+    }
+
+    /** Returns names of other persons included in document */
+    public List<String> getOtherPersons() throws IOException {
+        return getStrings(OTHER_PERSON_TAG);
+    }
+
+    public String getEndorsements() throws IOException {
+        return getString(ENDORSEMENTS_TAG);
+    }
+
+    public String getTaxExitRequirements() throws IOException {
+        return getString(TAX_EXIT_REQUIREMENTS_TAG);
+    }
+
+    /** Returns stream of image of front of document or null, image is not copied */
+    public InputStream openImageOfFront() throws IOException {
+        return openField(IMAGE_OF_FRONT_TAG);
+    }
+
+    /** Returns stream of image of rear of document or null, image is not copied */
+    public InputStream openImageOfRear() throws IOException {
+        return openField(IMAGE_OF_REAR_TAG);
+    }
+
+    /** Returns date and time of personalization yyyymmddhhmmss or null */
+    public String getPersonalizationTime() throws IOException {
+        return getDigits(PERSONALIZATION_TIME_TAG, 14);
+    }
+
+    /** Returns serial number of personalization system or null */
+    public String getPersonalizationSystemSerialNumber() throws IOException {
+        return getString(PERSONALIZATION_SERIAL_TAG);
+    }
+}
@@ -0,0 +1,386 @@
+/*
+* Copyright (c) 2018 ZeroPass
+* Distributed under the MIT software license, see the accompanying
+* file LICENSE or https://opensource.org/licenses/MIT.
+*/
+
+package io.zeropass.trid.passport.lds;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+
+import io.zeropass.trid.passport.PassportTools;
+import io.zeropass.trid.tlv.TlvCursor;
+
+/**
+ * Data group 1, Machine Readable Zone information.
+ * MRZ is not copied, fields are views (offset and length) into the original buffer
+ * and are decoded to strings only on request. Check digits are verified over the raw bytes.
+ *
+ * DG1 ::= [APPLICATION 1] { 5F1F MRZ }
+ * see ICAO 9303-10 section 4.7.1 and ICAO 9303 parts 4 - 6 for TD3, TD1 and TD2 layouts
+ */
+public final class DG1File {
+
+    public static final int MRZ_TAG = 0x5F1F;
+
+    /** MRZ layouts */
+    public static final int TD1 = 1; // 3 lines of 30 characters
+    public static final int TD2 = 2; // 2 lines of 36 characters
+    public static final int TD3 = 3; // 2 lines of 44 characters
+
+    /** MRZ fields */
+    public static final int DOCUMENT_CODE         = 0;
+    public static final int ISSUING_STATE         = 1;
+    public static final int NAME                  = 2;
+    public static final int DOCUMENT_NUMBER       = 3;
+    public static final int DOCUMENT_NUMBER_CHECK = 4;
+    public static final int NATIONALITY           = 5;
+    public static final int DATE_OF_BIRTH         = 6;
+    public static final int DATE_OF_BIRTH_CHECK   = 7;
+    public static final int SEX                   = 8;
+    public static final int DATE_OF_EXPIRY        = 9;
+    public static final int DATE_OF_EXPIRY_CHECK  = 10;
+    public static final int OPTIONAL_DATA         = 11;
+    public static final int OPTIONAL_DATA_CHECK   = 12; // TD3 only
+    public static final int OPTIONAL_DATA_2       = 13; // TD1 only
+    public static final int COMPOSITE_CHECK       = 14;
+    public static final int FIELD_COUNT           = 15;
+
+    /* Field offset and length in MRZ per layout, -1 if field isn't present */
+    private static final int[] TD1_FIELDS = {
+        0, 2,   2, 3,   60, 30,  5, 9,   14, 1,  45, 3,  30, 6,  36, 1,
+        37, 1,  38, 6,  44, 1,   15, 15, -1, 0,  48, 11, 59, 1
+    };
+    private static final int[] TD2_FIELDS = {
+        0, 2,   2, 3,   5, 31,   36, 9,  45, 1,  46, 3,  49, 6,  55, 1,
+        56, 1,  57, 6,  63, 1,   64, 7,  -1, 0,  -1, 0,  71, 1
+    };
+    private static final int[] TD3_FIELDS = {
+        0, 2,   2, 3,   5, 39,   44, 9,  53, 1,  54, 3,  57, 6,  63, 1,
+        64, 1,  65, 6,  71, 1,   72, 14, 86, 1,  -1, 0,  87, 1
+    };
+
+    /* Ranges (offset, length) of MRZ covered by composite check digit */
+    private static final int[] TD1_COMPOSITE = { 5, 25, 30, 7, 38, 7, 48, 11 };
+    private static final int[] TD2_COMPOSITE = { 36, 10, 49, 7, 57, 14 };
+    private static final int[] TD3_COMPOSITE = { 44, 10, 57, 7, 65, 22 };
+
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+    private static final byte FILLER = '<';
+
+    private final byte[] mData;
+    private final int mMrzOffs;
+    private final int mFormat;
+    private final int[] mFields;
+
+    /* TD1 document number longer than 9 characters continues in optional data */
+    private int mDocNumberExtOffs = -1;
+    private int mDocNumberExtLen  = 0;
+    private int mDocNumberCheckOffs;
+
+    private DG1File(byte[] data, int mrzOffs, int format) {
+        mData    = data;
+        mMrzOffs = mrzOffs;
+        mFormat  = format;
+        mFields  = format == TD1 ? TD1_FIELDS : (format == TD2 ? TD2_FIELDS : TD3_FIELDS);
+        mDocNumberCheckOffs = mrzOffs + mFields[DOCUMENT_NUMBER_CHECK * 2];
+
+        if(format == TD1 && data[mDocNumberCheckOffs] == FILLER) {
+            /* Extended document number: rest of number and its check digit are at the start of optional data, see ICAO 9303-5 */
+            int offs = mrzOffs + mFields[OPTIONAL_DATA * 2];
+            int end  = offs + mFields[OPTIONAL_DATA * 2 + 1];
+            int last = offs;
+            while (last < end && data[last] != FILLER) {
+                last++;
+            }
+            if(last > offs) {
+                mDocNumberExtOffs   = offs;
+                mDocNumberExtLen    = last - offs - 1;
+                mDocNumberCheckOffs = last - 1;
+            }
+        }
+    }
+
+    /**
+     * Parses DG1 file. MRZ isn't copied, data must not be modified while DG1File is used.
+     * @throws IOException if DG1 is malformed or MRZ length doesn't match any layout
+     */
+    public static DG1File fromBytes(byte[] dg1) throws IOException {
+        TlvCursor c = new TlvCursor(dg1);
+        if(!c.next() || c.tag() != LDSFile.EF_DG1_TAG) {
+            throw new IOException("DG1File: invalid DG1 file");
+        }
+
+        c.enter();
+        if(!c.find(MRZ_TAG)) {
+            throw new IOException("DG1File: MRZ not found");
+        }
+        return fromMrz(dg1, c.valueOffset(), c.length());
+    }
+
+    /**
+     * Creates view of raw MRZ without line breaks in data[offs, offs + len), e.g. MRZ read from data page.
+     * @throws IOException if length of MRZ doesn't match any layout
+     */
+    public static DG1File fromMrz(byte[] data, int offs, int len) throws IOException {
+        if(offs < 0 || len < 0 || offs + len > data.length) {
+            throw new IndexOutOfBoundsException("DG1File: invalid range");
+        }
+
+        switch (len) {
+            case 90: return new DG1File(data, offs, TD1);
+            case 72: return new DG1File(data, offs, TD2);
+            case 88: return new DG1File(data, offs, TD3);
+            default:
+                throw new IOException("DG1File: invalid MRZ length " + len);
+        }
+    }
+
+    /** Returns MRZ layout, TD1, TD2 or TD3 */
+    public int getFormat() {
+        return mFormat;
+    }
+
+    /** Returns buffer with MRZ */
+    public byte[] data() {
+        return mData;
+    }
+
+    public int mrzOffset() {
+        return mMrzOffs;
+    }
+
+    public int mrzLength() {
+        return mFormat == TD1 ? 90 : (mFormat == TD2 ? 72 : 88);
+    }
+
+    /** Returns true if layout has field */
+    public boolean hasField(int field) {
+        return mFields[field * 2] >= 0;
+    }
+
+    /**
+     * Returns offset of field in data() or -1 if layout doesn't have field.
+     * Note: extended TD1 document number is returned as the first 9 characters, see getDocumentNumber.
+     */
+    public int fieldOffset(int field) {
+        if(field == DOCUMENT_NUMBER_CHECK) {
+            return mDocNumberCheckOffs;
+        }
+        int offs = mFields[field * 2];
+        return offs >= 0 ? mMrzOffs + offs : -1;
+    }
+
+    /** Returns length of field or 0 if layout doesn't have field */
+    public int fieldLength(int field) {
+        return mFields[field * 2 + 1];
+    }
+
+    /** Returns field as it's written in MRZ including filler characters or null if layout doesn't have field */
+    public String getField(int field) {
+        if(!hasField(field)) {
+            return null;
+        }
+        return new String(mData, fieldOffset(field), fieldLength(field), ASCII);
+    }
+
+    /**
+     * Compares field with value without decoding the field.
+     * Value shorter than field matches if the rest of field is filler '<'.
+     */
+    public boolean fieldEquals(int field, CharSequence value) {
+        if(!hasField(field) || value.length() > fieldLength(field)) {
+            return false;
+        }
+
+        int offs = fieldOffset(field);
+        int len  = fieldLength(field);
+        for (int i = 0; i < len; i++) {
+            int expected = i < value.length() ? value.charAt(i) : FILLER;
+            if(mData[offs + i] != expected) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /** Compares field with the same field of other MRZ without decoding them */
+    public boolean fieldEquals(int field, DG1File other) {
+        if(!hasField(field) || !other.hasField(field) || fieldLength(field) != other.fieldLength(field)) {
+            return false;
+        }
+
+        int offs = fieldOffset(field);
+        int otherOffs = other.fieldOffset(field);
+        for (int i = 0; i < fieldLength(field); i++) {
+            if(mData[offs + i] != other.mData[otherOffs + i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /** Returns true if both MRZs are byte-for-byte equal */
+    public boolean mrzEquals(DG1File other) {
+        if(mFormat != other.mFormat) {
+            return false;
+        }
+
+        for (int i = 0; i < mrzLength(); i++) {
+            if(mData[mMrzOffs + i] != other.mData[other.mMrzOffs + i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public String getDocumentCode() {
+        return trimmed(DOCUMENT_CODE);
+    }
+
+    public String getIssuingState() {
+        return trimmed(ISSUING_STATE);
+    }
+
+    /** Returns document number without fillers, including the part in optional data for long TD1 document numbers */
+    public String getDocumentNumber() {
+        String number = trimmed(DOCUMENT_NUMBER);
+        if(mDocNumberExtOffs >= 0) {
+            number += new String(mData, mDocNumberExtOffs, mDocNumberExtLen, ASCII);
+        }
+        return number;
+    }
+
+    public String getNationality() {
+        return trimmed(NATIONALITY);
+    }
+
+    /** Returns date of birth YYMMDD */
+    public String getDateOfBirth() {
+        return getField(DATE_OF_BIRTH);
+    }
+
+    /** Returns sex 'M', 'F' or '<' if unspecified */
+    public char getSex() {
+        return (char) mData[fieldOffset(SEX)];
+    }
+
+    /** Returns date of expiry YYMMDD */
+    public String getDateOfExpiry() {
+        return getField(DATE_OF_EXPIRY);
+    }
+
+    public String getOptionalData() {
+        return trimmed(OPTIONAL_DATA);
+    }
+
+    /** Returns primary identifier (surname), fillers are replaced with spaces */
+    public String getPrimaryIdentifier() {
+        int offs = fieldOffset(NAME);
+        int end  = offs + fieldLength(NAME);
+        return name(offs, separator(offs, end));
+    }
+
+    /** Returns secondary identifier (given names), fillers are replaced with spaces */
+    public String getSecondaryIdentifier() {
+        int offs = fieldOffset(NAME);
+        int end  = offs + fieldLength(NAME);
+        int sep  = separator(offs, end);
+        return sep + 2 <= end ? name(sep + 2, end) : "";
+    }
+
+    /**
+     * Verifies check digit of field.
+     * @param field DOCUMENT_NUMBER, DATE_OF_BIRTH, DATE_OF_EXPIRY, OPTIONAL_DATA (TD3) or COMPOSITE_CHECK
+     */
+    public boolean isCheckDigitValid(int field) {
+        try {
+            switch (field) {
+                case DOCUMENT_NUMBER:
+                    /* Check digit of extended document number is calculated over the whole number */
+                    int len = fieldLength(DOCUMENT_NUMBER);
+                    int sum = PassportTools.calculateMrzWeightedSum(mData, fieldOffset(DOCUMENT_NUMBER), len, 0);
+                    if(mDocNumberExtOffs >= 0) {
+                        sum += PassportTools.calculateMrzWeightedSum(mData, mDocNumberExtOffs, mDocNumberExtLen, len);
+                    }
+                    return isDigit(mDocNumberCheckOffs, sum % 10);
+                case DATE_OF_BIRTH:
+                case DATE_OF_EXPIRY:
+                    return isDigit(fieldOffset(field + 1), PassportTools.calculateMrzCheckDigit(mData, fieldOffset(field), fieldLength(field)));
+                case OPTIONAL_DATA:
+                    if(!hasField(OPTIONAL_DATA_CHECK)) {
+                        return true;
+                    }
+                    /* Optional data check digit can be filler if optional data is empty */
+                    int check = fieldOffset(OPTIONAL_DATA_CHECK);
+                    int digit = PassportTools.calculateMrzCheckDigit(mData, fieldOffset(OPTIONAL_DATA), fieldLength(OPTIONAL_DATA));
+                    return isDigit(check, digit) || (mData[check] == FILLER && digit == 0);
+                case COMPOSITE_CHECK:
+                    int[] ranges = mFormat == TD1 ? TD1_COMPOSITE : (mFormat == TD2 ? TD2_COMPOSITE : TD3_COMPOSITE);
+                    int weighted = 0;
+                    int n = 0;
+                    for (int i = 0; i < ranges.length; i += 2) {
+                        weighted += PassportTools.calculateMrzWeightedSum(mData, mMrzOffs + ranges[i], ranges[i + 1], n);
+                        n += ranges[i + 1];
+                    }
+                    return isDigit(fieldOffset(COMPOSITE_CHECK), weighted % 10);
+                default:
+                    throw new IllegalArgumentException("DG1File: field has no check digit");
+            }
+        }
+        catch (NumberFormatException e) {
+            return false;
+        }
+    }
+
+    /** Returns true if all check digits of MRZ are valid */
+    public boolean isValid() {
+        return isCheckDigitValid(DOCUMENT_NUMBER)
+            && isCheckDigitValid(DATE_OF_BIRTH)
+            && isCheckDigitValid(DATE_OF_EXPIRY)
+            && isCheckDigitValid(OPTIONAL_DATA)
+            && isCheckDigitValid(COMPOSITE_CHECK);
+    }
+
+    private boolean isDigit(int offs, int digit) {
+        return mData[offs] == '0' + digit;
+    }
+
+    /* Returns offset of "<<" separating primary and secondary identifier or end */
+    private int separator(int offs, int end) {
+        for (int i = offs; i + 1 < end; i++) {
+            if(mData[i] == FILLER && mData[i + 1] == FILLER) {
+                return i;
+            }
+        }
+        return end;
+    }
+
+    private String name(int offs, int end) {
+        while (end > offs && mData[end - 1] == FILLER) {
+            end--;
+        }
+
+        char[] chars = new char[end - offs];
+        for (int i = 0; i < chars.length; i++) {
+            byte b = mData[offs + i];
+            chars[i] = b == FILLER ? ' ' : (char) b;
+        }
+        return new String(chars);
+    }
+
+    /* Returns field without trailing fillers */
+    private String trimmed(int field) {
+        if(!hasField(field)) {
+            return null;
+        }
+
+        int offs = fieldOffset(field);
+        int end  = offs + fieldLength(field);
+        while (end > offs && mData[end - 1] == FILLER) {
+            end--;
+        }
+        return new String(mData, offs, end - offs, ASCII);
+    }
+}
@@ -0,0 +1,477 @@
+/*
+* Copyright (c) 2018 ZeroPass
+* Distributed under the MIT software license, see the accompanying
+* file LICENSE or https://opensource.org/licenses/MIT.
+*/
+
+package io.zeropass.trid.passport.lds;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import io.zeropass.trid.tlv.TlvPullParser;
+
+/**
+ * Streaming reader of data group 2, encoded face.
+ * DG2 is parsed while it's read (e.g. from PassportApdu.openFile), header of each facial record
+ * is decoded as soon as it arrives and the image is returned as stream which reads
+ * directly from the underlying input. Image data is never buffered by the reader.
+ *
+ * DG2 ::= [APPLICATION 21] { 7F61 { 02 count, 7F60 { A1 BHT, 5F2E BDB }* } }
+ * BDB ::= ISO/IEC 19794-5 facial record data
+ * see ICAO 9303-10 section 4.7.2 and ISO/IEC 19794-5:2005 section 5
+ *
+ * Example:
+ * <pre>
+ *     DG2File dg2 = DG2File.open(passport.openFile(LDSFile.EF_DG2_FID, null));
+ *     if(dg2.nextImage()) {
+ *         Bitmap face = BitmapFactory.decodeStream(dg2.getImageStream());
+ *     }
+ *     dg2.close();
+ * </pre>
+ *
+ * Note: reader is not thread-safe.
+ */
+public final class DG2File implements Closeable {
+
+    public static final int BIOMETRIC_INFO_GROUP_TAG    = 0x7F61;
+    public static final int BIOMETRIC_INFO_TAG          = 0x7F60;
+    public static final int BIOMETRIC_DATA_BLOCK_TAG    = 0x5F2E;
+    public static final int BIOMETRIC_DATA_BLOCK_CH_TAG = 0x7F2E; // enciphered, not supported
+
+    /** Image data types */
+    public static final int IMAGE_DATA_TYPE_JPEG     = 0x00;
+    public static final int IMAGE_DATA_TYPE_JPEG2000 = 0x01;
+
+    /** Gender */
+    public static final int GENDER_UNSPECIFIED = 0x00;
+    public static final int GENDER_MALE        = 0x01;
+    public static final int GENDER_FEMALE      = 0x02;
+    public static final int GENDER_UNKNOWN     = 0xFF;
+
+    /* 'FAC\0' format identifier, '010\0' version */
+    private static final int FORMAT_ID = 0x46414300;
+    private static final int VERSION   = 0x30313000;
+
+    private static final int FACIAL_RECORD_HEADER_LEN = 14;
+    private static final int FACIAL_INFO_LEN          = 20;
+    private static final int FEATURE_POINT_LEN        = 8;
+    private static final int IMAGE_INFO_LEN           = 12;
+
+    private final InputStream mIn;
+    private final TlvPullParser mParser;
+    private final ImageStream mImageStream = new ImageStream();
+    private final byte[] mHeader = new byte[FACIAL_INFO_LEN];
+
+    private int mInstanceCount = -1;
+    private InputStream mBlock;     // value stream of current 5F2E
+    private int mFacesRemaining = 0;
+
+    /* Current facial record */
+    private int mGender;
+    private int mEyeColor;
+    private int mHairColor;
+    private int mFeatureMask;
+    private int mExpression;
+    private int mPoseYaw, mPosePitch, mPoseRoll;
+    private int mFeaturePointCount;
+    private int mFaceImageType;
+    private int mImageDataType;
+    private int mImageWidth;
+    private int mImageHeight;
+    private int mColorSpace;
+    private int mSourceType;
+    private int mDeviceType;
+    private int mQuality;
+    private int mImageLength = -1;
+    private long mImageOffset;
+
+    private DG2File(InputStream in) {
+        mIn     = in;
+        mParser = new TlvPullParser(in);
+    }
+
+    /**
+     * Starts reading DG2 from in, only DG2 and 7F61 headers are read.
+     * @throws IOException if input is not DG2
+     */
+    public static DG2File open(InputStream in) throws IOException {
+        if(in == null) {
+            throw new IOException("DG2File: no input");
+        }
+
+        DG2File dg2 = new DG2File(in);
+        TlvPullParser p = dg2.mParser;
+        if(p.next() != TlvPullParser.START_CONSTRUCTED || p.tag() != LDSFile.EF_DG2_TAG) {
+            throw new IOException("DG2File: invalid DG2 tag");
+        }
+        if(p.next() != TlvPullParser.START_CONSTRUCTED || p.tag() != BIOMETRIC_INFO_GROUP_TAG) {
+            throw new IOException("DG2File: invalid biometric information group template");
+        }
+        return dg2;
+    }
+
+    /**
+     * Returns number of biometric information templates declared in 7F61
+     * or -1 if count was not read yet.
+     */
+    public int getInstanceCount() {
+        return mInstanceCount;
+    }
+
+    /**
+     * Moves to the next facial image. Unread rest of the previous image is skipped.
+     * @returns false if there are no more images
+     */
+    public boolean nextImage() throws IOException {
+        skipImage();
+        if(mFacesRemaining > 0) {
+            readFacialRecord();
+            return true;
+        }
+
+        while (mParser.next() != TlvPullParser.END_DOCUMENT) {
+            if(mParser.event() != TlvPullParser.PRIMITIVE_HEADER
+                && !(mParser.event() == TlvPullParser.START_CONSTRUCTED && mParser.tag() == BIOMETRIC_DATA_BLOCK_CH_TAG)) {
+                continue;
+            }
+
+            int tag = mParser.tag();
+            if(tag == 0x02 && mParser.depth() == 2) {
+                mInstanceCount = readInt(mParser.valueStream(), mParser.length());
+            }
+            else if(tag == BIOMETRIC_DATA_BLOCK_TAG) {
+                mBlock = mParser.valueStream();
+                readFacialBlockHeader();
+                if(mFacesRemaining > 0) {
+                    readFacialRecord();
+                    return true;
+                }
+            }
+            else {
+                mParser.skipValue();
+            }
+        }
+
+        mImageLength = -1;
+        return false;
+    }
+
+    /**
+     * Returns stream of current image which reads directly from DG2 input.
+     * Stream ends at the end of image and is valid until nextImage or close is called.
+     */
+    public InputStream getImageStream() {
+        checkImage();
+        return mImageStream;
+    }
+
+    /**
+     * Copies the rest of current image to out.
+     * @returns number of bytes copied
+     */
+    public long transferImage(OutputStream out) throws IOException {
+        checkImage();
+        byte[] buf = new byte[TlvPullParser.DEFAULT_CHUNK_SIZE];
+        long total = 0;
+        int n;
+        while ((n = mImageStream.read(buf, 0, buf.length)) > 0) {
+            out.write(buf, 0, n);
+            total += n;
+        }
+        return total;
+    }
+
+    /** Closes underlying input */
+    @Override
+    public void close() throws IOException {
+        mImageLength = -1;
+        mFacesRemaining = 0;
+        mIn.close();
+    }
+
+    public int getGender() {
+        checkImage();
+        return mGender;
+    }
+
+    public int getEyeColor() {
+        checkImage();
+        return mEyeColor;
+    }
+
+    public int getHairColor() {
+        checkImage();
+        return mHairColor;
+    }
+
+    /** Returns 3 byte feature mask */
+    public int getFeatureMask() {
+        checkImage();
+        return mFeatureMask;
+    }
+
+    public int getExpression() {
+        checkImage();
+        return mExpression;
+    }
+
+    /** Returns pose angle as encoded in facial record, 0 if unspecified, see ISO/IEC 19794-5 5.5.7 */
+    public int getPoseYaw() {
+        checkImage();
+        return mPoseYaw;
+    }
+
+    public int getPosePitch() {
+        checkImage();
+        return mPosePitch;
+    }
+
+    public int getPoseRoll() {
+        checkImage();
+        return mPoseRoll;
+    }
+
+    public int getFeaturePointCount() {
+        checkImage();
+        return mFeaturePointCount;
+    }
+
+    public int getFaceImageType() {
+        checkImage();
+        return mFaceImageType;
+    }
+
+    /** Returns IMAGE_DATA_TYPE_JPEG or IMAGE_DATA_TYPE_JPEG2000 */
+    public int getImageDataType() {
+        checkImage();
+        return mImageDataType;
+    }
+
+    /** Returns MIME type of image or null if image data type is unknown */
+    public String getImageMimeType() {
+        switch (getImageDataType()) {
+            case IMAGE_DATA_TYPE_JPEG:
+                return "image/jpeg";
+            case IMAGE_DATA_TYPE_JPEG2000:
+                return "image/jp2";
+            default:
+                return null;
+        }
+    }
+
+    public int getImageWidth() {
+        checkImage();
+        return mImageWidth;
+    }
+
+    public int getImageHeight() {
+        checkImage();
+        return mImageHeight;
+    }
+
+    public int getColorSpace() {
+        checkImage();
+        return mColorSpace;
+    }
+
+    public int getSourceType() {
+        checkImage();
+        return mSourceType;
+    }
+
+    public int getDeviceType() {
+        checkImage();
+        return mDeviceType;
+    }
+
+    public int getQuality() {
+        checkImage();
+        return mQuality;
+    }
+
+    /** Returns length of image data in bytes */
+    public int getImageLength() {
+        checkImage();
+        return mImageLength;
+    }
+
+    /**
+     * Returns offset of image data in DG2 file.
+     * Together with getImageLength it describes the region of image in stored DG2 file.
+     */
+    public long getImageOffset() {
+        checkImage();
+        return mImageOffset;
+    }
+
+    /* Reads facial record header: format id, version, record length and number of faces */
+    private void readFacialBlockHeader() throws IOException {
+        readFully(mHeader, FACIAL_RECORD_HEADER_LEN);
+        if(getInt(mHeader, 0, 4) != FORMAT_ID) {
+            throw new IOException("DG2File: invalid facial record format identifier");
+        }
+        if(getInt(mHeader, 4, 4) != VERSION) {
+            throw new IOException("DG2File: unsupported facial record version");
+        }
+
+        long recordLen = getInt(mHeader, 8, 4) & 0xFFFFFFFFL;
+        if(recordLen != mParser.length()) {
+            throw new IOException("DG2File: facial record length doesn't match BDB length");
+        }
+        mFacesRemaining = getInt(mHeader, 12, 2);
+    }
+
+    /* Reads facial information, feature points and image information, image data follows */
+    private void readFacialRecord() throws IOException {
+        readFully(mHeader, FACIAL_INFO_LEN);
+        long blockLen      = getInt(mHeader, 0, 4) & 0xFFFFFFFFL;
+        mFeaturePointCount = getInt(mHeader, 4, 2);
+        mGender            = mHeader[6] & 0xFF;
+        mEyeColor          = mHeader[7] & 0xFF;
+        mHairColor         = mHeader[8] & 0xFF;
+        mFeatureMask       = getInt(mHeader, 9, 3);
+        mExpression        = getInt(mHeader, 12, 2);
+        mPoseYaw           = mHeader[14] & 0xFF;
+        mPosePitch         = mHeader[15] & 0xFF;
+        mPoseRoll          = mHeader[16] & 0xFF;
+
+        /* Feature points are not exposed */
+        skipFully((long) mFeaturePointCount * FEATURE_POINT_LEN);
+
+        readFully(mHeader, IMAGE_INFO_LEN);
+        mFaceImageType = mHeader[0] & 0xFF;
+        mImageDataType = mHeader[1] & 0xFF;
+        mImageWidth    = getInt(mHeader, 2, 2);
+        mImageHeight   = getInt(mHeader, 4, 2);
+        mColorSpace    = mHeader[6] & 0xFF;
+        mSourceType    = mHeader[7] & 0xFF;
+        mDeviceType    = getInt(mHeader, 8, 2);
+        mQuality       = getInt(mHeader, 10, 2);
+
+        long imageLen = blockLen - FACIAL_INFO_LEN - (long) mFeaturePointCount * FEATURE_POINT_LEN - IMAGE_INFO_LEN;
+        if(imageLen < 0 || imageLen > mParser.remainingLength()) {
+            throw new IOException("DG2File: invalid facial record length " + blockLen);
+        }
+
+        mFacesRemaining--;
+        mImageLength = (int) imageLen;
+        mImageOffset = mParser.position();
+        mImageStream.mRemaining = mImageLength;
+    }
+
+    private void skipImage() throws IOException {
+        if(mImageLength >= 0) {
+            skipFully(mImageStream.mRemaining);
+            mImageStream.mRemaining = 0;
+        }
+    }
+
+    private void readFully(byte[] dst, int len) throws IOException {
+        int offs = 0;
+        while (offs < len) {
+            int n = mBlock.read(dst, offs, len - offs);
+            if(n < 0) {
+                throw new EOFException("DG2File: unexpected end of facial record");
+            }
+            offs += n;
+        }
+    }
+
+    private void skipFully(long len) throws IOException {
+        while (len > 0) {
+            long n = mBlock.skip(len);
+            if(n <= 0) {
+                if(mBlock.read() < 0) {
+                    throw new EOFException("DG2File: unexpected end of facial record");
+                }
+                n = 1;
+            }
+            len -= n;
+        }
+    }
+
+    private void checkImage() {
+        if(mImageLength < 0) {
+            throw new IllegalStateException("DG2File: reader is not positioned on an image");
+        }
+    }
+
+    private static int readInt(InputStream in, int len) throws IOException {
+        if(len < 1 || len > 4) {
+            throw new IOException("DG2File: invalid integer length " + len);
+        }
+
+        int v = 0;
+        for (int i = 0; i < len; i++) {
+            int b = in.read();
+            if(b < 0) {
+                throw new EOFException("DG2File: unexpected end of input");
+            }
+            v = (v << 8) | b;
+        }
+        return v;
+    }
+
+    private static int getInt(byte[] data, int offs, int len) {
+        int v = 0;
+        for (int i = offs; i < offs + len; i++) {
+            v = (v << 8) | (data[i] & 0xFF);
+        }
+        return v;
+    }
+
+    /* Bounded view of current image, reads directly from value stream of BDB */
+    private class ImageStream extends InputStream {
+        private int mRemaining;
+
+        @Override
+        public int read() throws IOException {
+            if(mRemaining == 0) {
+                return -1;
+            }
+
+            int b = mBlock.read();
+            if(b < 0) {
+                throw new EOFException("DG2File: unexpected end of image");
+            }
+            mRemaining--;
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if(len == 0) {
+                return 0;
+            }
+            if(mRemaining == 0) {
+                return -1;
+            }
+
+            int n = mBlock.read(b, off, Math.min(len, mRemaining));
+            if(n < 0) {
+                throw new EOFException("DG2File: unexpected end of image");
+            }
+            mRemaining -= n;
+            return n;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long s = mBlock.skip(Math.min(n, mRemaining));
+            if(s > 0) {
+                mRemaining -= s;
+            }
+            return Math.max(s, 0);
+        }
+
+        /* Only bytes which value stream can return without blocking, see getImageLength for the image size */
+        @Override
+        public int available() throws IOException {
+            return mRemaining > 0 ? Math.min(mRemaining, mBlock.available()) : 0;
+        }
+    }
+}
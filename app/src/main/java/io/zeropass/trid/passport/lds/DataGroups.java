@@ -0,0 +1,154 @@
+/*
+* Copyright (c) 2018 ZeroPass
+* Distributed under the MIT software license, see the accompanying
+* file LICENSE or https://opensource.org/licenses/MIT.
+*/
+
+package io.zeropass.trid.passport.lds;
+
+import java.util.Arrays;
+
+/**
+ * Table of LDS elementary files (EF.COM, DG1 - DG16 and EF.SOD) addressed by number.
+ * File number can be looked up in constant time by its tag, FID or SFI
+ * and presence of files is described with bitmask where bit n is set for file number n (see mask).
+ *
+ * Example:
+ * <pre>
+ *     int dg = DataGroups.numberOfTag(tag);   // e.g. tag from EF.COM tag list
+ *     if(dg > 0 && (present & DataGroups.mask(dg)) != 0) {
+ *         byte[] file = passport.readFile(DataGroups.fid(dg));
+ *     }
+ * </pre>
+ * see ICAO 9303-10 section 4.6 and LDSFile
+ */
+public final class DataGroups {
+
+    /** File numbers, data groups are numbered 1 - 16 */
+    public static final int COM   = 0;
+    public static final int DG1   = 1;
+    public static final int DG2   = 2;
+    public static final int DG3   = 3;
+    public static final int DG4   = 4;
+    public static final int DG5   = 5;
+    public static final int DG6   = 6;
+    public static final int DG7   = 7;
+    public static final int DG8   = 8;
+    public static final int DG9   = 9;
+    public static final int DG10  = 10;
+    public static final int DG11  = 11;
+    public static final int DG12  = 12;
+    public static final int DG13  = 13;
+    public static final int DG14  = 14;
+    public static final int DG15  = 15;
+    public static final int DG16  = 16;
+    public static final int SOD   = 17;
+    public static final int COUNT = 18;
+
+    /** Bitmask of all data groups DG1 - DG16 */
+    public static final int ALL_DATA_GROUPS = 0x1FFFE;
+
+    /* File attributes indexed by number */
+    private static final short[] FIDS = {
+        LDSFile.EF_COM_FID,
+        LDSFile.EF_DG1_FID,  LDSFile.EF_DG2_FID,  LDSFile.EF_DG3_FID,  LDSFile.EF_DG4_FID,
+        LDSFile.EF_DG5_FID,  LDSFile.EF_DG6_FID,  LDSFile.EF_DG7_FID,  LDSFile.EF_DG8_FID,
+        LDSFile.EF_DG9_FID,  LDSFile.EF_DG10_FID, LDSFile.EF_DG11_FID, LDSFile.EF_DG12_FID,
+        LDSFile.EF_DG13_FID, LDSFile.EF_DG14_FID, LDSFile.EF_DG15_FID, LDSFile.EF_DG16_FID,
+        LDSFile.EF_SOD_FID
+    };
+    private static final byte[] SFIS = {
+        LDSFile.EF_COM_SFI,
+        LDSFile.EF_DG1_SFI,  LDSFile.EF_DG2_SFI,  LDSFile.EF_DG3_SFI,  LDSFile.EF_DG4_SFI,
+        LDSFile.EF_DG5_SFI,  LDSFile.EF_DG6_SFI,  LDSFile.EF_DG7_SFI,  LDSFile.EF_DG8_SFI,
+        LDSFile.EF_DG9_SFI,  LDSFile.EF_DG10_SFI, LDSFile.EF_DG11_SFI, LDSFile.EF_DG12_SFI,
+        LDSFile.EF_DG13_SFI, LDSFile.EF_DG14_SFI, LDSFile.EF_DG15_SFI, LDSFile.EF_DG16_SFI,
+        LDSFile.EF_SOD_SFI
+    };
+    private static final int[] TAGS = {
+        LDSFile.EF_COM_TAG,
+        LDSFile.EF_DG1_TAG,  LDSFile.EF_DG2_TAG,  LDSFile.EF_DG3_TAG,  LDSFile.EF_DG4_TAG,
+        LDSFile.EF_DG5_TAG,  LDSFile.EF_DG6_TAG,  LDSFile.EF_DG7_TAG,  LDSFile.EF_DG8_TAG,
+        LDSFile.EF_DG9_TAG,  LDSFile.EF_DG10_TAG, LDSFile.EF_DG11_TAG, LDSFile.EF_DG12_TAG,
+        LDSFile.EF_DG13_TAG, LDSFile.EF_DG14_TAG, LDSFile.EF_DG15_TAG, LDSFile.EF_DG16_TAG,
+        LDSFile.EF_SOD_TAG
+    };
+
+    /* Reverse tables, file number or -1. All LDS tags are one byte, all FIDs are 01xx and SFIs are 5 bits */
+    private static final byte[] BY_TAG = new byte[256];
+    private static final byte[] BY_FID = new byte[256];
+    private static final byte[] BY_SFI = new byte[32];
+
+    static {
+        Arrays.fill(BY_TAG, (byte) -1);
+        Arrays.fill(BY_FID, (byte) -1);
+        Arrays.fill(BY_SFI, (byte) -1);
+        for (int n = 0; n < COUNT; n++) {
+            BY_TAG[TAGS[n]] = (byte) n;
+            BY_FID[FIDS[n] & 0xFF] = (byte) n;
+            BY_SFI[SFIS[n]] = (byte) n;
+        }
+    }
+
+    private DataGroups() {}
+
+    /** Returns file number of LDS file with given tag or -1 if tag is unknown */
+    public static int numberOfTag(int tag) {
+        return (tag & ~0xFF) == 0 ? BY_TAG[tag] : -1;
+    }
+
+    /** Returns file number of LDS file with given FID or -1 if FID is unknown */
+    public static int numberOfFid(short fid) {
+        return (fid & 0xFF00) == 0x0100 ? BY_FID[fid & 0xFF] : -1;
+    }
+
+    /** Returns file number of LDS file with given SFI or -1 if SFI is unknown */
+    public static int numberOfSfi(byte sfi) {
+        return (sfi & ~0x1F) == 0 ? BY_SFI[sfi] : -1;
+    }
+
+    /**
+     * Returns data group number (1 - 16) of file with given FID
+     * or 0 if file is not a data group.
+     */
+    public static int dataGroupOfFid(short fid) {
+        int n = numberOfFid(fid);
+        return n >= DG1 && n <= DG16 ? n : 0;
+    }
+
+    public static short fid(int number) {
+        return FIDS[number];
+    }
+
+    public static byte sfi(int number) {
+        return SFIS[number];
+    }
+
+    public static int tag(int number) {
+        return TAGS[number];
+    }
+
+    /** Returns bit of file number in presence bitmask */
+    public static int mask(int number) {
+        return 1 << number;
+    }
+
+    /** Returns file numbers of set bits in bitmask in ascending order */
+    public static int[] numbers(int mask) {
+        int[] numbers = new int[Integer.bitCount(mask)];
+        for (int i = 0; mask != 0; i++) {
+            numbers[i] = Integer.numberOfTrailingZeros(mask);
+            mask &= mask - 1;
+        }
+        return numbers;
+    }
+
+    /** Returns name of file, e.g. "DG14" or "EF.SOD" */
+    public static String name(int number) {
+        switch (number) {
+            case COM: return "EF.COM";
+            case SOD: return "EF.SOD";
+            default:  return "DG" + number;
+        }
+    }
+}
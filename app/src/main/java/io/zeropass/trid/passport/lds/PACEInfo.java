@@ -0,0 +1,85 @@
+/*
+* Copyright (c) 2018 ZeroPass
+* Distributed under the MIT software license, see the accompanying
+* file LICENSE or https://opensource.org/licenses/MIT.
+*/
+
+package io.zeropass.trid.passport.lds;
+
+/**
+ * PACEInfo ::= SEQUENCE {
+ *    protocol    OBJECT IDENTIFIER(id-PACE-DH-GM-3DES-CBC-CBC | ... | id-PACE-ECDH-CAM-AES-CBC-CMAC-256),
+ *    version     INTEGER, -- SHOULD be 2
+ *    parameterId INTEGER OPTIONAL
+ * }
+ * see ICAO 9303-11 section 9.2.1
+ */
+public class PACEInfo extends SecurityInfo {
+
+    /** Mappings */
+    public static final int MAPPING_GM  = 1; // generic mapping
+    public static final int MAPPING_IM  = 2; // integrated mapping
+    public static final int MAPPING_CAM = 3; // chip authentication mapping
+
+    private final int mVersion;
+    private final int mParameterId;
+
+    PACEInfo(SecurityInfo si) {
+        super(si);
+        if(getProtocol().length != SecurityInfoOID.ID_PACE.length + 2) {
+            throw new IllegalArgumentException("PACEInfo: invalid protocol");
+        }
+
+        mVersion = SecurityInfos.decodeInteger(getRequiredData());
+        mParameterId = getOptionalData() != null ? SecurityInfos.decodeInteger(getOptionalData()) : -1;
+    }
+
+    public int getVersion() {
+        return mVersion;
+    }
+
+    /* Returns standardized domain parameter id or -1 if not present */
+    public int getParameterId() {
+        return mParameterId;
+    }
+
+    /* Returns MAPPING_GM, MAPPING_IM, MAPPING_CAM or 0 if mapping is unknown */
+    public int getMapping() {
+        switch (getMappingId()) {
+            case 0x01:
+            case 0x02: return MAPPING_GM;
+            case 0x03:
+            case 0x04: return MAPPING_IM;
+            case 0x06: return MAPPING_CAM;
+            default:   return 0;
+        }
+    }
+
+    /* Returns true if key agreement algorithm is ECDH */
+    public boolean isECDH() {
+        int id = getMappingId();
+        return id == 0x02 || id == 0x04 || id == 0x06;
+    }
+
+    /* Returns session cipher algorithm name, "DESede" or "AES" */
+    public String getCipherAlgorithm() {
+        return getCipherId() == SecurityInfoOID.CA_3DES_CBC_CBC ? "DESede" : "AES";
+    }
+
+    /* Returns session key length in bytes */
+    public int getKeyLength() {
+        switch (getCipherId()) {
+            case SecurityInfoOID.CA_AES_CBC_CMAC_192: return 24;
+            case SecurityInfoOID.CA_AES_CBC_CMAC_256: return 32;
+            default: return 16;
+        }
+    }
+
+    private byte getMappingId() {
+        return getProtocol()[SecurityInfoOID.ID_PACE.length];
+    }
+
+    private byte getCipherId() {
+        return getProtocol()[getProtocol().length - 1];
+    }
+}
@@ -0,0 +1,355 @@
+/*
+* Copyright (c) 2018 ZeroPass
+* Distributed under the MIT software license, see the accompanying
+* file LICENSE or https://opensource.org/licenses/MIT.
+*/
+
+package io.zeropass.trid.passport.lds;
+
+import org.spongycastle.cert.X509CertificateHolder;
+import org.spongycastle.cert.jcajce.JcaX509CertificateConverter;
+import org.spongycastle.cms.CMSException;
+import org.spongycastle.cms.CMSSignedData;
+import org.spongycastle.cms.SignerInformation;
+import org.spongycastle.cms.jcajce.JcaSimpleSignerInfoVerifierBuilder;
+import org.spongycastle.operator.OperatorCreationException;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.security.cert.CertificateException;
+import java.security.cert.CertificateFactory;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.logging.Logger;
+
+import io.zeropass.trid.crypto.CryptoUtils;
+import io.zeropass.trid.tlv.ASN1Util;
+import io.zeropass.trid.tlv.TLVUtils;
+import io.zeropass.trid.tlv.TlvCursor;
+
+/**
+ * Document Security Object EF.SOD.
+ * EF.SOD is CMS SignedData with LDSSecurityObject as encapsulated content
+ * and contains hash values of all data groups signed by Document Signer.
+ * see ICAO 9303-10 section 4.6.2 and ICAO 9303-11 section 5.1
+ *
+ * LDSSecurityObject is decoded in place on the TLV layer when file is parsed.
+ * DS certificate and CMS structures needed for signature verification are decoded on first use.
+ */
+public class SODFile {
+    private static final Logger Journal = Logger.getLogger("io.trid.passport.lds.sod");
+
+    /* Precompiled OID values */
+    private static final byte[] OID_SIGNED_DATA         = ASN1Util.encodeOid("1.2.840.113549.1.7.2");
+    private static final byte[] OID_LDS_SECURITY_OBJECT = ASN1Util.encodeOid("2.23.136.1.1.1");
+    private static final byte[][] OID_DIGESTS = {
+        ASN1Util.encodeOid("1.3.14.3.2.26"),
+        ASN1Util.encodeOid("2.16.840.1.101.3.4.2.4"),
+        ASN1Util.encodeOid("2.16.840.1.101.3.4.2.1"),
+        ASN1Util.encodeOid("2.16.840.1.101.3.4.2.2"),
+        ASN1Util.encodeOid("2.16.840.1.101.3.4.2.3")
+    };
+    private static final String[] DIGEST_NAMES = { "SHA-1", "SHA-224", "SHA-256", "SHA-384", "SHA-512" };
+
+    private final byte[] mData;
+    private final String mDigestAlgorithm;
+
+    /* Data group numbers and offsets of hash values in mData */
+    private final int[] mDgNumbers;
+    private final int[] mDgHashOffs;
+    private final int[] mDgHashLen;
+
+    /* Offset and length of value of certificates [0] or -1 if not present */
+    private final int mCertsOffs;
+    private final int mCertsLen;
+
+    private CMSSignedData mSignedData = null;
+    private X509Certificate mDSCert = null;
+
+    private SODFile(byte[] data, String digestAlgorithm, int[] dgNumbers, int[] dgHashOffs, int[] dgHashLen, int certsOffs, int certsLen) {
+        mData = data;
+        mDigestAlgorithm = digestAlgorithm;
+        mDgNumbers  = dgNumbers;
+        mDgHashOffs = dgHashOffs;
+        mDgHashLen  = dgHashLen;
+        mCertsOffs  = certsOffs;
+        mCertsLen   = certsLen;
+    }
+
+    /**
+     * Parses EF.SOD file
+     */
+    public static SODFile fromBytes(byte[] sod) throws IOException {
+        if(sod == null || TLVUtils.getTag(sod, 0) != LDSFile.EF_SOD_TAG) {
+            throw new IOException("SODFile: invalid EF.SOD file");
+        }
+
+        /* ContentInfo ::= SEQUENCE { contentType OID, content [0] EXPLICIT SignedData } */
+        TlvCursor c = new TlvCursor(sod);
+        c.next();
+        c.enter();
+        expect(c, 0x30);
+        c.enter();
+        expect(c, 0x06);
+        if(!c.valueEquals(OID_SIGNED_DATA)) {
+            throw new IOException("SODFile: content is not CMS SignedData");
+        }
+        expect(c, 0xA0);
+        c.enter();
+
+        /* SignedData ::= SEQUENCE { version, digestAlgorithms SET, encapContentInfo, certificates [0] IMPLICIT OPTIONAL, crls [1] OPTIONAL, signerInfos SET } */
+        expect(c, 0x30);
+        c.enter();
+        expect(c, 0x02);
+        expect(c, 0x31);
+
+        /* EncapsulatedContentInfo ::= SEQUENCE { eContentType OID, eContent [0] EXPLICIT OCTET STRING } */
+        expect(c, 0x30);
+        c.enter();
+        expect(c, 0x06);
+        if(!c.valueEquals(OID_LDS_SECURITY_OBJECT)) {
+            throw new IOException("SODFile: encapsulated content is not LDSSecurityObject");
+        }
+        expect(c, 0xA0);
+        c.enter();
+        expect(c, 0x04);
+        int contentOffs = c.valueOffset();
+        int contentLen  = c.length();
+        c.exit();
+        c.exit();
+
+        int certsOffs = -1;
+        int certsLen  = 0;
+        if(c.next() && c.tag() == 0xA0) {
+            certsOffs = c.valueOffset();
+            certsLen  = c.length();
+        }
+
+        return parseLDSSecurityObject(sod, c.reset(sod, contentOffs, contentLen), certsOffs, certsLen);
+    }
+
+    /*
+     * LDSSecurityObject ::= SEQUENCE { version INTEGER, hashAlgorithm AlgorithmIdentifier,
+     *     dataGroupHashValues SEQUENCE OF DataGroupHash { dataGroupNumber INTEGER, dataGroupHashValue OCTET STRING }, ... }
+     */
+    private static SODFile parseLDSSecurityObject(byte[] sod, TlvCursor c, int certsOffs, int certsLen) throws IOException {
+        expect(c, 0x30);
+        c.enter();
+        expect(c, 0x02);
+
+        expect(c, 0x30);
+        c.enter();
+        expect(c, 0x06);
+        String digestAlgorithm = null;
+        for (int i = 0; i < OID_DIGESTS.length && digestAlgorithm == null; i++) {
+            if(c.valueEquals(OID_DIGESTS[i])) {
+                digestAlgorithm = DIGEST_NAMES[i];
+            }
+        }
+        if(digestAlgorithm == null) {
+            throw new IOException("SODFile: unsupported digest algorithm " + ASN1Util.oidToString(sod, c.valueOffset(), c.length()));
+        }
+        c.exit();
+
+        expect(c, 0x30);
+        c.enter();
+        int count = 0;
+        int[] numbers = new int[16];
+        int[] offs = new int[16];
+        int[] lens = new int[16];
+        while (c.next()) {
+            c.enter();
+            expect(c, 0x02);
+            int dgNumber = c.valueAsInt();
+            expect(c, 0x04);
+            if(count == numbers.length) {
+                numbers = Arrays.copyOf(numbers, count * 2);
+                offs    = Arrays.copyOf(offs, count * 2);
+                lens    = Arrays.copyOf(lens, count * 2);
+            }
+            numbers[count] = dgNumber;
+            offs[count]    = c.valueOffset();
+            lens[count]    = c.length();
+            count++;
+            c.exit();
+        }
+
+        return new SODFile(sod, digestAlgorithm, Arrays.copyOf(numbers, count), Arrays.copyOf(offs, count), Arrays.copyOf(lens, count), certsOffs, certsLen);
+    }
+
+    private static void expect(TlvCursor c, int tag) throws IOException {
+        if(!c.next() || c.tag() != tag) {
+            throw new IOException("SODFile: invalid EF.SOD, expected tag 0x" + Integer.toHexString(tag));
+        }
+    }
+
+    /** Returns name of the algorithm used to calculate data group hashes */
+    public String getDigestAlgorithm() {
+        return mDigestAlgorithm;
+    }
+
+    /** Returns hash value of data group or null if SOD doesn't contain hash of data group */
+    public byte[] getDataGroupHash(int dgNumber) {
+        for (int i = 0; i < mDgNumbers.length; i++) {
+            if(mDgNumbers[i] == dgNumber) {
+                return Arrays.copyOfRange(mData, mDgHashOffs[i], mDgHashOffs[i] + mDgHashLen[i]);
+            }
+        }
+        return null;
+    }
+
+    /** Returns true if hash value of data group equals hash */
+    public boolean matchesDataGroupHash(int dgNumber, byte[] hash) {
+        for (int i = 0; i < mDgNumbers.length; i++) {
+            if(mDgNumbers[i] == dgNumber) {
+                if(hash.length != mDgHashLen[i]) {
+                    return false;
+                }
+
+                int diff = 0;
+                for (int j = 0; j < hash.length; j++) {
+                    diff |= hash[j] ^ mData[mDgHashOffs[i] + j];
+                }
+                return diff == 0;
+            }
+        }
+        return false;
+    }
+
+    /** Returns numbers of data groups which hash value is stored in SOD */
+    public int[] getDataGroupNumbers() {
+        return mDgNumbers.clone();
+    }
+
+    /**
+     * Returns DER encoded certificates stored in SOD. Certificates are not decoded, see CertificateView.
+     */
+    public List<byte[]> getCertificatesEncoded() throws IOException {
+        List<byte[]> certs = new ArrayList<>(1);
+        if(mCertsOffs < 0) {
+            return certs;
+        }
+
+        TlvCursor c = new TlvCursor().reset(mData, mCertsOffs, mCertsLen);
+        while (c.next()) {
+            if(c.tag() == 0x30) {
+                certs.add(c.getEncoded());
+            }
+        }
+        return certs;
+    }
+
+    /** Returns Document Signer certificate stored in SOD or null if certificate is not present */
+    public X509Certificate getDocumentSignerCertificate() throws GeneralSecurityException {
+        if(mDSCert == null) {
+            List<byte[]> encoded;
+            try {
+                encoded = getCertificatesEncoded();
+            } catch (IOException e) {
+                throw new CertificateException("SODFile: invalid certificates e=" + e.getMessage());
+            }
+
+            /* SOD usually contains only DS certificate which can be decoded without decoding CMS structures */
+            if(encoded.size() == 1) {
+                mDSCert = (X509Certificate) CertificateFactory.getInstance("X.509", CryptoUtils.getSpongyCastleProvider())
+                        .generateCertificate(new ByteArrayInputStream(encoded.get(0)));
+                return mDSCert;
+            }
+
+            SignerInformation signer = getSigner();
+            if(signer == null) {
+                return null;
+            }
+
+            Collection<X509CertificateHolder> certs;
+            try {
+                @SuppressWarnings("unchecked")
+                Collection<X509CertificateHolder> matches = getSignedData().getCertificates().getMatches(signer.getSID());
+                certs = matches;
+            } catch (CMSException e) {
+                throw new CertificateException("SODFile: failed to decode CMS SignedData e=" + e.getMessage());
+            }
+            if(certs.isEmpty()) {
+                return null;
+            }
+
+            mDSCert = new JcaX509CertificateConverter()
+                    .setProvider(CryptoUtils.getSpongyCastleProvider())
+                    .getCertificate(certs.iterator().next());
+        }
+        return mDSCert;
+    }
+
+    /**
+     * Verifies Document Signer signature over LDSSecurityObject with DS certificate stored in SOD.
+     * Note: DS certificate is not verified against CSCA.
+     */
+    public boolean verifySignature() {
+        try {
+            X509Certificate dsCert = getDocumentSignerCertificate();
+            if(dsCert == null) {
+                Journal.warning("verifySignature: DS certificate is not present in SOD");
+                return false;
+            }
+            return verifySignature(dsCert);
+        } catch (GeneralSecurityException e) {
+            Journal.warning("verifySignature: failed to decode DS certificate e=" + e.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * Verifies Document Signer signature over LDSSecurityObject.
+     * Signed attributes including message digest of LDSSecurityObject are verified.
+     */
+    public boolean verifySignature(X509Certificate dsCert) {
+        SignerInformation signer = getSigner();
+        if(signer == null) {
+            return false;
+        }
+
+        try {
+            return signer.verify(new JcaSimpleSignerInfoVerifierBuilder()
+                    .setProvider(CryptoUtils.getSpongyCastleProvider())
+                    .build(dsCert));
+        } catch (CMSException | OperatorCreationException e) {
+            Journal.warning("verifySignature: An exception was thrown e=" + e.getMessage());
+            return false;
+        }
+    }
+
+    /* CMS structures are decoded only for signature verification */
+    private synchronized CMSSignedData getSignedData() throws CMSException {
+        if(mSignedData == null) {
+            try {
+                TlvCursor c = new TlvCursor(mData);
+                c.next();
+                c.enter();
+                c.next();
+                mSignedData = new CMSSignedData(c.getEncoded());
+            } catch (IOException e) {
+                throw new CMSException("SODFile: invalid EF.SOD", e);
+            }
+        }
+        return mSignedData;
+    }
+
+    private SignerInformation getSigner() {
+        Collection<SignerInformation> signers;
+        try {
+            signers = getSignedData().getSignerInfos().getSigners();
+        } catch (CMSException e) {
+            Journal.warning("SODFile: failed to decode CMS SignedData e=" + e.getMessage());
+            return null;
+        }
+        if(signers.size() != 1) {
+            Journal.warning("SODFile: expected exactly one signer, found " + signers.size());
+            return null;
+        }
+        return signers.iterator().next();
+    }
+}
@@ -0,0 +1,59 @@
+/*
+* Copyright (c) 2018 ZeroPass
+* Distributed under the MIT software license, see the accompanying
+* file LICENSE or https://opensource.org/licenses/MIT.
+*/
+
+package io.zeropass.trid.passport.lds;
+
+import io.zeropass.trid.Utils;
+
+/**
+ * SecurityInfo ::= SEQUENCE {
+ *    protocol     OBJECT IDENTIFIER,
+ *    requiredData ANY DEFINED BY protocol,
+ *    optionalData ANY DEFINED BY protocol OPTIONAL
+ * }
+ * see ICAO 9303-11 section 9.2
+ */
+public class SecurityInfo {
+    private final byte[] mProtocol;     // OID content bytes
+    private final byte[] mRequiredData; // raw TLV
+    private final byte[] mOptionalData; // raw TLV or null
+
+    public SecurityInfo(byte[] protocol, byte[] requiredData, byte[] optionalData) {
+        if(protocol == null || requiredData == null) {
+            throw new IllegalArgumentException("SecurityInfo: protocol or requiredData is null");
+        }
+
+        mProtocol = protocol;
+        mRequiredData = requiredData;
+        mOptionalData = optionalData;
+    }
+
+    protected SecurityInfo(SecurityInfo si) {
+        this(si.mProtocol, si.mRequiredData, si.mOptionalData);
+    }
+
+    public byte[] getProtocol() {
+        return mProtocol;
+    }
+
+    public byte[] getRequiredData() {
+        return mRequiredData;
+    }
+
+    public byte[] getOptionalData() {
+        return mOptionalData;
+    }
+
+    /* Returns true if protocol OID is equal to or starts with given OID */
+    public boolean isProtocol(byte[] oid) {
+        return oid.length <= mProtocol.length && Utils.memcmp(oid, mProtocol);
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getSimpleName() + "(protocol=" + Utils.hexToStr(mProtocol) + ")";
+    }
+}
@@ -0,0 +1,54 @@
+/*
+* Copyright (c) 2018 ZeroPass
+* Distributed under the MIT software license, see the accompanying
+* file LICENSE or https://opensource.org/licenses/MIT.
+*/
+
+package io.zeropass.trid.passport.lds;
+
+/** DER encoded (content bytes only) object identifiers of SecurityInfo protocols
+ * see ICAO 9303-11 section 9.2 and BSI TR-03110-3 appendix A.1 */
+public interface SecurityInfoOID {
+
+    /** bsi-de 0.4.0.127.0.7 */
+    public static final byte[] BSI_DE          = { 0x04, 0x00, 0x7F, 0x00, 0x07 };
+
+    /** id-PK 0.4.0.127.0.7.2.2.1 */
+    public static final byte[] ID_PK           = { 0x04, 0x00, 0x7F, 0x00, 0x07, 0x02, 0x02, 0x01 };
+    public static final byte[] ID_PK_DH        = { 0x04, 0x00, 0x7F, 0x00, 0x07, 0x02, 0x02, 0x01, 0x01 };
+    public static final byte[] ID_PK_ECDH      = { 0x04, 0x00, 0x7F, 0x00, 0x07, 0x02, 0x02, 0x01, 0x02 };
+
+    /** id-CA 0.4.0.127.0.7.2.2.3 */
+    public static final byte[] ID_CA           = { 0x04, 0x00, 0x7F, 0x00, 0x07, 0x02, 0x02, 0x03 };
+    public static final byte[] ID_CA_DH        = { 0x04, 0x00, 0x7F, 0x00, 0x07, 0x02, 0x02, 0x03, 0x01 };
+    public static final byte[] ID_CA_ECDH      = { 0x04, 0x00, 0x7F, 0x00, 0x07, 0x02, 0x02, 0x03, 0x02 };
+
+    /** Last arc of id-CA-DH-* and id-CA-ECDH-* defines session cipher */
+    public static final byte CA_3DES_CBC_CBC    = 0x01;
+    public static final byte CA_AES_CBC_CMAC_128 = 0x02;
+    public static final byte CA_AES_CBC_CMAC_192 = 0x03;
+    public static final byte CA_AES_CBC_CMAC_256 = 0x04;
+
+    /** id-TA 0.4.0.127.0.7.2.2.2 */
+    public static final byte[] ID_TA           = { 0x04, 0x00, 0x7F, 0x00, 0x07, 0x02, 0x02, 0x02 };
+
+    /** id-PACE 0.4.0.127.0.7.2.2.4, last arc of id-PACE-* defines session cipher as for id-CA-* */
+    public static final byte[] ID_PACE          = { 0x04, 0x00, 0x7F, 0x00, 0x07, 0x02, 0x02, 0x04 };
+    public static final byte[] ID_PACE_DH_GM    = { 0x04, 0x00, 0x7F, 0x00, 0x07, 0x02, 0x02, 0x04, 0x01 };
+    public static final byte[] ID_PACE_ECDH_GM  = { 0x04, 0x00, 0x7F, 0x00, 0x07, 0x02, 0x02, 0x04, 0x02 };
+    public static final byte[] ID_PACE_DH_IM    = { 0x04, 0x00, 0x7F, 0x00, 0x07, 0x02, 0x02, 0x04, 0x03 };
+    public static final byte[] ID_PACE_ECDH_IM  = { 0x04, 0x00, 0x7F, 0x00, 0x07, 0x02, 0x02, 0x04, 0x04 };
+    public static final byte[] ID_PACE_ECDH_CAM = { 0x04, 0x00, 0x7F, 0x00, 0x07, 0x02, 0x02, 0x04, 0x06 };
+
+    /** id-AA 2.23.136.1.1.5 */
+    public static final byte[] ID_AA           = { 0x67, (byte)0x81, 0x08, 0x01, 0x01, 0x05 };
+
+    /** ecdsa-plain-signatures 0.4.0.127.0.7.1.1.4.1, last arc defines digest (BSI TR-03111 section 5.2.1) */
+    public static final byte[] ECDSA_PLAIN_SIGNATURES = { 0x04, 0x00, 0x7F, 0x00, 0x07, 0x01, 0x01, 0x04, 0x01 };
+
+    /** ecdsa-with-SHA1 1.2.840.10045.4.1 */
+    public static final byte[] ECDSA_WITH_SHA1 = { 0x2A, (byte)0x86, 0x48, (byte)0xCE, 0x3D, 0x04, 0x01 };
+
+    /** ecdsa-with-SHA2 1.2.840.10045.4.3, last arc defines digest */
+    public static final byte[] ECDSA_WITH_SHA2 = { 0x2A, (byte)0x86, 0x48, (byte)0xCE, 0x3D, 0x04, 0x03 };
+}
@@ -0,0 +1,212 @@
+/*
+* Copyright (c) 2018 ZeroPass
+* Distributed under the MIT software license, see the accompanying
+* file LICENSE or https://opensource.org/licenses/MIT.
+*/
+
+package io.zeropass.trid.passport.lds;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.logging.Logger;
+
+import io.zeropass.trid.tlv.ASN1Constants;
+import io.zeropass.trid.tlv.TLVUtils;
+import io.zeropass.trid.tlv.TlvCursor;
+
+/**
+ * SecurityInfos ::= SET of SecurityInfo
+ * Stored in DG14 and EF.CardAccess.
+ * see ICAO 9303-11 section 9.2
+ */
+public class SecurityInfos {
+    private static final Logger Journal = Logger.getLogger("io.trid.passport.lds.secinfos");
+
+    private static final int SET_TAG      = 0x31;
+    private static final int SEQUENCE_TAG = 0x30;
+
+    private final List<SecurityInfo> mInfos;
+
+    private SecurityInfos(List<SecurityInfo> infos) {
+        mInfos = Collections.unmodifiableList(infos);
+    }
+
+    /**
+     * Parses SecurityInfos from EF.DG14 file
+     */
+    public static SecurityInfos fromDG14(byte[] dg14) throws IOException {
+        if(dg14 == null) {
+            throw new IOException("SecurityInfos: invalid DG14 file");
+        }
+
+        TlvCursor c = new TlvCursor(dg14);
+        if(!c.next() || c.tag() != LDSFile.EF_DG14_TAG) {
+            throw new IOException("SecurityInfos: invalid DG14 file");
+        }
+        return parse(dg14, c.valueOffset(), c.length());
+    }
+
+    /**
+     * Parses DER encoded SET of SecurityInfo (e.g. content of EF.CardAccess)
+     */
+    public static SecurityInfos fromBytes(byte[] data) throws IOException {
+        if(data == null) {
+            throw new IOException("SecurityInfos: expected SET");
+        }
+        return parse(data, 0, data.length);
+    }
+
+    private static SecurityInfos parse(byte[] data, int offs, int len) throws IOException {
+        TlvCursor c = new TlvCursor().reset(data, offs, len);
+        if(!c.next() || c.tag() != SET_TAG) {
+            throw new IOException("SecurityInfos: expected SET");
+        }
+
+        List<SecurityInfo> infos = new ArrayList<>();
+        c.enter();
+        while (c.next()) {
+            infos.add(decodeSecurityInfo(c));
+        }
+
+        return new SecurityInfos(infos);
+    }
+
+    public List<SecurityInfo> getAll() {
+        return mInfos;
+    }
+
+    public List<ChipAuthenticationInfo> getChipAuthenticationInfos() {
+        return getInfos(ChipAuthenticationInfo.class);
+    }
+
+    public List<ChipAuthenticationPublicKeyInfo> getChipAuthenticationPublicKeyInfos() {
+        return getInfos(ChipAuthenticationPublicKeyInfo.class);
+    }
+
+    public List<PACEInfo> getPACEInfos() {
+        return getInfos(PACEInfo.class);
+    }
+
+    /**
+     * Returns TerminalAuthenticationInfo or null if there is none
+     */
+    public TerminalAuthenticationInfo getTerminalAuthenticationInfo() {
+        List<TerminalAuthenticationInfo> infos = getInfos(TerminalAuthenticationInfo.class);
+        return infos.isEmpty() ? null : infos.get(0);
+    }
+
+    /**
+     * Returns ActiveAuthenticationInfo or null if there is none
+     */
+    public ActiveAuthenticationInfo getActiveAuthenticationInfo() {
+        List<ActiveAuthenticationInfo> infos = getInfos(ActiveAuthenticationInfo.class);
+        return infos.isEmpty() ? null : infos.get(0);
+    }
+
+    /**
+     * Returns ChipAuthenticationInfo for given keyId or null if there is none.
+     * If keyId is null, first ChipAuthenticationInfo is returned.
+     */
+    public ChipAuthenticationInfo getChipAuthenticationInfo(byte[] keyId) {
+        for (ChipAuthenticationInfo cai : getChipAuthenticationInfos()) {
+            if(keyId == null || cai.getKeyId() == null || Arrays.equals(keyId, cai.getKeyId())) {
+                return cai;
+            }
+        }
+        return null;
+    }
+
+    private <T extends SecurityInfo> List<T> getInfos(Class<T> type) {
+        List<T> infos = new ArrayList<>();
+        for (SecurityInfo si : mInfos) {
+            if(type.isInstance(si)) {
+                infos.add(type.cast(si));
+            }
+        }
+        return infos;
+    }
+
+    /* Decodes SecurityInfo at cursor, cursor is left on the SecurityInfo */
+    private static SecurityInfo decodeSecurityInfo(TlvCursor c) throws IOException {
+        if(c.tag() != SEQUENCE_TAG) {
+            throw new IOException("SecurityInfos: expected SEQUENCE");
+        }
+
+        c.enter();
+
+        /* protocol */
+        if(!c.next() || c.tag() != ASN1Constants.OBJECT_IDENTIFIER_TYPE_TAG) {
+            throw new IOException("SecurityInfos: expected protocol OID");
+        }
+        byte[] protocol = c.getValue();
+
+        /* requiredData */
+        if(!c.next()) {
+            throw new IOException("SecurityInfos: missing requiredData");
+        }
+        byte[] requiredData = c.getEncoded();
+
+        /* optionalData */
+        byte[] optionalData = c.next() ? c.getEncoded() : null;
+        c.exit();
+
+        SecurityInfo si = new SecurityInfo(protocol, requiredData, optionalData);
+        try {
+            if(si.isProtocol(SecurityInfoOID.ID_PK)) {
+                return new ChipAuthenticationPublicKeyInfo(si);
+            }
+            else if(isProtocolVariant(si, SecurityInfoOID.ID_CA)) {
+                return new ChipAuthenticationInfo(si);
+            }
+            else if(si.isProtocol(SecurityInfoOID.ID_AA)) {
+                return new ActiveAuthenticationInfo(si);
+            }
+            else if(isProtocolVariant(si, SecurityInfoOID.ID_PACE)) {
+                return new PACEInfo(si);
+            }
+            else if(si.isProtocol(SecurityInfoOID.ID_TA)) {
+                return new TerminalAuthenticationInfo(si);
+            }
+        }
+        catch (IllegalArgumentException e) {
+            Journal.warning("decodeSecurityInfo: failed to decode " + si + " e=" + e.getMessage());
+        }
+
+        return si;
+    }
+
+    /*
+    *  Returns true if protocol is id-<protocol>-<key agreement>-<cipher>.
+    *  Domain parameter infos (id-CA-DH, id-PACE-ECDH-GM, ...) share the prefix but have one arc less,
+    *  these are kept as generic SecurityInfo.
+    */
+    private static boolean isProtocolVariant(SecurityInfo si, byte[] oid) {
+        return si.isProtocol(oid) && si.getProtocol().length == oid.length + 2;
+    }
+
+    /* Returns value of TLV */
+    static byte[] getValue(byte[] tlv) {
+        return TLVUtils.getValue(tlv);
+    }
+
+    /* Decodes DER encoded INTEGER to int */
+    static int decodeInteger(byte[] tlv) {
+        if(tlv[0] != ASN1Constants.INTEGER_TYPE_TAG) {
+            throw new IllegalArgumentException("Expected INTEGER");
+        }
+
+        byte[] value = getValue(tlv);
+        if(value == null || value.length > 4) {
+            throw new IllegalArgumentException("Invalid INTEGER");
+        }
+
+        int n = 0;
+        for (byte b : value) {
+            n = (n << 8) | (b & 0xFF);
+        }
+        return n;
+    }
+}
@@ -0,0 +1,28 @@
+/*
+* Copyright (c) 2018 ZeroPass
+* Distributed under the MIT software license, see the accompanying
+* file LICENSE or https://opensource.org/licenses/MIT.
+*/
+
+package io.zeropass.trid.passport.lds;
+
+/**
+ * TerminalAuthenticationInfo ::= SEQUENCE {
+ *    protocol OBJECT IDENTIFIER(id-TA),
+ *    version  INTEGER, -- MUST be 1
+ *    efCVCA   FileID OPTIONAL -- MUST NOT be used for version 2
+ * }
+ * see BSI TR-03110-3 section A.1.1.3
+ */
+public class TerminalAuthenticationInfo extends SecurityInfo {
+    private final int mVersion;
+
+    TerminalAuthenticationInfo(SecurityInfo si) {
+        super(si);
+        mVersion = SecurityInfos.decodeInteger(getRequiredData());
+    }
+
+    public int getVersion() {
+        return mVersion;
+    }
+}
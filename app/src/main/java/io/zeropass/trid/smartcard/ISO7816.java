@@ -20,6 +20,8 @@ public interface ISO7816 {
     static final byte INS_GET_CHALLENGE                 = (byte)0x84;
     static final byte INS_EXTERNAL_AUTHENTICATE         = (byte)0x82;
     static final byte INS_INTERNAL_AUTHENTICATE         = (byte)0x88;
+    static final byte INS_GENERAL_AUTHENTICATE          = (byte)0x86;
+    static final byte INS_MSE                           = (byte)0x22;
     static final byte INS_READ_BINARY                   = (byte)0xB0;
     static final byte INS_READ_BINARY2                  = (byte)0xB1;
     static final byte INS_SELECT                        = (byte)0xA4;
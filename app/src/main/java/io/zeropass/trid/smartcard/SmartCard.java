@@ -12,12 +12,20 @@ import io.zeropass.trid.com.ApduCmd;
 import io.zeropass.trid.com.ApduResult;
 import io.zeropass.trid.com.ComProvider;
 import io.zeropass.trid.crypto.SessionCipher;
+import io.zeropass.trid.tlv.TLVUtils;
 
 /**
  * Created by smlu on 1. 02. 2018.
  */
 
 public class SmartCard {
+
+    /** Max offset which can be encoded in P1-P2 of READ BINARY with even INS */
+    public static final int MAX_SHORT_OFFSET = 0x7FFF;
+
+    private static final int OFFSET_DO_TAG        = 0x54;
+    private static final int DISCRETIONARY_DO_TAG = 0x53;
+
     private ComProvider provider;
     public SmartCard(ComProvider provider) {
         this.provider = provider;
@@ -47,11 +55,73 @@ public class SmartCard {
         return transceive(new ApduCmd(ISO7816.CLA_NO_SM, ISO7816.INS_READ_BINARY, p1, p2, le));
     }
 
+    /**
+     * Reads len bytes of currently selected file at offset.
+     * See readBinaryCmd for offsets above MAX_SHORT_OFFSET.
+     */
     protected ApduResult readBinary(int offset, int len) throws IOException {
-        byte offsetHi = (byte) ((offset & 0xFF00) >> 8);
-        byte offsetLo = (byte) (offset & 0xFF);
+        return unwrapReadBinary(transceive(readBinaryCmd(offset, len)), offset);
+    }
+
+    /**
+     * Reads binary at offset and hints that the next command will read nextLen bytes
+     * following this chunk. No hint is given if nextLen is 0.
+     */
+    protected ApduResult readBinaryChunk(int offset, int len, int nextLen) throws IOException {
+        ApduCmd next = null;
+        if(nextLen > 0) {
+            next = readBinaryCmd(offset + len, nextLen);
+        }
+        return unwrapReadBinary(transceive(readBinaryCmd(offset, len), next), offset);
+    }
+
+    /*
+    *  Offsets up to MAX_SHORT_OFFSET are encoded in P1-P2 of READ BINARY (B0).
+    *  Larger offsets are encoded in offset data object 54 of READ BINARY with odd INS (B1),
+    *  Le is increased for header of data object 53 which encapsulates response data.
+    *  see ISO/IEC 7816-4 section 11.2.3 and ICAO 9303-10 section 3.6.3
+    */
+    private static ApduCmd readBinaryCmd(int offset, int len) {
+        if(offset < 0) {
+            throw new IllegalArgumentException("readBinary: invalid offset " + offset);
+        }
+
+        if(offset <= MAX_SHORT_OFFSET) {
+            byte offsetHi = (byte) ((offset & 0x7F00) >> 8);
+            byte offsetLo = (byte) (offset & 0xFF);
+            return new ApduCmd(ISO7816.CLA_NO_SM, ISO7816.INS_READ_BINARY, offsetHi, offsetLo, len);
+        }
+
+        int offsetLen = offset > 0xFFFFFF ? 4 : offset > 0xFFFF ? 3 : 2;
+        byte[] offsetDO = new byte[2 + offsetLen];
+        offsetDO[0] = (byte) OFFSET_DO_TAG;
+        offsetDO[1] = (byte) offsetLen;
+        for (int i = 0; i < offsetLen; i++) {
+            offsetDO[2 + i] = (byte) (offset >> (8 * (offsetLen - 1 - i)));
+        }
+
+        int le = len + 1 + TLVUtils.getLengthBytesCount(len);
+        return new ApduCmd(ISO7816.CLA_NO_SM, ISO7816.INS_READ_BINARY2, 0x00, 0x00, offsetDO, le);
+    }
 
-        return readBinary(offsetHi, offsetLo, len);
+    /* Returns result of READ BINARY with odd INS with data extracted from data object 53 */
+    private static ApduResult unwrapReadBinary(ApduResult result, int offset) throws IOException {
+        if(result == null || offset <= MAX_SHORT_OFFSET || result.data() == null) {
+            return result;
+        }
+
+        byte[] data = result.data();
+        int lenBytes = TLVUtils.getLengthBytesCount(data, 1);
+        int valueLen = (lenBytes > 0 && lenBytes <= 4) ? TLVUtils.getDataLength(data, 1) : -1;
+        if((data[0] & 0xFF) != DISCRETIONARY_DO_TAG || valueLen < 0 || 1 + lenBytes + valueLen > data.length) {
+            throw new IOException("readBinary: invalid response to READ BINARY with odd INS");
+        }
+
+        byte[] raw = new byte[valueLen + 2];
+        System.arraycopy(data, 1 + lenBytes, raw, 0, valueLen);
+        raw[valueLen]     = (byte) (result.statusCode() >> 8);
+        raw[valueLen + 1] = (byte) result.statusCode();
+        return new ApduResult(raw);
     }
 
 
@@ -65,6 +135,14 @@ public class SmartCard {
         return transceive(apdu);
     }
 
+    protected ApduResult manageSecurityEnvironment(int p1, int p2, byte[] data) throws IOException {
+        return transceive(new ApduCmd(ISO7816.CLA_NO_SM, ISO7816.INS_MSE, p1, p2, data));
+    }
+
+    protected ApduResult generalAuthenticate(byte[] data, int le) throws IOException {
+        return transceive(new ApduCmd(ISO7816.CLA_NO_SM, ISO7816.INS_GENERAL_AUTHENTICATE, 0x00, 0x00, data, le));
+    }
+
     protected void setSession(SessionCipher cipher) {
         provider.setSession(cipher);
     }
@@ -72,4 +150,8 @@ public class SmartCard {
     protected ApduResult transceive(ApduCmd cmd) throws IOException {
         return provider.transceive(cmd);
     }
+
+    protected ApduResult transceive(ApduCmd cmd, ApduCmd next) throws IOException {
+        return provider.transceive(cmd, next);
+    }
 }
@@ -7,18 +7,20 @@
 
 package io.zeropass.trid.tlv;
 
-import java.text.ParseException;
-import java.text.SimpleDateFormat;
+import java.io.IOException;
+import java.util.Date;
 import java.util.logging.Logger;
 
 
-class ASN1Util implements ASN1Constants {
+public final class ASN1Util implements ASN1Constants {
 
   private static final Logger Journal = Logger.getLogger("io.trid.asn1utils");
-  private static final String SDF = "yyMMddhhmmss'Z'";
+
+  private static final long MILLIS_PER_DAY = 86400000L;
+
+  private ASN1Util() {}
 
   static Object interpretPrimitiveValue(int tag, byte[] valueBytes) {
-    SimpleDateFormat sdf = new SimpleDateFormat(SDF);
     if (TLVUtils.getTagClass(tag) != UNIVERSAL_CLASS) {
       return valueBytes;
     }
@@ -40,14 +42,227 @@ class ASN1Util implements ASN1Constants {
       case BMP_STRING_TYPE_TAG:
         return new String(valueBytes);
       case UTC_TIME_TYPE_TAG:
+      case GENERALIZED_TIME_TYPE_TAG:
         try {
-          return sdf.parse(new String(valueBytes));
-        } catch (ParseException pe) {
-          Journal.warning("Error parsing UTC time" + pe);
+          return new Date(parseTime(tag, valueBytes, 0, valueBytes.length));
+        } catch (IOException e) {
+          Journal.warning("Error parsing time " + e.getMessage());
           return valueBytes;
         }
       default:
-        return valueBytes;          
+        return valueBytes;
+    }
+  }
+
+  /**
+   * Parses value of UTCTime or GeneralizedTime.
+   * @returns milliseconds since epoch
+   * @throws IOException if tag is not time type or value is malformed
+   */
+  public static long parseTime(int tag, byte[] data, int offs, int len) throws IOException {
+    switch (tag) {
+      case UTC_TIME_TYPE_TAG:
+        return parseUTCTime(data, offs, len);
+      case GENERALIZED_TIME_TYPE_TAG:
+        return parseGeneralizedTime(data, offs, len);
+      default:
+        throw new IOException("ASN1Util: tag 0x" + Integer.toHexString(tag) + " is not time");
+    }
+  }
+
+  /**
+   * Parses UTCTime value YYMMDDhhmm[ss](Z|(+|-)hhmm).
+   * Years 50 - 99 are 19YY, years 00 - 49 are 20YY (RFC 5280).
+   * @returns milliseconds since epoch
+   */
+  public static long parseUTCTime(byte[] data, int offs, int len) throws IOException {
+    int end = offs + len;
+    int p = offs;
+    int year = digits(data, p, 2, end);
+    year += year >= 50 ? 1900 : 2000;
+    p += 2;
+
+    int month  = digits(data, p, 2, end); p += 2;
+    int day    = digits(data, p, 2, end); p += 2;
+    int hour   = digits(data, p, 2, end); p += 2;
+    int minute = digits(data, p, 2, end); p += 2;
+    int second = 0;
+    if (p < end && isDigit(data[p])) {
+      second = digits(data, p, 2, end);
+      p += 2;
+    }
+
+    long millis = toEpochMillis(year, month, day, hour, minute, second, 0);
+    return millis - parseZone(data, p, end);
+  }
+
+  /**
+   * Parses GeneralizedTime value YYYYMMDDHH[MM[SS[(.|,)fff]]][Z|(+|-)hhmm].
+   * Time without zone is interpreted as UTC.
+   * @returns milliseconds since epoch
+   */
+  public static long parseGeneralizedTime(byte[] data, int offs, int len) throws IOException {
+    int end = offs + len;
+    int p = offs;
+    int year  = digits(data, p, 4, end); p += 4;
+    int month = digits(data, p, 2, end); p += 2;
+    int day   = digits(data, p, 2, end); p += 2;
+    int hour  = digits(data, p, 2, end); p += 2;
+    int minute = 0;
+    int second = 0;
+    int millis = 0;
+    if (p < end && isDigit(data[p])) {
+      minute = digits(data, p, 2, end);
+      p += 2;
+      if (p < end && isDigit(data[p])) {
+        second = digits(data, p, 2, end);
+        p += 2;
+      }
+    }
+
+    if (p < end && (data[p] == '.' || data[p] == ',')) {
+      p++;
+      int scale = 100;
+      int start = p;
+      while (p < end && isDigit(data[p])) {
+        millis += (data[p] - '0') * scale;
+        scale /= 10;
+        p++;
+      }
+      if (p == start) {
+        throw new IOException("ASN1Util: invalid fraction of time");
+      }
+    }
+
+    long t = toEpochMillis(year, month, day, hour, minute, second, millis);
+    return p == end ? t : t - parseZone(data, p, end);
+  }
+
+  /**
+   * Encodes OID in dotted notation (e.g. "2.23.136.1.1.1") to DER value bytes without tag and length.
+   * Intended for precompiling OID patterns which are then compared to encoded values, see TlvCursor.valueEquals.
+   */
+  public static byte[] encodeOid(String oid) {
+    String[] arcs = oid.split("\\.");
+    if (arcs.length < 2) {
+      throw new IllegalArgumentException("ASN1Util: invalid OID " + oid);
+    }
+
+    TlvWriter w = new TlvWriter(arcs.length * 2);
+    writeArc(w, Long.parseLong(arcs[0]) * 40 + Long.parseLong(arcs[1]));
+    for (int i = 2; i < arcs.length; i++) {
+      writeArc(w, Long.parseLong(arcs[i]));
+    }
+    return w.toByteArray();
+  }
+
+  /** Decodes OID value bytes to dotted notation */
+  public static String oidToString(byte[] data, int offs, int len) throws IOException {
+    StringBuilder sb = new StringBuilder();
+    long arc = 0;
+    boolean first = true;
+    for (int i = offs; i < offs + len; i++) {
+      arc = (arc << 7) | (data[i] & 0x7F);
+      if ((data[i] & 0x80) != 0) {
+        if (arc > (Long.MAX_VALUE >> 7)) {
+          throw new IOException("ASN1Util: OID arc too large");
+        }
+        continue;
+      }
+
+      if (first) {
+        int a = arc < 80 ? (int) (arc / 40) : 2;
+        sb.append(a).append('.').append(arc - a * 40);
+        first = false;
+      }
+      else {
+        sb.append('.').append(arc);
+      }
+      arc = 0;
+    }
+
+    if (first || (data[offs + len - 1] & 0x80) != 0) {
+      throw new IOException("ASN1Util: invalid OID encoding");
+    }
+    return sb.toString();
+  }
+
+  private static void writeArc(TlvWriter w, long arc) {
+    int n = 1;
+    while ((arc >>> (7 * n)) != 0) {
+      n++;
+    }
+    for (int i = n - 1; i >= 0; i--) {
+      w.writeByte((int) ((arc >>> (7 * i)) & 0x7F) | (i > 0 ? 0x80 : 0));
+    }
+  }
+
+  /* Returns offset of zone in milliseconds, zone is 'Z' or (+|-)hhmm */
+  private static long parseZone(byte[] data, int p, int end) throws IOException {
+    if (p == end - 1 && data[p] == 'Z') {
+      return 0;
+    }
+
+    if (p == end - 5 && (data[p] == '+' || data[p] == '-')) {
+      int hh = digits(data, p + 1, 2, end);
+      int mm = digits(data, p + 3, 2, end);
+      if (hh > 23 || mm > 59) {
+        throw new IOException("ASN1Util: invalid time zone");
+      }
+      long offset = (hh * 60L + mm) * 60000L;
+      return data[p] == '+' ? offset : -offset;
+    }
+
+    throw new IOException("ASN1Util: invalid time zone");
+  }
+
+  private static long toEpochMillis(int year, int month, int day, int hour, int minute, int second, int millis) throws IOException {
+    if (month < 1 || month > 12 || day < 1 || day > daysInMonth(year, month)
+        || hour > 23 || minute > 59 || second > 59) {
+      throw new IOException("ASN1Util: invalid time");
+    }
+
+    /* Days from civil date, see http://howardhinnant.github.io/date_algorithms.html */
+    int y = month <= 2 ? year - 1 : year;
+    int era = (y >= 0 ? y : y - 399) / 400;
+    int yoe = y - era * 400;
+    int doy = (153 * (month + (month > 2 ? -3 : 9)) + 2) / 5 + day - 1;
+    int doe = yoe * 365 + yoe / 4 - yoe / 100 + doy;
+    long days = era * 146097L + doe - 719468;
+
+    return days * MILLIS_PER_DAY + ((hour * 60L + minute) * 60L + second) * 1000L + millis;
+  }
+
+  private static int daysInMonth(int year, int month) {
+    switch (month) {
+      case 2:
+        return (year % 4 == 0 && (year % 100 != 0 || year % 400 == 0)) ? 29 : 28;
+      case 4:
+      case 6:
+      case 9:
+      case 11:
+        return 30;
+      default:
+        return 31;
     }
   }
+
+  private static int digits(byte[] data, int offs, int n, int end) throws IOException {
+    if (offs + n > end) {
+      throw new IOException("ASN1Util: truncated time");
+    }
+
+    int v = 0;
+    for (int i = offs; i < offs + n; i++) {
+      if (!isDigit(data[i])) {
+        throw new IOException("ASN1Util: invalid digit in time");
+      }
+      v = v * 10 + (data[i] - '0');
+    }
+    return v;
+  }
+
+  private static boolean isDigit(byte b) {
+    return b >= '0' && b <= '9';
+  }
 }
@@ -5,9 +5,7 @@
 */
 
 package io.zeropass.trid.tlv;
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
-import java.io.DataInputStream;
+import java.io.EOFException;
 import java.io.IOException;
 import io.zeropass.trid.Utils;
 
@@ -31,30 +29,20 @@ public class TLVUtils implements ASN1Constants {
      * @return tag
      */
     public static int getTag(byte[] data, int offs) throws IOException {
-        DataInputStream  inputStream = new DataInputStream(new ByteArrayInputStream(data, offs, data.length - offs));
-        int tag = -1;
-        int b = inputStream.readUnsignedByte();
-        switch (b & 0x1F) {
-            case 0x1F:
-                tag = b; /* We store the first byte including LHS nibble */
-                b = inputStream.readUnsignedByte();
+        if(offs >= data.length) {
+            throw new EOFException("getTag: no data at offset " + offs);
+        }
 
-                while ((b & 0x80) == 0x80) {
-                    tag <<= 8;
-                    tag |= (b & 0x7F);
-                    b = inputStream.readUnsignedByte();
+        int tag = data[offs] & 0xFF;
+        if((tag & 0x1F) == 0x1F) { // multi-byte tag, last byte has MSB cleared
+            int b;
+            do {
+                if(++offs >= data.length) {
+                    throw new EOFException("getTag: truncated tag");
                 }
-
-                tag <<= 8;
-                tag |= (b & 0x7F);
-                /*
-                * Byte with MSB set is last byte of
-           * tag...
-           */
-                break;
-            default:
-                tag = b;
-                break;
+                b = data[offs] & 0xFF;
+                tag = (tag << 8) | b;
+            } while ((b & 0x80) == 0x80);
         }
 
         return tag;
@@ -101,7 +89,7 @@ public class TLVUtils implements ASN1Constants {
      * @return number of bytes of serialized tag
      */
     public static int getTagBytesCount(int tag) {
-        return getTagAsBytes(tag).length;
+        return TlvWriter.tagSize(tag);
     }
 
     /**
@@ -117,20 +105,15 @@ public class TLVUtils implements ASN1Constants {
         }
 
         if ((data[offs] & 0x1F) == 0x1F) { // see subsequent bytes
-            int len = 2;
-            int endOffs = offs + 10;
-            offs++;
-
-            if(data.length < endOffs) {
-                throw new IllegalStateException(String.format("At position %d the end offset of data to read [%d] is greater then data len=%d", offs, endOffs, data.length));
-            }
-
-            for (int i = offs + 1; i < offs + 10; i++) {
-                if ((data[i] & 0x80) != 0x80) {
-                    break;
+            int len = 1;
+            int b;
+            do {
+                if(offs + len >= data.length) {
+                    throw new IllegalStateException(String.format("At position %d the tag is truncated, data len=%d", offs, data.length));
                 }
+                b = data[offs + len];
                 len++;
-            }
+            } while ((b & 0x80) == 0x80);
             return len;
         } else {
             return 1;
@@ -144,7 +127,7 @@ public class TLVUtils implements ASN1Constants {
      * @return number of bytes of serialized length
      */
     public static int getLengthBytesCount(int length) {
-        return getLengthAsBytes(length).length;
+        return TlvWriter.lengthSize(length);
     }
 
     /**
@@ -187,34 +170,8 @@ public class TLVUtils implements ASN1Constants {
      * @return serialized tag.
      */
     public static byte[] getTagAsBytes(int tag) {
-        ByteArrayOutputStream out = new ByteArrayOutputStream();
-
-        int byteCount = (int)(Math.log(tag) / Math.log(256)) + 1;
-        for (int i = 0; i < byteCount; i++) {
-            int pos = 8 * (byteCount - i - 1);
-            out.write((tag & (0xFF << pos)) >> pos);
-        }
-
-        byte[] tagBytes = out.toByteArray();
-        switch (getTagClass(tag)) {
-            case APPLICATION_CLASS:
-                tagBytes[0] |= 0x40;
-                break;
-            case CONTEXT_SPECIFIC_CLASS:
-                tagBytes[0] |= 0x80;
-                break;
-            case PRIVATE_CLASS:
-                tagBytes[0] |= 0xC0;
-                break;
-            default:
-                /* NOTE: Unsupported tag class. Now what? */
-                break;
-        }
-
-        if (!isPrimitive(tag)) {
-            tagBytes[0] |= 0x20;
-        }
-
+        byte[] tagBytes = new byte[TlvWriter.tagSize(tag)];
+        TlvWriter.encodeTag(tag, tagBytes, 0);
         return tagBytes;
     }
 
@@ -225,20 +182,9 @@ public class TLVUtils implements ASN1Constants {
      * @return serialized length
      */
     public static byte[] getLengthAsBytes(int length) {
-        ByteArrayOutputStream out = new ByteArrayOutputStream();
-        if (length < 0x80) {
-      /* short form */
-            out.write(length);
-        } else {
-            int byteCount = log(length, 256);
-            out.write(0x80 | byteCount);
-            for (int i = 0; i < byteCount; i++) {
-                int pos = 8 * (byteCount - i - 1);
-                out.write((length & (0xFF << pos)) >> pos);
-            }
-        }
-
-        return out.toByteArray();
+        byte[] lengthBytes = new byte[TlvWriter.lengthSize(length)];
+        TlvWriter.encodeLength(length, lengthBytes, 0);
+        return lengthBytes;
     }
 
     static int getTagClass(int tag) {
@@ -264,15 +210,6 @@ public class TLVUtils implements ASN1Constants {
         }
     }
 
-    private static int log(int n, int base) {
-        int result = 0;
-        while (n > 0) {
-            n = n / base;
-            result ++;
-        }
-        return result;
-    }
-
     /**
      * Get serialized TLV length from TLV fragment
      *
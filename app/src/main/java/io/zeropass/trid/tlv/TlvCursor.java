@@ -0,0 +1,371 @@
+/*
+* Copyright (c) 2018 ZeroPass
+* Distributed under the MIT software license, see the accompanying
+* file LICENSE or https://opensource.org/licenses/MIT.
+*/
+
+package io.zeropass.trid.tlv;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Cursor over BER-TLV encoded data which walks the data in place.
+ * Tag, length and value offset of the current element are exposed as primitives,
+ * navigation (next, enter, exit) doesn't allocate. The cursor can be reused for other data with reset.
+ *
+ * Tag is returned as integer of its serialized bytes, e.g. 0x5F1F or 0x7F61 (see TLVUtils.getTagAsBytes).
+ *
+ * Example:
+ * <pre>
+ *     TlvCursor c = new TlvCursor(dg2);
+ *     c.next();           // 75
+ *     c.enter();
+ *     c.find(0x7F61);     // biometric info group template
+ * </pre>
+ *
+ * Note: cursor is not thread-safe.
+ */
+public final class TlvCursor {
+    private static final int INITIAL_DEPTH = 8;
+
+    /* Data is either array or direct buffer, mArrayOffs is array index of buffer element 0 */
+    private byte[] mArray;
+    private int mArrayOffs;
+    private ByteBuffer mBuffer;
+
+    /* Current level [mStart, mEnd) and offset of the next element */
+    private int mStart;
+    private int mEnd;
+    private int mNext;
+
+    /* Current element */
+    private int mHeaderOffs = -1;
+    private int mTag;
+    private int mLength;
+    private int mValueOffs;
+    private boolean mConstructed;
+
+    /* Parent levels: header offset of the parent element and start/end of level which contains it */
+    private int mDepth = 0;
+    private int[] mParentHeader = new int[INITIAL_DEPTH];
+    private int[] mParentStart  = new int[INITIAL_DEPTH];
+    private int[] mParentEnd    = new int[INITIAL_DEPTH];
+
+    public TlvCursor() {}
+
+    public TlvCursor(byte[] data) {
+        reset(data, 0, data.length);
+    }
+
+    public TlvCursor(ByteBuffer data) {
+        reset(data);
+    }
+
+    /** Resets cursor to the beginning of data */
+    public TlvCursor reset(byte[] data) {
+        return reset(data, 0, data.length);
+    }
+
+    /** Resets cursor to the beginning of data[offs, offs + len) */
+    public TlvCursor reset(byte[] data, int offs, int len) {
+        if(offs < 0 || len < 0 || offs + len > data.length) {
+            throw new IndexOutOfBoundsException("TlvCursor: invalid range");
+        }
+        mArray  = data;
+        mArrayOffs = 0;
+        mBuffer = null;
+        return reset(offs, offs + len);
+    }
+
+    /**
+     * Resets cursor to remaining bytes of data.
+     * Offsets returned by cursor are absolute indices into the buffer (not into its backing array),
+     * for heap and direct buffers alike. Position of data is not changed.
+     */
+    public TlvCursor reset(ByteBuffer data) {
+        if(data.hasArray()) {
+            mArray  = data.array();
+            mArrayOffs = data.arrayOffset();
+            mBuffer = null;
+            return reset(data.position(), data.limit());
+        }
+
+        mArray  = null;
+        mBuffer = data;
+        return reset(data.position(), data.limit());
+    }
+
+    private TlvCursor reset(int start, int end) {
+        mStart = start;
+        mEnd   = end;
+        mNext  = start;
+        mDepth = 0;
+        mHeaderOffs = -1;
+        return this;
+    }
+
+    /**
+     * Moves to the next element on the current level.
+     * @returns false if there are no more elements on the current level
+     * @throws IOException if element is malformed or exceeds its parent
+     */
+    public boolean next() throws IOException {
+        if(mNext >= mEnd) {
+            mHeaderOffs = -1;
+            return false;
+        }
+
+        parseHeader(mNext, mEnd);
+        mNext = mValueOffs + mLength;
+        return true;
+    }
+
+    /**
+     * Moves to the next element on the current level with given tag.
+     * @returns false if no such element is found
+     */
+    public boolean find(int tag) throws IOException {
+        while (next()) {
+            if(mTag == tag) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Enters current constructed element. Call next to move to its first child.
+     * @throws IllegalStateException if cursor is not positioned on constructed element
+     */
+    public void enter() {
+        if(mHeaderOffs < 0 || !mConstructed) {
+            throw new IllegalStateException("TlvCursor: current element is not constructed");
+        }
+
+        if(mDepth == mParentHeader.length) {
+            mParentHeader = Arrays.copyOf(mParentHeader, mDepth * 2);
+            mParentStart  = Arrays.copyOf(mParentStart, mDepth * 2);
+            mParentEnd    = Arrays.copyOf(mParentEnd, mDepth * 2);
+        }
+
+        mParentHeader[mDepth] = mHeaderOffs;
+        mParentStart[mDepth]  = mStart;
+        mParentEnd[mDepth]    = mEnd;
+        mDepth++;
+
+        mStart = mValueOffs;
+        mEnd   = mValueOffs + mLength;
+        mNext  = mStart;
+        mHeaderOffs = -1;
+    }
+
+    /**
+     * Leaves current level. Cursor is positioned back on the parent element,
+     * so next moves to the sibling of the parent.
+     */
+    public void exit() throws IOException {
+        if(mDepth == 0) {
+            throw new IllegalStateException("TlvCursor: cursor is on top level");
+        }
+
+        mDepth--;
+        mStart = mParentStart[mDepth];
+        mEnd   = mParentEnd[mDepth];
+        parseHeader(mParentHeader[mDepth], mEnd);
+        mNext = mValueOffs + mLength;
+    }
+
+    /** Returns nesting depth of current level, top level is 0 */
+    public int depth() {
+        return mDepth;
+    }
+
+    /** Returns true if cursor is positioned on an element */
+    public boolean isValid() {
+        return mHeaderOffs >= 0;
+    }
+
+    public int tag() {
+        checkValid();
+        return mTag;
+    }
+
+    /** Returns length of value */
+    public int length() {
+        checkValid();
+        return mLength;
+    }
+
+    public boolean isConstructed() {
+        checkValid();
+        return mConstructed;
+    }
+
+    /** Returns offset of the first byte of tag */
+    public int headerOffset() {
+        checkValid();
+        return mHeaderOffs;
+    }
+
+    /** Returns offset of the first byte of value */
+    public int valueOffset() {
+        checkValid();
+        return mValueOffs;
+    }
+
+    /** Returns offset after the last byte of value */
+    public int valueEnd() {
+        checkValid();
+        return mValueOffs + mLength;
+    }
+
+    /** Returns length of the whole TLV (tag, length and value) */
+    public int encodedLength() {
+        checkValid();
+        return mValueOffs + mLength - mHeaderOffs;
+    }
+
+    /** Returns i-th byte of value */
+    public int valueByte(int i) {
+        checkValid();
+        if(i < 0 || i >= mLength) {
+            throw new IndexOutOfBoundsException("TlvCursor: index out of value");
+        }
+        return byteAt(mValueOffs + i);
+    }
+
+    /**
+     * Returns value as unsigned big-endian integer.
+     * @throws IOException if value is longer than 4 bytes
+     */
+    public int valueAsInt() throws IOException {
+        checkValid();
+        if(mLength > 4) {
+            throw new IOException("TlvCursor: value too long for integer, len=" + mLength);
+        }
+
+        int v = 0;
+        for (int i = 0; i < mLength; i++) {
+            v = (v << 8) | byteAt(mValueOffs + i);
+        }
+        return v;
+    }
+
+    /** Compares value to expected bytes, e.g. encoded OID */
+    public boolean valueEquals(byte[] expected) {
+        checkValid();
+        if(expected.length != mLength) {
+            return false;
+        }
+
+        for (int i = 0; i < mLength; i++) {
+            if(byteAt(mValueOffs + i) != (expected[i] & 0xFF)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /** Copies value to dst at dstOffs */
+    public void copyValue(byte[] dst, int dstOffs) {
+        checkValid();
+        copy(mValueOffs, dst, dstOffs, mLength);
+    }
+
+    /** Returns copy of value */
+    public byte[] getValue() {
+        checkValid();
+        byte[] value = new byte[mLength];
+        copy(mValueOffs, value, 0, mLength);
+        return value;
+    }
+
+    /** Returns copy of the whole TLV */
+    public byte[] getEncoded() {
+        checkValid();
+        byte[] tlv = new byte[encodedLength()];
+        copy(mHeaderOffs, tlv, 0, tlv.length);
+        return tlv;
+    }
+
+    /* Parses tag and length at offs, element must end before end */
+    private void parseHeader(int offs, int end) throws IOException {
+        int p = offs;
+        if(p >= end) {
+            throw new IOException("TlvCursor: missing tag at offset " + offs);
+        }
+
+        int b = byteAt(p++);
+        int tag = b;
+        boolean constructed = (b & 0x20) != 0;
+        if((b & 0x1F) == 0x1F) {
+            int n = 1;
+            do {
+                if(p >= end) {
+                    throw new IOException("TlvCursor: truncated tag at offset " + offs);
+                }
+                if(++n > 4) {
+                    throw new IOException("TlvCursor: tag longer than 4 bytes at offset " + offs);
+                }
+                b = byteAt(p++);
+                tag = (tag << 8) | b;
+            } while ((b & 0x80) != 0);
+        }
+
+        if(p >= end) {
+            throw new IOException("TlvCursor: missing length at offset " + offs);
+        }
+
+        int len = byteAt(p++);
+        if(len > 0x80) {
+            int n = len & 0x7F;
+            if(n > 4 || p + n > end) {
+                throw new IOException("TlvCursor: invalid length at offset " + offs);
+            }
+
+            len = 0;
+            for (int i = 0; i < n; i++) {
+                len = (len << 8) | byteAt(p++);
+            }
+            if(len < 0) {
+                throw new IOException("TlvCursor: invalid length at offset " + offs);
+            }
+        }
+        else if(len == 0x80) {
+            throw new IOException("TlvCursor: indefinite length is not supported, offset " + offs);
+        }
+
+        if(len > end - p) {
+            throw new IOException("TlvCursor: value exceeds parent at offset " + offs + " len=" + len);
+        }
+
+        mHeaderOffs  = offs;
+        mTag         = tag;
+        mConstructed = constructed;
+        mLength      = len;
+        mValueOffs   = p;
+    }
+
+    private int byteAt(int i) {
+        return (mArray != null ? mArray[mArrayOffs + i] : mBuffer.get(i)) & 0xFF;
+    }
+
+    private void copy(int offs, byte[] dst, int dstOffs, int len) {
+        if(mArray != null) {
+            System.arraycopy(mArray, mArrayOffs + offs, dst, dstOffs, len);
+        }
+        else {
+            ByteBuffer b = mBuffer.duplicate();
+            b.position(offs);
+            b.get(dst, dstOffs, len);
+        }
+    }
+
+    private void checkValid() {
+        if(mHeaderOffs < 0) {
+            throw new IllegalStateException("TlvCursor: cursor is not positioned on an element");
+        }
+    }
+}
@@ -0,0 +1,424 @@
+/*
+* Copyright (c) 2018 ZeroPass
+* Distributed under the MIT software license, see the accompanying
+* file LICENSE or https://opensource.org/licenses/MIT.
+*/
+
+package io.zeropass.trid.tlv;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+import io.zeropass.trid.crypto.HashService;
+
+/**
+ * Index of BER-TLV encoded data for repeated queries (e.g. EF.SOD, DG11, DG14).
+ * Elements are nodes identified by int, node data is stored in parallel int arrays.
+ * Children of a constructed node are indexed on first access and are stored as a contiguous block
+ * with an order sorted by tag, so child lookup by tag is binary search.
+ *
+ * Node ROOT represents the whole data, top level elements are its children.
+ * Elements are queried by tag path of hex tags, e.g. "77/30/A0" or "75/7F61/5F2E".
+ * Path segment can select n-th occurrence of tag with "[n]", e.g. "30/31/30[1]".
+ *
+ * Index can be saved with writeTo and loaded with readFrom for the same data.
+ * SHA-256 digest of data is saved with index, so index is not loaded for different data.
+ *
+ * Note: index is not thread-safe.
+ */
+public final class TlvIndex {
+    public static final int ROOT = 0;
+
+    private static final int MAGIC   = 0x544C5649; // "TLVI"
+    private static final int VERSION = 2;
+    private static final String DIGEST_ALGORITHM = "SHA-256";
+    private static final int INITIAL_NODES = 16;
+
+    private final byte[] mData;
+    private final TlvCursor mCursor = new TlvCursor();
+
+    /* Node arrays: header offset, value offset, value length, tag, first child, child count (-1 if not indexed) */
+    private int mSize = 0;
+    private int[] mHeader;
+    private int[] mValue;
+    private int[] mLength;
+    private int[] mTag;
+    private int[] mFirst;
+    private int[] mCount;
+    private boolean[] mConstructed;
+
+    /* Node ids of child block sorted by tag, parallel to node arrays */
+    private int[] mOrder;
+
+    public TlvIndex(byte[] data) {
+        this(data, 0, data.length);
+    }
+
+    /** Creates index of data[offs, offs + len) */
+    public TlvIndex(byte[] data, int offs, int len) {
+        if(offs < 0 || len < 0 || offs + len > data.length) {
+            throw new IndexOutOfBoundsException("TlvIndex: invalid range");
+        }
+
+        mData = data;
+        allocate(INITIAL_NODES);
+        addNode(0, offs, offs, len, true);
+    }
+
+    private TlvIndex(byte[] data, int capacity) {
+        mData = data;
+        allocate(capacity);
+    }
+
+    /** Returns indexed data */
+    public byte[] data() {
+        return mData;
+    }
+
+    /** Returns number of indexed nodes including ROOT */
+    public int size() {
+        return mSize;
+    }
+
+    /**
+     * Returns node at tag path or -1 if there is no such node.
+     * @param path hex tags separated by '/', e.g. "77/30/A0"
+     * @throws IOException if data on the path is malformed
+     * @throws IllegalArgumentException if path is invalid
+     */
+    public int find(String path) throws IOException {
+        int node = ROOT;
+        int start = 0;
+        while (node >= 0 && start < path.length()) {
+            int end = path.indexOf('/', start);
+            if(end < 0) {
+                end = path.length();
+            }
+
+            int occurrence = 0;
+            int tagEnd = end;
+            int bracket = path.indexOf('[', start);
+            if(bracket >= 0 && bracket < end) {
+                if(path.charAt(end - 1) != ']') {
+                    throw new IllegalArgumentException("TlvIndex: invalid path " + path);
+                }
+                occurrence = parseInt(path, bracket + 1, end - 1, 10);
+                tagEnd = bracket;
+            }
+
+            node  = findChild(node, parseInt(path, start, tagEnd, 16), occurrence);
+            start = end + 1;
+        }
+        return node;
+    }
+
+    /**
+     * Returns node at tag path or -1 if there is no such node.
+     */
+    public int find(int... tags) throws IOException {
+        int node = ROOT;
+        for (int i = 0; i < tags.length && node >= 0; i++) {
+            node = findChild(node, tags[i], 0);
+        }
+        return node;
+    }
+
+    /** Returns the first child of node with tag or -1 */
+    public int findChild(int node, int tag) throws IOException {
+        return findChild(node, tag, 0);
+    }
+
+    /** Returns n-th child of node with tag or -1 */
+    public int findChild(int node, int tag, int occurrence) throws IOException {
+        int count = childCount(node);
+        int first = mFirst[node];
+
+        /* Lower bound of tag in sorted block */
+        int lo = first;
+        int hi = first + count;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if(compareTags(mTag[mOrder[mid]], tag) < 0) {
+                lo = mid + 1;
+            }
+            else {
+                hi = mid;
+            }
+        }
+
+        int i = lo + occurrence;
+        if(occurrence < 0 || i >= first + count || mTag[mOrder[i]] != tag) {
+            return -1;
+        }
+        return mOrder[i];
+    }
+
+    /**
+     * Returns number of children of node, primitive nodes have no children.
+     * @throws IOException if children are malformed
+     */
+    public int childCount(int node) throws IOException {
+        checkNode(node);
+        if(mCount[node] < 0) {
+            indexChildren(node);
+        }
+        return mCount[node];
+    }
+
+    /** Returns i-th child of node in encoding order */
+    public int child(int node, int i) throws IOException {
+        if(i < 0 || i >= childCount(node)) {
+            throw new IndexOutOfBoundsException("TlvIndex: invalid child index " + i);
+        }
+        return mFirst[node] + i;
+    }
+
+    /** Returns tag of node, ROOT has tag 0 */
+    public int tag(int node) {
+        checkNode(node);
+        return mTag[node];
+    }
+
+    public int length(int node) {
+        checkNode(node);
+        return mLength[node];
+    }
+
+    public boolean isConstructed(int node) {
+        checkNode(node);
+        return mConstructed[node];
+    }
+
+    /** Returns offset in data of the first byte of tag */
+    public int headerOffset(int node) {
+        checkNode(node);
+        return mHeader[node];
+    }
+
+    /** Returns offset in data of the first byte of value */
+    public int valueOffset(int node) {
+        checkNode(node);
+        return mValue[node];
+    }
+
+    /** Returns copy of value of node */
+    public byte[] getValue(int node) {
+        checkNode(node);
+        return Arrays.copyOfRange(mData, mValue[node], mValue[node] + mLength[node]);
+    }
+
+    /** Returns copy of value at tag path or null if there is no such node */
+    public byte[] getValue(String path) throws IOException {
+        int node = find(path);
+        return node >= 0 ? getValue(node) : null;
+    }
+
+    /** Returns copy of the whole TLV of node */
+    public byte[] getEncoded(int node) {
+        checkNode(node);
+        return Arrays.copyOfRange(mData, mHeader[node], mValue[node] + mLength[node]);
+    }
+
+    /** Indexes all nodes, e.g. before the index is saved */
+    public void indexAll() throws IOException {
+        for (int node = 0; node < mSize; node++) {
+            childCount(node);
+        }
+    }
+
+    /**
+     * Writes index (only already indexed nodes) to out.
+     * Data itself is not written.
+     */
+    public void writeTo(OutputStream out) throws IOException {
+        DataOutputStream dos = new DataOutputStream(out);
+        dos.writeInt(MAGIC);
+        dos.writeShort(VERSION);
+        dos.writeInt(mData.length);
+        dos.write(digest(mData));
+        dos.writeInt(mSize);
+        for (int i = 0; i < mSize; i++) {
+            dos.writeInt(mHeader[i]);
+            dos.writeInt(mValue[i]);
+            dos.writeInt(mLength[i]);
+            dos.writeInt(mTag[i]);
+            dos.writeInt(mFirst[i]);
+            dos.writeInt(mCount[i]);
+            dos.writeInt(mOrder[i]);
+            dos.writeBoolean(mConstructed[i]);
+        }
+        dos.flush();
+    }
+
+    /**
+     * Reads index written by writeTo for data.
+     * @throws IOException if index is invalid or doesn't match data
+     */
+    public static TlvIndex readFrom(InputStream in, byte[] data) throws IOException {
+        DataInputStream dis = new DataInputStream(in);
+        if(dis.readInt() != MAGIC || dis.readUnsignedShort() != VERSION) {
+            throw new IOException("TlvIndex: invalid index");
+        }
+
+        int dataLen = dis.readInt();
+        if(dataLen != data.length) {
+            throw new IOException("TlvIndex: index doesn't match data");
+        }
+
+        byte[] dataDigest = digest(data);
+        byte[] indexedDigest = new byte[dataDigest.length];
+        dis.readFully(indexedDigest);
+        if(!MessageDigest.isEqual(dataDigest, indexedDigest)) {
+            throw new IOException("TlvIndex: index doesn't match data");
+        }
+
+        int size = dis.readInt();
+        if(size <= 0) {
+            throw new IOException("TlvIndex: invalid index");
+        }
+
+        TlvIndex index = new TlvIndex(data, size);
+        for (int i = 0; i < size; i++) {
+            index.mHeader[i] = dis.readInt();
+            index.mValue[i]  = dis.readInt();
+            index.mLength[i] = dis.readInt();
+            index.mTag[i]    = dis.readInt();
+            index.mFirst[i]  = dis.readInt();
+            index.mCount[i]  = dis.readInt();
+            index.mOrder[i]  = dis.readInt();
+            index.mConstructed[i] = dis.readBoolean();
+
+            if(index.mValue[i] < index.mHeader[i] || index.mLength[i] < 0 || index.mValue[i] + index.mLength[i] > dataLen
+                || index.mOrder[i] < 0 || index.mOrder[i] >= size
+                || (index.mCount[i] > 0 && (index.mFirst[i] <= i || index.mFirst[i] + index.mCount[i] > size))) {
+                throw new IOException("TlvIndex: invalid node " + i);
+            }
+        }
+        index.mSize = size;
+        index.verifyTopLevel();
+        return index;
+    }
+
+    private static byte[] digest(byte[] data) throws IOException {
+        try {
+            return HashService.get(DIGEST_ALGORITHM).digest(data);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException("TlvIndex: " + DIGEST_ALGORITHM + " is not available");
+        }
+    }
+
+    /* Checks that header of the first top level element is at the indexed position */
+    private void verifyTopLevel() throws IOException {
+        if(mCount[ROOT] <= 0) {
+            return;
+        }
+
+        int node = mFirst[ROOT];
+        mCursor.reset(mData, mHeader[node], mValue[ROOT] + mLength[ROOT] - mHeader[node]);
+        if(!mCursor.next() || mCursor.tag() != mTag[node] || mCursor.length() != mLength[node] || mCursor.valueOffset() != mValue[node]) {
+            throw new IOException("TlvIndex: index doesn't match data");
+        }
+    }
+
+    private void indexChildren(int node) throws IOException {
+        if(!mConstructed[node]) {
+            mFirst[node] = mSize;
+            mCount[node] = 0;
+            return;
+        }
+
+        int first = mSize;
+        mCursor.reset(mData, mValue[node], mLength[node]);
+        while (mCursor.next()) {
+            addNode(mCursor.tag(), mCursor.headerOffset(), mCursor.valueOffset(), mCursor.length(), mCursor.isConstructed());
+        }
+
+        /* Insertion sort of child block by tag, equal tags stay in encoding order */
+        for (int i = first; i < mSize; i++) {
+            int id = mOrder[i];
+            int j = i - 1;
+            while (j >= first && compareTags(mTag[mOrder[j]], mTag[id]) > 0) {
+                mOrder[j + 1] = mOrder[j];
+                j--;
+            }
+            mOrder[j + 1] = id;
+        }
+
+        mFirst[node] = first;
+        mCount[node] = mSize - first;
+    }
+
+    private void addNode(int tag, int header, int value, int len, boolean constructed) {
+        if(mSize == mTag.length) {
+            allocate(mSize * 2);
+        }
+
+        mHeader[mSize] = header;
+        mValue[mSize]  = value;
+        mLength[mSize] = len;
+        mTag[mSize]    = tag;
+        mFirst[mSize]  = -1;
+        mCount[mSize]  = -1;
+        mOrder[mSize]  = mSize;
+        mConstructed[mSize] = constructed;
+        mSize++;
+    }
+
+    private void allocate(int capacity) {
+        if(mTag == null) {
+            mHeader = new int[capacity];
+            mValue  = new int[capacity];
+            mLength = new int[capacity];
+            mTag    = new int[capacity];
+            mFirst  = new int[capacity];
+            mCount  = new int[capacity];
+            mOrder  = new int[capacity];
+            mConstructed = new boolean[capacity];
+            return;
+        }
+
+        mHeader = Arrays.copyOf(mHeader, capacity);
+        mValue  = Arrays.copyOf(mValue, capacity);
+        mLength = Arrays.copyOf(mLength, capacity);
+        mTag    = Arrays.copyOf(mTag, capacity);
+        mFirst  = Arrays.copyOf(mFirst, capacity);
+        mCount  = Arrays.copyOf(mCount, capacity);
+        mOrder  = Arrays.copyOf(mOrder, capacity);
+        mConstructed = Arrays.copyOf(mConstructed, capacity);
+    }
+
+    /* Tags are compared as unsigned, 4 byte tags can be negative */
+    private static int compareTags(int a, int b) {
+        a ^= 0x80000000;
+        b ^= 0x80000000;
+        return a < b ? -1 : (a == b ? 0 : 1);
+    }
+
+    private static int parseInt(String s, int start, int end, int radix) {
+        if(start >= end || end - start > 8) {
+            throw new IllegalArgumentException("TlvIndex: invalid path " + s);
+        }
+
+        int v = 0;
+        for (int i = start; i < end; i++) {
+            int d = Character.digit(s.charAt(i), radix);
+            if(d < 0) {
+                throw new IllegalArgumentException("TlvIndex: invalid path " + s);
+            }
+            v = v * radix + d;
+        }
+        return v;
+    }
+
+    private void checkNode(int node) {
+        if(node < 0 || node >= mSize) {
+            throw new IndexOutOfBoundsException("TlvIndex: invalid node " + node);
+        }
+    }
+}
@@ -0,0 +1,423 @@
+/*
+* Copyright (c) 2018 ZeroPass
+* Distributed under the MIT software license, see the accompanying
+* file LICENSE or https://opensource.org/licenses/MIT.
+*/
+
+package io.zeropass.trid.tlv;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+/**
+ * Pull parser of BER-TLV encoded data read from InputStream.
+ * Data is parsed as it arrives (e.g. from PassportApdu.openFile while the file is still being read from ICC),
+ * primitive values are returned in chunks of at most chunk size bytes and can be skipped
+ * or copied to OutputStream without buffering the whole value.
+ *
+ * Events:
+ *   START_CONSTRUCTED - header of constructed element, its children follow
+ *   PRIMITIVE_HEADER  - header of primitive element, VALUE_CHUNK events with its value follow
+ *   VALUE_CHUNK       - next part of primitive value, see chunkBuffer and chunkLength
+ *   END               - end of constructed or primitive element
+ *   END_DOCUMENT      - end of input
+ *
+ * Tag is returned as integer of its serialized bytes, e.g. 0x5F1F or 0x7F61 (see TlvCursor).
+ *
+ * Example:
+ * <pre>
+ *     TlvPullParser p = new TlvPullParser(passport.openFile(LDSFile.EF_DG2_FID, null));
+ *     while (p.next() != TlvPullParser.END_DOCUMENT) {
+ *         if(p.event() == TlvPullParser.PRIMITIVE_HEADER && p.tag() == 0x5F2E) {
+ *             p.transferValue(imageFile);
+ *         }
+ *     }
+ * </pre>
+ *
+ * Note: parser is not thread-safe.
+ */
+public final class TlvPullParser {
+    public static final int START_CONSTRUCTED = 1;
+    public static final int PRIMITIVE_HEADER  = 2;
+    public static final int VALUE_CHUNK       = 3;
+    public static final int END               = 4;
+    public static final int END_DOCUMENT      = 5;
+
+    public static final int DEFAULT_CHUNK_SIZE = 1024;
+
+    private static final int INITIAL_DEPTH = 8;
+
+    private final InputStream mIn;
+    private final ValueStream mValueStream = new ValueStream();
+    private final byte[] mChunk;
+    private int mChunkLen;
+    private int mChunkValueOffs;
+
+    /* Number of bytes consumed from input */
+    private long mPosition = 0;
+
+    /* Current event and element */
+    private int mEvent = 0;
+    private int mTag;
+    private int mLength;
+    private boolean mConstructed;
+    private int mDepth;
+
+    /* Open elements: tag, value length, constructed flag and input position of the end of value */
+    private int mOpen = 0;
+    private int[] mTags         = new int[INITIAL_DEPTH];
+    private int[] mLengths      = new int[INITIAL_DEPTH];
+    private boolean[] mConstr   = new boolean[INITIAL_DEPTH];
+    private long[] mEnds        = new long[INITIAL_DEPTH];
+
+    public TlvPullParser(InputStream in) {
+        this(in, DEFAULT_CHUNK_SIZE);
+    }
+
+    /**
+     * @param chunkSize max number of value bytes returned with one VALUE_CHUNK event
+     */
+    public TlvPullParser(InputStream in, int chunkSize) {
+        if(chunkSize <= 0) {
+            throw new IllegalArgumentException("TlvPullParser: invalid chunk size");
+        }
+        mIn    = in;
+        mChunk = new byte[chunkSize];
+    }
+
+    /**
+     * Moves to the next event.
+     * @returns event type
+     * @throws EOFException if input ends inside of element
+     * @throws IOException if element is malformed or exceeds its parent
+     */
+    public int next() throws IOException {
+        if(mEvent == END_DOCUMENT) {
+            return mEvent;
+        }
+
+        mChunkLen = 0;
+        if(mOpen > 0) {
+            int top = mOpen - 1;
+            if(mPosition == mEnds[top]) {
+                mOpen--;
+                setCurrent(END, mTags[top], mLengths[top], mConstr[top]);
+                return mEvent;
+            }
+
+            if(!mConstr[top]) {
+                readChunk(top);
+                return mEvent;
+            }
+        }
+
+        int b = mIn.read();
+        if(b < 0) {
+            if(mOpen > 0) {
+                throw new EOFException("TlvPullParser: unexpected end of input at " + mPosition);
+            }
+            mEvent = END_DOCUMENT;
+            return mEvent;
+        }
+
+        readHeader(b);
+        return mEvent;
+    }
+
+    /** Returns current event */
+    public int event() {
+        return mEvent;
+    }
+
+    public int tag() {
+        checkElement();
+        return mTag;
+    }
+
+    /** Returns length of value of current element */
+    public int length() {
+        checkElement();
+        return mLength;
+    }
+
+    public boolean isConstructed() {
+        checkElement();
+        return mConstructed;
+    }
+
+    /** Returns nesting depth of current element, top level elements are at depth 0 */
+    public int depth() {
+        checkElement();
+        return mDepth;
+    }
+
+    /** Returns number of bytes consumed from input */
+    public long position() {
+        return mPosition;
+    }
+
+    /**
+     * Returns number of unread bytes of current primitive value.
+     * Can be called on PRIMITIVE_HEADER or VALUE_CHUNK event.
+     */
+    public long remainingLength() {
+        checkPrimitive();
+        return remainingValue();
+    }
+
+    /**
+     * Returns buffer with value chunk of VALUE_CHUNK event in [0, chunkLength).
+     * Buffer is reused for the next chunk.
+     */
+    public byte[] chunkBuffer() {
+        return mChunk;
+    }
+
+    public int chunkLength() {
+        return mChunkLen;
+    }
+
+    /** Returns offset of current chunk in value */
+    public int chunkValueOffset() {
+        return mChunkValueOffs;
+    }
+
+    /**
+     * Skips the rest of current element without reading it into memory.
+     * Can be called on START_CONSTRUCTED, PRIMITIVE_HEADER or VALUE_CHUNK event, next event is END.
+     */
+    public void skipValue() throws IOException {
+        long remaining = remainingValue();
+        while (remaining > 0) {
+            long n = mIn.skip(remaining);
+            if(n <= 0) {
+                /* Stream doesn't support skip, read instead */
+                n = mIn.read(mChunk, 0, (int) Math.min(mChunk.length, remaining));
+                if(n < 0) {
+                    throw new EOFException("TlvPullParser: unexpected end of input at " + mPosition);
+                }
+            }
+            remaining -= n;
+            mPosition += n;
+        }
+        mChunkLen = 0;
+    }
+
+    /**
+     * Reads the rest of current primitive value.
+     * Can be called on PRIMITIVE_HEADER or VALUE_CHUNK event, next event is END.
+     */
+    public byte[] readValue() throws IOException {
+        checkPrimitive();
+        byte[] value = new byte[(int) remainingValue()];
+        readFully(value, 0, value.length);
+        return value;
+    }
+
+    /**
+     * Copies the rest of current primitive value to out in chunks.
+     * Can be called on PRIMITIVE_HEADER or VALUE_CHUNK event, next event is END.
+     * @returns number of bytes copied
+     */
+    public long transferValue(OutputStream out) throws IOException {
+        checkPrimitive();
+        long remaining = remainingValue();
+        long total = remaining;
+        while (remaining > 0) {
+            int n = (int) Math.min(mChunk.length, remaining);
+            readFully(mChunk, 0, n);
+            out.write(mChunk, 0, n);
+            remaining -= n;
+        }
+        mChunkLen = 0;
+        return total;
+    }
+
+    /**
+     * Returns stream of the rest of current primitive value which reads directly from input.
+     * Stream is valid until next is called, unread part of value is then returned with VALUE_CHUNK events.
+     * Can be called on PRIMITIVE_HEADER or VALUE_CHUNK event.
+     */
+    public InputStream valueStream() {
+        checkPrimitive();
+        mChunkLen = 0;
+        return mValueStream;
+    }
+
+    private void readChunk(int top) throws IOException {
+        int remaining = (int) (mEnds[top] - mPosition);
+        int n = mIn.read(mChunk, 0, Math.min(mChunk.length, remaining));
+        if(n < 0) {
+            throw new EOFException("TlvPullParser: unexpected end of input at " + mPosition);
+        }
+
+        mChunkValueOffs = mLengths[top] - remaining;
+        mChunkLen = n;
+        mPosition += n;
+        setCurrent(VALUE_CHUNK, mTags[top], mLengths[top], false);
+    }
+
+    /* Parses tag and length, b is the first byte of tag */
+    private void readHeader(int b) throws IOException {
+        long headerPos = mPosition++;
+        int tag = b;
+        boolean constructed = (b & 0x20) != 0;
+        if((b & 0x1F) == 0x1F) {
+            int n = 1;
+            do {
+                if(++n > 4) {
+                    throw new IOException("TlvPullParser: tag longer than 4 bytes at " + headerPos);
+                }
+                b = readByte();
+                tag = (tag << 8) | b;
+            } while ((b & 0x80) != 0);
+        }
+
+        int len = readByte();
+        if(len > 0x80) {
+            int n = len & 0x7F;
+            if(n > 4) {
+                throw new IOException("TlvPullParser: invalid length at " + headerPos);
+            }
+
+            len = 0;
+            for (int i = 0; i < n; i++) {
+                len = (len << 8) | readByte();
+            }
+            if(len < 0) {
+                throw new IOException("TlvPullParser: invalid length at " + headerPos);
+            }
+        }
+        else if(len == 0x80) {
+            throw new IOException("TlvPullParser: indefinite length is not supported, offset " + headerPos);
+        }
+
+        long end = mPosition + len;
+        if(mOpen > 0 && end > mEnds[mOpen - 1]) {
+            throw new IOException("TlvPullParser: value exceeds parent at " + headerPos + " len=" + len);
+        }
+
+        push(tag, len, constructed, end);
+        setCurrent(constructed ? START_CONSTRUCTED : PRIMITIVE_HEADER, tag, len, constructed);
+    }
+
+    private void push(int tag, int len, boolean constructed, long end) {
+        if(mOpen == mTags.length) {
+            mTags    = Arrays.copyOf(mTags, mOpen * 2);
+            mLengths = Arrays.copyOf(mLengths, mOpen * 2);
+            mConstr  = Arrays.copyOf(mConstr, mOpen * 2);
+            mEnds    = Arrays.copyOf(mEnds, mOpen * 2);
+        }
+
+        mTags[mOpen]    = tag;
+        mLengths[mOpen] = len;
+        mConstr[mOpen]  = constructed;
+        mEnds[mOpen]    = end;
+        mOpen++;
+    }
+
+    private void setCurrent(int event, int tag, int len, boolean constructed) {
+        mEvent       = event;
+        mTag         = tag;
+        mLength      = len;
+        mConstructed = constructed;
+        mDepth       = event == END ? mOpen : mOpen - 1;
+    }
+
+    private int readByte() throws IOException {
+        int b = mIn.read();
+        if(b < 0) {
+            throw new EOFException("TlvPullParser: unexpected end of input at " + mPosition);
+        }
+        mPosition++;
+        return b;
+    }
+
+    private void readFully(byte[] dst, int offs, int len) throws IOException {
+        while (len > 0) {
+            int n = mIn.read(dst, offs, len);
+            if(n < 0) {
+                throw new EOFException("TlvPullParser: unexpected end of input at " + mPosition);
+            }
+            offs += n;
+            len  -= n;
+            mPosition += n;
+        }
+    }
+
+    /* Number of unread bytes of the current element's value */
+    private long remainingValue() {
+        if(mEvent != START_CONSTRUCTED && mEvent != PRIMITIVE_HEADER && mEvent != VALUE_CHUNK) {
+            throw new IllegalStateException("TlvPullParser: parser is not inside of element value");
+        }
+        return mEnds[mOpen - 1] - mPosition;
+    }
+
+    /* Bounded view of current primitive value, position of parser is advanced with each read */
+    private class ValueStream extends InputStream {
+        @Override
+        public int read() throws IOException {
+            if(remaining() == 0) {
+                return -1;
+            }
+            return readByte();
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if(len == 0) {
+                return 0;
+            }
+
+            int remaining = remaining();
+            if(remaining == 0) {
+                return -1;
+            }
+
+            int n = mIn.read(b, off, Math.min(len, remaining));
+            if(n < 0) {
+                throw new EOFException("TlvPullParser: unexpected end of input at " + mPosition);
+            }
+            mPosition += n;
+            return n;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long s = mIn.skip(Math.min(n, remaining()));
+            if(s > 0) {
+                mPosition += s;
+            }
+            return Math.max(s, 0);
+        }
+
+        /* Only bytes which input can return without blocking, rest of value may still be in transfer */
+        @Override
+        public int available() throws IOException {
+            int remaining = remaining();
+            return remaining > 0 ? Math.min(remaining, mIn.available()) : 0;
+        }
+
+        private int remaining() {
+            if(mEvent != PRIMITIVE_HEADER && mEvent != VALUE_CHUNK) {
+                return 0;
+            }
+            return (int) Math.min(Integer.MAX_VALUE, remainingValue());
+        }
+    }
+
+    private void checkPrimitive() {
+        if(mEvent != PRIMITIVE_HEADER && mEvent != VALUE_CHUNK) {
+            throw new IllegalStateException("TlvPullParser: current element is not primitive");
+        }
+    }
+
+    private void checkElement() {
+        if(mEvent == 0 || mEvent == END_DOCUMENT) {
+            throw new IllegalStateException("TlvPullParser: parser is not positioned on an element");
+        }
+    }
+}
@@ -0,0 +1,245 @@
+/*
+* Copyright (c) 2018 ZeroPass
+* Distributed under the MIT software license, see the accompanying
+* file LICENSE or https://opensource.org/licenses/MIT.
+*/
+
+package io.zeropass.trid.tlv;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+/**
+ * Writer of BER-TLV (DER) encoded data into a growable buffer.
+ * Tags and lengths are encoded with integer arithmetic, constructed elements can be nested
+ * with startConstructed/end and their lengths are patched in when the element ends.
+ * Writer can be reused for the next encoding with reset, the buffer is kept.
+ *
+ * Tag is given as integer of its serialized bytes, e.g. 0x5F1F or 0x7F61 (see TlvCursor).
+ *
+ * Example:
+ * <pre>
+ *     TlvWriter w = new TlvWriter();
+ *     w.startConstructed(0x7C);
+ *     w.write(0x80, publicKey);
+ *     w.end();
+ *     byte[] data = w.toByteArray();
+ * </pre>
+ *
+ * Note: writer is not thread-safe.
+ */
+public final class TlvWriter {
+    private static final int DEFAULT_CAPACITY = 256;
+    private static final int INITIAL_DEPTH = 8;
+
+    private byte[] mBuf;
+    private int mSize = 0;
+
+    /* Offsets of value of open constructed elements, one byte is reserved for length before value */
+    private int[] mOpen = new int[INITIAL_DEPTH];
+    private int mDepth = 0;
+
+    public TlvWriter() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    public TlvWriter(int capacity) {
+        mBuf = new byte[capacity];
+    }
+
+    /** Discards written data and open elements */
+    public TlvWriter reset() {
+        mSize  = 0;
+        mDepth = 0;
+        return this;
+    }
+
+    /** Returns number of written bytes */
+    public int size() {
+        return mSize;
+    }
+
+    /** Returns nesting depth of open constructed elements */
+    public int depth() {
+        return mDepth;
+    }
+
+    /**
+     * Returns internal buffer, written data is in [0, size).
+     * Buffer can change when writer grows.
+     */
+    public byte[] buffer() {
+        return mBuf;
+    }
+
+    /** Returns copy of written data */
+    public byte[] toByteArray() {
+        checkClosed();
+        return Arrays.copyOf(mBuf, mSize);
+    }
+
+    /** Returns copy of written data in [offs, size) */
+    public byte[] toByteArray(int offs) {
+        checkClosed();
+        return Arrays.copyOfRange(mBuf, offs, mSize);
+    }
+
+    public void writeTo(OutputStream out) throws IOException {
+        checkClosed();
+        out.write(mBuf, 0, mSize);
+    }
+
+    /** Fills written data with zeros, e.g. after plaintext was encoded */
+    public void wipe() {
+        Arrays.fill(mBuf, (byte) 0);
+        reset();
+    }
+
+    /** Writes primitive element */
+    public TlvWriter write(int tag, byte[] value) {
+        return write(tag, value, 0, value.length);
+    }
+
+    /** Writes primitive element with value[offs, offs + len) */
+    public TlvWriter write(int tag, byte[] value, int offs, int len) {
+        writeTag(tag);
+        writeLength(len);
+        return writeBytes(value, offs, len);
+    }
+
+    /** Writes primitive element with one byte value */
+    public TlvWriter writeByteValue(int tag, int value) {
+        writeTag(tag);
+        writeLength(1);
+        return writeByte(value);
+    }
+
+    /** Starts constructed element, its value is written until end is called */
+    public TlvWriter startConstructed(int tag) {
+        writeTag(tag);
+        if(mDepth == mOpen.length) {
+            mOpen = Arrays.copyOf(mOpen, mDepth * 2);
+        }
+
+        ensureCapacity(1);
+        mSize++;
+        mOpen[mDepth++] = mSize;
+        return this;
+    }
+
+    /**
+     * Ends the last started constructed element and patches its length.
+     * Value is moved if long form of length is needed.
+     */
+    public TlvWriter end() {
+        if(mDepth == 0) {
+            throw new IllegalStateException("TlvWriter: no open constructed element");
+        }
+
+        int valueOffs = mOpen[--mDepth];
+        int len = mSize - valueOffs;
+        int lenSize = lengthSize(len);
+        if(lenSize > 1) {
+            ensureCapacity(lenSize - 1);
+            System.arraycopy(mBuf, valueOffs, mBuf, valueOffs + lenSize - 1, len);
+            mSize += lenSize - 1;
+        }
+
+        encodeLength(len, mBuf, valueOffs - 1);
+        return this;
+    }
+
+    /** Writes serialized tag */
+    public TlvWriter writeTag(int tag) {
+        ensureCapacity(4);
+        mSize += encodeTag(tag, mBuf, mSize);
+        return this;
+    }
+
+    /** Writes serialized length */
+    public TlvWriter writeLength(int length) {
+        ensureCapacity(5);
+        mSize += encodeLength(length, mBuf, mSize);
+        return this;
+    }
+
+    /** Writes raw byte */
+    public TlvWriter writeByte(int b) {
+        ensureCapacity(1);
+        mBuf[mSize++] = (byte) b;
+        return this;
+    }
+
+    /** Writes raw bytes */
+    public TlvWriter writeBytes(byte[] data) {
+        return writeBytes(data, 0, data.length);
+    }
+
+    /** Writes raw bytes data[offs, offs + len) */
+    public TlvWriter writeBytes(byte[] data, int offs, int len) {
+        ensureCapacity(len);
+        System.arraycopy(data, offs, mBuf, mSize, len);
+        mSize += len;
+        return this;
+    }
+
+    /** Returns number of bytes of serialized tag */
+    public static int tagSize(int tag) {
+        int bits = 32 - Integer.numberOfLeadingZeros(tag);
+        return bits <= 8 ? 1 : (bits + 7) / 8;
+    }
+
+    /** Returns number of bytes of serialized length */
+    public static int lengthSize(int length) {
+        if(length < 0) {
+            throw new IllegalArgumentException("TlvWriter: invalid length " + length);
+        }
+        if(length < 0x80) {
+            return 1;
+        }
+        return 1 + (32 - Integer.numberOfLeadingZeros(length) + 7) / 8;
+    }
+
+    /**
+     * Encodes tag to dst at offs.
+     * @returns number of written bytes
+     */
+    public static int encodeTag(int tag, byte[] dst, int offs) {
+        int n = tagSize(tag);
+        for (int i = n - 1; i >= 0; i--) {
+            dst[offs++] = (byte) (tag >>> (8 * i));
+        }
+        return n;
+    }
+
+    /**
+     * Encodes length to dst at offs, short form is used for lengths below 0x80.
+     * @returns number of written bytes
+     */
+    public static int encodeLength(int length, byte[] dst, int offs) {
+        int n = lengthSize(length);
+        if(n == 1) {
+            dst[offs] = (byte) length;
+            return 1;
+        }
+
+        dst[offs++] = (byte) (0x80 | (n - 1));
+        for (int i = n - 2; i >= 0; i--) {
+            dst[offs++] = (byte) (length >>> (8 * i));
+        }
+        return n;
+    }
+
+    private void ensureCapacity(int n) {
+        if(mSize + n > mBuf.length) {
+            mBuf = Arrays.copyOf(mBuf, Math.max(mBuf.length * 2, mSize + n));
+        }
+    }
+
+    private void checkClosed() {
+        if(mDepth != 0) {
+            throw new IllegalStateException("TlvWriter: constructed element is not ended");
+        }
+    }
+}
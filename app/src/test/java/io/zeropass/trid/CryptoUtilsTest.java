@@ -7,16 +7,51 @@
 package io.zeropass.trid;
 
 import org.junit.Test;
+import org.spongycastle.asn1.ASN1Integer;
+import org.spongycastle.asn1.icao.CscaMasterList;
+import org.spongycastle.asn1.x500.X500Name;
+import org.spongycastle.asn1.x509.CRLReason;
+import org.spongycastle.asn1.x509.Certificate;
+import org.spongycastle.asn1.x509.Extension;
+import org.spongycastle.cert.X509v2CRLBuilder;
+import org.spongycastle.cert.jcajce.JcaX509CRLConverter;
+import org.spongycastle.operator.ContentSigner;
+import org.spongycastle.operator.jcajce.JcaContentSignerBuilder;
 
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
 import java.lang.reflect.Array;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.MessageDigest;
 import java.security.PublicKey;
+import java.security.Signature;
+import java.security.cert.X509CRL;
+import java.security.cert.X509Certificate;
+import java.security.interfaces.ECPublicKey;
 import java.security.interfaces.RSAPublicKey;
+import java.security.spec.ECGenParameterSpec;
 import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
 
 import io.zeropass.trid.crypto.CryptoUtils;
-import io.zeropass.trid.crypto.RSA_ISO9796_2_DSS1_SHA1;
+import io.zeropass.trid.crypto.CryptoWarmup;
+import io.zeropass.trid.crypto.CscaTrustStore;
+import io.zeropass.trid.crypto.ECDSAPlainVerifier;
+import io.zeropass.trid.crypto.HashService;
+import io.zeropass.trid.crypto.MasterListFile;
+import io.zeropass.trid.crypto.NoncePool;
+import io.zeropass.trid.crypto.ProviderSelector;
+import io.zeropass.trid.crypto.PublicKeyDecoder;
+import io.zeropass.trid.crypto.RSA_ISO9796_2_DSS1;
+import io.zeropass.trid.crypto.RevocationIndex;
 import io.zeropass.trid.tlv.TLVUtils;
 
 import static junit.framework.Assert.assertEquals;
@@ -30,13 +65,13 @@ public class CryptoUtilsTest {
         byte[] message = Utils.copyOut(CryptoUtils.sha1(Utils.strToHex("AABBCCAABBCC")), 0, 8);
         byte[] signature = Utils.strToHex("22BF2420BE8A18114CA8E3D3AADC44EC0BEC50E42C640882DBFEED068F0AAB75BE69B65130B037F1EBC75EE1448FA3B60B1E70DD9C821D58BDE234B45BDC3F848FF8DD6BB4BB6854E13A940EA038F1FDE7B67C72360AAFB9FED3A4D991973AC9440DB1D7DD6A86B72554A703B47FDDDAA495F514E80549D667E4595DB11801E6");
 
-        boolean isSigValid = RSA_ISO9796_2_DSS1_SHA1.verifySignature((RSAPublicKey) pubKey, message, signature);
+        boolean isSigValid = RSA_ISO9796_2_DSS1.verifySignature((RSAPublicKey) pubKey, message, signature);
         assertEquals(isSigValid, true);
     }
 
     private static boolean testISO9796Recovery(byte[] f, byte[] message) {
         try {
-            Method m = RSA_ISO9796_2_DSS1_SHA1.class.getDeclaredMethod("verifyF", byte[].class, byte[].class);
+            Method m = RSA_ISO9796_2_DSS1.class.getDeclaredMethod("verifyF", byte[].class, byte[].class);
             m.setAccessible(true);
             Object r = m.invoke(null, f, message);
             return (Boolean)r;
@@ -65,9 +100,480 @@ public class CryptoUtilsTest {
         assertEquals(testISO9796Recovery(f2, m2), true);
     }
 
+    @Test
+    public static void RSA_ISO9796_DSS1_SHA2_MessageRecoveryTest() {
+        /* F = header | M1 | SHA-256(M1 | M2) | trailer 0x34CC */
+        byte[] m1 = Utils.strToHex("FEDCBA98 76543210 FEDCBA98 76543210");
+        byte[] m2 = Utils.strToHex("626364 62636465");
+        byte[] h  = CryptoUtils.sha256(Utils.join(m1, m2));
+        byte[] f  = Utils.join(Utils.join(new byte[]{ 0x6A }, m1), Utils.join(h, new byte[]{ 0x34, (byte) 0xCC }));
+        assertEquals(testISO9796Recovery(f, m2), true);
+
+        /* Wrong M2 */
+        assertEquals(testISO9796Recovery(f, m1), false);
+
+        /* Hash identifier doesn't match digest length */
+        f[f.length - 2] = 0x35;
+        assertEquals(testISO9796Recovery(f, m2), false);
+
+        /* Unsupported hash identifier */
+        f[f.length - 2] = 0x37;
+        assertEquals(testISO9796Recovery(f, m2), false);
+    }
+
+    @Test
+    public static void ECDSA_PlainSignatureTest() {
+        try {
+            KeyPair kp = CryptoUtils.generateKeyPair(new ECGenParameterSpec("brainpoolP256r1"));
+            byte[] message = Utils.copyOut(CryptoUtils.sha1(Utils.strToHex("AABBCCAABBCC")), 0, 8);
+
+            Signature signer = Signature.getInstance("SHA256withPLAIN-ECDSA", CryptoUtils.getSpongyCastleProvider());
+            signer.initSign(kp.getPrivate());
+            signer.update(message);
+            byte[] signature = signer.sign();
+            assertEquals(signature.length, 64);
+
+            ECPublicKey pk = (ECPublicKey) kp.getPublic();
+            assertEquals(ECDSAPlainVerifier.verifySignature(pk, "SHA-256", message, signature), true);
+
+            /* Verification with cached curve parameters */
+            assertEquals(ECDSAPlainVerifier.verifySignature(pk, "SHA-256", message, signature), true);
+            assertEquals(ECDSAPlainVerifier.verifySignature(pk, "SHA-1", message, signature), false);
+
+            signature[signature.length - 1] ^= 0x01;
+            assertEquals(ECDSAPlainVerifier.verifySignature(pk, "SHA-256", message, signature), false);
+        }
+        catch (GeneralSecurityException e) {
+            e.printStackTrace();
+            assertEquals(false, true);
+        }
+    }
+
+    @Test
+    public static void CscaTrustStoreTest() {
+        try {
+            byte[] cscaKeyId = Utils.strToHex("0102030405060708");
+            KeyPair cscaKey  = LDSTest.generateRSAKeyPair();
+            X509Certificate csca = LDSTest.createCertificate("CN=CSCA,C=SI", cscaKey.getPublic(), "CN=CSCA,C=SI", cscaKey.getPrivate(),
+                    BigInteger.ONE, cscaKeyId, cscaKeyId);
+
+            KeyPair dsKey = LDSTest.generateRSAKeyPair();
+            X509Certificate ds = LDSTest.createCertificate("CN=DS,C=SI", dsKey.getPublic(), "CN=CSCA,C=SI", cscaKey.getPrivate(),
+                    BigInteger.TEN, null, cscaKeyId);
+
+            /* DS certificate without AuthorityKeyIdentifier is matched by issuer name */
+            X509Certificate dsNoAki = LDSTest.createCertificate("CN=DS2,C=SI", dsKey.getPublic(), "CN=CSCA,C=SI", cscaKey.getPrivate(),
+                    BigInteger.valueOf(11), null, null);
+
+            /* DS certificate signed by unknown key */
+            KeyPair otherKey = LDSTest.generateRSAKeyPair();
+            X509Certificate dsOther = LDSTest.createCertificate("CN=DS3,C=SI", dsKey.getPublic(), "CN=CSCA,C=SI", otherKey.getPrivate(),
+                    BigInteger.valueOf(12), null, cscaKeyId);
+
+            CscaTrustStore store = new CscaTrustStore();
+            store.add(csca);
+            store.add(csca);
+            assertEquals(1, store.size());
+
+            assertEquals(csca, store.findBySubjectKeyIdentifier(cscaKeyId).get(0));
+            assertEquals(csca, store.findByIssuerAndSerial(new X500Name("CN=CSCA,C=SI"), BigInteger.ONE));
+            assertEquals(0, store.findBySubjectKeyIdentifier(Utils.strToHex("AABB")).size());
+
+            assertEquals(true, store.isTrusted(ds));
+            assertEquals(true, store.isTrusted(ds)); // memoized
+            assertEquals(true, store.isTrusted(dsNoAki));
+            assertEquals(false, store.isTrusted(dsOther));
+            assertEquals(false, store.isTrusted(ds, new Date(System.currentTimeMillis() + 2 * 86400000L)));
+        }
+        catch (Exception e) {
+            e.printStackTrace();
+            assertEquals(false, true);
+        }
+    }
+
+    @Test
+    public static void MasterListFileTest() {
+        File file = null;
+        try {
+            /* ML signer is issued by CSCA in anchor store */
+            KeyPair anchorKey = LDSTest.generateRSAKeyPair();
+            X509Certificate anchor = LDSTest.createCertificate("CN=CSCA,C=UT", anchorKey);
+            CscaTrustStore anchors = new CscaTrustStore();
+            anchors.add(anchor);
+
+            KeyPair mlKey = LDSTest.generateRSAKeyPair();
+            X509Certificate mlSigner = LDSTest.createCertificate("CN=ML Signer,C=UT", mlKey.getPublic(), "CN=CSCA,C=UT",
+                    anchorKey.getPrivate(), BigInteger.TEN, null, null);
+
+            /* CSCA certificates, the last one without SubjectKeyIdentifier */
+            KeyPair cscaKey = LDSTest.generateRSAKeyPair();
+            byte[][] keyIds = { Utils.strToHex("0A0B0C0D"), Utils.strToHex("01020304"), Utils.strToHex("0102030405060708090A0B0C0D0E0F1011121314") };
+            Certificate[] cscas = new Certificate[4];
+            for (int i = 0; i < keyIds.length; i++) {
+                cscas[i] = Certificate.getInstance(LDSTest.createCertificate("CN=CSCA" + i + ",C=SI", cscaKey.getPublic(), "CN=CSCA" + i + ",C=SI",
+                        cscaKey.getPrivate(), BigInteger.valueOf(i), keyIds[i], null).getEncoded());
+            }
+            cscas[3] = Certificate.getInstance(LDSTest.createCertificate("CN=CSCA3,C=SI", cscaKey).getEncoded());
+
+            /* Duplicated certificate is imported only once */
+            Certificate[] mlCerts = { cscas[0], cscas[1], cscas[2], cscas[3], cscas[1] };
+            byte[] ml = LDSTest.createSignedData("2.23.136.1.1.2", new CscaMasterList(mlCerts).getEncoded(), mlKey, mlSigner);
+
+            file = File.createTempFile("csca", ".ml");
+            assertEquals(4, MasterListFile.importMasterList(ml, anchors, file));
+
+            /* Master list signed by untrusted signer or with invalid signature is rejected */
+            X509Certificate selfSigned = LDSTest.createCertificate("CN=ML Signer,C=UT", mlKey);
+            try {
+                MasterListFile.importMasterList(LDSTest.createSignedData("2.23.136.1.1.2", new CscaMasterList(mlCerts).getEncoded(), mlKey, selfSigned),
+                        anchors, file);
+                assertEquals(false, true);
+            } catch (GeneralSecurityException e) {}
+
+            KeyPair otherKey = LDSTest.generateRSAKeyPair();
+            try {
+                MasterListFile.importMasterList(LDSTest.createSignedData("2.23.136.1.1.2", new CscaMasterList(mlCerts).getEncoded(), otherKey, mlSigner),
+                        anchors, file);
+                assertEquals(false, true);
+            } catch (GeneralSecurityException e) {}
+
+            MasterListFile mlFile = MasterListFile.open(file);
+            assertEquals(4, mlFile.size());
+
+            for (int i = 0; i < keyIds.length; i++) {
+                List<X509Certificate> found = mlFile.find(keyIds[i]);
+                assertEquals(1, found.size());
+                assertEquals(true, Arrays.equals(cscas[i].getEncoded(), found.get(0).getEncoded()));
+            }
+
+            byte[] spkHash = CryptoUtils.sha1(cscas[3].getSubjectPublicKeyInfo().getPublicKeyData().getBytes());
+            assertEquals(1, mlFile.find(spkHash).size());
+            assertEquals(0, mlFile.find(Utils.strToHex("0A0B0C0E")).size());
+
+            /* Trust store loads CSCA from master list on lookup */
+            CscaTrustStore store = new CscaTrustStore();
+            store.addMasterList(mlFile);
+            KeyPair dsKey = LDSTest.generateRSAKeyPair();
+            X509Certificate ds = LDSTest.createCertificate("CN=DS,C=SI", dsKey.getPublic(), "CN=CSCA1,C=SI", cscaKey.getPrivate(),
+                    BigInteger.TEN, null, keyIds[1]);
+
+            assertEquals(0, store.size());
+            assertEquals(true, store.isTrusted(ds));
+            assertEquals(1, store.size());
+
+            /* CSCA without SubjectKeyIdentifier is found by hash of public key in master list and by subject in store */
+            X509Certificate ds3 = LDSTest.createCertificate("CN=DS3,C=SI", dsKey.getPublic(), "CN=CSCA3,C=SI", cscaKey.getPrivate(),
+                    BigInteger.TEN, null, spkHash);
+            assertEquals(true, store.isTrusted(ds3));
+            assertEquals(2, store.size());
+
+            X509Certificate ds4 = LDSTest.createCertificate("CN=DS4,C=SI", dsKey.getPublic(), "CN=CSCA3,C=SI", cscaKey.getPrivate(),
+                    BigInteger.TEN, null, Utils.strToHex("0F0F0F0F"));
+            assertEquals(true, store.isTrusted(ds4));
+            mlFile.close();
+
+            /* Certificate location out of file is rejected */
+            RandomAccessFile raf = new RandomAccessFile(file, "rw");
+            raf.seek(10 + 1 + 32);
+            raf.writeInt((int) raf.length());
+            raf.close();
+            mlFile = MasterListFile.open(file);
+            try {
+                mlFile.getCertificate(0);
+                assertEquals(false, true);
+            } catch (IOException e) {}
+            mlFile.close();
+
+            /* Master list is imported to trust store if ML signer is trusted */
+            assertEquals(4, anchors.addMasterList(ml, file).size());
+            assertEquals(true, anchors.isTrusted(ds));
+        }
+        catch (Exception e) {
+            e.printStackTrace();
+            assertEquals(false, true);
+        }
+        finally {
+            if(file != null) {
+                file.delete();
+            }
+        }
+    }
+
+    private static X509CRL createCRL(String issuer, KeyPair issuerKey, long crlNumber, Long baseCrlNumber,
+                                     BigInteger[] revoked, BigInteger[] removed) throws Exception {
+        X509v2CRLBuilder builder = new X509v2CRLBuilder(new X500Name(issuer), new Date());
+        for (BigInteger serial : revoked) {
+            builder.addCRLEntry(serial, new Date(), CRLReason.keyCompromise);
+        }
+        for (BigInteger serial : removed) {
+            builder.addCRLEntry(serial, new Date(), CRLReason.removeFromCRL);
+        }
+
+        builder.addExtension(Extension.cRLNumber, false, new ASN1Integer(crlNumber));
+        if(baseCrlNumber != null) {
+            builder.addExtension(Extension.deltaCRLIndicator, true, new ASN1Integer(baseCrlNumber));
+        }
+
+        ContentSigner signer = new JcaContentSignerBuilder("SHA256withRSA")
+                .setProvider(CryptoUtils.getSpongyCastleProvider())
+                .build(issuerKey.getPrivate());
+        return new JcaX509CRLConverter().setProvider(CryptoUtils.getSpongyCastleProvider()).getCRL(builder.build(signer));
+    }
+
+    @Test
+    public static void RevocationIndexTest() {
+        File file = null;
+        try {
+            KeyPair cscaKey = LDSTest.generateRSAKeyPair();
+            X509Certificate csca = LDSTest.createCertificate("CN=CSCA,C=SI", cscaKey);
+            X500Name issuer = new X500Name("CN=CSCA,C=SI");
+
+            BigInteger longSerial = new BigInteger("7FFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFF01", 16);
+            BigInteger[] revoked = { BigInteger.valueOf(20), BigInteger.TEN, longSerial };
+
+            RevocationIndex index = new RevocationIndex();
+            assertEquals(true, index.update(createCRL("CN=CSCA,C=SI", cscaKey, 1, null, revoked, new BigInteger[0])));
+            assertEquals(3, index.getRevokedCount(issuer));
+            assertEquals(true, index.isRevoked(issuer, BigInteger.TEN));
+            assertEquals(true, index.isRevoked(issuer, longSerial));
+            assertEquals(false, index.isRevoked(issuer, BigInteger.valueOf(11)));
+            assertEquals(false, index.isRevoked(issuer, longSerial.subtract(BigInteger.ONE)));
+            assertEquals(false, index.isRevoked(new X500Name("CN=CSCA2,C=SI"), BigInteger.TEN));
+
+            /* Older CRL is ignored */
+            assertEquals(false, index.update(createCRL("CN=CSCA,C=SI", cscaKey, 1, null, new BigInteger[0], new BigInteger[0])));
+
+            /* Delta CRL adds serial 30 and removes serial 20 */
+            X509CRL delta = createCRL("CN=CSCA,C=SI", cscaKey, 2, 1L, new BigInteger[]{ BigInteger.valueOf(30) }, new BigInteger[]{ BigInteger.valueOf(20) });
+            assertEquals(true, index.update(delta));
+            assertEquals(3, index.getRevokedCount(issuer));
+            assertEquals(true, index.isRevoked(issuer, BigInteger.valueOf(30)));
+            assertEquals(false, index.isRevoked(issuer, BigInteger.valueOf(20)));
+
+            /* Mapped file */
+            file = File.createTempFile("crl", ".idx");
+            index.save(file);
+            RevocationIndex loaded = RevocationIndex.load(file);
+            assertEquals(3, loaded.getRevokedCount(issuer));
+            assertEquals(true, loaded.isRevoked(issuer, BigInteger.TEN));
+            assertEquals(true, loaded.isRevoked(issuer, longSerial));
+            assertEquals(true, loaded.isRevoked(issuer, BigInteger.valueOf(30)));
+            assertEquals(false, loaded.isRevoked(issuer, BigInteger.valueOf(20)));
+
+            /* Delta CRL on top of mapped index */
+            X509CRL delta2 = createCRL("CN=CSCA,C=SI", cscaKey, 3, 1L, new BigInteger[]{ BigInteger.valueOf(40) }, new BigInteger[0]);
+            assertEquals(true, loaded.update(delta2));
+            assertEquals(true, loaded.isRevoked(issuer, BigInteger.valueOf(40)));
+            assertEquals(true, loaded.isRevoked(issuer, BigInteger.TEN));
+
+            /* Trust store rejects revoked DS certificate */
+            CscaTrustStore store = new CscaTrustStore();
+            store.add(csca);
+            KeyPair dsKey = LDSTest.generateRSAKeyPair();
+            X509Certificate ds = LDSTest.createCertificate("CN=DS,C=SI", dsKey.getPublic(), "CN=CSCA,C=SI", cscaKey.getPrivate(),
+                    BigInteger.TEN, null, null);
+            assertEquals(true, store.isTrusted(ds));
+
+            /* CRL not signed by CSCA is rejected */
+            assertEquals(false, store.addCRL(createCRL("CN=CSCA,C=SI", dsKey, 1, null, revoked, new BigInteger[0])));
+            assertEquals(true, store.addCRL(createCRL("CN=CSCA,C=SI", cscaKey, 1, null, revoked, new BigInteger[0])));
+            assertEquals(false, store.isTrusted(ds));
+        }
+        catch (Exception e) {
+            e.printStackTrace();
+            assertEquals(false, true);
+        }
+        finally {
+            if(file != null) {
+                file.delete();
+            }
+        }
+    }
+
+    @Test
+    public static void HashServiceTest() {
+        try {
+            byte[] data = new byte[40000]; // spans several chunks
+            for (int i = 0; i < data.length; i++) {
+                data[i] = (byte) (i * 31);
+            }
+
+            String[] algs = { HashService.SHA1, HashService.SHA224, HashService.SHA256, HashService.SHA384, HashService.SHA512 };
+            byte[][] digests = HashService.digestAll(algs, data);
+            for (int i = 0; i < algs.length; i++) {
+                byte[] expected = MessageDigest.getInstance(algs[i], CryptoUtils.getSpongyCastleProvider()).digest(data);
+                assertEquals(true, Arrays.equals(expected, digests[i]));
+            }
+
+            /* Direct buffer, position is not changed */
+            ByteBuffer direct = ByteBuffer.allocateDirect(data.length);
+            direct.put(data).flip();
+            byte[][] digests2 = HashService.digestAll(algs, direct);
+            assertEquals(0, direct.position());
+            for (int i = 0; i < algs.length; i++) {
+                assertEquals(true, Arrays.equals(digests[i], digests2[i]));
+            }
+            assertEquals(true, Arrays.equals(digests[2], HashService.digest(HashService.SHA256, direct)));
+
+            /* Reused instance is reset */
+            HashService.get(HashService.SHA1).update(data, 0, 10);
+            assertEquals(true, Arrays.equals(digests[0], HashService.digest(HashService.SHA1, data)));
+            assertEquals(true, Arrays.equals(CryptoUtils.sha1(Arrays.copyOfRange(data, 5, 105)), HashService.digest(HashService.SHA1, data, 5, 100)));
+
+            try {
+                HashService.digestAll(new String[]{ HashService.SHA1, HashService.SHA1 }, data);
+                assertEquals(false, true);
+            } catch (IllegalArgumentException e) {}
+        }
+        catch (Exception e) {
+            e.printStackTrace();
+            assertEquals(false, true);
+        }
+    }
+
+    @Test
+    public static void NoncePoolTest() {
+        try {
+            NoncePool pool = new NoncePool(new java.security.SecureRandom(), 16, 4);
+            for (int i = 0; i < 100 && pool.available() < 4; i++) {
+                Thread.sleep(10);
+            }
+            assertEquals(4, pool.available());
+
+            byte[] a = pool.getBytes(8);
+            byte[] b = pool.getBytes(8);
+            assertEquals(8, a.length);
+            assertEquals(false, Arrays.equals(a, b));
+
+            /* Request spanning several slots and draining the pool falls back to SecureRandom */
+            byte[] big = pool.getBytes(100);
+            assertEquals(100, big.length);
+            assertEquals(false, Arrays.equals(new byte[100], big));
+
+            /* Pool is refilled */
+            for (int i = 0; i < 100 && pool.available() < 4; i++) {
+                Thread.sleep(10);
+            }
+            assertEquals(4, pool.available());
+
+            KeyPair kp = CryptoUtils.generateKeyPair(new ECGenParameterSpec("secp256r1"));
+            assertEquals(true, kp.getPublic() instanceof ECPublicKey);
+        }
+        catch (Exception e) {
+            e.printStackTrace();
+            assertEquals(false, true);
+        }
+    }
+
+    @Test
+    public static void PublicKeyDecoderTest() {
+        try {
+            byte[] rsaSpki = TLVUtils.getValue(LDSTest.DG15);
+            assertEquals("RSA", PublicKeyDecoder.getKeyAlgorithm(rsaSpki));
+            PublicKey rsaKey = PublicKeyDecoder.decode(rsaSpki);
+            assertEquals(true, rsaKey instanceof RSAPublicKey);
+
+            /* Decoded key is memoized by content */
+            assertEquals(true, rsaKey == PublicKeyDecoder.decode(rsaSpki.clone()));
+
+            java.security.KeyPairGenerator kpg = java.security.KeyPairGenerator.getInstance("EC", CryptoUtils.getSpongyCastleProvider());
+            kpg.initialize(new ECGenParameterSpec("secp256r1"));
+            PublicKey ec = kpg.generateKeyPair().getPublic();
+            assertEquals("EC", PublicKeyDecoder.getKeyAlgorithm(ec.getEncoded()));
+            PublicKey ecKey = CryptoUtils.getPublicKeyFromBytes(ec.getEncoded());
+            assertEquals(true, ecKey instanceof ECPublicKey);
+            assertEquals(true, Arrays.equals(ec.getEncoded(), ecKey.getEncoded()));
+
+            /* Unknown algorithm and malformed encoding */
+            byte[] unknown = rsaSpki.clone();
+            unknown[14] = 0x02; // 1.2.840.113549.1.1.2
+            assertEquals(null, PublicKeyDecoder.getKeyAlgorithm(unknown));
+            assertEquals(null, PublicKeyDecoder.decode(unknown));
+            assertEquals(null, PublicKeyDecoder.decode(Arrays.copyOf(rsaSpki, 10)));
+            assertEquals(null, PublicKeyDecoder.getKeyAlgorithm(new byte[]{ 0x30, (byte)0x84, 0x7F }));
+
+            /* Cache is bounded */
+            for (int i = 0; i < PublicKeyDecoder.MAX_CACHED_KEYS + 10; i++) {
+                PublicKeyDecoder.decode(kpg.generateKeyPair().getPublic().getEncoded());
+            }
+            assertEquals(PublicKeyDecoder.MAX_CACHED_KEYS, PublicKeyDecoder.cacheSize());
+        }
+        catch (Exception e) {
+            e.printStackTrace();
+            assertEquals(false, true);
+        }
+    }
+
+    @Test
+    public static void ProviderSelectorTest() {
+        File file = null;
+        try {
+            ProviderSelector selector = new ProviderSelector();
+            assertEquals(false, selector.isInitialized());
+            assertEquals(null, selector.getProvider(ProviderSelector.CIPHER, ProviderSelector.DES3_CBC));
+
+            selector.benchmark();
+            for (String[] p : ProviderSelector.PRIMITIVES) {
+                assertEquals(true, selector.getProvider(p[0], p[1]) != null);
+            }
+
+            /* Selection is persisted by provider name */
+            file = File.createTempFile("providers", ".properties");
+            selector.save(file);
+            ProviderSelector loaded = new ProviderSelector();
+            assertEquals(true, loaded.load(file));
+            for (String[] p : ProviderSelector.PRIMITIVES) {
+                assertEquals(selector.getProvider(p[0], p[1]), loaded.getProvider(p[0], p[1]));
+            }
+
+            /* CryptoUtils resolves instances through default selector */
+            ProviderSelector.getDefault().init(file);
+            assertEquals(selector.getProvider(ProviderSelector.CIPHER, ProviderSelector.AES_CBC),
+                    CryptoUtils.getCipher(ProviderSelector.AES_CBC).getProvider());
+            assertEquals(selector.getProvider(ProviderSelector.MAC, ProviderSelector.RETAIL_MAC),
+                    CryptoUtils.getMac(ProviderSelector.RETAIL_MAC).getProvider());
+            RSA_ISO9796_DSS1_SHA1_SignatureTest();
+            ProviderSelector.getDefault().reset();
+        }
+        catch (Exception e) {
+            e.printStackTrace();
+            assertEquals(false, true);
+        }
+        finally {
+            if(file != null) {
+                file.delete();
+            }
+        }
+    }
+
+    @Test
+    public static void CryptoWarmupTest() {
+        try {
+            assertEquals(true, CryptoWarmup.run(null));
+
+            CryptoWarmup.start(null, null);
+            assertEquals(true, CryptoWarmup.await(60, TimeUnit.SECONDS));
+            assertEquals(true, CryptoWarmup.isSuccessful());
+        }
+        catch (Exception e) {
+            e.printStackTrace();
+            assertEquals(false, true);
+        }
+    }
+
     @Test
     public static void runAll() {
         RSA_ISO9796_DSS1_SHA1_MessageRecoveryTest();
         RSA_ISO9796_DSS1_SHA1_SignatureTest();
+        RSA_ISO9796_DSS1_SHA2_MessageRecoveryTest();
+        ECDSA_PlainSignatureTest();
+        CscaTrustStoreTest();
+        MasterListFileTest();
+        RevocationIndexTest();
+        HashServiceTest();
+        NoncePoolTest();
+        PublicKeyDecoderTest();
+        ProviderSelectorTest();
+        CryptoWarmupTest();
     }
 }
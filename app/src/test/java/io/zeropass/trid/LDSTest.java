@@ -0,0 +1,645 @@
+/*
+* Copyright (c) 2018 ZeroPass
+* Distributed under the MIT software license, see the accompanying
+* file LICENSE or https://opensource.org/licenses/MIT.
+*/
+
+package io.zeropass.trid;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.spongycastle.asn1.ASN1ObjectIdentifier;
+import org.spongycastle.asn1.DEROctetString;
+import org.spongycastle.asn1.icao.DataGroupHash;
+import org.spongycastle.asn1.icao.LDSSecurityObject;
+import org.spongycastle.asn1.nist.NISTObjectIdentifiers;
+import org.spongycastle.asn1.x500.X500Name;
+import org.spongycastle.asn1.x509.AlgorithmIdentifier;
+import org.spongycastle.asn1.x509.AuthorityKeyIdentifier;
+import org.spongycastle.asn1.x509.Extension;
+import org.spongycastle.asn1.x509.SubjectKeyIdentifier;
+import org.spongycastle.cert.X509CertificateHolder;
+import org.spongycastle.cert.X509v3CertificateBuilder;
+import org.spongycastle.cert.jcajce.JcaX509CertificateConverter;
+import org.spongycastle.cert.jcajce.JcaX509v3CertificateBuilder;
+import org.spongycastle.cms.CMSProcessableByteArray;
+import org.spongycastle.cms.CMSSignedData;
+import org.spongycastle.cms.CMSSignedDataGenerator;
+import org.spongycastle.cms.jcajce.JcaSignerInfoGeneratorBuilder;
+import org.spongycastle.operator.ContentSigner;
+import org.spongycastle.operator.jcajce.JcaContentSignerBuilder;
+import org.spongycastle.operator.jcajce.JcaDigestCalculatorProviderBuilder;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.security.cert.X509Certificate;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.logging.Logger;
+
+import io.zeropass.trid.crypto.CertificateView;
+import io.zeropass.trid.crypto.CryptoUtils;
+import io.zeropass.trid.passport.ProtocolProfile;
+import io.zeropass.trid.passport.lds.COMFile;
+import io.zeropass.trid.passport.lds.DG11File;
+import io.zeropass.trid.passport.lds.DG12File;
+import io.zeropass.trid.passport.lds.DG1File;
+import io.zeropass.trid.passport.lds.DG2File;
+import io.zeropass.trid.passport.lds.DataGroups;
+import io.zeropass.trid.passport.lds.LDSFile;
+import io.zeropass.trid.passport.lds.PACEInfo;
+import io.zeropass.trid.passport.lds.SODFile;
+import io.zeropass.trid.passport.lds.SecurityInfo;
+import io.zeropass.trid.passport.lds.SecurityInfos;
+import io.zeropass.trid.tlv.ASN1Util;
+import io.zeropass.trid.tlv.TLVUtils;
+import io.zeropass.trid.tlv.TlvWriter;
+
+import static org.junit.Assert.*;
+
+
+public class LDSTest {
+
+    static final byte[] DG1 = Utils.strToHex("615B5F1F58503C55544F4552494B53534F4E3C3C414E4E413C4D415249413C3C3C3C3C3C3C3C3C3C3C3C3C3C3C3C3C3C3C3C4C383938393032433336555430373430383132463132303431353931323334353637383C3C3C3C3C3C3C3C3C3C3C3C3C3C3C3C3C3C30");
+    static final byte[] DG15 = Utils.strToHex("6F81A230819F300D06092A864886F70D010101050003818D0030818902818100A13F98038CC80DE9BE94A917B5CFCE74CC4BB1337222E82D83C3FC2CBF5E81F80CBC4475CE2FCB08DBB2CEDAB4B3264DC12961B8166B32D238E5A52B02A271F46165B5EF03AC24C76B85D4B4E5A872925D692E8159B1B2BCFB5D6A2E086A88A78853363BC2A52E9725C668416243C45E921DED173FF970B4D0C5F277D034CCFD0203010001");
+
+    /** Creates self-signed certificate */
+    static X509Certificate createCertificate(String subject, KeyPair kp) throws Exception {
+        return createCertificate(subject, kp.getPublic(), subject, kp.getPrivate(), BigInteger.ONE, null, null);
+    }
+
+    /**
+     * Creates certificate signed by issuerKey
+     * @param ski SubjectKeyIdentifier or null
+     * @param aki key identifier of AuthorityKeyIdentifier or null
+     */
+    static X509Certificate createCertificate(String subject, PublicKey subjectKey, String issuer, PrivateKey issuerKey,
+                                             BigInteger serial, byte[] ski, byte[] aki) throws Exception {
+        ContentSigner signer = new JcaContentSignerBuilder("SHA256withRSA")
+                .setProvider(CryptoUtils.getSpongyCastleProvider())
+                .build(issuerKey);
+
+        X509v3CertificateBuilder builder = new JcaX509v3CertificateBuilder(new X500Name(issuer), serial,
+                new Date(System.currentTimeMillis() - 86400000L), new Date(System.currentTimeMillis() + 86400000L),
+                new X500Name(subject), subjectKey);
+
+        if(ski != null) {
+            builder.addExtension(Extension.subjectKeyIdentifier, false, new SubjectKeyIdentifier(ski));
+        }
+        if(aki != null) {
+            builder.addExtension(Extension.authorityKeyIdentifier, false, new AuthorityKeyIdentifier(aki));
+        }
+
+        X509CertificateHolder holder = builder.build(signer);
+        return new JcaX509CertificateConverter().setProvider(CryptoUtils.getSpongyCastleProvider()).getCertificate(holder);
+    }
+
+    static KeyPair generateRSAKeyPair() throws Exception {
+        KeyPairGenerator kpg = KeyPairGenerator.getInstance("RSA", CryptoUtils.getSpongyCastleProvider());
+        kpg.initialize(1024);
+        return kpg.generateKeyPair();
+    }
+
+    /** Creates EF.SOD with SHA-256 hashes of DG1 and DG15 signed by dsKey */
+    static byte[] createSOD(KeyPair dsKey, X509Certificate dsCert) throws Exception {
+        DataGroupHash[] hashes = new DataGroupHash[] {
+            new DataGroupHash(1,  new DEROctetString(CryptoUtils.sha256(DG1))),
+            new DataGroupHash(15, new DEROctetString(CryptoUtils.sha256(DG15)))
+        };
+
+        LDSSecurityObject ldsSO = new LDSSecurityObject(new AlgorithmIdentifier(NISTObjectIdentifiers.id_sha256), hashes);
+        byte[] ci = createSignedData("2.23.136.1.1.1", ldsSO.getEncoded(), dsKey, dsCert);
+        return Utils.join(Utils.join(new byte[]{ 0x77 }, TLVUtils.getLengthAsBytes(ci.length)), ci);
+    }
+
+    /** Creates DER encoded CMS SignedData ContentInfo with encapsulated content */
+    static byte[] createSignedData(String contentType, byte[] content, KeyPair signerKey, X509Certificate signerCert) throws Exception {
+        CMSSignedDataGenerator gen = new CMSSignedDataGenerator();
+        ContentSigner signer = new JcaContentSignerBuilder("SHA256withRSA")
+                .setProvider(CryptoUtils.getSpongyCastleProvider())
+                .build(signerKey.getPrivate());
+
+        gen.addSignerInfoGenerator(new JcaSignerInfoGeneratorBuilder(
+                new JcaDigestCalculatorProviderBuilder().setProvider(CryptoUtils.getSpongyCastleProvider()).build())
+                .build(signer, signerCert));
+        gen.addCertificate(new X509CertificateHolder(signerCert.getEncoded()));
+
+        CMSSignedData signedData = gen.generate(
+                new CMSProcessableByteArray(new ASN1ObjectIdentifier(contentType), content), true);
+
+        return signedData.toASN1Structure().getEncoded("DER");
+    }
+
+    @Test
+    public static void SODFile() {
+        try {
+            KeyPair dsKey = generateRSAKeyPair();
+            X509Certificate dsCert = createCertificate("CN=Document Signer,C=SI", dsKey);
+            SODFile sod = SODFile.fromBytes(createSOD(dsKey, dsCert));
+
+            assertEquals("SHA-256", sod.getDigestAlgorithm());
+            assertArrayEquals(new int[]{ 1, 15 }, sod.getDataGroupNumbers());
+            assertArrayEquals(CryptoUtils.sha256(DG1), sod.getDataGroupHash(1));
+            assertArrayEquals(CryptoUtils.sha256(DG15), sod.getDataGroupHash(15));
+            assertNull(sod.getDataGroupHash(2));
+            assertTrue(sod.matchesDataGroupHash(1, CryptoUtils.sha256(DG1)));
+            assertFalse(sod.matchesDataGroupHash(1, CryptoUtils.sha256(DG15)));
+            assertFalse(sod.matchesDataGroupHash(2, CryptoUtils.sha256(DG1)));
+            assertEquals(1, sod.getCertificatesEncoded().size());
+
+            assertEquals(dsCert, sod.getDocumentSignerCertificate());
+            assertTrue(sod.verifySignature());
+
+            /* Signature doesn't verify with other certificate */
+            X509Certificate otherCert = createCertificate("CN=Document Signer,C=SI", generateRSAKeyPair());
+            assertFalse(sod.verifySignature(otherCert));
+        }
+        catch (Exception e) {
+            Logger.getGlobal().severe("An exception was thrown: " + e.getMessage());
+            Assert.fail();
+        }
+    }
+
+    @Test
+    public static void CertificateView() {
+        try {
+            KeyPair kp = generateRSAKeyPair();
+            byte[] ski = Utils.strToHex("0102030405");
+            byte[] aki = Utils.strToHex("0A0B0C0D");
+            X509Certificate cert = createCertificate("CN=DS,C=SI", kp.getPublic(), "CN=CSCA,C=SI", kp.getPrivate(), BigInteger.valueOf(0x1234), ski, aki);
+
+            CertificateView view = new CertificateView(cert.getEncoded());
+            assertEquals(BigInteger.valueOf(0x1234), view.getSerialNumber());
+            assertArrayEquals(cert.getIssuerX500Principal().getEncoded(), view.getIssuer());
+            assertArrayEquals(cert.getSubjectX500Principal().getEncoded(), view.getSubject());
+            assertArrayEquals(cert.getPublicKey().getEncoded(), view.getSubjectPublicKeyInfo());
+            assertArrayEquals(cert.getTBSCertificate(), view.getTbsCertificate());
+            assertEquals(cert.getNotBefore().getTime(), view.getNotBefore());
+            assertEquals(cert.getNotAfter().getTime(), view.getNotAfter());
+            assertTrue(view.isValidAt(System.currentTimeMillis()));
+            assertArrayEquals(ski, view.getSubjectKeyIdentifier());
+            assertArrayEquals(aki, view.getAuthorityKeyIdentifier());
+            assertNull(view.getExtensionValue(ASN1Util.encodeOid("2.5.29.19")));
+
+            view = new CertificateView(createCertificate("CN=DS,C=SI", kp).getEncoded());
+            assertNull(view.getSubjectKeyIdentifier());
+            assertNull(view.getAuthorityKeyIdentifier());
+        }
+        catch (Exception e) {
+            Logger.getGlobal().severe("An exception was thrown: " + e.getMessage());
+            Assert.fail();
+        }
+    }
+
+    @Test
+    public static void DG1File() {
+        try {
+            /* ICAO 9303-4 TD3 example */
+            String td3 = "P<UTOERIKSSON<<ANNA<MARIA<<<<<<<<<<<<<<<<<<<L898902C36UTO7408122F1204159ZE184226B<<<<<10";
+            byte[] dg1 = Utils.join(Utils.strToHex("615B5F1F58"), td3.getBytes());
+            DG1File mrz = DG1File.fromBytes(dg1);
+            assertEquals(DG1File.TD3, mrz.getFormat());
+            assertEquals(5, mrz.mrzOffset());
+            assertEquals("P", mrz.getDocumentCode());
+            assertEquals("UTO", mrz.getIssuingState());
+            assertEquals("L898902C3", mrz.getDocumentNumber());
+            assertEquals("UTO", mrz.getNationality());
+            assertEquals("740812", mrz.getDateOfBirth());
+            assertEquals('F', mrz.getSex());
+            assertEquals("120415", mrz.getDateOfExpiry());
+            assertEquals("ZE184226B", mrz.getOptionalData());
+            assertEquals("ERIKSSON", mrz.getPrimaryIdentifier());
+            assertEquals("ANNA MARIA", mrz.getSecondaryIdentifier());
+            assertEquals(5 + 44, mrz.fieldOffset(DG1File.DOCUMENT_NUMBER));
+            assertFalse(mrz.hasField(DG1File.OPTIONAL_DATA_2));
+            assertTrue(mrz.fieldEquals(DG1File.DOCUMENT_NUMBER, "L898902C3"));
+            assertTrue(mrz.fieldEquals(DG1File.OPTIONAL_DATA, "ZE184226B"));
+            assertFalse(mrz.fieldEquals(DG1File.OPTIONAL_DATA, "ZE184226"));
+            assertTrue(mrz.isValid());
+
+            /* Printed MRZ compared to DG1 */
+            byte[] printed = td3.getBytes();
+            DG1File page = DG1File.fromMrz(printed, 0, printed.length);
+            assertTrue(page.mrzEquals(mrz));
+            assertTrue(page.fieldEquals(DG1File.DATE_OF_BIRTH, mrz));
+
+            printed[57 + 5] = '3';
+            assertFalse(page.isCheckDigitValid(DG1File.DATE_OF_BIRTH));
+            assertFalse(page.isCheckDigitValid(DG1File.COMPOSITE_CHECK));
+            assertFalse(page.mrzEquals(mrz));
+            assertTrue(page.isCheckDigitValid(DG1File.DOCUMENT_NUMBER));
+
+            /* ICAO 9303-5 TD1 examples, the second one with extended document number */
+            byte[] td1 = "I<UTOD231458907<<<<<<<<<<<<<<<7408122F1204159UTO<<<<<<<<<<<6ERIKSSON<<ANNA<MARIA<<<<<<<<<<".getBytes();
+            mrz = DG1File.fromMrz(td1, 0, td1.length);
+            assertEquals(DG1File.TD1, mrz.getFormat());
+            assertEquals("D23145890", mrz.getDocumentNumber());
+            assertEquals("ERIKSSON", mrz.getPrimaryIdentifier());
+            assertTrue(mrz.isValid());
+
+            td1 = "I<UTOD23145890<7349<<<<<<<<<<<3407127M9507122UTO<<<<<<<<<<<2STEVENSON<<PETER<JOHN<<<<<<<<<".getBytes();
+            mrz = DG1File.fromMrz(td1, 0, td1.length);
+            assertEquals("D23145890734", mrz.getDocumentNumber());
+            assertEquals(18, mrz.fieldOffset(DG1File.DOCUMENT_NUMBER_CHECK));
+            assertEquals("PETER JOHN", mrz.getSecondaryIdentifier());
+            assertTrue(mrz.isValid());
+
+            /* ICAO 9303-6 TD2 example */
+            byte[] td2 = "I<UTOERIKSSON<<ANNA<MARIA<<<<<<<<<<<D231458907UTO7408122F1204159<<<<<<<6".getBytes();
+            mrz = DG1File.fromMrz(td2, 0, td2.length);
+            assertEquals(DG1File.TD2, mrz.getFormat());
+            assertEquals("D23145890", mrz.getDocumentNumber());
+            assertEquals("", mrz.getOptionalData());
+            assertTrue(mrz.isValid());
+
+            try {
+                DG1File.fromMrz(td2, 0, 71);
+                Assert.fail();
+            } catch (IOException e) {}
+        }
+        catch (IOException e) {
+            Logger.getGlobal().severe("An exception was thrown: " + e.getMessage());
+            Assert.fail();
+        }
+    }
+
+    /** Creates DG2 with one BDB holding given images, each image is preceded with one feature point */
+    static byte[] createDG2(byte[]... images) {
+        TlvWriter bdb = new TlvWriter();
+        int recordLen = 14;
+        for (byte[] img : images) {
+            recordLen += 20 + 8 + 12 + img.length;
+        }
+
+        bdb.writeBytes("FAC".getBytes()).writeByte(0).writeBytes("010".getBytes()).writeByte(0);
+        bdb.writeBytes(Utils.strToHex(String.format("%08X", recordLen))).writeByte(0).writeByte(images.length);
+        for (byte[] img : images) {
+            bdb.writeBytes(Utils.strToHex(String.format("%08X", 20 + 8 + 12 + img.length)));
+            bdb.writeBytes(Utils.strToHex("0001" + "02" + "01" + "06" + "000003" + "0001" + "000000" + "000000"));
+            bdb.writeBytes(Utils.strToHex("01" + "01" + "00A0" + "00B0" + "0000"));
+            bdb.writeBytes(Utils.strToHex("01" + "01" + "00F0" + "0140" + "01" + "02" + "0000" + "0000"));
+            bdb.writeBytes(img);
+        }
+
+        TlvWriter w = new TlvWriter();
+        w.startConstructed(0x75).startConstructed(DG2File.BIOMETRIC_INFO_GROUP_TAG);
+        w.writeByteValue(0x02, 1);
+        w.startConstructed(DG2File.BIOMETRIC_INFO_TAG);
+        w.startConstructed(0xA1).write(0x81, new byte[]{ 0x02 }).write(0x87, Utils.strToHex("0101")).write(0x88, Utils.strToHex("0008")).end();
+        w.write(DG2File.BIOMETRIC_DATA_BLOCK_TAG, bdb.toByteArray());
+        w.end().end().end();
+        return w.toByteArray();
+    }
+
+    /** Returns input stream which returns at most 7 bytes per read, reports at most 7 bytes available and doesn't support skip */
+    static InputStream slowStream(byte[] data) {
+        return new ByteArrayInputStream(data) {
+            @Override
+            public synchronized int read(byte[] b, int off, int len) {
+                return super.read(b, off, Math.min(len, 7));
+            }
+
+            @Override
+            public synchronized int available() {
+                return Math.min(super.available(), 7);
+            }
+
+            @Override
+            public synchronized long skip(long n) {
+                return 0;
+            }
+        };
+    }
+
+    @Test
+    public static void DG2File() {
+        try {
+            byte[] image1 = new byte[3000];
+            byte[] image2 = new byte[500];
+            for (int i = 0; i < image1.length; i++) {
+                image1[i] = (byte) i;
+            }
+            Arrays.fill(image2, (byte) 0x5A);
+            image2[0] = 0x00;
+            image2[image2.length - 1] = (byte) 0xFF;
+
+            byte[] data = createDG2(image1, image2);
+            DG2File dg2 = DG2File.open(slowStream(data));
+            assertTrue(dg2.nextImage());
+            assertEquals(1, dg2.getInstanceCount());
+            assertEquals(DG2File.GENDER_FEMALE, dg2.getGender());
+            assertEquals(1, dg2.getEyeColor());
+            assertEquals(6, dg2.getHairColor());
+            assertEquals(3, dg2.getFeatureMask());
+            assertEquals(1, dg2.getExpression());
+            assertEquals(1, dg2.getFeaturePointCount());
+            assertEquals(DG2File.IMAGE_DATA_TYPE_JPEG2000, dg2.getImageDataType());
+            assertEquals("image/jp2", dg2.getImageMimeType());
+            assertEquals(240, dg2.getImageWidth());
+            assertEquals(320, dg2.getImageHeight());
+            assertEquals(image1.length, dg2.getImageLength());
+
+            /* Image is read from the reported region of DG2 */
+            int offs = (int) dg2.getImageOffset();
+            assertArrayEquals(image1, Arrays.copyOfRange(data, offs, offs + image1.length));
+
+            /* Only bytes buffered by input are reported as available */
+            assertEquals(7, dg2.getImageStream().available());
+
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            assertEquals(image1.length, dg2.transferImage(out));
+            assertArrayEquals(image1, out.toByteArray());
+            assertEquals(-1, dg2.getImageStream().read());
+            assertEquals(0, dg2.getImageStream().available());
+
+            assertTrue(dg2.nextImage());
+            assertEquals(image2.length, dg2.getImageLength());
+            InputStream img = dg2.getImageStream();
+            assertEquals(0x00, img.read());
+            assertFalse(dg2.nextImage()); // rest of image is skipped
+            try {
+                dg2.getImageLength();
+                Assert.fail();
+            } catch (IllegalStateException e) {}
+            dg2.close();
+
+            /* Skip unread images */
+            dg2 = DG2File.open(new ByteArrayInputStream(data));
+            assertTrue(dg2.nextImage());
+            assertTrue(dg2.nextImage());
+            assertEquals(data.length - image2.length, dg2.getImageOffset());
+            assertFalse(dg2.nextImage());
+
+            /* Truncated file, error is detected when image is read */
+            dg2 = DG2File.open(new ByteArrayInputStream(Arrays.copyOf(data, data.length - 1)));
+            assertTrue(dg2.nextImage());
+            assertTrue(dg2.nextImage());
+            try {
+                dg2.transferImage(new ByteArrayOutputStream());
+                Assert.fail();
+            } catch (IOException e) {}
+
+            try {
+                DG2File.open(new ByteArrayInputStream(DG1));
+                Assert.fail();
+            } catch (IOException e) {}
+        }
+        catch (IOException e) {
+            Logger.getGlobal().severe("An exception was thrown: " + e.getMessage());
+            Assert.fail();
+        }
+    }
+
+    @Test
+    public static void DataGroups() {
+        assertEquals(DataGroups.DG2, DataGroups.numberOfTag(0x75));
+        assertEquals(DataGroups.COM, DataGroups.numberOfTag(LDSFile.EF_COM_TAG));
+        assertEquals(DataGroups.SOD, DataGroups.numberOfTag(0x77));
+        assertEquals(-1, DataGroups.numberOfTag(0x71));
+        assertEquals(-1, DataGroups.numberOfTag(0x5F1F));
+        assertEquals(DataGroups.DG14, DataGroups.numberOfFid(LDSFile.EF_DG14_FID));
+        assertEquals(-1, DataGroups.numberOfFid((short) 0x020E));
+        assertEquals(DataGroups.DG16, DataGroups.numberOfSfi(LDSFile.EF_DG16_SFI));
+        assertEquals(-1, DataGroups.numberOfSfi((byte) 0x9E));
+        assertEquals(DataGroups.DG1, DataGroups.dataGroupOfFid(LDSFile.EF_DG1_FID));
+        assertEquals(0, DataGroups.dataGroupOfFid(LDSFile.EF_SOD_FID));
+
+        for (int n = 0; n < DataGroups.COUNT; n++) {
+            assertEquals(n, DataGroups.numberOfTag(DataGroups.tag(n)));
+            assertEquals(n, DataGroups.numberOfFid(DataGroups.fid(n)));
+            assertEquals(n, DataGroups.numberOfSfi(DataGroups.sfi(n)));
+        }
+
+        assertArrayEquals(new int[]{ 1, 2, 14 }, DataGroups.numbers(DataGroups.mask(14) | DataGroups.mask(1) | DataGroups.mask(2)));
+        assertEquals(16, DataGroups.numbers(DataGroups.ALL_DATA_GROUPS).length);
+        assertEquals("DG11", DataGroups.name(DataGroups.DG11));
+        assertEquals("EF.SOD", DataGroups.name(DataGroups.SOD));
+    }
+
+    @Test
+    public static void COMFile() {
+        try {
+            COMFile com = COMFile.fromBytes(Utils.strToHex("60165F0104303130375F36063034303030305C04617563FF"));
+            assertEquals("1.7", com.getLdsVersion());
+            assertEquals(0x0107, com.getLdsVersionCode());
+            assertEquals("4.0.0", com.getUnicodeVersion());
+            assertArrayEquals(new int[]{ 1, 2, 3 }, com.getDataGroupNumbers());
+            assertEquals(0x0E, com.getDataGroupMask());
+            assertTrue(com.isPresent(DataGroups.DG2));
+            assertFalse(com.isPresent(DataGroups.DG14));
+            assertFalse(com.isPresent(DataGroups.COM));
+
+            try {
+                COMFile.fromBytes(Utils.strToHex("600D5F0104303130375C03617563"));
+                Assert.fail();
+            } catch (IOException e) {}
+
+            try {
+                COMFile.fromBytes(Utils.strToHex("60165F01043031303A5F36063034303030305C04617563FF"));
+                Assert.fail();
+            } catch (IOException e) {}
+
+            try {
+                COMFile.fromBytes(DG1);
+                Assert.fail();
+            } catch (IOException e) {}
+        }
+        catch (IOException e) {
+            Logger.getGlobal().severe("An exception was thrown: " + e.getMessage());
+            Assert.fail();
+        }
+    }
+
+    /** Writes SecurityInfo with protocol OID and integer requiredData and optionalData (-1 to omit) */
+    static void writeSecurityInfo(TlvWriter w, String oid, int required, int optional) {
+        w.startConstructed(0x30);
+        w.write(0x06, ASN1Util.encodeOid(oid));
+        w.writeByteValue(0x02, required);
+        if(optional >= 0) {
+            w.writeByteValue(0x02, optional);
+        }
+        w.end();
+    }
+
+    @Test
+    public static void SecurityInfos() {
+        try {
+            TlvWriter w = new TlvWriter();
+            w.startConstructed(0x31);
+            writeSecurityInfo(w, "0.4.0.127.0.7.2.2.4.1.1", 2, -1);  // PACE-DH-GM-3DES
+            writeSecurityInfo(w, "0.4.0.127.0.7.2.2.4.2.2", 2, 13);  // PACE-ECDH-GM-AES-128, brainpoolP256r1
+            writeSecurityInfo(w, "0.4.0.127.0.7.2.2.4.4.4", 2, 13);  // PACE-ECDH-IM-AES-256
+            w.startConstructed(0x30).write(0x06, ASN1Util.encodeOid("0.4.0.127.0.7.2.2.4.2"))  // PACEDomainParameterInfo
+                .startConstructed(0x30).write(0x06, ASN1Util.encodeOid("0.4.0.127.0.7.1.2")).end().writeByteValue(0x02, 1).end();
+            w.end();
+            SecurityInfos cardAccess = SecurityInfos.fromBytes(w.toByteArray());
+            assertEquals(4, cardAccess.getAll().size());
+            assertEquals(3, cardAccess.getPACEInfos().size());
+            assertSame(SecurityInfo.class, cardAccess.getAll().get(3).getClass());
+            PACEInfo pace = cardAccess.getPACEInfos().get(1);
+            assertEquals(2, pace.getVersion());
+            assertEquals(13, pace.getParameterId());
+            assertEquals(PACEInfo.MAPPING_GM, pace.getMapping());
+            assertTrue(pace.isECDH());
+            assertEquals("AES", pace.getCipherAlgorithm());
+            assertEquals(16, pace.getKeyLength());
+            assertEquals(-1, cardAccess.getPACEInfos().get(0).getParameterId());
+            assertEquals(PACEInfo.MAPPING_IM, cardAccess.getPACEInfos().get(2).getMapping());
+
+            w.reset().startConstructed(LDSFile.EF_DG14_TAG).startConstructed(0x31);
+            writeSecurityInfo(w, "0.4.0.127.0.7.2.2.3.2.1", 1, 1);   // CA-ECDH-3DES
+            writeSecurityInfo(w, "0.4.0.127.0.7.2.2.3.2.4", 1, 2);   // CA-ECDH-AES-256
+            w.startConstructed(0x30).write(0x06, ASN1Util.encodeOid("0.4.0.127.0.7.2.2.3.2"))   // ChipAuthenticationDomainParameterInfo
+                .startConstructed(0x30).write(0x06, ASN1Util.encodeOid("1.2.840.10045.2.1")).end().writeByteValue(0x02, 2).end();
+            writeSecurityInfo(w, "0.4.0.127.0.7.2.2.2", 1, -1);      // TA
+            w.startConstructed(0x30).write(0x06, ASN1Util.encodeOid("0.4.0.127.0.7.2.2.1.2"))
+                .startConstructed(0x30).end().writeByteValue(0x02, 2).end();
+            w.startConstructed(0x30).write(0x06, ASN1Util.encodeOid("2.23.136.1.1.5")).writeByteValue(0x02, 1)
+                .write(0x06, ASN1Util.encodeOid("0.4.0.127.0.7.1.1.4.1.3")).end();
+            writeSecurityInfo(w, "1.2.3.4", 1, -1);                   // unknown protocol
+            w.end().end();
+            SecurityInfos dg14 = SecurityInfos.fromDG14(w.toByteArray());
+            assertEquals(7, dg14.getAll().size());
+            assertEquals(2, dg14.getChipAuthenticationInfos().size());
+            assertEquals(1, dg14.getChipAuthenticationPublicKeyInfos().size());
+            assertEquals(1, dg14.getTerminalAuthenticationInfo().getVersion());
+            assertEquals("SHA-256", dg14.getActiveAuthenticationInfo().getDigestAlgorithm());
+            assertArrayEquals(new byte[]{ 0x02 }, dg14.getChipAuthenticationInfo(new byte[]{ 0x02 }).getKeyId());
+
+            /* Preferred protocols */
+            ProtocolProfile profile = ProtocolProfile.from(cardAccess, dg14);
+            assertArrayEquals(ASN1Util.encodeOid("0.4.0.127.0.7.2.2.4.2.2"), profile.getPaceProtocol());
+            assertEquals(13, profile.getPaceParameterId());
+            assertTrue(profile.supportsChipAuthentication());
+            assertArrayEquals(ASN1Util.encodeOid("0.4.0.127.0.7.2.2.3.2.4"), profile.getChipAuthenticationProtocol());
+            assertEquals("SHA-256", profile.getActiveAuthenticationDigestAlgorithm());
+            assertTrue(profile.supportsTerminalAuthentication());
+
+            ProtocolProfile bac = ProtocolProfile.from(null, null);
+            assertFalse(bac.supportsPACE());
+            assertFalse(bac.supportsChipAuthentication());
+            assertFalse(bac.supportsActiveAuthentication());
+
+            ProtocolProfile.clearCache();
+            assertNull(ProtocolProfile.lookup("UTO", "P"));
+            ProtocolProfile.remember("UTO", "P", profile);
+            ProtocolProfile.remember("UTO", "I", bac);
+            assertSame(profile, ProtocolProfile.lookup("UTO", "P"));
+            assertSame(bac, ProtocolProfile.lookup("UTO", "I"));
+            assertEquals(profile, ProtocolProfile.from(cardAccess, dg14));
+            ProtocolProfile.forget("UTO", "P");
+            assertNull(ProtocolProfile.lookup("UTO", "P"));
+            ProtocolProfile.clearCache();
+
+            try {
+                SecurityInfos.fromDG14(DG1);
+                Assert.fail();
+            } catch (IOException e) {}
+
+            try {
+                SecurityInfos.fromBytes(Utils.strToHex("3105300306012A"));
+                Assert.fail();
+            } catch (IOException e) {}
+        }
+        catch (IOException e) {
+            Logger.getGlobal().severe("An exception was thrown: " + e.getMessage());
+            Assert.fail();
+        }
+    }
+
+    @Test
+    public static void AdditionalDetailsFile() {
+        try {
+            TlvWriter w = new TlvWriter();
+            w.startConstructed(LDSFile.EF_DG11_TAG);
+            w.write(0x5C, Utils.strToHex("5F0E5F0F5F2B5F115F42"));
+            w.write(DG11File.FULL_NAME_TAG, "ERIKSSON<<ANNA<MARIA".getBytes());
+            w.startConstructed(0xA0).writeByteValue(0x02, 2);
+            w.write(DG11File.OTHER_NAME_TAG, "ANNA ERIKSSON".getBytes());
+            w.write(DG11File.OTHER_NAME_TAG, "ANNA MARIA ERIKSSON".getBytes());
+            w.end();
+            w.write(DG11File.FULL_DATE_OF_BIRTH_TAG, Utils.strToHex("19740812"));
+            w.write(DG11File.PLACE_OF_BIRTH_TAG, "ZÜRICH".getBytes("UTF-8"));
+            w.write(DG11File.PERMANENT_ADDRESS_TAG, "1 MAIN STREET".getBytes());
+            w.end();
+
+            DG11File dg11 = DG11File.fromBytes(w.toByteArray());
+            assertArrayEquals(new int[]{ 0x5F0E, 0x5F0F, 0x5F2B, 0x5F11, 0x5F42 }, dg11.getTagList());
+            assertTrue(dg11.isListed(DG11File.PLACE_OF_BIRTH_TAG));
+            assertFalse(dg11.isListed(DG11File.TELEPHONE_TAG));
+            assertEquals("ERIKSSON<<ANNA<MARIA", dg11.getFullName());
+            assertEquals(Arrays.asList("ANNA ERIKSSON", "ANNA MARIA ERIKSSON"), dg11.getOtherNames());
+            assertEquals("19740812", dg11.getFullDateOfBirth());
+            assertEquals("ZÜRICH", dg11.getPlaceOfBirth());
+            assertEquals("1 MAIN STREET", dg11.getPermanentAddress());
+            assertNull(dg11.getTelephone());
+            assertNull(dg11.openProofOfCitizenship());
+            assertFalse(dg11.hasField(DG11File.PERSONAL_NUMBER_TAG));
+
+            byte[] front = new byte[600];
+            Arrays.fill(front, (byte) 0x7E);
+            w.reset().startConstructed(LDSFile.EF_DG12_TAG);
+            w.write(0x5C, Utils.strToHex("5F195F265F1D5F55"));
+            w.write(DG12File.ISSUING_AUTHORITY_TAG, "UTOPIA".getBytes());
+            w.write(DG12File.DATE_OF_ISSUE_TAG, "20120415".getBytes());
+            w.write(DG12File.IMAGE_OF_FRONT_TAG, front);
+            w.write(DG12File.PERSONALIZATION_TIME_TAG, Utils.strToHex("20120415103000"));
+            w.end();
+
+            byte[] data = w.toByteArray();
+            DG12File dg12 = DG12File.fromBytes(data);
+            assertEquals("UTOPIA", dg12.getIssuingAuthority());
+            assertEquals("20120415", dg12.getDateOfIssue());
+            assertEquals("20120415103000", dg12.getPersonalizationTime());
+            assertTrue(dg12.getOtherPersons().isEmpty());
+            assertNull(dg12.openImageOfRear());
+
+            /* Image is a view of DG12 */
+            int offs = dg12.fieldOffset(DG12File.IMAGE_OF_FRONT_TAG);
+            assertEquals(front.length, dg12.fieldLength(DG12File.IMAGE_OF_FRONT_TAG));
+            assertArrayEquals(front, Arrays.copyOfRange(data, offs, offs + front.length));
+            ByteBuffer view = dg12.getFieldBuffer(DG12File.IMAGE_OF_FRONT_TAG);
+            assertEquals(front.length, view.remaining());
+            assertTrue(view.isReadOnly());
+            data[offs] = 0x01;
+            assertEquals(0x01, view.get(0));
+            InputStream image = dg12.openImageOfFront();
+            assertEquals(front.length, image.available());
+            assertEquals(0x01, image.read());
+
+            try {
+                DG11File.fromBytes(data);
+                Assert.fail();
+            } catch (IOException e) {}
+
+            try {
+                DG12File.fromBytes(Utils.strToHex("6C075F1904555430"));
+                Assert.fail();
+            } catch (IOException e) {}
+        }
+        catch (IOException e) {
+            Logger.getGlobal().severe("An exception was thrown: " + e.getMessage());
+            Assert.fail();
+        }
+    }
+
+    @Test
+    public static void runAll() {
+        SODFile();
+        CertificateView();
+        DG1File();
+        DG2File();
+        DataGroups();
+        COMFile();
+        SecurityInfos();
+        AdditionalDetailsFile();
+    }
+}
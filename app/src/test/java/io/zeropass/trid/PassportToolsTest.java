@@ -10,15 +10,33 @@ import org.hamcrest.core.IsEqual;
 import org.junit.Assert;
 import org.junit.Test;
 
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.NotSerializableException;
+import java.io.ObjectOutputStream;
+import java.lang.reflect.Constructor;
+import java.security.GeneralSecurityException;
 import java.util.logging.Logger;
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
 import javax.crypto.SecretKey;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import javax.security.auth.DestroyFailedException;
 
 import io.zeropass.trid.com.ApduCmd;
 import io.zeropass.trid.com.ApduResult;
+import io.zeropass.trid.com.ComProvider;
+import io.zeropass.trid.crypto.CryptoUtils;
+import io.zeropass.trid.crypto.PassportAESSessionCipher;
 import io.zeropass.trid.crypto.PassportSessionCipher;
 import io.zeropass.trid.crypto.PassportSessionKey;
 import io.zeropass.trid.passport.ApduEAData;
+import io.zeropass.trid.passport.BacKeyMaterial;
+import io.zeropass.trid.passport.PassportApdu;
 import io.zeropass.trid.passport.PassportTools;
+import io.zeropass.trid.passport.lds.LDSFile;
 import io.zeropass.trid.smartcard.ISO7816;
 
 import static junit.framework.Assert.assertEquals;
@@ -106,6 +124,52 @@ public class PassportToolsTest {
         assertEquals(ks.getSSC(), 0x887022120C06C226L);
     }
 
+    private static BacKeyMaterial newBacKeyMaterial(String pn, String dob, String doe, byte[] rndIFD, byte[] kIFD) {
+        try {
+            Constructor<BacKeyMaterial> c = BacKeyMaterial.class.getDeclaredConstructor(String.class, String.class, String.class, byte[].class, byte[].class);
+            c.setAccessible(true);
+            return c.newInstance(pn, dob, doe, rndIFD, kIFD);
+        } catch (Exception e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    @Test
+    public static void BACKeyMaterial() {
+        /* Test vectors from ICAO 9303-11 appendix D.3 */
+        byte[] rndIC  = Utils.strToHex("4608F91988702212");
+        byte[] rndIFD = Utils.strToHex("781723860C06C226");
+        byte[] kIFD   = Utils.strToHex("0B795240CB7049B01C19B33E32804F0B");
+
+        BacKeyMaterial km = newBacKeyMaterial("L898902C<", "690806", "940623", rndIFD, kIFD);
+        assertNotNull(km);
+        assertEquals(km.matches("L898902C", "690806", "940623"), true);
+        assertEquals(km.matches("L898902C", "690806", "940624"), false);
+        assertThat(km.getEncKey().getEncoded(), IsEqual.equalTo(Utils.strToHex("AB94FDECF2674FDFB9B391F85D7F76F2")));
+        assertThat(km.getMacKey().getEncoded(), IsEqual.equalTo(Utils.strToHex("7962D9ECE03D1ACD4C76089DCE131543")));
+
+        try {
+            ApduEAData eaData = km.generateApduEAData(rndIC);
+            assertThat(eaData.E, IsEqual.equalTo(Utils.strToHex("72C29C2371CC9BDB65B779B8E8D37B29ECC154AA56A8799FAE2F498F76ED92F2")));
+            assertThat(eaData.M, IsEqual.equalTo(Utils.strToHex("5F1448EEA8AD90A7")));
+            assertEquals(km.isUsed(), true);
+
+            ApduEAData respEaData = new ApduEAData(Utils.strToHex("46B9342A41396CD7386BF5803104D7CEDC122B9132139BAF2EEDC94EE178534F2F2D235D074D7449"));
+            assertEquals(km.verify(respEaData), true);
+
+            PassportSessionKey ks = km.calculateSessionKey(rndIC, respEaData);
+            assertNotNull(ks);
+            assertThat(ks.getKSenc().getEncoded(), IsEqual.equalTo(Utils.strToHex("979EC13B1CBFE9DCD01AB0FED307EAE5")));
+            assertThat(ks.getKSmac().getEncoded(), IsEqual.equalTo(Utils.strToHex("F1CB1F1FB5ADF208806B89DC579DC1F8")));
+            assertEquals(ks.getSSC(), 0x887022120C06C226L);
+        }
+        catch (Exception e) {
+            Logger.getGlobal().severe("And exception was thrown: " + e.getMessage());
+            Assert.fail();
+        }
+    }
+
     @Test
     public static void secureMessaging() {
         /* Test vectors taken from BAC() function */
@@ -184,11 +248,279 @@ public class PassportToolsTest {
         }
     }
 
+    @Test
+    public static void secureMessagingPrewrap() {
+        /* Test vectors taken from secureMessaging() function (ICAO 9303-11 D.4) */
+        byte[] rndIC  = Utils.strToHex("4608F91988702212");
+        byte[] rndIFD = Utils.strToHex("781723860C06C226");
+        byte[] kIFD   = Utils.strToHex("0B795240CB7049B01C19B33E32804F0B");
+        byte[] kIC    = Utils.strToHex("0B4F80323EB3191CB04970CB4052790B");
+
+        PassportSessionKey ks = PassportTools.calculateSessionKey(rndIC, rndIFD, kIFD, kIC);
+        PassportSessionCipher sc = new PassportSessionCipher(ks);
+
+        // 1. Select EF.COM, wrong prediction of next command must be discarded
+        ApduCmd encCmd = sc.encrypt(new ApduCmd(0x00, 0xA4, 0x02, 0x0C, new byte[]{ 0x01, 0x1E }));
+        assertArrayEquals(Utils.strToHex("0CA4020C158709016375432908C044F68E08BF8B92D635FF24F800"), encCmd.toBytes());
+        sc.prewrap(new ApduCmd(0x00, 0xB0, 0x00, 0x00, 8));
+
+        ApduResult rapdu = sc.decrypt(new ApduResult(Utils.strToHex("990290008E08FA855A5D4C50A8ED9000")));
+        assertNotNull(rapdu);
+
+        // 2. Read binary (4 bytes), correct prediction of next read binary
+        encCmd = sc.encrypt(new ApduCmd(0x00, 0xB0, 0x00, 0x00, 4));
+        assertArrayEquals(Utils.strToHex("0CB000000D9701048E08ED6705417E96BA5500"), encCmd.toBytes());
+        assertEquals(1, sc.getPrewrapMisses());
+        assertEquals(0, sc.getPrewrapHits());
+        sc.prewrap(new ApduCmd(0x00, 0xB0, 0x00, 0x04, 0x12));
+
+        rapdu = sc.decrypt(new ApduResult(Utils.strToHex("8709019FF0EC34F9922651990290008E08AD55CC17140B2DED9000")));
+        assertNotNull(rapdu);
+        assertArrayEquals(Utils.strToHex("60145F01"), rapdu.data());
+
+        // 3. Read binary (remaining 18 bytes from offset 4) is taken from pre-wrapped command
+        encCmd = sc.encrypt(new ApduCmd(0x00, 0xB0, 0x00, 0x04, 0x12));
+        assertArrayEquals(Utils.strToHex("0CB000040D9701128E082EA28A70F3C7B53500"), encCmd.toBytes());
+        assertEquals(1, sc.getPrewrapMisses());
+        assertEquals(1, sc.getPrewrapHits());
+
+        rapdu = sc.decrypt(new ApduResult(Utils.strToHex("871901FB9235F4E4037F2327DCC8964F1F9B8C30F42C8E2FFF224A990290008E08C8B2787EAEA07D749000")));
+        assertNotNull(rapdu);
+        assertArrayEquals(Utils.strToHex("04303130365F36063034303030305C026175"), rapdu.data());
+
+        // 4. Closed session wipes keys and can't be used anymore
+        sc.close();
+        assertEquals(ks.isClosed(), true);
+        assertArrayEquals(new byte[16], ks.getKSenc().getEncoded());
+        assertArrayEquals(new byte[16], ks.getKSmac().getEncoded());
+        assertNull(sc.encrypt(new ApduCmd(0x00, 0xB0, 0x00, 0x16, 8)));
+    }
+
+    @Test
+    public static void chipAuthenticationKDF() {
+        /* Test vectors from ICAO 9303-11 appendix G.1 (shared secret of ECDH key agreement) */
+        byte[] secret = Utils.strToHex("28768D20701247DAE81804C9E780EDE582A9996DB4A315020B2733197DB84925");
+
+        SecretKey ksEnc = PassportTools.deriveKey(secret, "AES", 16, PassportTools.ENC_MODE);
+        SecretKey ksMac = PassportTools.deriveKey(secret, "AES", 16, PassportTools.MAC_MODE);
+
+        assertEquals(ksEnc.getAlgorithm(), "AES");
+        assertThat(ksEnc.getEncoded(), IsEqual.equalTo(Utils.strToHex("F5F0E35C0D7161EE6724EE513A0D9A7F")));
+        assertThat(ksMac.getEncoded(), IsEqual.equalTo(Utils.strToHex("FE251C7858B356B24514B3BD5F4297D1")));
+
+        PassportSessionKey ks = new PassportSessionKey(ksEnc, ksMac, 0);
+        assertEquals(ks.isAES(), true);
+
+        /* Session key bytes can't be serialized */
+        try {
+            new ObjectOutputStream(new ByteArrayOutputStream()).writeObject(ks.getKSenc());
+            fail();
+        } catch (NotSerializableException e) {
+        } catch (IOException e) {
+            fail();
+        }
+
+        /* Key view can't be destroyed on its own, the session key stays intact */
+        try {
+            ks.getKSenc().destroy();
+            fail();
+        } catch (DestroyFailedException e) {
+        }
+        assertEquals(ks.getKSenc().isDestroyed(), false);
+        assertThat(ks.getKSenc().getEncoded(), IsEqual.equalTo(Utils.strToHex("F5F0E35C0D7161EE6724EE513A0D9A7F")));
+
+        /* Session key doesn't keep references to caller's keys */
+        ks.close();
+        assertArrayEquals(new byte[16], ks.getKSenc().getEncoded());
+        assertThat(ksEnc.getEncoded(), IsEqual.equalTo(Utils.strToHex("F5F0E35C0D7161EE6724EE513A0D9A7F")));
+    }
+
+    /** ICC with one transparent file, READ BINARY with odd INS is accepted for any offset */
+    static class FileCard extends ComProvider {
+        final byte[] mFile;
+        int mOddReads = 0;
+
+        FileCard(byte[] file) {
+            mFile = file;
+        }
+
+        @Override protected String getLoggerName() { return "io.trid.test"; }
+        @Override public boolean isConnected() { return true; }
+        @Override public void connect() {}
+        @Override public void disconnect() {}
+        @Override public byte[] getATR() { return new byte[0]; }
+
+        @Override
+        protected byte[] transceive(byte[] cmd) {
+            int ins = cmd[1] & 0xFF;
+            if(ins == 0xA4) {
+                return Utils.strToHex("9000");
+            }
+
+            int offset;
+            int le = cmd[cmd.length - 1] & 0xFF;
+            if(ins == 0xB0) {
+                assertEquals(0, cmd[2] & 0x80); // not SFI
+                offset = ((cmd[2] & 0xFF) << 8) | (cmd[3] & 0xFF);
+            }
+            else {
+                assertEquals(0x54, cmd[5] & 0xFF);
+                offset = 0;
+                for (int i = 0; i < cmd[6]; i++) {
+                    offset = (offset << 8) | (cmd[7 + i] & 0xFF);
+                }
+                le -= (le - 2 > 0x7F) ? 3 : 2; // DO53 header
+                mOddReads++;
+            }
+
+            int len = Math.min(le, mFile.length - offset);
+            byte[] data = Utils.copyOut(mFile, offset, len);
+            if(ins == 0xB1) {
+                data = Utils.join(len > 0x7F ? new byte[]{ 0x53, (byte) 0x81, (byte) len } : new byte[]{ 0x53, (byte) len }, data);
+            }
+            return Utils.join(data, Utils.strToHex("9000"));
+        }
+    }
+
+    /** FileCard with AES secure messaging, every protected response must fit in a short APDU */
+    static class SecureFileCard extends FileCard {
+        final SecretKeySpec mKSenc;
+        final SecretKeySpec mKSmac;
+        long mSSC = 0;
+
+        SecureFileCard(byte[] file, SecretKeySpec ksEnc, SecretKeySpec ksMac) {
+            super(file);
+            mKSenc = ksEnc;
+            mKSmac = ksMac;
+        }
+
+        @Override
+        protected byte[] transceive(byte[] cmd) {
+            try {
+                /* Unwrap command and verify its MAC */
+                mSSC++;
+                byte[] data = null;
+                int le = -1;
+                int i = 5;
+                while (cmd[i] != (byte) 0x8E) {
+                    int tag = cmd[i] & 0xFF;
+                    byte[] value = Utils.copyOut(cmd, i + 2, cmd[i + 1] & 0xFF);
+                    if (tag == 0x97) {
+                        le = value[0] & 0xFF;
+                    }
+                    else {
+                        data = PassportTools.unpad(crypt(Cipher.DECRYPT_MODE, tag == 0x87 ? Utils.copyOut(value, 1, value.length - 1) : value));
+                    }
+                    i += 2 + value.length;
+                }
+                byte[] n = Utils.join(Utils.join(sscBytes(), PassportTools.pad(Utils.copyOut(cmd, 0, 4), 128)), Utils.copyOut(cmd, 5, i - 5));
+                assertArrayEquals(mac(PassportTools.pad(n, 128)), Utils.copyOut(cmd, i + 2, 8));
+
+                ApduCmd plain;
+                if (data == null) {
+                    plain = new ApduCmd(0x00, cmd[1] & 0xFF, cmd[2] & 0xFF, cmd[3] & 0xFF, le);
+                }
+                else if (le < 0) {
+                    plain = new ApduCmd(0x00, cmd[1] & 0xFF, cmd[2] & 0xFF, cmd[3] & 0xFF, data);
+                }
+                else {
+                    plain = new ApduCmd(0x00, cmd[1] & 0xFF, cmd[2] & 0xFF, cmd[3] & 0xFF, data, le);
+                }
+                byte[] rsp = super.transceive(plain.toBytes());
+
+                /* Wrap response DO87 | DO99 | DO8E */
+                mSSC++;
+                byte[] sw = Utils.copyOut(rsp, rsp.length - 2, 2);
+                byte[] dos = new byte[0];
+                if (rsp.length > 2) {
+                    byte[] value = Utils.join(new byte[]{ 0x01 }, crypt(Cipher.ENCRYPT_MODE, PassportTools.pad(Utils.copyOut(rsp, 0, rsp.length - 2), 128)));
+                    byte[] hdr = value.length > 0x7F ? new byte[]{ (byte) 0x87, (byte) 0x81, (byte) value.length } : new byte[]{ (byte) 0x87, (byte) value.length };
+                    dos = Utils.join(hdr, value);
+                }
+                dos = Utils.join(dos, Utils.join(new byte[]{ (byte) 0x99, 0x02 }, sw));
+                byte[] cc = mac(PassportTools.pad(Utils.join(sscBytes(), dos), 128));
+                dos = Utils.join(dos, Utils.join(new byte[]{ (byte) 0x8E, 0x08 }, cc));
+
+                assertTrue(dos.length <= 256);
+                return Utils.join(dos, sw);
+            }
+            catch (GeneralSecurityException e) {
+                throw new AssertionError(e);
+            }
+        }
+
+        private byte[] sscBytes() {
+            byte[] ssc = new byte[16];
+            for (int i = 0; i < 8; i++) {
+                ssc[15 - i] = (byte) (mSSC >>> (8 * i));
+            }
+            return ssc;
+        }
+
+        private byte[] crypt(int mode, byte[] data) throws GeneralSecurityException {
+            Cipher ecb = CryptoUtils.getCipher("AES/ECB/NoPadding");
+            ecb.init(Cipher.ENCRYPT_MODE, mKSenc);
+            Cipher cbc = CryptoUtils.getCipher("AES/CBC/NoPadding");
+            cbc.init(mode, mKSenc, new IvParameterSpec(ecb.doFinal(sscBytes())));
+            return cbc.doFinal(data);
+        }
+
+        private byte[] mac(byte[] data) throws GeneralSecurityException {
+            Mac cmac = CryptoUtils.getMac("AESCMAC");
+            cmac.init(mKSmac);
+            return Utils.copyOut(cmac.doFinal(data), 0, 8);
+        }
+    }
+
+    @Test
+    public static void readBinaryLargeOffset() {
+        try {
+            /* File larger than 32767 bytes, the tail is read with READ BINARY with odd INS */
+            byte[] file = new byte[4 + 0x8200];
+            file[0] = 0x75;
+            file[1] = (byte) 0x82;
+            file[2] = (byte) 0x82;
+            for (int i = 4; i < file.length; i++) {
+                file[i] = (byte) i;
+            }
+
+            FileCard card = new FileCard(file);
+            PassportApdu passport = new PassportApdu(card);
+            assertArrayEquals(file, passport.readFile(LDSFile.EF_DG2_FID));
+            assertTrue(card.mOddReads > 0);
+
+            InputStream is = new PassportApdu(card).openFile(LDSFile.EF_DG2_FID, null);
+            byte[] streamed = new byte[file.length];
+            int n = 0;
+            int r;
+            while ((r = is.read(streamed, n, streamed.length - n)) > 0) {
+                n += r;
+            }
+            assertArrayEquals(file, streamed);
+
+            /* Same file read with AES secure messaging */
+            SecretKeySpec ksEnc = new SecretKeySpec(Utils.strToHex("F5F0E35C0D7161EE6724EE513A0D9A7F"), "AES");
+            SecretKeySpec ksMac = new SecretKeySpec(Utils.strToHex("FE251C7858B356B24514B3BD5F4297D1"), "AES");
+            SecureFileCard smCard = new SecureFileCard(file, ksEnc, ksMac);
+            smCard.setSession(new PassportAESSessionCipher(new PassportSessionKey(ksEnc, ksMac, 0)));
+            assertArrayEquals(file, new PassportApdu(smCard).readFile(LDSFile.EF_DG2_FID));
+            assertTrue(smCard.mOddReads > 0);
+        }
+        catch (Exception e) {
+            e.printStackTrace();
+            assertEquals(false, true);
+        }
+    }
+
     @Test
     public static void runAll() {
         mrzCheckDigit();
         BACkey();
         BAC();
+        BACKeyMaterial();
         secureMessaging();
+        secureMessagingPrewrap();
+        chipAuthenticationKDF();
+        readBinaryLargeOffset();
     }
 }
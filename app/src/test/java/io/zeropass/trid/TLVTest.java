@@ -0,0 +1,395 @@
+/*
+* Copyright (c) 2018 ZeroPass
+* Distributed under the MIT software license, see the accompanying
+* file LICENSE or https://opensource.org/licenses/MIT.
+*/
+
+package io.zeropass.trid;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.logging.Logger;
+
+import io.zeropass.trid.tlv.ASN1Constants;
+import io.zeropass.trid.tlv.ASN1Util;
+import io.zeropass.trid.tlv.TLVUtils;
+import io.zeropass.trid.tlv.TlvCursor;
+import io.zeropass.trid.tlv.TlvIndex;
+import io.zeropass.trid.tlv.TlvPullParser;
+import io.zeropass.trid.tlv.TlvWriter;
+
+import static org.junit.Assert.*;
+
+
+public class TLVTest {
+
+    /* EF.COM from ICAO 9303-11 appendix D.4 */
+    static final byte[] EF_COM = Utils.strToHex("60145F0104303130365F36063034303030305C026175");
+
+    @Test
+    public static void TLVUtils() {
+        try {
+            assertEquals(0x60, TLVUtils.getTag(EF_COM));
+            assertEquals(0x5F01, TLVUtils.getTag(EF_COM, 2));
+            assertEquals(0x9F8101, TLVUtils.getTag(Utils.strToHex("9F810100")));
+            assertEquals(3, TLVUtils.getTagBytesCount(Utils.strToHex("9F810100"), 0));
+
+            /* Multi-byte tag at the end of short data */
+            assertEquals(2, TLVUtils.getTagBytesCount(Utils.strToHex("5F1F00"), 0));
+            assertArrayEquals(Utils.strToHex("30313036"), TLVUtils.getValue(EF_COM, 2));
+            assertArrayEquals(Utils.strToHex("41"), TLVUtils.getValue(Utils.strToHex("5F1F0141")));
+
+            try {
+                TLVUtils.getTag(Utils.strToHex("5F"));
+                Assert.fail();
+            } catch (IOException e) {}
+        }
+        catch (IOException e) {
+            Logger.getGlobal().severe("An exception was thrown: " + e.getMessage());
+            Assert.fail();
+        }
+    }
+
+    @Test
+    public static void TlvCursor() {
+        try {
+            TlvCursor c = new TlvCursor(EF_COM);
+            assertTrue(c.next());
+            assertEquals(0x60, c.tag());
+            assertTrue(c.isConstructed());
+            assertEquals(0x14, c.length());
+            assertEquals(2, c.valueOffset());
+
+            c.enter();
+            assertEquals(1, c.depth());
+            assertTrue(c.next());
+            assertEquals(0x5F01, c.tag());
+            assertFalse(c.isConstructed());
+            assertArrayEquals(Utils.strToHex("30313036"), c.getValue());
+
+            assertTrue(c.find(0x5C));
+            assertTrue(c.valueEquals(Utils.strToHex("6175")));
+            assertEquals(0x6175, c.valueAsInt());
+            assertFalse(c.next());
+
+            c.exit();
+            assertEquals(0, c.depth());
+            assertEquals(0x60, c.tag());
+            assertFalse(c.next());
+
+            /* Long form length and direct buffer */
+            byte[] big = new byte[4 + 300];
+            big[0] = 0x04;
+            big[1] = (byte) 0x82;
+            big[2] = 0x01;
+            big[3] = 0x2C;
+            big[303] = 0x55;
+            ByteBuffer direct = ByteBuffer.allocateDirect(big.length + 2);
+            direct.put(new byte[]{ 0x00, 0x00 }).put(big).flip();
+            direct.position(2);
+
+            c.reset(direct);
+            assertTrue(c.next());
+            assertEquals(0x04, c.tag());
+            assertEquals(300, c.length());
+            assertEquals(6, c.valueOffset());
+            assertEquals(0x55, c.valueByte(299));
+            assertEquals(304, c.encodedLength());
+            assertEquals(2, direct.position());
+
+            /* Heap buffer slice, offsets are relative to the slice and not to its backing array */
+            byte[] backing = new byte[5 + big.length];
+            System.arraycopy(big, 0, backing, 5, big.length);
+            ByteBuffer slice = ByteBuffer.wrap(backing, 3, big.length + 2).slice();
+            slice.position(2);
+
+            c.reset(slice);
+            assertTrue(c.next());
+            assertEquals(0x04, c.tag());
+            assertEquals(300, c.length());
+            assertEquals(2, c.headerOffset());
+            assertEquals(6, c.valueOffset());
+            assertEquals(0x55, c.valueByte(299));
+            assertEquals(0x55, c.getValue()[299]);
+            assertEquals(2, slice.position());
+
+            /* Malformed data: value exceeds parent */
+            c.reset(Utils.strToHex("300404030101"));
+            c.next();
+            c.enter();
+            try {
+                c.next();
+                Assert.fail();
+            } catch (IOException e) {}
+
+            try {
+                c.reset(Utils.strToHex("5F")).next();
+                Assert.fail();
+            } catch (IOException e) {}
+        }
+        catch (IOException e) {
+            Logger.getGlobal().severe("An exception was thrown: " + e.getMessage());
+            Assert.fail();
+        }
+    }
+
+    @Test
+    public static void TlvPullParser() {
+        try {
+            /* Value chunks */
+            TlvPullParser p = new TlvPullParser(new ByteArrayInputStream(EF_COM), 3);
+            assertEquals(TlvPullParser.START_CONSTRUCTED, p.next());
+            assertEquals(0x60, p.tag());
+            assertEquals(0x14, p.length());
+            assertEquals(0, p.depth());
+
+            assertEquals(TlvPullParser.PRIMITIVE_HEADER, p.next());
+            assertEquals(0x5F01, p.tag());
+            assertEquals(1, p.depth());
+            assertEquals(TlvPullParser.VALUE_CHUNK, p.next());
+            assertEquals(3, p.chunkLength());
+            assertEquals(0, p.chunkValueOffset());
+            assertArrayEquals(Utils.strToHex("303130"), Utils.copyOut(p.chunkBuffer(), 0, p.chunkLength()));
+            assertEquals(TlvPullParser.VALUE_CHUNK, p.next());
+            assertEquals(1, p.chunkLength());
+            assertEquals(3, p.chunkValueOffset());
+            assertEquals(TlvPullParser.END, p.next());
+            assertEquals(0x5F01, p.tag());
+
+            /* Skip, read and transfer value */
+            assertEquals(TlvPullParser.PRIMITIVE_HEADER, p.next());
+            assertEquals(0x5F36, p.tag());
+            p.skipValue();
+            assertEquals(TlvPullParser.END, p.next());
+
+            assertEquals(TlvPullParser.PRIMITIVE_HEADER, p.next());
+            assertEquals(0x5C, p.tag());
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            assertEquals(2, p.transferValue(out));
+            assertArrayEquals(Utils.strToHex("6175"), out.toByteArray());
+            assertEquals(TlvPullParser.END, p.next());
+
+            assertEquals(TlvPullParser.END, p.next());
+            assertEquals(0x60, p.tag());
+            assertEquals(0, p.depth());
+            assertEquals(EF_COM.length, p.position());
+            assertEquals(TlvPullParser.END_DOCUMENT, p.next());
+
+            /* Skip constructed element */
+            p = new TlvPullParser(new ByteArrayInputStream(Utils.strToHex("7F6103020101" + "5F1F0141")));
+            assertEquals(TlvPullParser.START_CONSTRUCTED, p.next());
+            assertEquals(0x7F61, p.tag());
+            p.skipValue();
+            assertEquals(TlvPullParser.END, p.next());
+            assertEquals(TlvPullParser.PRIMITIVE_HEADER, p.next());
+            assertArrayEquals(Utils.strToHex("41"), p.readValue());
+            assertEquals(TlvPullParser.END, p.next());
+            assertEquals(TlvPullParser.END_DOCUMENT, p.next());
+
+            /* Value stream reports only bytes which input can return without blocking */
+            p = new TlvPullParser(new ByteArrayInputStream(Utils.strToHex("5F1F03414243")) {
+                @Override
+                public synchronized int available() {
+                    return Math.min(1, super.available());
+                }
+            });
+            assertEquals(TlvPullParser.PRIMITIVE_HEADER, p.next());
+            InputStream value = p.valueStream();
+            assertEquals(3, p.remainingLength());
+            assertEquals(1, value.available());
+            assertEquals(0x41, value.read());
+            assertEquals(2, p.remainingLength());
+            assertEquals(2, value.skip(5));
+            assertEquals(0, value.available());
+            assertEquals(-1, value.read());
+
+            /* Malformed data: value exceeds parent */
+            p = new TlvPullParser(new ByteArrayInputStream(Utils.strToHex("300404030101")));
+            p.next();
+            try {
+                p.next();
+                Assert.fail();
+            } catch (IOException e) {}
+
+            /* Truncated input */
+            p = new TlvPullParser(new ByteArrayInputStream(Utils.strToHex("5F1F0341")));
+            p.next();
+            p.next();
+            try {
+                p.next();
+                Assert.fail();
+            } catch (EOFException e) {}
+        }
+        catch (IOException e) {
+            Logger.getGlobal().severe("An exception was thrown: " + e.getMessage());
+            Assert.fail();
+        }
+    }
+
+    @Test
+    public static void TlvIndex() {
+        try {
+            TlvIndex index = new TlvIndex(EF_COM);
+            assertEquals(1, index.size());
+
+            int node = index.find("60/5F36");
+            assertTrue(node > 0);
+            assertEquals(0x5F36, index.tag(node));
+            assertArrayEquals(Utils.strToHex("303430303030"), index.getValue(node));
+            assertEquals(5, index.size()); // root, 60 and its 3 children
+
+            assertArrayEquals(Utils.strToHex("6175"), index.getValue("60/5C"));
+            assertEquals(index.find("60/5C"), index.find(0x60, 0x5C));
+            assertEquals(-1, index.find("60/5F1F"));
+            assertEquals(-1, index.find("60/5C/01"));
+            assertEquals(3, index.childCount(index.find("60")));
+            assertEquals(0x5F01, index.tag(index.child(index.find("60"), 0)));
+
+            /* Repeated tags are returned in encoding order */
+            byte[] seq = Utils.strToHex("30090201050201030401AA");
+            index = new TlvIndex(seq);
+            assertArrayEquals(Utils.strToHex("05"), index.getValue("30/02"));
+            assertArrayEquals(Utils.strToHex("03"), index.getValue("30/02[1]"));
+            assertNull(index.getValue("30/02[2]"));
+            assertArrayEquals(Utils.strToHex("AA"), index.getValue("30/04"));
+
+            /* Saved index */
+            index.indexAll();
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            index.writeTo(out);
+            TlvIndex loaded = TlvIndex.readFrom(new ByteArrayInputStream(out.toByteArray()), seq);
+            assertEquals(index.size(), loaded.size());
+            assertArrayEquals(Utils.strToHex("03"), loaded.getValue("30/02[1]"));
+
+            try {
+                TlvIndex.readFrom(new ByteArrayInputStream(out.toByteArray()), EF_COM);
+                Assert.fail();
+            } catch (IOException e) {}
+
+            /* Data of the same length with different content */
+            byte[] modified = seq.clone();
+            modified[modified.length - 1] ^= 0x01;
+            try {
+                TlvIndex.readFrom(new ByteArrayInputStream(out.toByteArray()), modified);
+                Assert.fail();
+            } catch (IOException e) {}
+
+            /* Malformed data is reported on first access */
+            index = new TlvIndex(Utils.strToHex("300404030101"));
+            assertTrue(index.find("30") > 0);
+            try {
+                index.find("30/04");
+                Assert.fail();
+            } catch (IOException e) {}
+        }
+        catch (IOException e) {
+            Logger.getGlobal().severe("An exception was thrown: " + e.getMessage());
+            Assert.fail();
+        }
+    }
+
+    @Test
+    public static void TlvWriter() {
+        assertArrayEquals(Utils.strToHex("5F1F"), TLVUtils.getTagAsBytes(0x5F1F));
+        assertArrayEquals(Utils.strToHex("9F61"), TLVUtils.getTagAsBytes(0x9F61));
+        assertArrayEquals(Utils.strToHex("9F8101"), TLVUtils.getTagAsBytes(0x9F8101));
+        assertArrayEquals(Utils.strToHex("00"), TLVUtils.getTagAsBytes(0x00));
+        assertArrayEquals(Utils.strToHex("7F"), TLVUtils.getLengthAsBytes(0x7F));
+        assertArrayEquals(Utils.strToHex("8180"), TLVUtils.getLengthAsBytes(0x80));
+        assertArrayEquals(Utils.strToHex("820100"), TLVUtils.getLengthAsBytes(0x100));
+        assertArrayEquals(Utils.strToHex("83010000"), TLVUtils.getLengthAsBytes(0x10000));
+        assertEquals(3, TLVUtils.getLengthBytesCount(0x100));
+
+        /* EF.COM */
+        TlvWriter w = new TlvWriter(4);
+        w.startConstructed(0x60);
+        w.write(0x5F01, Utils.strToHex("30313036"));
+        w.write(0x5F36, Utils.strToHex("303430303030"));
+        w.write(0x5C, Utils.strToHex("6175"));
+        w.end();
+        assertArrayEquals(EF_COM, w.toByteArray());
+
+        /* Nested elements with long form length are moved when length is patched */
+        byte[] value = new byte[200];
+        value[199] = 0x55;
+        w.reset();
+        w.startConstructed(0x7F61);
+        w.writeByteValue(0x02, 1);
+        w.startConstructed(0x7F60);
+        w.write(0x5F2E, value);
+        w.end();
+        w.end();
+        assertEquals(0, w.depth());
+
+        byte[] encoded = w.toByteArray();
+        assertEquals(4 + 3 + 4 + 4 + 200, encoded.length);
+        assertArrayEquals(Utils.strToHex("7F6181D3020101"), Utils.copyOut(encoded, 0, 7));
+        assertArrayEquals(Utils.strToHex("7F6081CC"), Utils.copyOut(encoded, 7, 4));
+        assertArrayEquals(Utils.strToHex("5F2E81C8"), Utils.copyOut(encoded, 11, 4));
+        assertEquals(0x55, encoded[encoded.length - 1]);
+
+        try {
+            w.reset().startConstructed(0x30).toByteArray();
+            Assert.fail();
+        } catch (IllegalStateException e) {}
+    }
+
+    @Test
+    public static void ASN1Util() {
+        try {
+            /* 2018-03-05 14:07:09 UTC */
+            long t = 1520258829000L;
+            assertEquals(t, parseTime(ASN1Constants.UTC_TIME_TYPE_TAG, "180305140709Z"));
+            assertEquals(t - 9000, parseTime(ASN1Constants.UTC_TIME_TYPE_TAG, "1803051407Z"));
+            assertEquals(t, parseTime(ASN1Constants.UTC_TIME_TYPE_TAG, "180305160709+0200"));
+            assertEquals(t + 250, parseTime(ASN1Constants.GENERALIZED_TIME_TYPE_TAG, "20180305140709.25Z"));
+            assertEquals(t, parseTime(ASN1Constants.GENERALIZED_TIME_TYPE_TAG, "20180305090709-0500"));
+            assertEquals(-1000L, parseTime(ASN1Constants.UTC_TIME_TYPE_TAG, "691231235959Z"));
+            assertEquals(951782400000L, parseTime(ASN1Constants.GENERALIZED_TIME_TYPE_TAG, "20000229000000Z"));
+
+            String[] invalid = { "180305140709", "180230140709Z", "1803051407XZ", "180305146009Z", "18030514Z" };
+            for (String v : invalid) {
+                try {
+                    parseTime(ASN1Constants.UTC_TIME_TYPE_TAG, v);
+                    Assert.fail(v);
+                } catch (IOException e) {}
+            }
+
+            byte[] oid = ASN1Util.encodeOid("2.23.136.1.1.1");
+            assertArrayEquals(Utils.strToHex("678108010101"), oid);
+            assertEquals("2.23.136.1.1.1", ASN1Util.oidToString(oid, 0, oid.length));
+            assertArrayEquals(Utils.strToHex("2A864886F70D010702"), ASN1Util.encodeOid("1.2.840.113549.1.7.2"));
+            assertEquals("1.2.840.113549.1.7.2", ASN1Util.oidToString(Utils.strToHex("2A864886F70D010702"), 0, 9));
+            try {
+                ASN1Util.oidToString(Utils.strToHex("2A86"), 0, 2);
+                Assert.fail();
+            } catch (IOException e) {}
+        }
+        catch (IOException e) {
+            Logger.getGlobal().severe("An exception was thrown: " + e.getMessage());
+            Assert.fail();
+        }
+    }
+
+    private static long parseTime(int tag, String value) throws IOException {
+        byte[] data = value.getBytes();
+        return ASN1Util.parseTime(tag, data, 0, data.length);
+    }
+
+    @Test
+    public static void runAll() {
+        TLVUtils();
+        TlvCursor();
+        TlvPullParser();
+        TlvIndex();
+        TlvWriter();
+        ASN1Util();
+    }
+}
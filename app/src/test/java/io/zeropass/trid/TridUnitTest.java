@@ -23,4 +23,14 @@ public class TridUnitTest {
     public void CryptoUtils() {
         CryptoUtilsTest.runAll();
     }
+
+    @Test
+    public void LDS() {
+        LDSTest.runAll();
+    }
+
+    @Test
+    public void TLV() {
+        TLVTest.runAll();
+    }
 }
\ No newline at end of file